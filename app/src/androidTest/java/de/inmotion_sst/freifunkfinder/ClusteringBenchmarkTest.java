@@ -0,0 +1,273 @@
+package de.inmotion_sst.freifunkfinder;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.inmotion_sst.freifunkfinder.clustering.ClusterAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterList;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterPyramid;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterScheduler;
+import de.inmotion_sst.freifunkfinder.clustering.GridBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.HierarchicalDistanceBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.ParallelTiledDistanceBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.Sites;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.TiledDistanceBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.VisibleNonHierarchicalDistanceBasedAlgorithm;
+import java8.util.concurrent.ForkJoinPool;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Timings of the cluster algorithms, all of them use the nodes of the bundled {@link TestFeed}
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ClusteringBenchmarkTest {
+    private static final String TAG = "ClusteringBenchmarkTest";
+    private static final int RUNS = 10;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    // viewports spread over Germany, from the north sea to the alps
+    private static final LatLng[] CENTERS = {
+            new LatLng(53.55, 9.99), new LatLng(52.52, 13.40), new LatLng(51.23, 6.78),
+            new LatLng(50.11, 8.68), new LatLng(49.01, 8.40), new LatLng(48.14, 11.58)};
+
+    private static final LatLng CITY = new LatLng(52.52, 13.40);
+    private static final int CITY_NODES = 500000;
+
+    private static NodeTable table;
+
+    @BeforeClass
+    public static void parseNodes() throws Exception {
+        table = TestFeed.table();
+    }
+
+    @Test
+    public void pyramid_comparedToClusteringOnEveryChange() throws Exception {
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "cluster pyramid, " + table.size() + " nodes");
+        Sites<Node> sites = Sites.build(table);
+        timing.addSplit("grouping into " + sites.size() + " sites");
+        ClusterPyramid pyramid = ClusterPyramid.build(sites, 0);
+        timing.addSplit("pyramid build");
+        timing.dumpToSysOut();
+
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null, null, pyramid);
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> flat = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        HierarchicalDistanceBasedAlgorithm<Node> hierarchical = new HierarchicalDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        for (float zoom : new float[]{8, 11, 14}) {
+            CameraPosition camera = new CameraPosition(new LatLng(51.2, 6.8), zoom, 0, 0);
+            flat.onCameraChange(camera);
+            hierarchical.onCameraChange(camera);
+
+            timing.reset();
+            cluster(flat, zoom);
+            timing.addSplit(RUNS + " x zoom " + (int) zoom + ", clustering the visible area");
+            cluster(hierarchical, zoom);
+            timing.addSplit(RUNS + " x zoom " + (int) zoom + ", from the pyramid");
+            timing.dumpToSysOut();
+        }
+    }
+
+    @Test
+    public void scheduler_cameraBurst() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> algorithm = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+
+        // a fling zooming out over the Ruhr area, a camera change every millisecond
+        List<CameraPosition> burst = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            burst.add(new CameraPosition(new LatLng(51.3 + i * 0.001, 7.2 + i * 0.002), 11 - i / 30f, 0, 0));
+        }
+        algorithm.onCameraChange(burst.get(0));
+        algorithm.getClusters(burst.get(0).zoom);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, burst.size() + " camera changes");
+
+        for (CameraPosition camera : burst) {
+            algorithm.onCameraChange(camera);
+            algorithm.getClusters(camera.zoom);
+        }
+        timing.addSplit("every change clustered to the end");
+
+        final AtomicInteger done = new AtomicInteger();
+        ClusterScheduler<Node> sut = new ClusterScheduler<>((generation, clusters) -> done.set(generation));
+        long lastRequest = 0;
+        int lastGeneration = 0;
+        for (CameraPosition camera : burst) {
+            algorithm.onCameraChange(camera);
+            lastGeneration = sut.request(algorithm, camera.zoom);
+            lastRequest = System.nanoTime();
+            while (System.nanoTime() - lastRequest < TimeUnit.MILLISECONDS.toNanos(1)) {
+                Thread.yield();
+            }
+        }
+        timing.addSplit("requests, one per millisecond");
+        while (done.get() != lastGeneration) {
+            assertTrue(System.nanoTime() - lastRequest < TimeUnit.SECONDS.toNanos(10));
+            Thread.yield();
+        }
+        sut.shutdown();
+        long passes = sut.getRequests() - sut.getCoalesced();
+        timing.addSplit("clusters of the last change, " + passes + " passes, " + sut.getCancelled() + " cancelled, " + sut.getWasted() + " wasted");
+        timing.dumpToSysOut();
+    }
+
+    @Test
+    public void grid_comparedToDistanceBasedAtEveryZoom() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        GridBasedAlgorithm<Node> grid = new GridBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> distance = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "grid vs distance, " + CENTERS.length + " viewports in Germany, " + table.size() + " nodes");
+
+        for (int zoom = 5; zoom <= 18; zoom++) {
+            timing.reset();
+            for (LatLng center : CENTERS) {
+                grid.onCameraChange(new CameraPosition(center, zoom, 0, 0));
+                cluster(grid, zoom);
+            }
+            timing.addSplit(CENTERS.length + " x " + RUNS + " at zoom " + zoom + ", grid");
+
+            for (LatLng center : CENTERS) {
+                distance.onCameraChange(new CameraPosition(center, zoom, 0, 0));
+                cluster(distance, zoom);
+            }
+            timing.addSplit(CENTERS.length + " x " + RUNS + " at zoom " + zoom + ", distance");
+            timing.dumpToSysOut();
+        }
+    }
+
+    @Test
+    public void tiled_comparedToWholeViewportOnPanZoomTrace() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        List<CameraPosition> trace = panZoomTrace();
+        TiledDistanceBasedAlgorithm<Node> tiled = new TiledDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> whole = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        whole.onCameraChange(trace.get(0));
+        whole.getClusters(trace.get(0).zoom);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, trace.size() + " pans and zoom changes");
+
+        for (CameraPosition camera : trace) {
+            tiled.onCameraChange(camera);
+            tiled.getClusters(camera.zoom);
+        }
+        long tiles = tiled.getHits() + tiled.getMisses();
+        timing.addSplit("tiled, " + tiles + " tiles with " + 100 * tiled.getHits() / tiles + " % cache hits");
+
+        for (CameraPosition camera : trace) {
+            whole.onCameraChange(camera);
+            whole.getClusters(camera.zoom);
+        }
+        timing.addSplit("whole viewport");
+
+        timing.dumpToSysOut();
+        assertTrue(tiled.getHits() > tiled.getMisses());
+    }
+
+    @Test
+    public void parallelTiled_scalingOnSyntheticCity() throws Exception {
+        SpatialDataSource<Node> dataSource = city();
+        CameraPosition camera = new CameraPosition(CITY, 12, 0, 0);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, CITY_NODES + " nodes in a city on " + Runtime.getRuntime().availableProcessors() + " cores");
+
+        Set<? extends Cluster<Node>> sequential = null;
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            ParallelTiledDistanceBasedAlgorithm<Node> sut = new ParallelTiledDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource, pool);
+            sut.onCameraChange(camera);
+            // the first pass also builds the sites and their cell index
+            Set<? extends Cluster<Node>> clusters = sut.getClusters(camera.zoom);
+            if (sequential == null) {
+                sequential = clusters;
+            }
+            assertEquals(sequential, clusters);
+
+            timing.reset();
+            cluster(sut, camera.zoom);
+            timing.addSplit(RUNS + " x " + threads + " threads");
+            timing.dumpToSysOut();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void clusterList_comparedToClusterObjects() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> sut = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        // the Ruhr area, about 5000 nodes are visible at zoom 10
+        sut.onCameraChange(new CameraPosition(new LatLng(51.3, 7.2), 10, 0, 0));
+        ClusterList<Node> clusters = new ClusterList<>();
+        sut.getClusters(10, clusters);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, clusters.size() + " clusters at zoom 10");
+
+        for (int run = 0; run < RUNS; run++) {
+            sut.getClusters(10, clusters);
+        }
+        timing.addSplit(RUNS + " x compact");
+
+        cluster(sut, 10);
+        timing.addSplit(RUNS + " x as cluster objects");
+        timing.dumpToSysOut();
+    }
+
+    private static void cluster(ClusterAlgorithm<Node> algorithm, float zoom) {
+        for (int run = 0; run < RUNS; run++) {
+            algorithm.getClusters(zoom);
+        }
+    }
+
+    // a user panning across the Ruhr area in steps of an eighth of the screen, zooming in and out in between
+    private static List<CameraPosition> panZoomTrace() {
+        List<CameraPosition> trace = new ArrayList<>();
+        double x = SpatialDataSource.toX(6.6);
+        double y = SpatialDataSource.toY(51.45);
+        int[] zooms = {10, 11, 12, 11, 10, 11};
+        for (int leg = 0; leg < zooms.length; leg++) {
+            int zoom = zooms[leg];
+            double step = WIDTH / Math.pow(2, zoom) / 256 / 8;
+            for (int pan = 0; pan < 20; pan++) {
+                // east on even legs, back west and a bit south on odd ones
+                x += leg % 2 == 0 ? step : -step;
+                y += leg % 2 == 0 ? 0 : step / 4;
+                trace.add(new CameraPosition(new LatLng(SpatialDataSource.toLatitude(y), SpatialDataSource.toLongitude(x)), zoom, 0, 0));
+            }
+        }
+        return trace;
+    }
+
+    // nodes around a center that thin out to the outskirts, about 20 km across
+    private static SpatialDataSource<Node> city() {
+        Random random = new Random(42);
+        // straight into the columns, half a million node objects would not fit the heap of smaller devices
+        NodeTable.Builder nodes = new NodeTable.Builder(CITY_NODES);
+        for (int i = 0; i < CITY_NODES; i++) {
+            double lat = CITY.latitude + random.nextGaussian() * 0.05;
+            double lon = CITY.longitude + random.nextGaussian() * 0.08;
+            nodes.add(Integer.toString(i), null, null, lat, lon, 0, "online", 0);
+        }
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(nodes.build(), null);
+        return dataSource;
+    }
+}
@@ -0,0 +1,322 @@
+package de.inmotion_sst.freifunkfinder;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.google.maps.android.geometry.Bounds;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.inmotion_sst.freifunkfinder.clustering.CellIndex;
+import de.inmotion_sst.freifunkfinder.clustering.HandleList;
+import de.inmotion_sst.freifunkfinder.clustering.PackedPointIndex;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Timings of the node tables and stores, all of them use the nodes of the bundled {@link TestFeed}
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NodeBenchmarkTest {
+    private static final String TAG = "NodeBenchmarkTest";
+    private static final int RUNS = 10;
+    private static final int SYNTHETIC_NODE_COUNT = 1000000;
+    private static final String[] COMMUNITIES = {"altdorf", "berlin", "hamburg", "muenchen", "darmstadt", "koeln"};
+
+    private static List<Node> nodes;
+
+    @BeforeClass
+    public static void parseNodes() throws Exception {
+        nodes = TestFeed.nodes();
+    }
+
+    @Test
+    public void nodeTable_comparedToNodeObjects() throws Exception {
+        // ids and node objects of a million nodes take about 150 MB at their peak
+        assumeTrue(Runtime.getRuntime().maxMemory() >= 256L * 1024 * 1024);
+        // ids are needed by both representations, so they are created up front and not counted
+        String[] ids = new String[SYNTHETIC_NODE_COUNT];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Integer.toHexString(i);
+        }
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "node table vs objects, " + SYNTHETIC_NODE_COUNT + " synthetic nodes");
+
+        long before = usedHeap();
+        Random random = new Random(42);
+        List<Node> objects = new ArrayList<>(SYNTHETIC_NODE_COUNT);
+        for (int i = 0; i < SYNTHETIC_NODE_COUNT; i++) {
+            objects.add(new Node(ids[i], null, COMMUNITIES[random.nextInt(COMMUNITIES.length)],
+                    47 + random.nextDouble() * 7, 6 + random.nextDouble() * 9, 0,
+                    random.nextBoolean() ? "online" : "offline", random.nextInt(10)));
+        }
+        long objectBytes = usedHeap() - before;
+        timing.reset();
+
+        int objectHits = 0;
+        for (int run = 0; run < RUNS; run++) {
+            for (Node node : objects) {
+                if (node.getPosition().latitude > 50 && node.getPosition().longitude < 10)
+                    objectHits++;
+            }
+        }
+        timing.addSplit(RUNS + " scans of objects, " + objectBytes / SYNTHETIC_NODE_COUNT + " bytes/node");
+        objects = null;
+
+        before = usedHeap();
+        random = new Random(42);
+        NodeTable.Builder builder = new NodeTable.Builder(SYNTHETIC_NODE_COUNT);
+        for (int i = 0; i < SYNTHETIC_NODE_COUNT; i++) {
+            builder.add(ids[i], null, COMMUNITIES[random.nextInt(COMMUNITIES.length)],
+                    47 + random.nextDouble() * 7, 6 + random.nextDouble() * 9, 0,
+                    random.nextBoolean() ? "online" : "offline", random.nextInt(10));
+        }
+        NodeTable table = builder.build();
+        builder = null;
+        long tableBytes = usedHeap() - before;
+        timing.reset();
+
+        int tableHits = 0;
+        for (int run = 0; run < RUNS; run++) {
+            for (int handle = 0; handle < table.size(); handle++) {
+                if (table.getLat(handle) > 50 && table.getLon(handle) < 10)
+                    tableHits++;
+            }
+        }
+        timing.addSplit(RUNS + " scans of the table, " + tableBytes / SYNTHETIC_NODE_COUNT + " bytes/node");
+
+        timing.dumpToSysOut();
+        assertEquals(objectHits, tableHits);
+    }
+
+    @Test
+    public void streamParse_firstBatchAndPeakHeap() throws Exception {
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "stream parse of the bundled feed");
+        Runtime runtime = Runtime.getRuntime();
+        long baseline = usedHeap();
+        final long[] peak = {baseline};
+        final int[] batches = {0};
+        timing.reset();
+
+        int count;
+        try (InputStream in = TestFeed.open()) {
+            count = new NodeStreamParser().parse(in, batch -> {
+                if (batches[0]++ == 0) {
+                    timing.addSplit("first batch");
+                }
+                // no gc here, it would dwarf the parse, so garbage counts towards the peak as well
+                peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory());
+            });
+        }
+        timing.addSplit(count + " nodes in " + batches[0] + " batches, peak heap growth " + (peak[0] - baseline) / 1024 + " KB");
+
+        timing.dumpToSysOut();
+        assertEquals(TestFeed.ROUTER_COUNT, count);
+        assertTrue(batches[0] > 1);
+    }
+
+    @Test
+    public void applyDelta_comparedToFullReload() throws Exception {
+        List<Node> base = withUniqueIds(nodes);
+
+        for (double churn : new double[]{0.001, 0.01, 0.10, 0.50}) {
+            List<Node> next = churn(base, churn, new Random(42));
+            NodeDelta delta = delta(base, next);
+            int changes = delta.getAdded().size() + delta.getUpdated().size() + delta.getRemoved().size();
+
+            NodeRepository full = new NodeRepository(null);
+            full.setNodes(base);
+            NodeRepository patched = new NodeRepository(null);
+            patched.setNodes(base);
+            SysOutTimingLogger timing = new SysOutTimingLogger(TAG, churn * 100 + "% churn, " + changes + " changes");
+
+            full.setNodes(next);
+            // the reload builds everything, the delta only indexes the changed nodes until the changes exceed the
+            // patch limit of SpatialDataSource.Snapshot, the first search is part of both
+            full.getSpatialDataSource().search(new Bounds(0, 1, 0, 1));
+            timing.addSplit("full reload");
+
+            patched.applyDelta(delta);
+            patched.getSpatialDataSource().search(new Bounds(0, 1, 0, 1));
+            timing.addSplit("delta patch");
+
+            timing.dumpToSysOut();
+            assertEquals(full.getNodeCount(), patched.getNodeCount());
+            assertEquals(full.getSpatialDataSource().search(new Bounds(0, 1, 0, 1)).size(),
+                    patched.getSpatialDataSource().search(new Bounds(0, 1, 0, 1)).size());
+        }
+    }
+
+    @Test
+    public void mappedNodeTable_heapComparedToNodeStore() throws Exception {
+        File file = NodeRepository.getFile(InstrumentationRegistry.getTargetContext());
+        NodeStore.write(file, nodes);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "mapped table vs store, " + nodes.size() + " nodes");
+
+        long before = usedHeap();
+        timing.reset();
+        List<Node> read = NodeStore.read(file);
+        timing.addSplit("read, " + (usedHeap() - before) / 1024 + " KB");
+
+        // the path NodeRepository.loadCached takes, the columns stay in the mapping
+        before = usedHeap();
+        timing.reset();
+        NodeTable table = NodeTable.fromStore(MappedNodeTable.open(file));
+        timing.addSplit("mapped table, " + (usedHeap() - before) / 1024 + " KB");
+
+        int north = 0;
+        for (int handle = 0; handle < table.size(); handle++) {
+            if (table.getLat(handle) > 50)
+                north++;
+        }
+        timing.addSplit("scan of the mapped table, " + (usedHeap() - before) / 1024 + " KB");
+
+        timing.dumpToSysOut();
+        assertEquals(read.size(), table.size());
+        assertTrue(north > 0);
+    }
+
+    @Test
+    public void coldStart_storedIndexComparedToRebuild() throws Exception {
+        File nodeFile = NodeRepository.getFile(InstrumentationRegistry.getTargetContext());
+        File indexFile = NodeRepository.getIndexFile(InstrumentationRegistry.getTargetContext());
+        NodeTable table = NodeTable.of(nodes);
+        int generation = NodeStore.write(nodeFile, table);
+        PackedPointIndex.build(table, generation).write(indexFile);
+        Bounds visible = new Bounds(0.52, 0.53, 0.33, 0.34);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "first visible search, " + nodes.size() + " nodes");
+
+        SpatialDataSource<Node> rebuilt = new SpatialDataSource<>();
+        rebuilt.addItems(NodeStore.read(nodeFile));
+        int rebuiltCount = rebuilt.search(visible).size();
+        timing.addSplit("rebuild");
+
+        SpatialDataSource<Node> mapped = new SpatialDataSource<>();
+        mapped.setItems(NodeTable.fromStore(MappedNodeTable.open(nodeFile)), PackedPointIndex.read(indexFile));
+        int mappedCount = mapped.search(visible).size();
+        timing.addSplit("stored index");
+
+        timing.dumpToSysOut();
+        assertEquals(rebuiltCount, mappedCount);
+    }
+
+    @Test
+    public void cellIndex_tileLookupComparedToRangeSearch() throws Exception {
+        NodeTable table = NodeTable.of(nodes);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "cell index, " + table.size() + " nodes");
+
+        CellIndex cells = CellIndex.build(table, 0);
+        timing.addSplit("build");
+
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null, cells);
+        SpatialDataSource.Snapshot<Node> snapshot = dataSource.snapshot();
+        snapshot.search(new Bounds(0, 1, 0, 1), new HandleList());
+
+        // all zoom 12 tiles around Düsseldorf, a few times over
+        int level = 12;
+        int minX = CellIndex.toCell(SpatialDataSource.toX(6.4), level);
+        int maxX = CellIndex.toCell(SpatialDataSource.toX(7.2), level);
+        int minY = CellIndex.toCell(SpatialDataSource.toY(51.5), level);
+        int maxY = CellIndex.toCell(SpatialDataSource.toY(50.9), level);
+        double tile = 1.0 / (1 << level);
+        int tiles = (maxX - minX + 1) * (maxY - minY + 1);
+        timing.reset();
+
+        int cellCount = 0;
+        for (int run = 0; run < RUNS; run++) {
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    cellCount += snapshot.getCells().count(level, x, y);
+                }
+            }
+        }
+        timing.addSplit(RUNS + " x " + tiles + " tile counts");
+
+        HandleList found = new HandleList();
+        int rangeCount = 0;
+        for (int run = 0; run < RUNS; run++) {
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    found.clear();
+                    // tiles are half open, like the cells
+                    snapshot.forEachInBounds(x * tile, Math.nextAfter((x + 1) * tile, 0), y * tile, Math.nextAfter((y + 1) * tile, 0), found);
+                    rangeCount += found.size();
+                }
+            }
+        }
+        timing.addSplit(RUNS + " x " + tiles + " range searches");
+
+        timing.dumpToSysOut();
+        assertEquals(rangeCount, cellCount);
+    }
+
+    // the feed has a few duplicate ids, the delta protocol requires unique ones
+    private static List<Node> withUniqueIds(List<Node> nodes) {
+        List<Node> unique = new ArrayList<>(nodes.size());
+        for (Node n : nodes) {
+            unique.add(new Node(n.getCommunity() + "/" + unique.size(), n.getName(), n.getCommunity(), n.getLat(), n.getLon(), n.getAlt(), n.getStatus(), n.getClients()));
+        }
+        return unique;
+    }
+
+    // a third of the churn each: status flips, removals and additions
+    private static List<Node> churn(List<Node> base, double fraction, Random random) {
+        List<Node> next = new ArrayList<>(base);
+        int changes = (int) (base.size() * fraction / 3);
+
+        for (int i = 0; i < changes; i++) {
+            int index = random.nextInt(next.size());
+            Node n = next.get(index);
+            String status = "online".equals(n.getStatus()) ? "offline" : "online";
+            next.set(index, new Node(n.getId(), n.getName(), n.getCommunity(), n.getLat(), n.getLon(), n.getAlt(), status, n.getClients()));
+        }
+        for (int i = 0; i < changes; i++) {
+            next.remove(random.nextInt(next.size()));
+        }
+        for (int i = 0; i < changes; i++) {
+            next.add(new Node("added/" + i, "added " + i, "test", 47 + random.nextDouble() * 8, 6 + random.nextDouble() * 9, 0, "online", 0));
+        }
+        return next;
+    }
+
+    private static NodeDelta delta(List<Node> from, List<Node> to) {
+        Map<String, Node> before = new HashMap<>();
+        for (Node node : from) {
+            before.put(node.getId(), node);
+        }
+
+        List<Node> added = new ArrayList<>();
+        List<Node> updated = new ArrayList<>();
+        for (Node node : to) {
+            Node old = before.remove(node.getId());
+            if (old == null)
+                added.add(node);
+            else if (old != node)
+                updated.add(node);
+        }
+        return new NodeDelta(2, false, added, updated, new ArrayList<>(before.keySet()));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -15,7 +15,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -72,6 +74,74 @@ public class NodeRepositoryTest {
         timing.dumpToSysOut();
     }
 
+    @Test
+    @LargeTest // this is a slow tests, uses network
+    public void fetchNodeList_conditionalComparedToFullRefresh() throws Exception {
+        // validators of its own, the ones of the app stay as they are
+        File validatorFile = new File(getTestContext().getCacheDir(), "benchmark.validators");
+        validatorFile.delete();
+        NodeListFetcher fetcher = new NodeListFetcher(new URL(NodeListFetcher.DEFAULT_URL), validatorFile);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "conditional vs full refresh");
+
+        NodeListFetcher.Result full = fetcher.fetch(batch -> { });
+        timing.addSplit("full refresh, " + full.getBytesTransferred() + " bytes");
+        fetcher.storeValidators(full);
+
+        NodeListFetcher.Result conditional = fetcher.fetch(batch -> { });
+        timing.addSplit((conditional.isNotModified() ? "not modified, " : "modified, ") + conditional.getBytesTransferred() + " bytes, "
+                + (full.getBytesTransferred() - conditional.getBytesTransferred()) + " bytes saved");
+
+        timing.dumpToSysOut();
+        validatorFile.delete();
+
+        assertTrue(full.getNodeCount() > 0);
+        if (conditional.isNotModified()) {
+            assertEquals(0, conditional.getBytesTransferred());
+        }
+    }
+
+    @Test
+    @LargeTest // this is a slow tests, uses network
+    public void nodeStore_comparedToParcel() throws Exception {
+        List<Node> nodes = NodeRepository.fetchNodeList();
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "store vs parcel, " + nodes.size() + " nodes");
+
+        File parcelFile = new File(getTestContext().getCacheDir(), "nodes.parcel");
+        Parcel parcel = Parcel.obtain();
+        parcel.writeTypedList(nodes);
+        byte[] bytes = parcel.marshall();
+        parcel.recycle();
+        FileOutputStream fileOutputStream = new FileOutputStream(parcelFile);
+        fileOutputStream.write(bytes);
+        fileOutputStream.close();
+        long parcelSize = parcelFile.length();
+        timing.addSplit("parcel save, " + parcelSize + " bytes");
+
+        byte[] buffer = new byte[(int) parcelFile.length()];
+        FileInputStream fileInputStream = new FileInputStream(parcelFile);
+        fileInputStream.read(buffer, 0, buffer.length);
+        fileInputStream.close();
+        parcel = Parcel.obtain();
+        parcel.unmarshall(buffer, 0, buffer.length);
+        parcel.setDataPosition(0);
+        List<Node> fromParcel = parcel.createTypedArrayList(Node.CREATOR);
+        parcel.recycle();
+        timing.addSplit("parcel load");
+
+        File storeFile = NodeRepository.getFile(getTestContext());
+        NodeStore.write(storeFile, nodes);
+        timing.addSplit("store save, " + storeFile.length() + " bytes");
+
+        List<Node> fromStore = NodeStore.read(storeFile);
+        timing.addSplit("store load");
+
+        timing.dumpToSysOut();
+        parcelFile.delete();
+
+        assertEquals(fromParcel.size(), fromStore.size());
+        assertTrue(storeFile.length() < parcelSize);
+    }
+
     @Test
     public void newRepositoryHasEmptyList() throws Exception {
         NodeRepository sut = makeSut();
@@ -86,7 +156,9 @@ public class NodeRepositoryTest {
         sut.setNodes(Collections.singletonList(node));
 
         assertEquals(1, sut.getNodes().count());
-        assertEquals(node, sut.getNodes().findFirst().get());
+        // the repository keeps the values of nodes, not the instances
+        assertEquals(node.getId(), sut.getNodes().findFirst().get().getId());
+        assertEquals(node.getPosition(), sut.getNodes().findFirst().get().getPosition());
     }
 
     @Test
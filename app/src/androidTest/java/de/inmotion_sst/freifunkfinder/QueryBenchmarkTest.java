@@ -0,0 +1,314 @@
+package de.inmotion_sst.freifunkfinder;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.geometry.Bounds;
+import com.google.maps.android.geometry.Point;
+import com.google.maps.android.quadtree.PointQuadTree;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import de.inmotion_sst.freifunkfinder.clustering.HandleList;
+import de.inmotion_sst.freifunkfinder.clustering.ItemFilter;
+import de.inmotion_sst.freifunkfinder.clustering.ItemTable;
+import de.inmotion_sst.freifunkfinder.clustering.NearestIterator;
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
+import de.inmotion_sst.freifunkfinder.clustering.PackedHilbertRTree;
+import de.inmotion_sst.freifunkfinder.clustering.PackedPointIndex;
+import de.inmotion_sst.freifunkfinder.clustering.RangeAggregate;
+import de.inmotion_sst.freifunkfinder.clustering.Sites;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialIndex;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Timings of the spatial queries, all of them use the nodes of the bundled {@link TestFeed}
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class QueryBenchmarkTest {
+    private static final String TAG = "QueryBenchmarkTest";
+    private static final int RUNS = 10;
+    private static final int PAGE = 10;
+
+    private static NodeTable table;
+
+    @BeforeClass
+    public static void parseNodes() throws Exception {
+        table = TestFeed.table();
+    }
+
+    @Test
+    public void spatialIndex_quadTreeComparedToPackedIndexes() throws Exception {
+        List<Bounds> queries = viewports(new Random(42), 1000, 8, 13);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "spatial indexes, " + table.size() + " nodes");
+
+        // single inserts, like the data source did before the packed indexes
+        PointQuadTree<QuadItem> quadTree = new PointQuadTree<>(0, 1, 0, 1);
+        for (int handle = 0; handle < table.size(); handle++) {
+            quadTree.add(new QuadItem(SpatialDataSource.toX(table.getLon(handle)), SpatialDataSource.toY(table.getLat(handle))));
+        }
+        timing.addSplit("quadtree build");
+
+        int quadHits = 0;
+        for (int run = 0; run < RUNS; run++) {
+            for (Bounds bounds : queries) {
+                quadHits += quadTree.search(bounds).size();
+            }
+        }
+        timing.addSplit(RUNS + " x " + queries.size() + " quadtree queries");
+
+        HandleList found = new HandleList();
+        for (SpatialIndex.Factory factory : new SpatialIndex.Factory[]{PackedPointIndex.FACTORY, PackedHilbertRTree.FACTORY}) {
+            String name = factory == PackedPointIndex.FACTORY ? "2d-tree" : "hilbert r-tree";
+            timing.reset();
+            SpatialIndex index = factory.build(table);
+            timing.addSplit(name + " build");
+
+            int hits = 0;
+            for (int run = 0; run < RUNS; run++) {
+                for (Bounds bounds : queries) {
+                    found.clear();
+                    index.range(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, found);
+                    hits += found.size();
+                }
+            }
+            timing.addSplit(RUNS + " x " + queries.size() + " " + name + " queries");
+            // the quadtree drops items outside the world, those are not part of the viewports anyway
+            assertEquals(quadHits, hits);
+        }
+        timing.dumpToSysOut();
+    }
+
+    @Test
+    public void sites_comparedToNodes() throws Exception {
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "sites, " + table.size() + " nodes");
+
+        Sites<Node> sites = Sites.build(table);
+        timing.addSplit("grouping into " + sites.size() + " sites");
+
+        for (SpatialIndex.Factory factory : new SpatialIndex.Factory[]{PackedPointIndex.FACTORY, PackedHilbertRTree.FACTORY}) {
+            String name = factory == PackedPointIndex.FACTORY ? "2d-tree" : "hilbert r-tree";
+            timing.reset();
+            buildIndexes(factory, table);
+            timing.addSplit(RUNS + " " + name + " builds over nodes");
+            buildIndexes(factory, sites);
+            timing.addSplit(RUNS + " " + name + " builds over sites");
+        }
+        timing.dumpToSysOut();
+    }
+
+    @Test
+    public void filteredQueries_comparedToUnfiltered() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        SpatialDataSource.Snapshot<Node> snapshot = dataSource.snapshot();
+        List<Bounds> viewports = viewports(new Random(42), 200, 8, 12);
+        List<LatLng> positions = positions(new Random(42), 200);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "filtered queries, " + table.size() + " nodes");
+
+        ItemFilter online = new ItemFilter.Builder().status(ItemFilter.ONLINE).build();
+        ItemFilter community = new ItemFilter.Builder().group("karlsruhe").build();
+        HandleList found = new HandleList();
+        NeighborList closest = new NeighborList();
+        for (ItemFilter filter : Arrays.asList(ItemFilter.ALL, online, community)) {
+            String name = filter == ItemFilter.ALL ? "unfiltered" : filter == online ? "online" : "one community";
+            // the first queries build the subtree attributes
+            snapshot.forEachInBounds(viewports.get(0), filter, found);
+            timing.reset();
+
+            for (int run = 0; run < RUNS; run++) {
+                for (Bounds bounds : viewports) {
+                    found.clear();
+                    snapshot.forEachInBounds(bounds, filter, found);
+                }
+            }
+            timing.addSplit(RUNS + " x " + viewports.size() + " " + name + " range queries");
+
+            for (int run = 0; run < RUNS; run++) {
+                for (LatLng position : positions) {
+                    closest.clear();
+                    snapshot.findClosestItems(position, 10, Double.POSITIVE_INFINITY, filter, closest);
+                }
+            }
+            timing.addSplit(RUNS + " x " + positions.size() + " " + name + " 10-nn queries");
+        }
+        timing.dumpToSysOut();
+    }
+
+    @Test
+    public void findClosestItems_forSeveralK() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        List<LatLng> positions = positions(new Random(42), 1000);
+        NeighborList found = new NeighborList(100);
+        dataSource.findClosestItems(positions.get(0), 1, found);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "nearest neighbours, " + table.size() + " nodes");
+
+        for (int k : new int[]{1, 10, 100}) {
+            for (LatLng position : positions) {
+                found.clear();
+                dataSource.findClosestItems(position, k, found);
+            }
+            timing.addSplit(positions.size() + " queries, k=" + k);
+        }
+        timing.dumpToSysOut();
+    }
+
+    @Test
+    public void nearestFirst_pagesComparedToSearchingAgain() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        SpatialDataSource.Snapshot<Node> snapshot = dataSource.snapshot();
+        List<LatLng> positions = positions(new Random(42), 50);
+        NeighborList page = new NeighborList(PAGE);
+        NeighborList closest = new NeighborList(100 * PAGE);
+        snapshot.findClosestItems(positions.get(0), 1, Double.POSITIVE_INFINITY, closest);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "nearest pages of " + PAGE + ", " + table.size() + " nodes");
+
+        // scrolling down 100 pages, against searching the closest items up to the last page again
+        for (LatLng position : positions) {
+            NearestIterator<Node> iterator = snapshot.nearestFirst(position, ItemFilter.ALL);
+            for (int p = 0; p < 100; p++) {
+                page.clear();
+                iterator.nextPage(PAGE, page);
+            }
+        }
+        timing.addSplit(positions.size() + " x 100 pages");
+
+        for (LatLng position : positions) {
+            closest.clear();
+            snapshot.findClosestItems(position, 100 * PAGE, Double.POSITIVE_INFINITY, closest);
+        }
+        timing.addSplit(positions.size() + " x the closest " + 100 * PAGE + " from scratch");
+        timing.dumpToSysOut();
+    }
+
+    @Test
+    public void findWithinRadius_comparedToHaversineScan() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        LatLng query = new LatLng(50.1, 8.7);
+        double radius = 20000;
+        NeighborList found = new NeighborList();
+        dataSource.findWithinRadius(query, radius, found);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "nodes within " + (int) radius + " m, " + table.size() + " nodes");
+
+        int scanned = 0;
+        for (int run = 0; run < RUNS; run++) {
+            for (int handle = 0; handle < table.size(); handle++) {
+                double lat = table.getLat(handle);
+                double lon = table.getLon(handle);
+                if (Math.abs(lat) < 90 && Math.abs(lon) <= 180
+                        && SpatialDataSource.distFrom(query.latitude, query.longitude, lat, lon) <= radius)
+                    scanned++;
+            }
+        }
+        timing.addSplit(RUNS + " Haversine scans");
+
+        int hits = 0;
+        for (int run = 0; run < RUNS; run++) {
+            found.clear();
+            dataSource.findWithinRadius(query, radius, found);
+            hits += found.size();
+        }
+        timing.addSplit(RUNS + " radius queries");
+
+        timing.dumpToSysOut();
+        assertEquals(scanned, hits);
+        assertTrue(hits > 0);
+    }
+
+    @Test
+    public void aggregate_comparedToEnumeration() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        SpatialDataSource.Snapshot<Node> snapshot = dataSource.snapshot();
+        // viewports at the zoom levels where clusters hold thousands of nodes
+        List<Bounds> viewports = viewports(new Random(42), 100, 3, 8);
+        RangeAggregate aggregate = new RangeAggregate();
+        HandleList found = new HandleList();
+        snapshot.aggregate(viewports.get(0), aggregate);
+        SysOutTimingLogger timing = new SysOutTimingLogger(TAG, "clients in viewports at zoom 3-8, " + table.size() + " nodes");
+
+        long enumerated = 0;
+        for (int run = 0; run < RUNS; run++) {
+            for (Bounds bounds : viewports) {
+                found.clear();
+                snapshot.search(bounds, found);
+                for (int i = 0; i < found.size(); i++) {
+                    int handle = found.get(i);
+                    // aggregates leave out nodes with invalid coordinates, wide viewports catch a few
+                    if (Math.abs(table.getLat(handle)) < 90 && Math.abs(table.getLon(handle)) <= 180)
+                        enumerated += table.getClients(handle);
+                }
+            }
+        }
+        timing.addSplit(RUNS + " x " + viewports.size() + " enumerations");
+
+        long aggregated = 0;
+        for (int run = 0; run < RUNS; run++) {
+            for (Bounds bounds : viewports) {
+                aggregate.clear();
+                snapshot.aggregate(bounds, aggregate);
+                aggregated += aggregate.getClients();
+            }
+        }
+        timing.addSplit(RUNS + " x " + viewports.size() + " aggregations");
+
+        timing.dumpToSysOut();
+        assertEquals(enumerated, aggregated);
+    }
+
+    private static void buildIndexes(SpatialIndex.Factory factory, ItemTable<Node> items) {
+        for (int run = 0; run < RUNS; run++) {
+            factory.build(items);
+        }
+    }
+
+    // phone sized viewports around Germany
+    private static List<Bounds> viewports(Random random, int count, int minZoom, int maxZoom) {
+        List<Bounds> viewports = new ArrayList<>(count);
+        for (int q = 0; q < count; q++) {
+            int zoom = minZoom + random.nextInt(maxZoom - minZoom + 1);
+            double halfWidth = 1080 / Math.pow(2, zoom) / 256 / 2;
+            double halfHeight = 1920 / Math.pow(2, zoom) / 256 / 2;
+            double x = 0.51 + random.nextDouble() * 0.03;
+            double y = 0.32 + random.nextDouble() * 0.03;
+            viewports.add(new Bounds(x - halfWidth, x + halfWidth, y - halfHeight, y + halfHeight));
+        }
+        return viewports;
+    }
+
+    private static List<LatLng> positions(Random random, int count) {
+        List<LatLng> positions = new ArrayList<>(count);
+        for (int q = 0; q < count; q++) {
+            positions.add(new LatLng(47 + random.nextDouble() * 8, 5 + random.nextDouble() * 10));
+        }
+        return positions;
+    }
+
+    private static class QuadItem implements PointQuadTree.Item {
+        private final Point point;
+
+        QuadItem(double x, double y) {
+            this.point = new Point(x, y);
+        }
+
+        @Override
+        public Point getPoint() {
+            return point;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package de.inmotion_sst.freifunkfinder;
+
+import android.support.test.InstrumentationRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The freifunk-karte feed in data/, packaged as an asset of the test apk and parsed once for all benchmarks. Unlike
+ * the live feed it does not change between runs, and the unit tests use the same file.
+ */
+final class TestFeed {
+    static final String ASSET = "freifunk-karte-data.json";
+    static final int ROUTER_COUNT = 21639;
+
+    private static List<Node> nodes;
+
+    private TestFeed() {
+    }
+
+    static InputStream open() throws IOException {
+        return InstrumentationRegistry.getContext().getAssets().open(ASSET);
+    }
+
+    /**
+     * @return The nodes of the feed in its order, copy them to change the list
+     */
+    static synchronized List<Node> nodes() throws IOException {
+        if (nodes == null) {
+            List<Node> feed = new ArrayList<>();
+            try (InputStream in = open()) {
+                new NodeStreamParser().parse(in, feed::addAll);
+            }
+            nodes = Collections.unmodifiableList(feed);
+        }
+        return nodes;
+    }
+
+    static NodeTable table() throws IOException {
+        return NodeTable.of(nodes());
+    }
+}
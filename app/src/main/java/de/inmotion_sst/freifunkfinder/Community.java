@@ -0,0 +1,37 @@
+package de.inmotion_sst.freifunkfinder;
+
+/**
+ * Metadata of a freifunk community, nodes refer to it by its key
+ */
+public class Community {
+    private final String key;
+    private final String name;
+    private final String url;
+    private final String meta;
+
+    public Community(String key, String name, String url, String meta) {
+        this.key = key;
+        this.name = name;
+        this.url = url;
+        this.meta = meta;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The name of the meta community this community belongs to, or null if it is not part of one
+     */
+    public String getMeta() {
+        return meta;
+    }
+}
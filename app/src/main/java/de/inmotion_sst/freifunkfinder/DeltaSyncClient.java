@@ -0,0 +1,204 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Client for delta synchronization of nodes.
+ * <p>
+ * The client sends the version of its current snapshot as <code>?since=&lt;version&gt;</code> (0 if it has none)
+ * and receives only the changes since then:
+ * <pre>
+ * {
+ *   "version": 42,
+ *   "full": false,
+ *   "added": [ { node }, ... ],
+ *   "updated": [ { node }, ... ],
+ *   "removed": [ "id", ... ]
+ * }
+ * </pre>
+ * Nodes are identified by their id. The snapshot version is kept in a properties file next to the cached nodes.
+ */
+public class DeltaSyncClient {
+    private static final String KEY_VERSION = "version";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final URL url;
+    private final File stateFile;
+
+    public DeltaSyncClient(URL url, File stateFile) {
+        this.url = url;
+        this.stateFile = stateFile;
+    }
+
+    public static File getStateFile(File cacheFile) {
+        return new File(cacheFile.getParentFile(), cacheFile.getName() + ".delta");
+    }
+
+    /**
+     * @return The version of the last stored snapshot, 0 if there is none
+     */
+    public long getSnapshotVersion() {
+        if (stateFile == null || !stateFile.exists())
+            return 0;
+
+        Properties state = new Properties();
+        try {
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                state.load(in);
+            } finally {
+                in.close();
+            }
+            return Long.parseLong(state.getProperty(KEY_VERSION, "0"));
+        } catch (IOException | NumberFormatException e) {
+            // a broken state file only costs us a full sync
+            return 0;
+        }
+    }
+
+    /**
+     * Fetches the changes since the stored snapshot version
+     *
+     * @throws IOException
+     * @throws HttpException
+     */
+    public NodeDelta fetch() throws IOException, HttpException {
+        URL deltaUrl = new URL(url, url.getPath() + "?since=" + getSnapshotVersion());
+
+        HttpURLConnection conn = (HttpURLConnection) deltaUrl.openConnection();
+        try {
+            conn.setRequestMethod("GET");
+            conn.setAllowUserInteraction(false);
+            conn.setConnectTimeout(3000);
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            conn.connect();
+
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new HttpException("GET did not return 200-OK");
+            }
+
+            InputStream body = conn.getInputStream();
+            if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                body = new GZIPInputStream(body, 8192);
+            }
+
+            try {
+                return read(body);
+            } finally {
+                body.close();
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Remembers the snapshot version, only call this once the patched nodes have been persisted.
+     */
+    public void storeVersion(NodeDelta delta) throws IOException {
+        if (stateFile == null)
+            return;
+
+        Properties state = new Properties();
+        state.setProperty(KEY_VERSION, Long.toString(delta.getVersion()));
+
+        OutputStream out = new FileOutputStream(stateFile);
+        try {
+            state.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void clearVersion() {
+        if (stateFile != null) {
+            stateFile.delete();
+        }
+    }
+
+    static NodeDelta read(InputStream inputStream) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(inputStream);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("expected delta object");
+
+            NodeReader reader = new NodeReader(new StringPool());
+
+            long version = -1;
+            boolean full = false;
+            List<Node> added = new ArrayList<>();
+            List<Node> updated = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                switch (field) {
+                    case "version":
+                        version = parser.getValueAsLong(-1);
+                        break;
+                    case "full":
+                        full = parser.getValueAsBoolean();
+                        break;
+                    case "added":
+                        readNodes(parser, value, reader, added);
+                        break;
+                    case "updated":
+                        readNodes(parser, value, reader, updated);
+                        break;
+                    case "removed":
+                        readIds(parser, value, removed);
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+            }
+
+            if (version < 0)
+                throw new IOException("delta without version");
+
+            return new NodeDelta(version, full, added, updated, removed);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void readNodes(JsonParser parser, JsonToken value, NodeReader reader, List<Node> nodes) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            nodes.add(reader.read(parser));
+        }
+    }
+
+    private static void readIds(JsonParser parser, JsonToken value, List<String> ids) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            ids.add(parser.getValueAsString());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package de.inmotion_sst.freifunkfinder;
+
+import java.util.Arrays;
+
+/**
+ * A map from handles to ints with open addressing in two flat arrays, for the few rows a {@link NodeTable.Patch}
+ * changed without boxing every handle.
+ */
+final class HandleMap {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize the number of handles that can be put without growing the map
+     */
+    HandleMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+    }
+
+    private HandleMap(HandleMap other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        mask = other.mask;
+        size = other.size;
+    }
+
+    /**
+     * @return A map with the same entries that can be changed independently of this one
+     */
+    HandleMap copy() {
+        return new HandleMap(this);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The value of the handle, or missing if the map does not contain the handle
+     */
+    int get(int handle, int missing) {
+        for (int slot = slot(handle); ; slot = (slot + 1) & mask) {
+            if (keys[slot] == EMPTY)
+                return missing;
+            if (keys[slot] == handle)
+                return values[slot];
+        }
+    }
+
+    /**
+     * @param handle must not be negative
+     */
+    void put(int handle, int value) {
+        if (handle < 0)
+            throw new IllegalArgumentException("negative handle " + handle);
+
+        int slot = slot(handle);
+        while (keys[slot] != EMPTY && keys[slot] != handle) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            size++;
+        }
+        keys[slot] = handle;
+        values[slot] = value;
+
+        // at most half full, so probe sequences stay short
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    void remove(int handle) {
+        int slot = slot(handle);
+        while (keys[slot] != handle) {
+            if (keys[slot] == EMPTY)
+                return;
+            slot = (slot + 1) & mask;
+        }
+
+        // shifts later entries of the probe sequence back, so lookups never stop at the hole
+        int hole = slot;
+        for (slot = (slot + 1) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int home = slot(keys[slot]);
+            boolean reachable = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+            if (!reachable) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                hole = slot;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+    }
+
+    private int slot(int handle) {
+        // consecutive handles are common, Fibonacci hashing spreads them over the table
+        int h = handle * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoder for the complete freifunk-karte feed format:
+ * <pre>
+ * {
+ *   "communities": { "ansbach": { "name": "...", "url": "...", "meta": "..." | false }, ... },
+ *   "allTheRouters": [ { "id": "2", "lat": "49.29", "long": "10.58", "community": "ansbach", ... }, ... ],
+ *   "metaCommunities": { "Freifunk Altmark": {}, ... },
+ *   "isCachedresult": true
+ * }
+ * </pre>
+ * Community keys and status values of the routers are resolved to canonical instances, so 20k routers share a
+ * handful of strings. A plain router array (without wrapper) is accepted as well and yields no communities.
+ */
+public class KarteFeedDecoder {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public NodeFeed decode(InputStream inputStream) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(inputStream);
+        try {
+            return decode(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private NodeFeed decode(JsonParser parser) throws IOException {
+        StringPool pool = new StringPool();
+        NodeReader reader = new NodeReader(pool);
+
+        Map<String, Community> communities = new LinkedHashMap<>();
+        List<String> metaCommunities = new ArrayList<>();
+        List<Node> nodes = new ArrayList<>();
+
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_ARRAY) {
+            readRouters(parser, reader, nodes);
+        } else if (token != JsonToken.START_OBJECT) {
+            throw new IOException("expected feed object, got " + token);
+        }
+
+        while (token == JsonToken.START_OBJECT && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+
+            if (value == JsonToken.START_OBJECT && "communities".equals(field)) {
+                readCommunities(parser, pool, communities);
+            } else if (value == JsonToken.START_ARRAY && "allTheRouters".equals(field)) {
+                readRouters(parser, reader, nodes);
+            } else if (value == JsonToken.START_OBJECT && "metaCommunities".equals(field)) {
+                readMetaCommunities(parser, metaCommunities);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return new NodeFeed(Collections.unmodifiableMap(communities), Collections.unmodifiableList(metaCommunities), nodes);
+    }
+
+    private static void readCommunities(JsonParser parser, StringPool pool, Map<String, Community> communities) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            // pooling the key makes routers share the very same key instance
+            String key = pool.add(parser.getCurrentName());
+
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+
+            String name = null;
+            String url = null;
+            String meta = null;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (value != JsonToken.VALUE_STRING) {
+                    // "meta": false means the community is not part of a meta community
+                    parser.skipChildren();
+                    continue;
+                }
+
+                switch (field) {
+                    case "name":
+                        name = parser.getText();
+                        break;
+                    case "url":
+                        url = parser.getText();
+                        break;
+                    case "meta":
+                        meta = parser.getText();
+                        break;
+                }
+            }
+
+            communities.put(key, new Community(key, name, url, meta));
+        }
+    }
+
+    private static void readRouters(JsonParser parser, NodeReader reader, List<Node> nodes) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+            nodes.add(reader.read(parser));
+        }
+
+        if (token != JsonToken.END_ARRAY) {
+            throw new IOException("unexpected token in router array: " + token);
+        }
+    }
+
+    private static void readMetaCommunities(JsonParser parser, List<String> metaCommunities) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            metaCommunities.add(parser.getCurrentName());
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+}
@@ -30,12 +30,11 @@ import android.widget.TextView;
 import com.google.android.gms.maps.model.LatLng;
 
 import java.util.Date;
-import java.util.List;
 
 import de.inmotion_sst.freifunkfinder.ar.CameraFinderActivity;
 import de.inmotion_sst.freifunkfinder.ar.SurroundingNodesSetup;
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
 import de.inmotion_sst.freifunkfinder.settings.SettingsActivity;
-import java8.util.stream.StreamSupport;
 
 public class MainActivity extends AppCompatActivity implements NavigationView.OnNavigationItemSelectedListener {
 
@@ -90,9 +89,11 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         int n = Integer.parseInt(preferences.getString(getResources().getString(R.string.prefkey_ar_nodes), "5"));
 
-        List<Node> nodes = nodeRepository.getSpatialDataSource().findClosestItems(new LatLng(myLocation.getLatitude(), myLocation.getLongitude()), n, 200.0f);
+        // handles refer to the current table, both only change on this thread
+        NeighborList nodes = new NeighborList(n);
+        nodeRepository.getSpatialDataSource().findClosestItems(new LatLng(myLocation.getLatitude(), myLocation.getLongitude()), n, nodes);
 
-        SurroundingNodesSetup setup = new SurroundingNodesSetup(myLocation, StreamSupport.stream(nodes));
+        SurroundingNodesSetup setup = new SurroundingNodesSetup(myLocation, nodeRepository.getNodeTable(), nodes);
 
         Log.d(TAG, String.format("starting AR view with %d nodes at location (%f,%f,%.1fm)", nodes.size(), myLocation.getLatitude(), myLocation.getLongitude(), myLocation.getAltitude()));
         CameraFinderActivity.startWithSetup(this, setup);
@@ -181,14 +182,14 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     }
 
     private void loadNodesInBackground() {
-        AsyncTask<Void, Void, List<Node>> loadNodesTask = new AsyncTask<Void, Void, List<Node>>() {
+        AsyncTask<Void, Void, NodeRepository.CachedNodes> loadNodesTask = new AsyncTask<Void, Void, NodeRepository.CachedNodes>() {
             @Override
-            protected List<Node> doInBackground(Void... voids) {
-                return NodeRepository.load(getApplicationContext());
+            protected NodeRepository.CachedNodes doInBackground(Void... voids) {
+                return NodeRepository.loadCached(getApplicationContext());
             }
 
             @Override
-            protected void onPostExecute(List<Node> loaded) {
+            protected void onPostExecute(NodeRepository.CachedNodes loaded) {
                 nodeRepository.setNodes(loaded);
                 updateActionButtonEnabled();
                 promptUserForNodeDataIfNecessary();
@@ -223,22 +224,48 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     private void updateNodesFromServer() {
         ProgressDialog progressDialog = ProgressDialog.show(this, "Updating Nodes", "Downloading node data", true, false);
 
-        AsyncTask<Void, Void, List<Node>> refreshNodesTask = new AsyncTask<Void, Void, List<Node>>() {
+        // nodes are shown while they are still arriving: an empty map shows the streamed table itself, otherwise
+        // they are patched into the old nodes by id, and nodes that are gone disappear once the download has completed
+        boolean streamToMap = !nodeRepository.hasNodes();
+        // the streamed table is taken back if the download fails
+        NodeTable previous = nodeRepository.getNodeTable();
+
+        AsyncTask<Void, NodeTable, NodeRepository.CachedNodes> refreshNodesTask = new AsyncTask<Void, NodeTable, NodeRepository.CachedNodes>() {
             private Exception exception;
+            private boolean notModified;
+            // nodes of the streamed table that were already patched into the old ones
+            private int patched;
 
             @Override
-            protected List<Node> doInBackground(Void... voids) {
+            protected NodeRepository.CachedNodes doInBackground(Void... voids) {
                 try {
-
-                    List<Node> fetched = NodeRepository.fetchNodeList();
-
-                    // saving is slow too (approx 1s), so we do it on a background thread too
-                    // we can use a second repo instance for that, but still have to add to the repo that represents our ViewModel
-                    NodeRepository repo = new NodeRepository(getApplicationContext());
-                    repo.setNodes(fetched);
-                    repo.save();
-
-                    return fetched;
+                    // the tables of all batches share the columns of this builder, and the map shows or patches
+                    // from them, so the nodes of the list are only held once
+                    NodeTable.Builder streamed = new NodeTable.Builder();
+                    NodeListFetcher fetcher = NodeRepository.makeFetcher(getApplicationContext());
+                    if (streamToMap) {
+                        // nothing could be loaded from the cache, so a 304 would not help us
+                        fetcher.clearValidators();
+                    }
+
+                    NodeListFetcher.Result result = NodeRepository.fetchNodeList(fetcher, batch -> {
+                        for (Node node : batch) {
+                            streamed.add(node);
+                        }
+                        publishProgress(streamed.buildShared());
+                    });
+
+                    if (result.isNotModified()) {
+                        notModified = true;
+                        return null;
+                    }
+
+                    // saving is IO, so we do it on a background thread too
+                    // the saved table and index are handed over as they are, so the main thread only swaps them in
+                    NodeRepository.CachedNodes saved = NodeRepository.save(getApplicationContext(), streamed.buildShared());
+                    fetcher.storeValidators(result);
+
+                    return saved;
                 } catch (Exception e) {
                     this.exception = e;
                     return null;
@@ -246,23 +273,52 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
             }
 
             @Override
-            protected void onPostExecute(List<Node> nodes) {
+            protected void onProgressUpdate(NodeTable... tables) {
+                // the first nodes are on the map, no need to block the user any longer
+                progressDialog.dismiss();
+
+                // every table holds all nodes streamed so far
+                NodeTable streamed = tables[tables.length - 1];
+                if (streamToMap) {
+                    nodeRepository.setLoadingNodes(streamed);
+                } else {
+                    nodeRepository.updateNodes(streamed, patched);
+                    patched = streamed.size();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(NodeRepository.CachedNodes nodes) {
                 // the progressDialog needs to be dismissed before any toast is shown...
                 // so make sure it is dismissed in all exit paths of this method
                 if (exception != null) {
+                    // patched nodes are newer than the ones they replaced, so they stay
+                    if (streamToMap) {
+                        nodeRepository.setNodes(previous);
+                        updateActionButtonEnabled();
+                    }
                     progressDialog.dismiss();
                     showError(exception.toString());
                     return;
                 }
 
+                View view = MainActivity.this.findViewById(R.id.content_main);
+
+                if (notModified) {
+                    updateSyncInformation(nodeRepository.getNodeCount());
+                    progressDialog.dismiss();
+                    Snackbar.make(view, "Nodes are up to date", Snackbar.LENGTH_SHORT).setAction("Action", null).show();
+                    return;
+                }
+
+                // also replaces the streamed batches, the saved nodes come with their index and clusters
                 nodeRepository.setNodes(nodes);
 
-                updateSyncInformation(nodes);
+                updateSyncInformation(nodes.getNodes().size());
                 updateActionButtonEnabled();
 
                 progressDialog.dismiss();
 
-                View view = MainActivity.this.findViewById(R.id.content_main);
                 Snackbar.make(view, "Nodes updated", Snackbar.LENGTH_SHORT).setAction("Action", null).show();
             }
         };
@@ -270,12 +326,12 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         refreshNodesTask.execute();
     }
 
-    private void updateSyncInformation(List<Node> nodes) {
+    private void updateSyncInformation(int nodeCount) {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
 
         SharedPreferences.Editor edit = preferences.edit();
         edit.putString(getString(R.string.prefkey_sync_last), new Date().toString());
-        edit.putString(getString(R.string.prefkey_sync_nodes), Integer.toString(nodes.size()));
+        edit.putString(getString(R.string.prefkey_sync_nodes), Integer.toString(nodeCount));
         edit.commit();
     }
 
@@ -0,0 +1,190 @@
+package de.inmotion_sst.freifunkfinder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Read-only view of a {@link NodeStore} file that is memory mapped instead of read.
+ * <p>
+ * All values are read straight from the mapping, ids, names, communities and statuses are only decoded when
+ * someone asks for them (e.g. a marker or an AR label). Opening a table only parses the header, so it costs
+ * next to nothing regardless of the number of nodes. The mapping stays valid even if the store is replaced
+ * by a later save, as saving writes a new file. See {@link NodeTable#fromStore(MappedNodeTable)} for nodes.
+ */
+public class MappedNodeTable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int stringCount;
+    private final int generation;
+
+    // byte offsets of the sections within the mapping
+    private final int latOffset;
+    private final int lonOffset;
+    private final int altOffset;
+    private final int clientsOffset;
+    private final int communityOffset;
+    private final int statusOffset;
+    private final int idOffsetsOffset;
+    private final int nameOffsetsOffset;
+    private final int stringOffsetsOffset;
+    private final int idBytesOffset;
+    private final int nameBytesOffset;
+    private final int stringBytesOffset;
+
+    // the string table is tiny and shared by all nodes, so it is decoded once on first use
+    private volatile String[] strings;
+
+    private MappedNodeTable(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.limit() < NodeStore.HEADER_INTS * 4 || buffer.getInt(0) != NodeStore.MAGIC)
+            throw new IOException("not a node store");
+
+        int version = buffer.getInt(4);
+        if (version != NodeStore.FORMAT_VERSION)
+            throw new IOException("unsupported node store version " + version);
+
+        size = buffer.getInt(8);
+        stringCount = buffer.getInt(12);
+        int idBytes = buffer.getInt(16);
+        int nameBytes = buffer.getInt(20);
+        int stringBytes = buffer.getInt(24);
+        generation = buffer.getInt(28);
+
+        int n = size;
+        latOffset = NodeStore.HEADER_INTS * 4;
+        lonOffset = latOffset + 4 * n;
+        altOffset = lonOffset + 4 * n;
+        clientsOffset = altOffset + 4 * n;
+        communityOffset = clientsOffset + 4 * n;
+        statusOffset = communityOffset + 4 * n;
+        idOffsetsOffset = statusOffset + 4 * n;
+        nameOffsetsOffset = idOffsetsOffset + 4 * (n + 1);
+        stringOffsetsOffset = nameOffsetsOffset + 4 * (n + 1);
+        idBytesOffset = stringOffsetsOffset + 4 * (stringCount + 1);
+        nameBytesOffset = idBytesOffset + NodeStore.padded(idBytes);
+        stringBytesOffset = nameBytesOffset + NodeStore.padded(nameBytes);
+
+        if (n < 0 || stringCount < 0 || stringBytesOffset + NodeStore.padded(stringBytes) != buffer.limit())
+            throw new IOException("corrupt node store");
+    }
+
+    public static MappedNodeTable open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("corrupt node store");
+
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedNodeTable(mapping);
+        } finally {
+            // the mapping remains valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The generation the store was written with, see {@link NodeStore}
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    public double getLat(int i) {
+        return buffer.getInt(latOffset + 4 * i) / NodeStore.COORDINATE_SCALE;
+    }
+
+    public double getLon(int i) {
+        return buffer.getInt(lonOffset + 4 * i) / NodeStore.COORDINATE_SCALE;
+    }
+
+    public double getAlt(int i) {
+        return buffer.getInt(altOffset + 4 * i) / NodeStore.ALTITUDE_SCALE;
+    }
+
+    public int getClients(int i) {
+        return buffer.getInt(clientsOffset + 4 * i);
+    }
+
+    public String getId(int i) {
+        return decode(idBytesOffset, idOffsetsOffset, i);
+    }
+
+    public String getName(int i) {
+        return decode(nameBytesOffset, nameOffsetsOffset, i);
+    }
+
+    public String getCommunity(int i) {
+        return lookup(getCommunityCode(i));
+    }
+
+    public String getStatus(int i) {
+        return lookup(getStatusCode(i));
+    }
+
+    /**
+     * @return The community as index into {@link #getStrings()}, -1 for none
+     */
+    public int getCommunityCode(int i) {
+        return buffer.getInt(communityOffset + 4 * i);
+    }
+
+    /**
+     * @return The status as index into {@link #getStrings()}, -1 for none
+     */
+    public int getStatusCode(int i) {
+        return buffer.getInt(statusOffset + 4 * i);
+    }
+
+    /**
+     * @return The string table shared by communities and statuses
+     */
+    public String[] getStrings() {
+        return strings().clone();
+    }
+
+    private String lookup(int index) {
+        if (index < 0)
+            return null;
+
+        return strings()[index];
+    }
+
+    private String[] strings() {
+        String[] table = strings;
+        if (table == null) {
+            table = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                table[i] = decode(stringBytesOffset, stringOffsetsOffset, i);
+            }
+            strings = table;
+        }
+        return table;
+    }
+
+    private String decode(int bytesOffset, int offsetsOffset, int i) {
+        int from = buffer.getInt(offsetsOffset + 4 * i);
+        int to = buffer.getInt(offsetsOffset + 4 * (i + 1));
+        if (from == to)
+            return "";
+
+        // absolute gets only, so concurrent readers do not interfere through the buffer position
+        byte[] bytes = new byte[to - from];
+        for (int b = 0; b < bytes.length; b++) {
+            bytes[b] = buffer.get(bytesOffset + from + b);
+        }
+        return new String(bytes, UTF8);
+    }
+}
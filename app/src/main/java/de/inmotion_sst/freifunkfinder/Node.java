@@ -60,10 +60,11 @@ public class Node implements ClusterItem, Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeString(id);
-        dest.writeString(name);
-        dest.writeString(community);
-        dest.writeString(status);
+        // getters, subclasses may decode strings lazily
+        dest.writeString(getId());
+        dest.writeString(getName());
+        dest.writeString(getCommunity());
+        dest.writeString(getStatus());
         dest.writeDouble(lon);
         dest.writeDouble(lat);
         dest.writeDouble(alt);
@@ -0,0 +1,36 @@
+package de.inmotion_sst.freifunkfinder;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Passed to observers of {@link NodeRepository} when nodes were patched, tells exactly which node ids changed.
+ * Observers receive null instead when all nodes were replaced.
+ */
+public class NodeChangeSet {
+    private final Set<String> added;
+    private final Set<String> updated;
+    private final Set<String> removed;
+
+    public NodeChangeSet(Set<String> added, Set<String> updated, Set<String> removed) {
+        this.added = Collections.unmodifiableSet(added);
+        this.updated = Collections.unmodifiableSet(updated);
+        this.removed = Collections.unmodifiableSet(removed);
+    }
+
+    public Set<String> getAdded() {
+        return added;
+    }
+
+    public Set<String> getUpdated() {
+        return updated;
+    }
+
+    public Set<String> getRemoved() {
+        return removed;
+    }
+
+    public int size() {
+        return added.size() + updated.size() + removed.size();
+    }
+}
@@ -0,0 +1,55 @@
+package de.inmotion_sst.freifunkfinder;
+
+import java.util.List;
+
+/**
+ * A change set between two node snapshots as served by the delta sync endpoint.
+ * <p>
+ * A full delta replaces all nodes, it is sent when the server does not know the client's snapshot version anymore.
+ * In that case all nodes are contained in {@link #getAdded()}.
+ */
+public class NodeDelta {
+    private final long version;
+    private final boolean full;
+    private final List<Node> added;
+    private final List<Node> updated;
+    private final List<String> removed;
+
+    public NodeDelta(long version, boolean full, List<Node> added, List<Node> updated, List<String> removed) {
+        this.version = version;
+        this.full = full;
+        this.added = added;
+        this.updated = updated;
+        this.removed = removed;
+    }
+
+    /**
+     * @return The snapshot version the client has after applying this delta
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public List<Node> getAdded() {
+        return added;
+    }
+
+    public List<Node> getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return Ids of removed nodes
+     */
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return !full && added.isEmpty() && updated.isEmpty() && removed.isEmpty();
+    }
+}
@@ -0,0 +1,39 @@
+package de.inmotion_sst.freifunkfinder;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A decoded freifunk-karte feed: all routers plus the communities they belong to
+ */
+public class NodeFeed {
+    private final Map<String, Community> communities;
+    private final List<String> metaCommunities;
+    private final List<Node> nodes;
+
+    public NodeFeed(Map<String, Community> communities, List<String> metaCommunities, List<Node> nodes) {
+        this.communities = communities;
+        this.metaCommunities = metaCommunities;
+        this.nodes = nodes;
+    }
+
+    public Map<String, Community> getCommunities() {
+        return communities;
+    }
+
+    public List<String> getMetaCommunities() {
+        return metaCommunities;
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return The community of the node, or null if the feed does not know it
+     */
+    public Community getCommunity(Node node) {
+        String key = node.getCommunity();
+        return key == null ? null : communities.get(key);
+    }
+}
@@ -0,0 +1,216 @@
+package de.inmotion_sst.freifunkfinder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads node lists with conditional requests and gzip transfer encoding.
+ * <p>
+ * The ETag and Last-Modified validators of the last successful download are kept in a small properties file next
+ * to the cached nodes. When the server answers 304-Not Modified nothing is downloaded or parsed at all.
+ */
+public class NodeListFetcher {
+    public static final String DEFAULT_URL = "http://freifunk.inmotion-sst.de/cache/result_routers.json";
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+
+    private final URL url;
+    private final File validatorFile;
+
+    /**
+     * @param validatorFile file to store validators in, or null for unconditional downloads
+     */
+    public NodeListFetcher(URL url, File validatorFile) {
+        this.url = url;
+        this.validatorFile = validatorFile;
+    }
+
+    public static File getValidatorFile(File cacheFile) {
+        return new File(cacheFile.getParentFile(), cacheFile.getName() + ".validators");
+    }
+
+    public static class Result {
+        private final boolean notModified;
+        private final int nodeCount;
+        private final long bytesTransferred;
+        private final String etag;
+        private final String lastModified;
+
+        Result(boolean notModified, int nodeCount, long bytesTransferred, String etag, String lastModified) {
+            this.notModified = notModified;
+            this.nodeCount = nodeCount;
+            this.bytesTransferred = bytesTransferred;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return true if the server reported that the cached nodes are still current, no nodes have been parsed then
+         */
+        public boolean isNotModified() {
+            return notModified;
+        }
+
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        /**
+         * @return The size of the response body on the wire, i.e. before decompression
+         */
+        public long getBytesTransferred() {
+            return bytesTransferred;
+        }
+    }
+
+    /**
+     * Fetches the node list, handing out nodes in batches while the response is still being received
+     *
+     * @param listener receives the parsed batches on the calling thread
+     * @throws IOException
+     * @throws HttpException
+     */
+    public Result fetch(NodeStreamParser.BatchListener listener) throws IOException, HttpException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setRequestMethod("GET");
+            conn.setAllowUserInteraction(false);
+            conn.setConnectTimeout(3000);
+            // setting this explicitly disables transparent decompression, so we can count the compressed bytes
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+
+            Properties validators = loadValidators();
+            String etag = validators.getProperty(KEY_ETAG);
+            String lastModified = validators.getProperty(KEY_LAST_MODIFIED);
+            if (etag != null) {
+                conn.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            conn.connect();
+
+            int responseCode = conn.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new Result(true, 0, 0, etag, lastModified);
+            }
+
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new HttpException("GET did not return 200-OK");
+            }
+
+            CountingInputStream counting = new CountingInputStream(conn.getInputStream());
+            InputStream body = "gzip".equalsIgnoreCase(conn.getContentEncoding())
+                    ? new GZIPInputStream(counting, 8192)
+                    : counting;
+
+            int count;
+            try {
+                count = new NodeStreamParser().parse(body, listener);
+            } finally {
+                body.close();
+            }
+
+            return new Result(false, count, counting.getCount(), conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Remembers the validators of a download. Only call this once the downloaded nodes have been persisted,
+     * otherwise the next refresh may be answered with 304 while there is nothing cached.
+     */
+    public void storeValidators(Result result) throws IOException {
+        if (validatorFile == null || result.isNotModified())
+            return;
+
+        Properties validators = new Properties();
+        if (result.etag != null) {
+            validators.setProperty(KEY_ETAG, result.etag);
+        }
+        if (result.lastModified != null) {
+            validators.setProperty(KEY_LAST_MODIFIED, result.lastModified);
+        }
+
+        OutputStream out = new FileOutputStream(validatorFile);
+        try {
+            validators.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void clearValidators() {
+        if (validatorFile != null) {
+            validatorFile.delete();
+        }
+    }
+
+    private Properties loadValidators() {
+        Properties validators = new Properties();
+        if (validatorFile == null || !validatorFile.exists())
+            return validators;
+
+        try {
+            InputStream in = new FileInputStream(validatorFile);
+            try {
+                validators.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a broken validator file only costs us an unconditional download
+            validators.clear();
+        }
+        return validators;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
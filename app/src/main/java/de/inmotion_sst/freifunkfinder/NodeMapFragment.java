@@ -1,7 +1,9 @@
 package de.inmotion_sst.freifunkfinder;
 
+import android.content.SharedPreferences;
 import android.location.Location;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.DisplayMetrics;
@@ -17,8 +19,13 @@ import com.google.android.gms.maps.model.LatLng;
 
 import java.util.Observer;
 
+import de.inmotion_sst.freifunkfinder.clustering.ClusterAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.GridBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.HierarchicalDistanceBasedAlgorithm;
 import de.inmotion_sst.freifunkfinder.clustering.NodeClusterManager;
 import de.inmotion_sst.freifunkfinder.clustering.NodeClusterRenderer;
+import de.inmotion_sst.freifunkfinder.clustering.ParallelTiledDistanceBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.TiledDistanceBasedAlgorithm;
 import de.inmotion_sst.freifunkfinder.clustering.VisibleNonHierarchicalDistanceBasedAlgorithm;
 
 public class NodeMapFragment extends SupportMapFragment implements OnMapReadyCallback {
@@ -29,7 +36,9 @@ public class NodeMapFragment extends SupportMapFragment implements OnMapReadyCal
     private NodeRepository nodeRepository;
     private Observer repoObserver;
     private NodeClusterManager<Node> clusterManager;
-    private VisibleNonHierarchicalDistanceBasedAlgorithm<Node> clusterAlgorithm;
+    private ClusterAlgorithm<Node> clusterAlgorithm;
+    // preferences only keep a weak reference to their listeners
+    private SharedPreferences.OnSharedPreferenceChangeListener preferenceListener;
 
     @Override
     public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
@@ -47,6 +56,12 @@ public class NodeMapFragment extends SupportMapFragment implements OnMapReadyCal
     public void onDestroy() {
         super.onDestroy();
         nodeRepository.deleteObserver(repoObserver);
+        if (clusterManager != null) {
+            clusterManager.shutdown();
+        }
+        if (preferenceListener != null) {
+            PreferenceManager.getDefaultSharedPreferences(getContext()).unregisterOnSharedPreferenceChangeListener(preferenceListener);
+        }
     }
 
     @Override
@@ -85,14 +100,31 @@ public class NodeMapFragment extends SupportMapFragment implements OnMapReadyCal
     }
 
     private void setupClustering(GoogleMap googleMap) {
-        DisplayMetrics metrics = getDisplayMetrics();
-
+        // a new view of this fragment comes with a new map
+        if (clusterManager != null) {
+            clusterManager.shutdown();
+        }
         clusterManager = new NodeClusterManager<>(getContext(), googleMap);
         clusterManager.setClusterOnlyVisibleArea(true);
 
-        clusterAlgorithm = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(metrics.widthPixels, metrics.heightPixels, nodeRepository.getSpatialDataSource());
+        // the algorithm can be switched in the settings while the map is shown
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getContext());
+        String clusteringKey = getString(R.string.prefkey_map_clustering);
+        clusterAlgorithm = makeClusterAlgorithm(preferences.getString(clusteringKey, "hierarchical"));
         clusterManager.setAlgorithm(clusterAlgorithm);
 
+        // preferences hold on to every registered listener, the one of the previous map has to go
+        if (preferenceListener != null) {
+            preferences.unregisterOnSharedPreferenceChangeListener(preferenceListener);
+        }
+        preferenceListener = (p, key) -> {
+            if (clusteringKey.equals(key)) {
+                clusterAlgorithm = makeClusterAlgorithm(p.getString(key, "hierarchical"));
+                clusterManager.setAlgorithm(clusterAlgorithm);
+            }
+        };
+        preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
+
         // the interface for configuring a cluster manager is less than ideal...
         NodeClusterRenderer renderer = new NodeClusterRenderer(getContext(), googleMap, clusterManager);
         renderer.setShouldAnimate(false);
@@ -103,6 +135,25 @@ public class NodeMapFragment extends SupportMapFragment implements OnMapReadyCal
         this.googleMap.setOnMarkerClickListener(clusterManager);
     }
 
+    @NonNull
+    private ClusterAlgorithm<Node> makeClusterAlgorithm(String name) {
+        DisplayMetrics metrics = getDisplayMetrics();
+
+        switch (name) {
+            case "distance":
+                return new VisibleNonHierarchicalDistanceBasedAlgorithm<>(metrics.widthPixels, metrics.heightPixels, nodeRepository.getSpatialDataSource());
+            case "grid":
+                return new GridBasedAlgorithm<>(metrics.widthPixels, metrics.heightPixels, nodeRepository.getSpatialDataSource());
+            case "tiled":
+                return new TiledDistanceBasedAlgorithm<>(metrics.widthPixels, metrics.heightPixels, nodeRepository.getSpatialDataSource());
+            case "parallel":
+                return new ParallelTiledDistanceBasedAlgorithm<>(metrics.widthPixels, metrics.heightPixels, nodeRepository.getSpatialDataSource());
+            default:
+                // clusters of all zoom levels are computed once per sync, so camera changes only look them up
+                return new HierarchicalDistanceBasedAlgorithm<>(metrics.widthPixels, metrics.heightPixels, nodeRepository.getSpatialDataSource());
+        }
+    }
+
     @NonNull
     private DisplayMetrics getDisplayMetrics() {
         DisplayMetrics metrics = new DisplayMetrics();
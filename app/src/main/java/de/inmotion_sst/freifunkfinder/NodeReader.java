@@ -0,0 +1,192 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Reads a single node object from a JSON token stream.
+ * <p>
+ * The crawler is not consistent with types, coordinates and clients may be strings or numbers.
+ * Both are decoded straight from the parser's character buffer without creating intermediate Strings.
+ */
+final class NodeReader {
+    // powers of ten that are exactly representable as double
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // mantissas up to 2^53 are exact, so a single division by an exact power of ten is correctly rounded
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final StringPool pool;
+
+    NodeReader(StringPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Reads the node the parser is positioned on, the current token has to be START_OBJECT.
+     */
+    Node read(JsonParser parser) throws IOException {
+        String id = null;
+        String name = null;
+        String community = null;
+        String status = null;
+        double lat = 0;
+        double lon = 0;
+        double alt = 0;
+        int clients = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+
+            switch (field) {
+                case "id":
+                    id = parser.getValueAsString();
+                    break;
+                case "name":
+                    name = parser.getValueAsString();
+                    break;
+                case "community":
+                    community = pooledString(parser, value);
+                    break;
+                case "status":
+                    status = pooledString(parser, value);
+                    break;
+                case "lat":
+                    lat = readDouble(parser, value);
+                    break;
+                case "long":
+                    lon = readDouble(parser, value);
+                    break;
+                case "alt":
+                    alt = readDouble(parser, value);
+                    break;
+                case "clients":
+                    clients = readInt(parser, value);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        return new Node(id, name, community, lat, lon, alt, status, clients);
+    }
+
+    private String pooledString(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.VALUE_STRING)
+            return parser.getValueAsString();
+
+        return pool.get(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+    }
+
+    static double readDouble(JsonParser parser, JsonToken value) throws IOException {
+        switch (value) {
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parseDouble(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+            default:
+                parser.skipChildren();
+                return 0;
+        }
+    }
+
+    static int readInt(JsonParser parser, JsonToken value) throws IOException {
+        switch (value) {
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+                return parseInt(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+            case VALUE_NUMBER_FLOAT:
+                return (int) parser.getDoubleValue();
+            default:
+                parser.skipChildren();
+                return 0;
+        }
+    }
+
+    /**
+     * Parses a plain decimal number like "-12.51056". Anything else (exponents, very long mantissas)
+     * falls back to Double.parseDouble, unparseable values yield 0.
+     */
+    static double parseDouble(char[] buffer, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+
+        boolean negative = i < end && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        long mantissa = 0;
+        int fractionDigits = 0;
+        boolean digits = false;
+        boolean fraction = false;
+
+        for (; i < end; i++) {
+            char c = buffer[i];
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits = true;
+                if (fraction) {
+                    fractionDigits++;
+                }
+                if (mantissa >= MAX_EXACT_MANTISSA) {
+                    return parseDoubleSlow(buffer, offset, length);
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return parseDoubleSlow(buffer, offset, length);
+            }
+        }
+
+        if (!digits || fractionDigits >= POWERS_OF_TEN.length)
+            return parseDoubleSlow(buffer, offset, length);
+
+        double result = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parses an integer like "12", anything that is not an integer yields 0.
+     */
+    static int parseInt(char[] buffer, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+
+        boolean negative = i < end && buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        if (i == end)
+            return 0;
+
+        long result = 0;
+        for (; i < end; i++) {
+            char c = buffer[i];
+            if (c < '0' || c > '9')
+                return 0;
+
+            result = result * 10 + (c - '0');
+            if (result > Integer.MAX_VALUE)
+                return 0;
+        }
+
+        return (int) (negative ? -result : result);
+    }
+
+    private static double parseDoubleSlow(char[] buffer, int offset, int length) {
+        try {
+            return Double.parseDouble(new String(buffer, offset, length).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
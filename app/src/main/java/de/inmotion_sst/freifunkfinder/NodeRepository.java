@@ -1,26 +1,25 @@
 package de.inmotion_sst.freifunkfinder;
 
 import android.content.Context;
-import android.os.Parcel;
-import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.TimingLogger;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
+import java.util.Set;
 
+import de.inmotion_sst.freifunkfinder.clustering.CellIndex;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterPyramid;
+import de.inmotion_sst.freifunkfinder.clustering.PackedPointIndex;
+import de.inmotion_sst.freifunkfinder.clustering.Sites;
 import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
 import java8.util.stream.Stream;
 import java8.util.stream.StreamSupport;
@@ -29,11 +28,20 @@ public class NodeRepository extends Observable {
     public static final String TAG = "NodeRepository";
     private final Context context;
     private final SpatialDataSource<Node> spatialDataSource;
-    private List<Node> nodes;
+    private NodeTable nodes;
+    // built on first use, so that ids of mapped nodes do not have to be decoded just for loading.
+    // The feed has a few duplicate ids, the first node with an id is the one that deltas patch.
+    private Map<String, Integer> nodeIndexById;
+    // the ids of more than one node, removing one of those has to look for the next
+    private Set<String> duplicateIds;
+    // appends the batches of a download to the current nodes, until they are replaced or patched.
+    // An empty table grows in a builder, the nodes of any other table stay where they are.
+    private NodeTable.Builder appending;
+    private NodeTable.Patch appendingPatch;
 
     public NodeRepository(Context context) {
         this.context = context;
-        this.nodes = new ArrayList<>();
+        this.nodes = NodeTable.empty();
         this.spatialDataSource = new SpatialDataSource<>();
     }
 
@@ -49,119 +57,482 @@ public class NodeRepository extends Observable {
      * @throws HttpException
      */
     public static List<Node> fetchNodeList() throws IOException, HttpException {
+        List<Node> result = new ArrayList<>();
+        fetchNodeList(new NodeListFetcher(new URL(NodeListFetcher.DEFAULT_URL), null), batch -> result.addAll(batch));
+        return result;
+    }
+
+    /**
+     * Fetches a node list from the server, handing out nodes in batches while the response is still being received
+     *
+     * @param fetcher  see {@link #makeFetcher(Context)} for conditional requests against the cached nodes
+     * @param listener receives the parsed batches on the calling thread
+     * @return The fetch result, which does not contain any nodes if the server reported them as not modified
+     * @throws IOException
+     * @throws HttpException
+     */
+    public static NodeListFetcher.Result fetchNodeList(NodeListFetcher fetcher, NodeStreamParser.BatchListener listener) throws IOException, HttpException {
         TimingLogger timing = new TimingLogger(TAG, "fetchNodeList");
 
-        HttpURLConnection conn = (HttpURLConnection) new URL("http://freifunk.inmotion-sst.de/cache/result_routers.json").openConnection();
-        conn.setRequestMethod("GET");
-        conn.setAllowUserInteraction(false);
-        conn.setConnectTimeout(3000);
-        conn.connect();
+        NodeListFetcher.Result result = fetcher.fetch(listener);
 
-        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-            throw new HttpException("GET did not return 200-OK");
+        if (result.isNotModified()) {
+            timing.addSplit("not modified");
+        } else {
+            timing.addSplit(String.format("parsed %d (%d bytes transferred)", result.getNodeCount(), result.getBytesTransferred()));
         }
+        timing.dumpToLog();
 
-        timing.addSplit("connect");
+        return result;
+    }
 
-        InputStream inputStream = conn.getInputStream();
-        ObjectMapper mapper = new ObjectMapper();
+    /**
+     * Creates a fetcher that only downloads nodes if they changed since they were cached by {@link #save()}
+     */
+    public static NodeListFetcher makeFetcher(Context context) throws IOException {
+        File cacheFile = getFile(context);
+        NodeListFetcher fetcher = new NodeListFetcher(new URL(NodeListFetcher.DEFAULT_URL), NodeListFetcher.getValidatorFile(cacheFile));
 
-        List<Node> result = mapper.readValue(inputStream, new TypeReference<ArrayList<Node>>() {
-        });
+        // validators without cached nodes would leave us with nothing on a 304
+        if (!cacheFile.exists()) {
+            fetcher.clearValidators();
+        }
 
-        timing.addSplit("parsed " + result.size());
-        timing.dumpToLog();
+        return fetcher;
+    }
 
-        return result;
+    /**
+     * Nodes loaded from disk together with the indexes and clusters that were stored for them, and a snapshot of
+     * the nodes that is built when they are loaded or saved. Anything that was not stored is built then too, so
+     * {@link #setNodes(CachedNodes)} only swaps the snapshot in.
+     */
+    public static class CachedNodes {
+        private final NodeTable nodes;
+        private final PackedPointIndex index;
+        private final CellIndex cells;
+        private final ClusterPyramid pyramid;
+        private final SpatialDataSource.Snapshot<Node> snapshot;
+
+        CachedNodes(NodeTable nodes, PackedPointIndex index, CellIndex cells, ClusterPyramid pyramid) {
+            this.nodes = nodes;
+            this.index = index;
+            this.cells = cells;
+            this.pyramid = pyramid;
+            this.snapshot = SpatialDataSource.prepare(nodes, index, cells, pyramid);
+        }
+
+        public NodeTable getNodes() {
+            return nodes;
+        }
+
+        /**
+         * @return The stored index, or null if there is none matching the nodes
+         */
+        public PackedPointIndex getIndex() {
+            return index;
+        }
+
+        /**
+         * @return The stored cell index, or null if there is none matching the nodes
+         */
+        public CellIndex getCells() {
+            return cells;
+        }
+
+        /**
+         * @return The stored clusters for all zoom levels, or null if there are none matching the nodes
+         */
+        public ClusterPyramid getPyramid() {
+            return pyramid;
+        }
+
+        /**
+         * @return The nodes together with everything the spatial data source needs for them
+         */
+        public SpatialDataSource.Snapshot<Node> getSnapshot() {
+            return snapshot;
+        }
     }
 
     public Stream<Node> getNodes() {
-        return StreamSupport.stream(nodes);
+        return StreamSupport.stream(nodes.asList());
+    }
+
+    /**
+     * @return The current nodes, a new table is set for every modification
+     */
+    public NodeTable getNodeTable() {
+        return nodes;
     }
 
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Replaces all nodes, building their indexes and clusters on the calling thread
+     */
     public void setNodes(List<Node> nodes) {
+        setNodes(NodeTable.of(nodes));
+    }
+
+    /**
+     * Replaces all nodes with a table, e.g. one taken from {@link #getNodeTable()} before nodes were added. Their
+     * indexes and clusters are built on the calling thread.
+     */
+    public void setNodes(NodeTable nodes) {
+        setNodes(nodes, SpatialDataSource.prepare(nodes, null, null, null));
+    }
+
+    /**
+     * Replaces all nodes with cached ones, without building anything. Readers of the spatial data source
+     * switch over to the new nodes atomically.
+     */
+    public void setNodes(CachedNodes cached) {
+        setNodes(cached.getNodes(), cached.getSnapshot());
+    }
+
+    private void setNodes(NodeTable nodes, SpatialDataSource.Snapshot<Node> snapshot) {
+        this.nodes = nodes;
+        this.nodeIndexById = null;
+        this.appending = null;
+        this.appendingPatch = null;
+        spatialDataSource.setItems(snapshot);
+        fireNodesChanged(null);
+    }
+
+    /**
+     * Shows the nodes of a table that is still being built, e.g. from the batches of a download. The table is used
+     * as it is, without copying it, and clusters of all zoom levels are only built once it is complete.
+     */
+    public void setLoadingNodes(NodeTable nodes) {
         this.nodes = nodes;
-        spatialDataSource.clearItems();
-        spatialDataSource.addItems(nodes);
-        fireNodesChanged();
+        this.nodeIndexById = null;
+        this.appending = null;
+        this.appendingPatch = null;
+        spatialDataSource.setLoadingItems(nodes);
+        fireNodesChanged(null);
+    }
+
+    /**
+     * Appends a batch of nodes, e.g. while a node list is still being downloaded. The tables of consecutive batches
+     * share their columns, or patch the nodes that were there before, so every batch only costs its own nodes.
+     */
+    public void addNodes(List<Node> batch) {
+        if (appending == null && appendingPatch == null) {
+            if (nodes.size() == 0) {
+                appending = new NodeTable.Builder();
+            } else {
+                appendingPatch = new NodeTable.Patch(nodes);
+            }
+        }
+        for (Node node : batch) {
+            int handle = appending != null ? appending.add(node) : appendingPatch.add(node);
+            if (nodeIndexById == null)
+                continue;
+
+            if (nodeIndexById.containsKey(node.getId())) {
+                duplicateIds.add(node.getId());
+            } else {
+                nodeIndexById.put(node.getId(), handle);
+            }
+        }
+
+        nodes = appending != null ? appending.buildShared() : appendingPatch.build();
+        // clusters of all zoom levels are only built once the download is complete, see save()
+        spatialDataSource.setLoadingItems(nodes);
+        fireNodesChanged(null);
     }
 
-    private void fireNodesChanged() {
+    /**
+     * Patches only the changed nodes instead of replacing all of them, the other nodes are neither copied nor
+     * decoded. Removing a node moves the last node into its handle.
+     * Updates of unknown nodes are treated as additions, additions of known nodes as updates.
+     * If several nodes share an id, changes and removals apply to the first of them.
+     *
+     * @return The ids that changed, also passed to observers
+     */
+    public NodeChangeSet applyDelta(NodeDelta delta) {
+        if (delta.isFull()) {
+            setNodes(delta.getAdded());
+            return null;
+        }
+
+        List<Node> changed = new ArrayList<>(delta.getUpdated().size() + delta.getAdded().size());
+        changed.addAll(delta.getUpdated());
+        changed.addAll(delta.getAdded());
+        return patchNodes(changed, delta.getRemoved());
+    }
+
+    /**
+     * Adds or updates the nodes of another table by id, from a handle on, e.g. while a node list that replaces the
+     * current nodes is still being downloaded into that table. Nodes are compared column by column, only the ones
+     * that changed are created and patched in. Nothing is removed.
+     *
+     * @return The ids that changed, also passed to observers unless nothing changed
+     */
+    public NodeChangeSet updateNodes(NodeTable source, int from) {
+        if (nodeIndexById == null) {
+            rebuildIndexById();
+        }
+
+        List<Node> changed = new ArrayList<>();
+        for (int handle = from; handle < source.size(); handle++) {
+            Integer current = nodeIndexById.get(source.getId(handle));
+            if (current == null || !nodes.matches(current, source, handle)) {
+                changed.add(source.newNode(handle));
+            }
+        }
+        if (changed.isEmpty()) {
+            Set<String> none = Collections.emptySet();
+            return new NodeChangeSet(none, none, none);
+        }
+        return patchNodes(changed, Collections.<String>emptyList());
+    }
+
+    private NodeChangeSet patchNodes(List<Node> changed, List<String> removedIds) {
+        if (nodeIndexById == null) {
+            rebuildIndexById();
+        }
+
+        Set<String> added = new HashSet<>();
+        Set<String> updated = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+
+        appending = null;
+        appendingPatch = null;
+        NodeTable.Patch patch = new NodeTable.Patch(nodes);
+        for (Node node : changed) {
+            Integer handle = nodeIndexById.get(node.getId());
+            if (handle == null) {
+                nodeIndexById.put(node.getId(), patch.add(node));
+                added.add(node.getId());
+            } else {
+                patch.set(handle, node);
+                updated.add(node.getId());
+            }
+        }
+
+        for (String id : removedIds) {
+            Integer handle = nodeIndexById.remove(id);
+            if (handle == null)
+                continue;
+
+            int moved = patch.remove(handle);
+            if (moved >= 0) {
+                // the last node took over the handle of the removed one
+                String movedId = patch.getId(handle);
+                Integer first = nodeIndexById.get(movedId);
+                if (first != null && first == moved) {
+                    nodeIndexById.put(movedId, handle);
+                }
+            }
+            if (duplicateIds.contains(id)) {
+                // the next node with the id takes its place
+                putFirstHandle(patch, id);
+            }
+
+            updated.remove(id);
+            if (!added.remove(id)) {
+                removed.add(id);
+            }
+        }
+
+        NodeTable previous = nodes;
+        nodes = patch.build();
+        if (spatialDataSource.getItems() == previous) {
+            // only the changed nodes are indexed and grouped, the indexes and clusters of all others are kept
+            spatialDataSource.patchItems(nodes, patch.getChangedHandles());
+        } else {
+            spatialDataSource.setItems(nodes, null);
+        }
+
+        NodeChangeSet changeSet = new NodeChangeSet(added, updated, removed);
+        fireNodesChanged(changeSet);
+        return changeSet;
+    }
+
+    private void rebuildIndexById() {
+        nodeIndexById = new HashMap<>(nodes.size() * 2);
+        duplicateIds = new HashSet<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            String id = nodes.getId(i);
+            if (!nodeIndexById.containsKey(id)) {
+                nodeIndexById.put(id, i);
+            } else {
+                duplicateIds.add(id);
+            }
+        }
+    }
+
+    // duplicate ids are rare, so looking through all nodes for them is fine
+    private void putFirstHandle(NodeTable.Patch patch, String id) {
+        for (int handle = 0; handle < patch.size(); handle++) {
+            if (id.equals(patch.getId(handle))) {
+                nodeIndexById.put(id, handle);
+                return;
+            }
+        }
+        duplicateIds.remove(id);
+    }
+
+    private void fireNodesChanged(NodeChangeSet changeSet) {
         this.setChanged();
-        this.notifyObservers();
+        this.notifyObservers(changeSet);
     }
 
     /**
-     * Saves nodes to disk
+     * Saves nodes and a spatial index over them to disk
+     *
+     * @return The saved nodes and their index, another repository can take both over with {@link #setNodes(CachedNodes)}
+     * without rebuilding anything, e.g. when this one was only used to save on a background thread
      */
-    public void save() throws IOException {
+    public CachedNodes save() throws IOException {
+        return save(context, nodes);
+    }
+
+    /**
+     * Saves a table like {@link #save()}, without setting it on a repository first, e.g. one that was streamed on a
+     * background thread
+     */
+    public static CachedNodes save(Context context, NodeTable nodes) throws IOException {
         TimingLogger timing = new TimingLogger(TAG, "save");
 
-        // yes, parcels are not meant for persisting to disk, but they are convenient and fast
-        // we are only serializing "simple" data (no binders etc)
-        // + losing serialized data here would not be a problem as users can almost always refresh node data
-        Parcel parcel = Parcel.obtain();
+        int generation = NodeStore.write(getFile(context), nodes);
+        timing.addSplit("wrote " + nodes.size());
 
-        parcel.writeTypedList(this.nodes);
+        // built here, at sync time, so that loading never has to project or sort anything
+        PackedPointIndex index = PackedPointIndex.build(nodes, generation);
+        index.write(getIndexFile(context));
+        timing.addSplit("wrote index");
 
-        File f = getFile();
-        FileOutputStream fileOutputStream = new FileOutputStream(f);
+        CellIndex cells = CellIndex.build(nodes, generation);
+        cells.write(getCellFile(context));
+        timing.addSplit("wrote cells");
 
-        byte[] buffer = parcel.marshall();
-        parcel.recycle();
+        // clustering every zoom level is the expensive part, after this the map only looks clusters up
+        ClusterPyramid pyramid = ClusterPyramid.build(Sites.build(nodes), generation);
+        pyramid.write(getPyramidFile(context));
+        timing.addSplit("wrote clusters");
 
-        fileOutputStream.write(buffer);
-        fileOutputStream.close();
+        // nodes used to be stored as a marshalled Parcel
+        new File(context.getCacheDir(), "nodes.json").delete();
 
         timing.dumpToLog();
+
+        return new CachedNodes(nodes, index, cells, pyramid);
     }
 
     /**
      * Loads nodes from disk
+     *
+     * @return A read-only view of the mapped nodes, like {@link #loadCached(Context)} node objects are only created
+     * once they are accessed
      */
     public static List<Node> load(Context context) {
+        return loadCached(context).getNodes().asList();
+    }
+
+    /**
+     * Maps nodes and their index from disk, node objects are only created once they are accessed.
+     * See {@link #setNodes(CachedNodes)}.
+     */
+    public static CachedNodes loadCached(Context context) {
         TimingLogger timing = new TimingLogger(TAG, "load");
 
-        ArrayList<Node> nodes = new ArrayList<>();
+        NodeTable nodes = NodeTable.empty();
+        PackedPointIndex index = null;
+        CellIndex cells = null;
+        ClusterPyramid pyramid = null;
         try {
-            Parcel parcel = Parcel.obtain();
-
-            File f = getFile(context);
-            FileInputStream fileInputStream = new FileInputStream(f);
-            byte[] buffer = new byte[(int) f.length()];
-            fileInputStream.read(buffer, 0, buffer.length);
-            fileInputStream.close();
+            // ids and names of mapped nodes are only decoded once they are displayed
+            MappedNodeTable table = MappedNodeTable.open(getFile(context));
+            nodes = NodeTable.fromStore(table);
+            timing.addSplit("mapped " + table.size());
 
-            parcel.unmarshall(buffer, 0, buffer.length);
-            parcel.setDataPosition(0);
-            parcel.readTypedList(nodes, Node.CREATOR);
-            parcel.recycle();
+            index = loadIndex(context, table);
+            timing.addSplit(index == null ? "no index" : "loaded index");
 
-            timing.addSplit("loaded " + nodes.size());
-
-            // trim
-            nodes.removeAll(Collections.singleton(null));
-            timing.addSplit("trimmed nulls" + nodes.size());
+            cells = loadCells(context, table);
+            timing.addSplit(cells == null ? "no cells" : "loaded cells");
 
+            pyramid = loadPyramid(context, table);
+            timing.addSplit(pyramid == null ? "no clusters" : "loaded clusters");
         } catch (Exception e) {
+            // losing persisted data is not a problem as users can almost always refresh node data
             Log.d(TAG, "load encountered exception, this is not a problem", e);
         }
 
         timing.dumpToLog();
 
-        return nodes;
+        return new CachedNodes(nodes, index, cells, pyramid);
     }
 
-    @NonNull
-    private File getFile() {
-        return NodeRepository.getFile(context);
+    private static PackedPointIndex loadIndex(Context context, MappedNodeTable table) {
+        File indexFile = getIndexFile(context);
+        if (!indexFile.exists())
+            return null;
+
+        try {
+            PackedPointIndex index = PackedPointIndex.read(indexFile);
+            // an index of an older store would point at the wrong nodes, it is rebuilt with the snapshot then
+            if (index.getGeneration() == table.getGeneration() && index.size() == table.size())
+                return index;
+        } catch (IOException e) {
+            Log.d(TAG, "index could not be loaded, it will be rebuilt", e);
+        }
+        return null;
+    }
+
+    private static CellIndex loadCells(Context context, MappedNodeTable table) {
+        File cellFile = getCellFile(context);
+        if (!cellFile.exists())
+            return null;
+
+        try {
+            CellIndex cells = CellIndex.read(cellFile);
+            // like the spatial index, cells of an older store are rebuilt with the snapshot
+            if (cells.getGeneration() == table.getGeneration() && cells.size() == table.size())
+                return cells;
+        } catch (IOException e) {
+            Log.d(TAG, "cells could not be loaded, they will be rebuilt", e);
+        }
+        return null;
+    }
+
+    private static ClusterPyramid loadPyramid(Context context, MappedNodeTable table) {
+        File pyramidFile = getPyramidFile(context);
+        if (!pyramidFile.exists())
+            return null;
+
+        try {
+            ClusterPyramid pyramid = ClusterPyramid.read(pyramidFile);
+            // clusters of an older store are rebuilt with the snapshot, still on the loading thread
+            if (pyramid.getGeneration() == table.getGeneration() && pyramid.size() == table.size())
+                return pyramid;
+        } catch (IOException e) {
+            Log.d(TAG, "clusters could not be loaded, they will be rebuilt", e);
+        }
+        return null;
     }
 
     public static File getFile(Context context) {
-        File f = new File(context.getCacheDir(), "nodes.json");
+        File f = new File(context.getCacheDir(), "nodes.bin");
         return f;
     }
 
+    public static File getIndexFile(Context context) {
+        return new File(context.getCacheDir(), "nodes.idx");
+    }
+
+    public static File getCellFile(Context context) {
+        return new File(context.getCacheDir(), "nodes.cells");
+    }
+
+    public static File getPyramidFile(Context context) {
+        return new File(context.getCacheDir(), "nodes.clusters");
+    }
+
     public boolean hasNodes() {
         return this.nodes.size() > 0;
     }
@@ -0,0 +1,256 @@
+package de.inmotion_sst.freifunkfinder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Versioned binary columnar file format for persisting nodes.
+ * <p>
+ * Layout (all values are big endian ints unless noted otherwise):
+ * <pre>
+ * header       magic, format version, node count, string table size, id bytes, name bytes, string bytes, generation
+ * lat[n]       latitude in 1e-7 degrees
+ * lon[n]       longitude in 1e-7 degrees
+ * alt[n]       altitude in centimeters
+ * clients[n]
+ * community[n] index into the string table, -1 for none
+ * status[n]    index into the string table, -1 for none
+ * idOffsets[n + 1], nameOffsets[n + 1], stringOffsets[s + 1]
+ * id bytes, name bytes, string bytes (UTF-8), each section padded to 4 bytes
+ * </pre>
+ * The repeated community and status values are stored only once in the string table. Missing ids and names are
+ * stored as empty strings. The generation is random for every write, files derived from a store (like the spatial
+ * index) record it to detect that they belong to an older store.
+ */
+public class NodeStore {
+    static final int MAGIC = 0x46464e44; // "FFND"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_INTS = 8;
+
+    static final double COORDINATE_SCALE = 1e7;
+    static final double ALTITUDE_SCALE = 100;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes all nodes to a temporary file first and then replaces the target, so a crash never leaves a half written store.
+     *
+     * @return The generation of the written store
+     */
+    public static int write(File file, List<Node> nodes) throws IOException {
+        return write(file, NodeTable.of(nodes));
+    }
+
+    /**
+     * Writes all nodes of a table, see {@link #write(File, List)}. Handles of the table are the row numbers in the store.
+     *
+     * @return The generation of the written store
+     */
+    public static int write(File file, NodeTable nodes) throws IOException {
+        int n = nodes.size();
+
+        int[] lat = new int[n];
+        int[] lon = new int[n];
+        int[] alt = new int[n];
+        int[] clients = new int[n];
+        int[] community = new int[n];
+        int[] status = new int[n];
+        byte[][] ids = new byte[n][];
+        byte[][] names = new byte[n][];
+
+        // the codes of the table can be stored as they are
+        for (int i = 0; i < n; i++) {
+            lat[i] = scaled(nodes.getLat(i), COORDINATE_SCALE);
+            lon[i] = scaled(nodes.getLon(i), COORDINATE_SCALE);
+            alt[i] = scaled(nodes.getAlt(i), ALTITUDE_SCALE);
+            clients[i] = nodes.getClients(i);
+            community[i] = nodes.getCommunityCode(i);
+            status[i] = nodes.getStatusCode(i);
+            ids[i] = encode(nodes.getId(i));
+            names[i] = encode(nodes.getName(i));
+        }
+
+        byte[][] table = new byte[nodes.getStringCount()][];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = encode(nodes.getString(i));
+        }
+
+        int idBytes = totalLength(ids);
+        int nameBytes = totalLength(names);
+        int stringBytes = totalLength(table);
+
+        int size = 4 * (HEADER_INTS + 6 * n + (n + 1) * 2 + table.length + 1)
+                + padded(idBytes) + padded(nameBytes) + padded(stringBytes);
+
+        int generation = new Random().nextInt();
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(n).putInt(table.length)
+                .putInt(idBytes).putInt(nameBytes).putInt(stringBytes).putInt(generation);
+
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(lat).put(lon).put(alt).put(clients).put(community).put(status);
+        putOffsets(ints, ids);
+        putOffsets(ints, names);
+        putOffsets(ints, table);
+        buffer.position(buffer.position() + ints.position() * 4);
+
+        putBytes(buffer, ids);
+        putBytes(buffer, names);
+        putBytes(buffer, table);
+        buffer.flip();
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("could not replace " + file);
+        }
+
+        return generation;
+    }
+
+    public static List<Node> read(File file) throws IOException {
+        ByteBuffer buffer = readFully(file);
+        IntBuffer ints = buffer.asIntBuffer();
+
+        if (ints.remaining() < HEADER_INTS || ints.get() != MAGIC)
+            throw new IOException("not a node store");
+
+        int version = ints.get();
+        if (version != FORMAT_VERSION)
+            throw new IOException("unsupported node store version " + version);
+
+        int n = ints.get();
+        int stringCount = ints.get();
+        int idBytes = ints.get();
+        int nameBytes = ints.get();
+        int stringBytes = ints.get();
+        ints.get(); // generation
+
+        int expected = 4 * (HEADER_INTS + 6 * n + (n + 1) * 2 + stringCount + 1)
+                + padded(idBytes) + padded(nameBytes) + padded(stringBytes);
+        if (n < 0 || stringCount < 0 || expected != buffer.limit())
+            throw new IOException("corrupt node store");
+
+        // bulk reads of all columns, no per field calls
+        int[] lat = new int[n];
+        int[] lon = new int[n];
+        int[] alt = new int[n];
+        int[] clients = new int[n];
+        int[] community = new int[n];
+        int[] status = new int[n];
+        int[] idOffsets = new int[n + 1];
+        int[] nameOffsets = new int[n + 1];
+        int[] stringOffsets = new int[stringCount + 1];
+        ints.get(lat).get(lon).get(alt).get(clients).get(community).get(status);
+        ints.get(idOffsets).get(nameOffsets).get(stringOffsets);
+
+        byte[] data = buffer.array();
+        int idStart = 4 * ints.position();
+        int nameStart = idStart + padded(idBytes);
+        int stringStart = nameStart + padded(nameBytes);
+
+        String[] table = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            table[i] = decode(data, stringStart, stringOffsets, i);
+        }
+
+        List<Node> nodes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            nodes.add(new Node(
+                    decode(data, idStart, idOffsets, i),
+                    decode(data, nameStart, nameOffsets, i),
+                    community[i] < 0 ? null : table[community[i]],
+                    lat[i] / COORDINATE_SCALE,
+                    lon[i] / COORDINATE_SCALE,
+                    alt[i] / ALTITUDE_SCALE,
+                    status[i] < 0 ? null : table[status[i]],
+                    clients[i]));
+        }
+
+        return nodes;
+    }
+
+    private static ByteBuffer readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE || size % 4 != 0)
+                throw new IOException("corrupt node store");
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    throw new IOException("unexpected end of node store");
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? new byte[0] : value.getBytes(UTF8);
+    }
+
+    private static String decode(byte[] data, int start, int[] offsets, int i) {
+        int from = offsets[i];
+        int to = offsets[i + 1];
+        return from == to ? "" : new String(data, start + from, to - from, UTF8);
+    }
+
+    private static int totalLength(byte[][] values) {
+        int total = 0;
+        for (byte[] value : values) {
+            total += value.length;
+        }
+        return total;
+    }
+
+    // the feed has a few coordinates with a missing decimal point, they must stay invalid instead of wrapping around
+    private static int scaled(double value, double scale) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round(value * scale)));
+    }
+
+    static int padded(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    private static void putOffsets(IntBuffer ints, byte[][] values) {
+        int offset = 0;
+        ints.put(offset);
+        for (byte[] value : values) {
+            offset += value.length;
+            ints.put(offset);
+        }
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[][] values) {
+        int start = buffer.position();
+        for (byte[] value : values) {
+            buffer.put(value);
+        }
+        buffer.position(start + padded(buffer.position() - start));
+    }
+}
@@ -0,0 +1,111 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes nodes one at a time from a JSON token stream and hands them out in batches.
+ * <p>
+ * Understands both the plain router list served by the crawler (a top level array of nodes) and
+ * the freifunk-karte wrapper object that keeps the routers in an "allTheRouters" array. Only the
+ * current batch is held in memory, so the parser itself does not grow with the size of the feed.
+ */
+public class NodeStreamParser {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static final String ROUTERS_FIELD = "allTheRouters";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public interface BatchListener {
+        /**
+         * Called for every decoded batch. The list is owned by the listener after this call.
+         */
+        void onBatch(List<Node> batch);
+    }
+
+    private final int batchSize;
+
+    public NodeStreamParser() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    public NodeStreamParser(int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive");
+
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Parses the stream and calls the listener for every batch, the last batch may be smaller.
+     *
+     * @return The total number of parsed nodes
+     */
+    public int parse(InputStream inputStream, BatchListener listener) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(inputStream);
+        try {
+            return parse(parser, listener);
+        } finally {
+            parser.close();
+        }
+    }
+
+    int parse(JsonParser parser, BatchListener listener) throws IOException {
+        JsonToken token = parser.nextToken();
+
+        if (token == JsonToken.START_OBJECT) {
+            // wrapper object, skip everything but the router array (see KarteFeedDecoder for reading all of it)
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (ROUTERS_FIELD.equals(field) && value == JsonToken.START_ARRAY) {
+                    return parseArray(parser, listener);
+                }
+
+                parser.skipChildren();
+            }
+            return 0;
+        }
+
+        if (token != JsonToken.START_ARRAY) {
+            throw new IOException("expected node array or feed object, got " + token);
+        }
+
+        return parseArray(parser, listener);
+    }
+
+    private int parseArray(JsonParser parser, BatchListener listener) throws IOException {
+        NodeReader reader = new NodeReader(new StringPool());
+        int count = 0;
+        List<Node> batch = new ArrayList<>(batchSize);
+
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+            batch.add(reader.read(parser));
+            count++;
+
+            if (batch.size() == batchSize) {
+                listener.onBatch(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+
+        if (token != JsonToken.END_ARRAY) {
+            throw new IOException("unexpected token in node array: " + token);
+        }
+
+        if (!batch.isEmpty()) {
+            listener.onBatch(batch);
+        }
+
+        return count;
+    }
+}
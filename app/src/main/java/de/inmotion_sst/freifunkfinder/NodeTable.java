@@ -0,0 +1,725 @@
+package de.inmotion_sst.freifunkfinder;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import de.inmotion_sst.freifunkfinder.clustering.ItemAttributes;
+import de.inmotion_sst.freifunkfinder.clustering.ItemFilter;
+import de.inmotion_sst.freifunkfinder.clustering.ItemStatistics;
+import de.inmotion_sst.freifunkfinder.clustering.ItemTable;
+
+/**
+ * Immutable node table, stored as one primitive array per field or read straight from a mapped {@link NodeStore}.
+ * <p>
+ * Nodes are addressed by int handles from 0 to {@link #size()} - 1. Communities and statuses are interned into a
+ * small string table and stored as int codes, so all per node values except id and name are primitives.
+ * {@link Node} objects are only created for handles that are asked for, e.g. by markers, and then reused.
+ * Use a {@link Builder} to make a table, and a {@link Patch} to change a few nodes of one.
+ */
+public class NodeTable implements ItemTable<Node>, ItemStatistics, ItemAttributes {
+    public static final int NO_STRING = -1;
+
+    private static final NodeTable EMPTY = new Builder().build();
+
+    private final int size;
+
+    // the base rows, either in these columns or in the mapped store
+    private final double[] lat;
+    private final double[] lon;
+    private final double[] alt;
+    private final int[] clients;
+    private final int[] community;
+    private final int[] status;
+    private final String[] ids;
+    private final String[] names;
+    private final MappedNodeTable store;
+
+    private final String[] strings;
+
+    // rows of handles a patch changed, see row(int). Null if nothing was patched.
+    private final HandleMap patchedRows;
+    private final Rows rows;
+    private final int rowCount;
+
+    private final AtomicReferenceArray<Node> nodes;
+
+    private NodeTable(int size, double[] lat, double[] lon, double[] alt, int[] clients, int[] community, int[] status,
+                      String[] ids, String[] names, MappedNodeTable store, String[] strings,
+                      HandleMap patchedRows, Rows rows, int rowCount, AtomicReferenceArray<Node> nodes) {
+        this.size = size;
+        this.lat = lat;
+        this.lon = lon;
+        this.alt = alt;
+        this.clients = clients;
+        this.community = community;
+        this.status = status;
+        this.ids = ids;
+        this.names = names;
+        this.store = store;
+        this.strings = strings;
+        this.patchedRows = patchedRows;
+        this.rows = rows;
+        this.rowCount = rowCount;
+        this.nodes = nodes;
+    }
+
+    public static NodeTable empty() {
+        return EMPTY;
+    }
+
+    public static NodeTable of(List<Node> nodes) {
+        Builder builder = new Builder(nodes.size());
+        for (Node node : nodes) {
+            builder.add(node);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads the nodes straight from a mapped store, nothing is copied onto the heap. Ids and names are decoded
+     * whenever they are accessed.
+     */
+    public static NodeTable fromStore(MappedNodeTable store) {
+        int n = store.size();
+        return new NodeTable(n, null, null, null, null, null, null, null, null, store, store.getStrings(),
+                null, null, 0, new AtomicReferenceArray<>(n));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // >= 0 for a base row, the complement of a patched row otherwise
+    private int row(int handle) {
+        return patchedRows == null ? handle : patchedRows.get(handle, handle);
+    }
+
+    public double getLat(int handle) {
+        int row = row(handle);
+        return row < 0 ? rows.lat[~row] : store == null ? lat[row] : store.getLat(row);
+    }
+
+    public double getLon(int handle) {
+        int row = row(handle);
+        return row < 0 ? rows.lon[~row] : store == null ? lon[row] : store.getLon(row);
+    }
+
+    public double getAlt(int handle) {
+        int row = row(handle);
+        return row < 0 ? rows.alt[~row] : store == null ? alt[row] : store.getAlt(row);
+    }
+
+    @Override
+    public int getClients(int handle) {
+        int row = row(handle);
+        return row < 0 ? rows.clients[~row] : store == null ? clients[row] : store.getClients(row);
+    }
+
+    public String getId(int handle) {
+        int row = row(handle);
+        return row < 0 ? rows.ids[~row] : store == null ? ids[row] : store.getId(row);
+    }
+
+    public String getName(int handle) {
+        int row = row(handle);
+        return row < 0 ? rows.names[~row] : store == null ? names[row] : store.getName(row);
+    }
+
+    /**
+     * @return The community as index into the string table, or {@link #NO_STRING}
+     */
+    public int getCommunityCode(int handle) {
+        int row = row(handle);
+        return row < 0 ? rows.community[~row] : store == null ? community[row] : store.getCommunityCode(row);
+    }
+
+    /**
+     * @return The status as index into the string table, or {@link #NO_STRING}
+     */
+    public int getStatusCode(int handle) {
+        int row = row(handle);
+        return row < 0 ? rows.status[~row] : store == null ? status[row] : store.getStatusCode(row);
+    }
+
+    public String getCommunity(int handle) {
+        return getString(getCommunityCode(handle));
+    }
+
+    public String getStatus(int handle) {
+        return getString(getStatusCode(handle));
+    }
+
+    @Override
+    public boolean isOnline(int handle) {
+        return "online".equals(getStatus(handle));
+    }
+
+    @Override
+    public boolean isOffline(int handle) {
+        return "offline".equals(getStatus(handle));
+    }
+
+    @Override
+    public int getFlags(int handle) {
+        int flags = isOnline(handle) ? ItemFilter.ONLINE : isOffline(handle) ? ItemFilter.OFFLINE : ItemFilter.UNKNOWN;
+        if (getClients(handle) > 0) {
+            flags |= ItemFilter.WITH_CLIENTS;
+        }
+        return flags;
+    }
+
+    /**
+     * @return The community code, see {@link #getCommunityCode(int)}
+     */
+    @Override
+    public int getGroup(int handle) {
+        return getCommunityCode(handle);
+    }
+
+    @Override
+    public int getGroupCode(String name) {
+        return getStringCode(name);
+    }
+
+    public String getString(int code) {
+        return code == NO_STRING ? null : strings[code];
+    }
+
+    /**
+     * @return The number of distinct community and status strings
+     */
+    public int getStringCount() {
+        return strings.length;
+    }
+
+    /**
+     * @return The code of the string, or {@link #NO_STRING} if no node uses it
+     */
+    public int getStringCode(String value) {
+        for (int i = 0; i < strings.length; i++) {
+            if (strings[i].equals(value))
+                return i;
+        }
+        return NO_STRING;
+    }
+
+    /**
+     * @return The node for a handle, the same instance is returned for every call on this table
+     */
+    public Node getNode(int handle) {
+        if (handle < 0 || handle >= size)
+            throw new IndexOutOfBoundsException("node " + handle + " of " + size);
+
+        Node node = nodes.get(handle);
+        if (node == null) {
+            // racing threads agree on the first node, item identity matters for clustering and markers
+            nodes.compareAndSet(handle, null, newNode(handle));
+            node = nodes.get(handle);
+        }
+        return node;
+    }
+
+    /**
+     * @return A new node for a handle, unlike {@link #getNode(int)} the table does not keep it
+     */
+    public Node newNode(int handle) {
+        return new Node(getId(handle), getName(handle), getCommunity(handle), getLat(handle), getLon(handle),
+                getAlt(handle), getStatus(handle), getClients(handle));
+    }
+
+    /**
+     * Compares the columns of a handle with a node of another table, without creating either node
+     *
+     * @return true if both handles hold the same values
+     */
+    public boolean matches(int handle, NodeTable other, int otherHandle) {
+        return Double.compare(getLat(handle), other.getLat(otherHandle)) == 0
+                && Double.compare(getLon(handle), other.getLon(otherHandle)) == 0
+                && Double.compare(getAlt(handle), other.getAlt(otherHandle)) == 0
+                && getClients(handle) == other.getClients(otherHandle)
+                && equal(getId(handle), other.getId(otherHandle))
+                && equal(getName(handle), other.getName(otherHandle))
+                && equal(getCommunity(handle), other.getCommunity(otherHandle))
+                && equal(getStatus(handle), other.getStatus(otherHandle));
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return A view of all nodes, nodes are created when they are first accessed
+     */
+    public List<Node> asList() {
+        return new AbstractList<Node>() {
+            @Override
+            public Node get(int i) {
+                return getNode(i);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public double getLatitude(int handle) {
+        return getLat(handle);
+    }
+
+    @Override
+    public double getLongitude(int handle) {
+        return getLon(handle);
+    }
+
+    @Override
+    public Node getItem(int handle) {
+        return getNode(handle);
+    }
+
+    /**
+     * The rows patches wrote, shared by all tables patched from the same base. Patches only append, a table reads
+     * the rows up to its own row count.
+     */
+    private static final class Rows {
+        final double[] lat;
+        final double[] lon;
+        final double[] alt;
+        final int[] clients;
+        final int[] community;
+        final int[] status;
+        final String[] ids;
+        final String[] names;
+
+        // the number of rows appended so far, only changed by the patch that appends
+        int count;
+
+        Rows(int capacity) {
+            lat = new double[capacity];
+            lon = new double[capacity];
+            alt = new double[capacity];
+            clients = new int[capacity];
+            community = new int[capacity];
+            status = new int[capacity];
+            ids = new String[capacity];
+            names = new String[capacity];
+        }
+
+        Rows copy(int count, int capacity) {
+            Rows copy = new Rows(capacity);
+            System.arraycopy(lat, 0, copy.lat, 0, count);
+            System.arraycopy(lon, 0, copy.lon, 0, count);
+            System.arraycopy(alt, 0, copy.alt, 0, count);
+            System.arraycopy(clients, 0, copy.clients, 0, count);
+            System.arraycopy(community, 0, copy.community, 0, count);
+            System.arraycopy(status, 0, copy.status, 0, count);
+            System.arraycopy(ids, 0, copy.ids, 0, count);
+            System.arraycopy(names, 0, copy.names, 0, count);
+            copy.count = count;
+            return copy;
+        }
+    }
+
+    /**
+     * Changes a few nodes of a table without copying the others. Unchanged nodes stay where they are, in the
+     * columns or the mapped store of the table, changed and added nodes are kept as a small set of rows on top.
+     * A patch costs the nodes it changes, plus the handles of earlier patches of the same table.
+     * <p>
+     * Removing a node moves the last node into its handle, all other handles stay the same. Once the patched rows
+     * add up to a quarter of the table, {@link #build()} copies all nodes into a new table instead.
+     */
+    public static class Patch {
+        private static final int MIN_COMPACT_ROWS = 1024;
+
+        private final NodeTable table;
+        private int size;
+        private HandleMap patchedRows;
+        private Rows rows;
+        private int rowCount;
+        // set once a built table shares the patched rows, they are copied before they change again
+        private boolean built;
+
+        // handles that were set, added or moved into, in no particular order and possibly more than once
+        private int[] changed = new int[16];
+        private int changedCount;
+
+        private final List<String> strings;
+        private final Map<String, Integer> stringCodes;
+
+        public Patch(NodeTable table) {
+            this.table = table;
+            size = table.size;
+            patchedRows = table.patchedRows == null ? new HandleMap(16) : table.patchedRows.copy();
+            rows = table.rows == null ? new Rows(16) : table.rows;
+            rowCount = table.rowCount;
+
+            strings = new ArrayList<>(Arrays.asList(table.strings));
+            stringCodes = new HashMap<>();
+            for (int i = 0; i < table.strings.length; i++) {
+                stringCodes.put(table.strings[i], i);
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public String getId(int handle) {
+            int row = patchedRows.get(handle, handle);
+            return row < 0 ? rows.ids[~row] : table.store == null ? table.ids[row] : table.store.getId(row);
+        }
+
+        /**
+         * @return The handle of the added node
+         */
+        public int add(Node node) {
+            put(size, node);
+            return size++;
+        }
+
+        /**
+         * Replaces the node at a handle
+         */
+        public void set(int handle, Node node) {
+            if (handle < 0 || handle >= size)
+                throw new IndexOutOfBoundsException("node " + handle + " of " + size);
+
+            put(handle, node);
+        }
+
+        /**
+         * Removes a node by moving the last node into its handle
+         *
+         * @return The former handle of the node that now has the handle of the removed one, or -1 if the removed node
+         * was the last one
+         */
+        public int remove(int handle) {
+            if (handle < 0 || handle >= size)
+                throw new IndexOutOfBoundsException("node " + handle + " of " + size);
+
+            ownPatchedRows();
+            int last = size - 1;
+            size--;
+            if (handle == last) {
+                patchedRows.remove(last);
+                return -1;
+            }
+
+            // the row moves, not the node, so nodes that still are in the store stay there
+            changed(handle);
+            int row = patchedRows.get(last, last);
+            patchedRows.remove(last);
+            if (row == handle) {
+                patchedRows.remove(handle);
+            } else {
+                patchedRows.put(handle, row);
+            }
+            return last;
+        }
+
+        /**
+         * @return The ascending handles whose node differs from the table the patch started from, nodes beyond the
+         * end of either table are not listed
+         */
+        public int[] getChangedHandles() {
+            int[] sorted = Arrays.copyOf(changed, changedCount);
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int handle : sorted) {
+                if (handle < size && (n == 0 || sorted[n - 1] != handle)) {
+                    sorted[n++] = handle;
+                }
+            }
+            return Arrays.copyOf(sorted, n);
+        }
+
+        /**
+         * @return A table with the patched nodes. The patch can still be used afterwards.
+         */
+        public NodeTable build() {
+            if (rowCount > MIN_COMPACT_ROWS && rowCount > size / 4)
+                return compact();
+
+            built = true;
+            return new NodeTable(size, table.lat, table.lon, table.alt, table.clients, table.community, table.status,
+                    table.ids, table.names, table.store, strings.toArray(new String[strings.size()]),
+                    patchedRows.size() == 0 ? null : patchedRows, rows, rowCount, new AtomicReferenceArray<>(size));
+        }
+
+        private NodeTable compact() {
+            NodeTable patched = new NodeTable(size, table.lat, table.lon, table.alt, table.clients, table.community,
+                    table.status, table.ids, table.names, table.store, strings.toArray(new String[strings.size()]),
+                    patchedRows, rows, rowCount, null);
+
+            Builder builder = new Builder(size);
+            for (int handle = 0; handle < size; handle++) {
+                builder.add(patched.getId(handle), patched.getName(handle), patched.getCommunity(handle),
+                        patched.getLat(handle), patched.getLon(handle), patched.getAlt(handle),
+                        patched.getStatus(handle), patched.getClients(handle));
+            }
+            return builder.build();
+        }
+
+        private void put(int handle, Node node) {
+            ownPatchedRows();
+            // rows of tables built before are never overwritten, another patch of the same table may share them
+            if (rows.count != rowCount || rowCount == rows.lat.length) {
+                rows = rows.copy(rowCount, Math.max(16, rowCount * 2));
+            }
+
+            int row = rowCount++;
+            rows.count = rowCount;
+            rows.lat[row] = node.getLat();
+            rows.lon[row] = node.getLon();
+            rows.alt[row] = node.getAlt();
+            rows.clients[row] = node.getClients();
+            rows.community[row] = intern(node.getCommunity());
+            rows.status[row] = intern(node.getStatus());
+            rows.ids[row] = node.getId();
+            rows.names[row] = node.getName();
+            patchedRows.put(handle, ~row);
+            changed(handle);
+        }
+
+        private void changed(int handle) {
+            if (changedCount == changed.length) {
+                changed = Arrays.copyOf(changed, changedCount * 2);
+            }
+            changed[changedCount++] = handle;
+        }
+
+        private void ownPatchedRows() {
+            if (built) {
+                patchedRows = patchedRows.copy();
+                built = false;
+            }
+        }
+
+        private int intern(String value) {
+            if (value == null)
+                return NO_STRING;
+
+            Integer code = stringCodes.get(value);
+            if (code == null) {
+                code = strings.size();
+                strings.add(value);
+                stringCodes.put(value, code);
+            }
+            return code;
+        }
+    }
+
+    /**
+     * Collects nodes for a new table. Handles of a builder stay stable until {@link #build()} removes nodes.
+     * <p>
+     * A builder that only appends, e.g. while nodes are downloaded, can publish its nodes after every batch with
+     * {@link #buildShared()}, without copying all of them every time.
+     */
+    public static class Builder {
+        private int size;
+        private double[] lat;
+        private double[] lon;
+        private double[] alt;
+        private int[] clients;
+        private int[] community;
+        private int[] status;
+        private String[] ids;
+        private String[] names;
+
+        private final List<String> strings;
+        private final Map<String, Integer> stringCodes;
+
+        private final BitSet removed = new BitSet();
+
+        // the first handles are shared with tables of buildShared(), the columns are copied before they change
+        private int shared;
+        private AtomicReferenceArray<Node> sharedNodes;
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            lat = new double[capacity];
+            lon = new double[capacity];
+            alt = new double[capacity];
+            clients = new int[capacity];
+            community = new int[capacity];
+            status = new int[capacity];
+            ids = new String[capacity];
+            names = new String[capacity];
+            strings = new ArrayList<>();
+            stringCodes = new HashMap<>();
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public String getId(int handle) {
+            return ids[handle];
+        }
+
+        /**
+         * @return The handle of the added node
+         */
+        public int add(Node node) {
+            return add(node.getId(), node.getName(), node.getCommunity(), node.getLat(), node.getLon(), node.getAlt(), node.getStatus(), node.getClients());
+        }
+
+        public int add(String id, String name, String community, double lat, double lon, double alt, String status, int clients) {
+            if (size == this.lat.length) {
+                grow();
+            }
+
+            set(size, id, name, community, lat, lon, alt, status, clients);
+            return size++;
+        }
+
+        /**
+         * Replaces the node at a handle
+         */
+        public void set(int handle, Node node) {
+            if (handle >= size)
+                throw new IndexOutOfBoundsException("node " + handle + " of " + size);
+
+            if (handle < shared) {
+                unshare();
+            }
+            set(handle, node.getId(), node.getName(), node.getCommunity(), node.getLat(), node.getLon(), node.getAlt(), node.getStatus(), node.getClients());
+            removed.clear(handle);
+        }
+
+        /**
+         * Marks a node for removal, it is dropped by {@link #build()}
+         */
+        public void remove(int handle) {
+            if (handle >= size)
+                throw new IndexOutOfBoundsException("node " + handle + " of " + size);
+
+            removed.set(handle);
+        }
+
+        /**
+         * @return A table with all nodes that were not removed, in handle order. The builder can still be used afterwards.
+         */
+        public NodeTable build() {
+            int n = size - removed.cardinality();
+
+            double[] lat = new double[n];
+            double[] lon = new double[n];
+            double[] alt = new double[n];
+            int[] clients = new int[n];
+            int[] community = new int[n];
+            int[] status = new int[n];
+            String[] ids = new String[n];
+            String[] names = new String[n];
+
+            if (n == size) {
+                System.arraycopy(this.lat, 0, lat, 0, n);
+                System.arraycopy(this.lon, 0, lon, 0, n);
+                System.arraycopy(this.alt, 0, alt, 0, n);
+                System.arraycopy(this.clients, 0, clients, 0, n);
+                System.arraycopy(this.community, 0, community, 0, n);
+                System.arraycopy(this.status, 0, status, 0, n);
+                System.arraycopy(this.ids, 0, ids, 0, n);
+                System.arraycopy(this.names, 0, names, 0, n);
+            } else {
+                // compact in one pass instead of shifting the columns for every removal
+                int to = 0;
+                for (int from = 0; from < size; from++) {
+                    if (removed.get(from))
+                        continue;
+
+                    lat[to] = this.lat[from];
+                    lon[to] = this.lon[from];
+                    alt[to] = this.alt[from];
+                    clients[to] = this.clients[from];
+                    community[to] = this.community[from];
+                    status[to] = this.status[from];
+                    ids[to] = this.ids[from];
+                    names[to] = this.names[from];
+                    to++;
+                }
+            }
+
+            return new NodeTable(n, lat, lon, alt, clients, community, status, ids, names, null,
+                    strings.toArray(new String[strings.size()]), null, null, 0, new AtomicReferenceArray<>(n));
+        }
+
+        /**
+         * Like {@link #build()}, but the table shares the columns of this builder instead of copying them. Appending
+         * nodes does not change the table, as it only sees the nodes up to its size, and its nodes are copied
+         * before they are set. The node objects are shared as well, until the columns have to grow.
+         *
+         * @return A table with all nodes so far, the same as {@link #build()} if nodes were removed
+         */
+        public NodeTable buildShared() {
+            if (!removed.isEmpty())
+                return build();
+
+            if (sharedNodes == null) {
+                sharedNodes = new AtomicReferenceArray<>(lat.length);
+            }
+            shared = size;
+            return new NodeTable(size, lat, lon, alt, clients, community, status, ids, names, null,
+                    strings.toArray(new String[strings.size()]), null, null, 0, sharedNodes);
+        }
+
+        private void set(int handle, String id, String name, String community, double lat, double lon, double alt, String status, int clients) {
+            this.lat[handle] = lat;
+            this.lon[handle] = lon;
+            this.alt[handle] = alt;
+            this.clients[handle] = clients;
+            this.community[handle] = intern(community);
+            this.status[handle] = intern(status);
+            this.ids[handle] = id;
+            this.names[handle] = name;
+        }
+
+        private int intern(String value) {
+            if (value == null)
+                return NO_STRING;
+
+            Integer code = stringCodes.get(value);
+            if (code == null) {
+                code = strings.size();
+                strings.add(value);
+                stringCodes.put(value, code);
+            }
+            return code;
+        }
+
+        private void unshare() {
+            copyColumns(lat.length);
+        }
+
+        private void grow() {
+            copyColumns(lat.length * 2);
+        }
+
+        private void copyColumns(int capacity) {
+            // tables of buildShared() keep the old columns
+            shared = 0;
+            sharedNodes = null;
+            lat = Arrays.copyOf(lat, capacity);
+            lon = Arrays.copyOf(lon, capacity);
+            alt = Arrays.copyOf(alt, capacity);
+            clients = Arrays.copyOf(clients, capacity);
+            community = Arrays.copyOf(community, capacity);
+            status = Arrays.copyOf(status, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package de.inmotion_sst.freifunkfinder;
+
+/**
+ * Canonicalizes strings that repeat a lot in node feeds (community keys, status values).
+ * Lookups work directly on the parser's character buffer, so a String is only allocated the first time a value is seen.
+ */
+final class StringPool {
+    private String[] table;
+    private int size;
+
+    StringPool() {
+        table = new String[64];
+    }
+
+    String add(String value) {
+        char[] chars = value.toCharArray();
+        return get(chars, 0, chars.length);
+    }
+
+    String get(char[] buffer, int offset, int length) {
+        int hash = hash(buffer, offset, length);
+        int mask = table.length - 1;
+
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            String candidate = table[i];
+            if (candidate == null) {
+                String value = new String(buffer, offset, length);
+                table[i] = value;
+                if (++size * 2 > table.length) {
+                    grow();
+                }
+                return value;
+            }
+
+            if (candidate.hashCode() == hash && matches(candidate, buffer, offset, length)) {
+                return candidate;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+
+        for (String value : old) {
+            if (value == null)
+                continue;
+
+            int i = value.hashCode() & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = value;
+        }
+    }
+
+    // same as String.hashCode so that cached string hashes can be compared
+    private static int hash(char[] buffer, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + buffer[i];
+        }
+        return h;
+    }
+
+    private static boolean matches(String candidate, char[] buffer, int offset, int length) {
+        if (candidate.length() != length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (candidate.charAt(i) != buffer[offset + i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -6,7 +6,7 @@ import android.util.Log;
 
 import javax.microedition.khronos.opengles.GL10;
 
-import de.inmotion_sst.freifunkfinder.Node;
+import de.inmotion_sst.freifunkfinder.NodeTable;
 import droidar.light.gl.GLFactory;
 import droidar.light.gl.scenegraph.MeshComponent;
 import droidar.light.util.Vec;
@@ -20,26 +20,25 @@ class NodeGeoWorldObject extends GeoWorldObject {
     private static final float arrowScale = 5.0f;
     private static final float distanceChangeThreshold = 1.0f;
 
-    private final Node node;
+    private final String name;
     private final GLFactory glFactory;
     private final MeshComponent mesh;
 
     private MeshComponent nodeName;
     private float displayedDistance;
 
-    public NodeGeoWorldObject(Node node, GLFactory glFactory, Location zeroLocation) {
-        super(buildMeshComponent(), node.getLat(), node.getLon(), getPreferredAltitude(zeroLocation, node));
+    public NodeGeoWorldObject(NodeTable nodes, int handle, GLFactory glFactory, Location zeroLocation) {
+        super(buildMeshComponent(), nodes.getLat(handle), nodes.getLon(handle), getPreferredAltitude(zeroLocation, nodes.getAlt(handle), nodes.getName(handle)));
 
-        this.node = node;
+        this.name = nodes.getName(handle);
         this.glFactory = glFactory;
         this.mesh = (MeshComponent) getRenderable();
 
         initializeMesh();
     }
 
-    private static double getPreferredAltitude(Location zeroLocation, Node node) {
+    private static double getPreferredAltitude(Location zeroLocation, double nodeAlt, String name) {
         double zeroAlt = zeroLocation.getAltitude();
-        double nodeAlt = node.getAlt();
 
         // some nodes put elevation above ground (not elevation above sea-level = altitude) in the alt field
         // we compensate this here, the values chosen here are arbitrary and can never deal with all cases (e.g. standing on a skyscraper).
@@ -51,7 +50,7 @@ class NodeGeoWorldObject extends GeoWorldObject {
         if (nodeBelowZero && nodeAltitudeIsLikelyElevation ){
             double correctedAlt = zeroAlt + nodeAlt;
 
-            Log.v(TAG, String.format("Node \"%s\" likely has wrong altitude data (node: %.1fm, zero: %.1fm), correcting to: %.1fm", node.getName(), nodeAlt, zeroAlt, correctedAlt));
+            Log.v(TAG, String.format("Node \"%s\" likely has wrong altitude data (node: %.1fm, zero: %.1fm), correcting to: %.1fm", name, nodeAlt, zeroAlt, correctedAlt));
 
             return correctedAlt;
         }
@@ -96,7 +95,7 @@ class NodeGeoWorldObject extends GeoWorldObject {
             if (nodeName != null)
                 mesh.removeChild(nodeName);
 
-            String text = String.format("%s\n%.0fm", node.getName(), displayedDistance);
+            String text = String.format("%s\n%.0fm", name, displayedDistance);
             nodeName = glFactory.newTextObject(text, nameScaleForDistance(displayedDistance));
             mesh.addChild(nodeName);
 
@@ -5,7 +5,8 @@ import android.location.Location;
 import android.view.View;
 import android.widget.FrameLayout;
 
-import de.inmotion_sst.freifunkfinder.Node;
+import de.inmotion_sst.freifunkfinder.NodeTable;
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
 import droidar.light.actions.ActionMoveCameraBuffered;
 import droidar.light.actions.ActionRotateCamera;
 import droidar.light.gl.GL1Renderer;
@@ -17,16 +18,17 @@ import droidar.light.sensors.SensorInputManager;
 import droidar.light.system.Setup;
 import droidar.light.world.SystemUpdater;
 import droidar.light.world.World;
-import java8.util.stream.Stream;
 
 public class SurroundingNodesSetup extends Setup {
 
     private final Location zeroLocation;
-    private final Stream<Node> nodes;
+    private final NodeTable nodes;
+    private final NeighborList handles;
 
-    public SurroundingNodesSetup(Location myLocation, Stream<Node> nodes) {
+    public SurroundingNodesSetup(Location myLocation, NodeTable nodes, NeighborList handles) {
         zeroLocation = myLocation;
         this.nodes = nodes;
+        this.handles = handles;
     }
 
 
@@ -39,7 +41,9 @@ public class SurroundingNodesSetup extends Setup {
     public World buildWorld(GLCamera camera, GLFactory objectFactory) {
         World world = new World(camera, zeroLocation);
 
-        nodes.map(x -> new NodeGeoWorldObject(x, objectFactory, zeroLocation)).forEach(x -> world.add(x));
+        for (int i = 0; i < handles.size(); i++) {
+            world.add(new NodeGeoWorldObject(nodes, handles.getHandle(i), objectFactory, zeroLocation));
+        }
 
         return world;
     }
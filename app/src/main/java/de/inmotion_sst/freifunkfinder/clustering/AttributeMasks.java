@@ -0,0 +1,81 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.util.Arrays;
+
+/**
+ * Item attributes by handle and, for every subtree of an index, the union of the attributes of its items: the OR of
+ * their {@link ItemFilter} flags and a bitset of their groups. A subtree whose union cannot match a filter holds no
+ * matching item.
+ */
+final class AttributeMasks {
+    private final int[] itemFlags;
+    private final int[] itemGroups;
+
+    // words per group bitset
+    private final int words;
+    private final int[] nodeFlags;
+    private final long[] nodeGroups;
+
+    AttributeMasks(ItemTable<?> table, int nodeCount) {
+        int n = table.size();
+        itemFlags = new int[n];
+        itemGroups = new int[n];
+
+        int maxGroup = -1;
+        if (table instanceof ItemAttributes) {
+            ItemAttributes attributes = (ItemAttributes) table;
+            for (int handle = 0; handle < n; handle++) {
+                itemFlags[handle] = attributes.getFlags(handle);
+                itemGroups[handle] = attributes.getGroup(handle);
+                maxGroup = Math.max(maxGroup, itemGroups[handle]);
+            }
+        } else {
+            Arrays.fill(itemGroups, -1);
+        }
+
+        words = (maxGroup >> 6) + 1;
+        nodeFlags = new int[nodeCount];
+        nodeGroups = new long[nodeCount * words];
+    }
+
+    /**
+     * Sets the union of a subtree to that of the items from index position start inclusive to end exclusive
+     */
+    void setNode(int node, int[] handles, int start, int end) {
+        int flags = 0;
+        int offset = node * words;
+        for (int i = start; i < end; i++) {
+            int handle = handles[i];
+            flags |= itemFlags[handle];
+            int group = itemGroups[handle];
+            if (group >= 0) {
+                nodeGroups[offset + (group >> 6)] |= 1L << group;
+            }
+        }
+        nodeFlags[node] = flags;
+    }
+
+    boolean matches(ItemFilter.Resolved filter, int handle) {
+        return filter.matchesFlags(itemFlags[handle]) && filter.matchesGroup(itemGroups[handle]);
+    }
+
+    /**
+     * @return false if no item of the subtree matches the filter, true if some may
+     */
+    boolean mayMatch(ItemFilter.Resolved filter, int node) {
+        int flags = nodeFlags[node];
+        if ((filter.anyFlags != 0 && (flags & filter.anyFlags) == 0) || (flags & filter.allFlags) != filter.allFlags)
+            return false;
+
+        if (filter.groups == null)
+            return true;
+
+        int offset = node * words;
+        int common = Math.min(words, filter.groups.length);
+        for (int word = 0; word < common; word++) {
+            if ((nodeGroups[offset + word] & filter.groups[word]) != 0)
+                return true;
+        }
+        return false;
+    }
+}
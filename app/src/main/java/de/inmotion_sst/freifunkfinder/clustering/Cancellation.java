@@ -0,0 +1,19 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+/**
+ * Asked by long running clustering passes whether their result is still wanted, a cancelled pass stops at its next
+ * check and returns no clusters.
+ */
+public interface Cancellation {
+    /**
+     * Never cancelled
+     */
+    Cancellation NONE = new Cancellation() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    boolean isCancelled();
+}
@@ -0,0 +1,410 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Item handles sorted by an integer cell key, for tile oriented lookups like "which items are in tile x, y at zoom
+ * level L".
+ * <p>
+ * The key of an item is the position of its cell on a Hilbert curve through the {@link #MAX_LEVEL} grid over the
+ * (0,1)|(0,1) world of {@link SpatialDataSource}, which is the grid of map tiles at that zoom level. The curve
+ * visits all cells of a coarser tile before leaving it, so the items of any tile at any level are one contiguous
+ * range of the sorted keys and are found by two binary searches. Items without a valid position have no cell.
+ * <p>
+ * Like {@link PackedPointIndex} the arrays are written to disk as they are and read back without sorting. An index of
+ * a table that changed at a few handles can be patched instead of sorted again, see
+ * {@link #patch(ItemTable, ItemTable, int[])}.
+ */
+public final class CellIndex {
+    static final int MAGIC = 0x4646434c; // "FFCL"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_INTS = 5;
+
+    /**
+     * The finest level, its cells are about 4 cm wide at the equator
+     */
+    public static final int MAX_LEVEL = 30;
+
+    private final int generation;
+    private final int itemCount;
+
+    // ascending, the handle at the same position has that key. Only the changed items on a patched index.
+    private final long[] keys;
+    private final int[] handles;
+
+    // set on a patched index: the index that was built, its table and the ascending handles that changed since
+    private final CellIndex base;
+    private final ItemTable<?> baseTable;
+    private final int[] changed;
+
+    // ascending keys of the built items that are gone from their handle
+    private final long[] removedKeys;
+
+    // the patched index as one built from the table, made by the first lookup by position
+    private volatile CellIndex merged;
+
+    private CellIndex(int generation, int itemCount, long[] keys, int[] handles) {
+        this(generation, itemCount, keys, handles, null, null, null, null);
+    }
+
+    private CellIndex(int generation, int itemCount, long[] keys, int[] handles,
+                      CellIndex base, ItemTable<?> baseTable, int[] changed, long[] removedKeys) {
+        this.generation = generation;
+        this.itemCount = itemCount;
+        this.keys = keys;
+        this.handles = handles;
+        this.base = base;
+        this.baseTable = baseTable;
+        this.changed = changed;
+        this.removedKeys = removedKeys;
+    }
+
+    /**
+     * Computes the keys of all items of a table and sorts them, without creating any item objects
+     *
+     * @param generation identifies the table the index belongs to, see {@link #getGeneration()}
+     */
+    public static CellIndex build(ItemTable<?> table, int generation) {
+        return sort(table, null, generation);
+    }
+
+    // the items at ascending handles sorted by key, all items if handles is null
+    private static CellIndex sort(ItemTable<?> table, int[] handles, int generation) {
+        int n = handles == null ? table.size() : handles.length;
+        long[] itemKeys = new long[n];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            itemKeys[i] = key(table, handles == null ? i : handles[i]);
+            if (itemKeys[i] >= 0) {
+                m++;
+            }
+        }
+
+        long[] keys = new long[m];
+        int k = 0;
+        for (long key : itemKeys) {
+            if (key >= 0) {
+                keys[k++] = key;
+            }
+        }
+        Arrays.sort(keys);
+
+        // handles go to the first slot of their key that is still free, items with equal keys stay in handle order
+        int[] sorted = new int[m];
+        int[] taken = new int[m];
+        for (int i = 0; i < n; i++) {
+            long key = itemKeys[i];
+            if (key < 0)
+                continue;
+
+            int first = lowerBound(keys, key);
+            sorted[first + taken[first]++] = handles == null ? i : handles[i];
+        }
+
+        return new CellIndex(generation, table.size(), keys, sorted);
+    }
+
+    // the key of an item, -1 if it has no cell
+    private static long key(ItemTable<?> table, int handle) {
+        double latitude = table.getLatitude(handle);
+        double longitude = table.getLongitude(handle);
+        if (!GreatCircleBounds.isValid(latitude, longitude))
+            return -1;
+
+        double x = SpatialDataSource.toX(longitude);
+        double y = SpatialDataSource.toY(latitude);
+        return hilbert(MAX_LEVEL, toCell(x, MAX_LEVEL), toCell(y, MAX_LEVEL));
+    }
+
+    /**
+     * Returns an index for a table whose items differ from those of this index in their position only at a few
+     * handles and beyond its end. Only the keys of the moved items are computed and sorted, cell queries look up the others in the
+     * index that was built and leave out the items that are gone from it. Patching a patched index patches the
+     * same built index again.
+     *
+     * @param indexTable the table this index was built or patched for
+     * @param moved      ascending handles of the items whose position differs between the tables
+     */
+    CellIndex patch(ItemTable<?> indexTable, ItemTable<?> table, int[] moved) {
+        CellIndex built = base == null ? this : base;
+        ItemTable<?> builtTable = base == null ? indexTable : baseTable;
+        int n = table.size();
+        int[] changed = PatchedIndex.union(base == null ? PatchedIndex.NONE : this.changed, moved, n);
+
+        // keys of the built items that are gone from their handle, changed or beyond the end of the table
+        long[] removedKeys = new long[changed.length + Math.max(0, built.itemCount - n)];
+        int m = 0;
+        for (int handle : changed) {
+            if (handle < built.itemCount) {
+                removedKeys[m++] = key(builtTable, handle);
+            }
+        }
+        for (int handle = n; handle < built.itemCount; handle++) {
+            removedKeys[m++] = key(builtTable, handle);
+        }
+        Arrays.sort(removedKeys, 0, m);
+        int invalid = 0;
+        while (invalid < m && removedKeys[invalid] < 0) {
+            invalid++;
+        }
+
+        CellIndex added = sort(table, changed, generation);
+        return new CellIndex(generation, n, added.keys, added.handles, built, builtTable, changed,
+                Arrays.copyOfRange(removedKeys, invalid, m));
+    }
+
+    /**
+     * @return The cell column or row of a projected coordinate at a level, coordinates outside the world are
+     * clamped to its border
+     */
+    public static int toCell(double coordinate, int level) {
+        int cells = 1 << level;
+        return (int) Math.max(0, Math.min(cells - 1, Math.floor(coordinate * cells)));
+    }
+
+    /**
+     * @return The position of the cell x, y on the Hilbert curve through the grid of 2^level cells per axis. The
+     * positions of all cells within a coarser cell start with the position of that cell.
+     */
+    public static long hilbert(int level, int x, int y) {
+        int size = 1 << level;
+        long d = 0;
+        for (int s = size / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+
+            // rotate the quadrant so the curve continues where the last one ended
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = size - 1 - x;
+                    y = size - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * @return The generation passed when building, lets callers detect an index that does not match their items
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return The number of items of the table, including those without a cell
+     */
+    public int size() {
+        return itemCount;
+    }
+
+    /**
+     * @return The number of items that have a cell
+     */
+    public int getKeyCount() {
+        return base == null ? keys.length : merged().getKeyCount();
+    }
+
+    /**
+     * @return The key at a position in key order, see {@link #getStart(int, int, int)}
+     */
+    public long getKey(int position) {
+        return base == null ? keys[position] : merged().getKey(position);
+    }
+
+    /**
+     * @return The handle at a position in key order
+     */
+    public int getHandle(int position) {
+        return base == null ? handles[position] : merged().getHandle(position);
+    }
+
+    /**
+     * @return The first position in key order of the items within cell x, y at a level
+     */
+    public int getStart(int level, int x, int y) {
+        return base == null ? lowerBound(keys, start(level, x, y)) : merged().getStart(level, x, y);
+    }
+
+    /**
+     * @return The position in key order after the last item within cell x, y at a level
+     */
+    public int getEnd(int level, int x, int y) {
+        return base == null ? lowerBound(keys, end(level, x, y)) : merged().getEnd(level, x, y);
+    }
+
+    // the first key within cell x, y at a level, and the first one after it
+    private static long start(int level, int x, int y) {
+        return hilbert(level, x, y) << 2 * (MAX_LEVEL - level);
+    }
+
+    private static long end(int level, int x, int y) {
+        return (hilbert(level, x, y) + 1) << 2 * (MAX_LEVEL - level);
+    }
+
+    public int count(int level, int x, int y) {
+        long start = start(level, x, y);
+        long end = end(level, x, y);
+        int count = lowerBound(keys, end) - lowerBound(keys, start);
+        if (base != null) {
+            count += base.count(level, x, y) - (lowerBound(removedKeys, end) - lowerBound(removedKeys, start));
+        }
+        return count;
+    }
+
+    /**
+     * Passes the handles of all items within cell x, y at a level to the visitor, in key order
+     */
+    public void forEachInCell(int level, int x, int y, HandleVisitor visitor) {
+        long startKey = start(level, x, y);
+        long endKey = end(level, x, y);
+        int end = lowerBound(keys, endKey);
+        int i = lowerBound(keys, startKey);
+        if (base == null) {
+            for (; i < end; i++) {
+                visitor.visit(handles[i]);
+            }
+            return;
+        }
+
+        // the built items that are still there merged with the changed ones
+        long[] baseKeys = base.keys;
+        int baseEnd = lowerBound(baseKeys, endKey);
+        for (int b = lowerBound(baseKeys, startKey); b < baseEnd || i < end; ) {
+            if (i == end || (b < baseEnd && baseKeys[b] <= keys[i])) {
+                int handle = base.handles[b++];
+                if (!isReplaced(handle)) {
+                    visitor.visit(handle);
+                }
+            } else {
+                visitor.visit(handles[i++]);
+            }
+        }
+    }
+
+    private boolean isReplaced(int handle) {
+        return handle >= itemCount || Arrays.binarySearch(changed, handle) >= 0;
+    }
+
+    private CellIndex merged() {
+        CellIndex found = merged;
+        if (found == null) {
+            // racing readers may both build, the indexes are equal
+            long[] mergedKeys = new long[base.keys.length - removedKeys.length + keys.length];
+            int[] mergedHandles = new int[mergedKeys.length];
+            int next = 0;
+            for (int b = 0, i = 0; b < base.keys.length || i < keys.length; ) {
+                if (i == keys.length || (b < base.keys.length && base.keys[b] <= keys[i])) {
+                    if (!isReplaced(base.handles[b])) {
+                        mergedKeys[next] = base.keys[b];
+                        mergedHandles[next++] = base.handles[b];
+                    }
+                    b++;
+                } else {
+                    mergedKeys[next] = keys[i];
+                    mergedHandles[next++] = handles[i++];
+                }
+            }
+            found = new CellIndex(generation, itemCount, mergedKeys, mergedHandles);
+            merged = found;
+        }
+        return found;
+    }
+
+    // the first position with a key that is not less than the given one
+    private static int lowerBound(long[] keys, long key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public void write(File file) throws IOException {
+        if (base != null) {
+            merged().write(file);
+            return;
+        }
+
+        int m = keys.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 * HEADER_INTS + m * (8 + 4));
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(generation).putInt(itemCount).putInt(m);
+        buffer.asLongBuffer().put(keys);
+        buffer.position(buffer.position() + 8 * m);
+        buffer.asIntBuffer().put(handles);
+        buffer.rewind();
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("could not replace " + file);
+        }
+    }
+
+    public static CellIndex read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < 4 * HEADER_INTS || size > Integer.MAX_VALUE)
+                throw new IOException("not a cell index");
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("not a cell index");
+
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("unsupported cell index version " + version);
+
+            int generation = buffer.getInt();
+            int n = buffer.getInt();
+            int m = buffer.getInt();
+            if (n < 0 || m < 0 || m > n || size != 4 * HEADER_INTS + (long) m * (8 + 4))
+                throw new IOException("corrupt cell index");
+
+            // bulk copies, nothing is projected or sorted
+            long[] keys = new long[m];
+            int[] handles = new int[m];
+            buffer.asLongBuffer().get(keys);
+            buffer.position(buffer.position() + 8 * m);
+            buffer.asIntBuffer().get(handles);
+
+            for (int i = 0; i < m; i++) {
+                if (handles[i] < 0 || handles[i] >= n || keys[i] < 0 || (i > 0 && keys[i] < keys[i - 1]))
+                    throw new IOException("corrupt cell index");
+            }
+
+            return new CellIndex(generation, n, keys, handles);
+        } finally {
+            raf.close();
+        }
+    }
+}
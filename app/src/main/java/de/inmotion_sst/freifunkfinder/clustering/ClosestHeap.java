@@ -0,0 +1,90 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.util.Arrays;
+
+/**
+ * Bounded binary max-heap that keeps the k closest items seen so far. One heap per thread is reused by all
+ * nearest neighbour searches, see {@link #forThread(int)}.
+ */
+final class ClosestHeap {
+    private static final ThreadLocal<ClosestHeap> HEAPS = new ThreadLocal<ClosestHeap>() {
+        @Override
+        protected ClosestHeap initialValue() {
+            return new ClosestHeap();
+        }
+    };
+
+    int[] handles = new int[16];
+    double[] distances = new double[16];
+    int size;
+    private int k;
+
+    /**
+     * @return The empty heap of the calling thread, keeping up to k items
+     */
+    static ClosestHeap forThread(int k) {
+        ClosestHeap heap = HEAPS.get();
+        if (heap.handles.length < k) {
+            heap.handles = Arrays.copyOf(heap.handles, k);
+            heap.distances = Arrays.copyOf(heap.distances, k);
+        }
+        heap.k = k;
+        heap.size = 0;
+        return heap;
+    }
+
+    boolean isFull() {
+        return size == k;
+    }
+
+    void offer(int handle, double distance) {
+        if (size < k) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (distances[parent] >= distance)
+                    break;
+                handles[i] = handles[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            handles[i] = handle;
+            distances[i] = distance;
+        } else if (distance < distances[0]) {
+            siftDown(handle, distance, size);
+        }
+    }
+
+    // replaces the root and restores the heap within the first n entries
+    private void siftDown(int handle, double distance, int n) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n)
+                break;
+            if (child + 1 < n && distances[child + 1] > distances[child])
+                child++;
+            if (distance >= distances[child])
+                break;
+            handles[i] = handles[child];
+            distances[i] = distances[child];
+            i = child;
+        }
+        handles[i] = handle;
+        distances[i] = distance;
+    }
+
+    void drainSorted(NeighborList result) {
+        // heap sort in place, afterwards the entries are in ascending order
+        for (int n = size - 1; n > 0; n--) {
+            int handle = handles[0];
+            double distance = distances[0];
+            siftDown(handles[n], distances[n], n);
+            handles[n] = handle;
+            distances[n] = distance;
+        }
+        for (int i = 0; i < size; i++) {
+            result.add(handles[i], distances[i]);
+        }
+    }
+}
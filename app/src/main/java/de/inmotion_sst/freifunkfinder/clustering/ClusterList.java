@@ -0,0 +1,174 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Clusters of {@link Sites} as flat int arrays, meant to be reused between clustering passes. A cluster is its
+ * center site and a range of site handles, the center first. Clusters only become {@link Cluster} objects in
+ * {@link #toClusters()}, when they are handed to a renderer.
+ * <p>
+ * A cluster is at the position of its center, unless it was started at a position of its own, e.g. the centroid
+ * of its sites.
+ */
+public final class ClusterList<T extends ClusterItem> {
+    private Sites<T> mSites;
+    private int mCount;
+
+    // the sites of cluster c are at mFirsts[c] until mFirsts[c + 1]
+    private int[] mFirsts = new int[16];
+    private int[] mSizes = new int[16];
+    private int[] mSiteHandles = new int[16];
+
+    // NaN for clusters at the position of their center
+    private double[] mLatitudes = new double[16];
+    private double[] mLongitudes = new double[16];
+
+    /**
+     * Removes all clusters, the next ones are clusters of these sites
+     */
+    public void clear(Sites<T> sites) {
+        mSites = sites;
+        mCount = 0;
+        mFirsts[0] = 0;
+    }
+
+    /**
+     * Starts a new cluster, its sites are added with {@link #addSite(int)} until the next cluster starts
+     */
+    public void startCluster() {
+        startCluster(Double.NaN, Double.NaN);
+    }
+
+    /**
+     * Starts a new cluster at a position of its own instead of that of its center
+     */
+    public void startCluster(double latitude, double longitude) {
+        if (mCount + 2 > mFirsts.length) {
+            mFirsts = Arrays.copyOf(mFirsts, mFirsts.length * 2);
+            mSizes = Arrays.copyOf(mSizes, mSizes.length * 2);
+            mLatitudes = Arrays.copyOf(mLatitudes, mLatitudes.length * 2);
+            mLongitudes = Arrays.copyOf(mLongitudes, mLongitudes.length * 2);
+        }
+        mSizes[mCount] = 0;
+        mLatitudes[mCount] = latitude;
+        mLongitudes[mCount] = longitude;
+        mFirsts[mCount + 1] = mFirsts[mCount];
+        mCount++;
+    }
+
+    /**
+     * Adds a site to the cluster started last, the first site of a cluster is its center
+     */
+    public void addSite(int site) {
+        int end = mFirsts[mCount];
+        if (end == mSiteHandles.length) {
+            mSiteHandles = Arrays.copyOf(mSiteHandles, end * 2);
+        }
+        mSiteHandles[end] = site;
+        mFirsts[mCount] = end + 1;
+        mSizes[mCount - 1] += mSites.getCount(site);
+    }
+
+    /**
+     * Adds the sites at siteHandles[from] until siteHandles[from + count] to the cluster started last, with one copy
+     *
+     * @param size the number of items at these sites
+     */
+    void addSites(int[] siteHandles, int from, int count, int size) {
+        int end = mFirsts[mCount];
+        if (end + count > mSiteHandles.length) {
+            mSiteHandles = Arrays.copyOf(mSiteHandles, Math.max(end + count, end * 2));
+        }
+        System.arraycopy(siteHandles, from, mSiteHandles, end, count);
+        mFirsts[mCount] = end + count;
+        mSizes[mCount - 1] += size;
+    }
+
+    /**
+     * Adds a cluster of the same sites with the same position
+     */
+    void addCluster(SiteCluster<T> cluster) {
+        startCluster(cluster.getPosition().latitude, cluster.getPosition().longitude);
+        for (int i = 0; i < cluster.getSiteCount(); i++) {
+            addSite(cluster.getSite(i));
+        }
+    }
+
+    public Sites<T> getSites() {
+        return mSites;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public int getSiteCount(int cluster) {
+        checkCluster(cluster);
+        return mFirsts[cluster + 1] - mFirsts[cluster];
+    }
+
+    /**
+     * @return The handle of the i-th site of the cluster in {@link #getSites()}, site 0 is the center
+     */
+    public int getSite(int cluster, int i) {
+        if (i >= getSiteCount(cluster))
+            throw new IndexOutOfBoundsException("site " + i + " of " + getSiteCount(cluster));
+
+        return mSiteHandles[mFirsts[cluster] + i];
+    }
+
+    /**
+     * @return The number of items at the sites of the cluster
+     */
+    public int getSize(int cluster) {
+        checkCluster(cluster);
+        return mSizes[cluster];
+    }
+
+    /**
+     * @return A new {@link SiteCluster} for every cluster, at the position of its center
+     */
+    public Set<Cluster<T>> toClusters() {
+        Set<Cluster<T>> clusters = new HashSet<>();
+        addClustersTo(clusters);
+        return clusters;
+    }
+
+    /**
+     * Adds a new {@link SiteCluster} for every cluster to the collection. The clusters share one copy of the site
+     * handles, so they stay valid when this list is reused.
+     */
+    public void addClustersTo(Collection<? super SiteCluster<T>> clusters) {
+        int[] siteHandles = Arrays.copyOf(mSiteHandles, mFirsts[mCount]);
+        for (int cluster = 0; cluster < mCount; cluster++) {
+            int first = mFirsts[cluster];
+            int siteCount = mFirsts[cluster + 1] - first;
+            int center = siteHandles[first];
+            int siteSum = 0;
+            for (int i = first; i < first + siteCount; i++) {
+                siteSum += siteHandles[i];
+            }
+
+            LatLng position = Double.isNaN(mLatitudes[cluster])
+                    ? new LatLng(mSites.getLatitude(center), mSites.getLongitude(center))
+                    : new LatLng(mLatitudes[cluster], mLongitudes[cluster]);
+            clusters.add(new SiteCluster<T>(position, mSites, siteHandles, first, siteCount, mSizes[cluster], siteSum));
+        }
+    }
+
+    private void checkCluster(int cluster) {
+        if (cluster >= mCount)
+            throw new IndexOutOfBoundsException("cluster " + cluster + " of " + mCount);
+    }
+}
@@ -0,0 +1,438 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.geometry.Bounds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The clusters of {@link Sites} at every zoom level from 0 to {@link #MAX_ZOOM}, computed once so that clustering
+ * the visible area is a range query that only costs the number of visible clusters.
+ * <p>
+ * Levels are built bottom up like supercluster does: the level below {@link #MAX_ZOOM} holds the sites themselves,
+ * every coarser level clusters the points of the next finer one within {@link
+ * VisibleNonHierarchicalDistanceBasedAlgorithm#MAX_DISTANCE_AT_ZOOM} dp, at the centroid of their items. Points
+ * without a close neighbour are carried over unchanged, so a cluster keeps its position and sites, and therefore its
+ * identity, over all the zoom levels it does not merge at. Every cluster is made of whole clusters of the next
+ * finer level.
+ * <p>
+ * Because clusters nest, the sites can be ordered so that the sites of every cluster at every level are one
+ * contiguous range; a cluster is just a range and clusters are created without copying sites. Levels in which
+ * nothing merges are shared with the next finer level. Like {@link PackedPointIndex} the pyramid is written to disk
+ * as it is and read back without clustering or sorting anything.
+ */
+public final class ClusterPyramid {
+    static final int MAGIC = 0x46464350; // "FFCP"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_INTS = 6;
+
+    /**
+     * The finest zoom level with clusters, at higher zoom levels every site is shown on its own
+     */
+    public static final int MAX_ZOOM = 20;
+
+    // written instead of the size of a level that is shared with the next finer one
+    private static final int SAME_AS_FINER = -1;
+
+    // clusters between checks for cancellation, each copies the handles of its sites
+    private static final int CLUSTERS_PER_CHECK = 256;
+
+    private final int generation;
+    private final int itemCount;
+    private final int siteCount;
+
+    // site handles in cluster order, and their prefix sums for hashing clusters without visiting their sites
+    private final int[] order;
+    private final int[] orderSums;
+
+    // by zoom level, levels[MAX_ZOOM + 1] are the sites
+    private final Level[] levels;
+
+    private ClusterPyramid(int generation, int itemCount, int siteCount, int[] order, Level[] levels) {
+        this.generation = generation;
+        this.itemCount = itemCount;
+        this.siteCount = siteCount;
+        this.order = order;
+        this.levels = levels;
+
+        orderSums = new int[order.length + 1];
+        for (int i = 0; i < order.length; i++) {
+            orderSums[i + 1] = orderSums[i] + order[i];
+        }
+    }
+
+    /**
+     * Clusters all sites at every zoom level, without creating any item objects. Sites without a valid position
+     * are left out, like they are never within the visible area.
+     *
+     * @param generation identifies the table the pyramid belongs to, see {@link #getGeneration()}
+     */
+    public static ClusterPyramid build(Sites<?> sites, int generation) {
+        int n = sites.size();
+        int[] leafSites = new int[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        int[] sizes = new int[n];
+        int m = 0;
+        for (int site = 0; site < n; site++) {
+            double latitude = sites.getLatitude(site);
+            double longitude = sites.getLongitude(site);
+            if (!GreatCircleBounds.isValid(latitude, longitude))
+                continue;
+
+            leafSites[m] = site;
+            xs[m] = SpatialDataSource.toX(longitude);
+            ys[m] = SpatialDataSource.toY(latitude);
+            sizes[m] = sites.getCount(site);
+            m++;
+        }
+
+        int[] siteCounts = new int[m];
+        Arrays.fill(siteCounts, 1);
+
+        Level[] levels = new Level[MAX_ZOOM + 2];
+        levels[MAX_ZOOM + 1] = new Level(PackedPointIndex.build(xs, ys, m), Arrays.copyOf(sizes, m), new int[m], siteCounts);
+        for (int zoom = MAX_ZOOM; zoom >= 0; zoom--) {
+            Level finer = levels[zoom + 1];
+            Level level = cluster(finer, VisibleNonHierarchicalDistanceBasedAlgorithm.MAX_DISTANCE_AT_ZOOM / Math.pow(2, zoom) / 256 / 2);
+            levels[zoom] = level == null ? finer : level;
+        }
+
+        // the sites of a cluster follow each other: clusters of the coarsest level are laid out one after another,
+        // then every cluster hands out consecutive parts of its range to the clusters it was made of
+        Level coarser = levels[0];
+        for (int i = 0, first = 0; i < coarser.size(); i++) {
+            coarser.firsts[i] = first;
+            first += coarser.siteCounts[i];
+        }
+        for (int zoom = 1; zoom <= MAX_ZOOM + 1; zoom++) {
+            Level level = levels[zoom];
+            if (level == coarser)
+                continue;
+
+            int[] next = Arrays.copyOf(coarser.firsts, coarser.size());
+            for (int i = 0; i < level.size(); i++) {
+                int parent = level.parents[i];
+                level.firsts[i] = next[parent];
+                next[parent] += level.siteCounts[i];
+            }
+            coarser.parents = null;
+            coarser = level;
+        }
+        coarser.parents = null;
+
+        int[] order = new int[m];
+        Level leaves = levels[MAX_ZOOM + 1];
+        for (int i = 0; i < m; i++) {
+            order[leaves.firsts[i]] = leafSites[i];
+        }
+
+        return new ClusterPyramid(generation, sites.getTable().size(), n, order, levels);
+    }
+
+    // one zoom level, or null if nothing merges and the finer level can be used as it is
+    private static Level cluster(Level finer, double halfSpan) {
+        int n = finer.size();
+        int[] parents = new int[n];
+        Arrays.fill(parents, -1);
+
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        int[] sizes = new int[n];
+        int[] siteCounts = new int[n];
+        int count = 0;
+
+        HandleList nearby = new HandleList();
+        for (int i = 0; i < n; i++) {
+            if (parents[i] >= 0)
+                continue;
+
+            double x = finer.index.getX(i);
+            double y = finer.index.getY(i);
+            nearby.clear();
+            finer.index.range(x - halfSpan, x + halfSpan, y - halfSpan, y + halfSpan, nearby);
+
+            // points that joined an earlier cluster stay there, like supercluster does
+            int size = finer.sizes[i];
+            int siteCount = finer.siteCounts[i];
+            double sumX = x * size;
+            double sumY = y * size;
+            parents[i] = count;
+            for (int j = 0; j < nearby.size(); j++) {
+                int neighbor = nearby.get(j);
+                if (parents[neighbor] >= 0)
+                    continue;
+
+                int neighborSize = finer.sizes[neighbor];
+                sumX += finer.index.getX(neighbor) * neighborSize;
+                sumY += finer.index.getY(neighbor) * neighborSize;
+                size += neighborSize;
+                siteCount += finer.siteCounts[neighbor];
+                parents[neighbor] = count;
+            }
+
+            // a point without neighbours keeps its exact position, not one that went through the division
+            boolean merged = siteCount > finer.siteCounts[i];
+            xs[count] = merged ? sumX / size : x;
+            ys[count] = merged ? sumY / size : y;
+            sizes[count] = size;
+            siteCounts[count] = siteCount;
+            count++;
+        }
+
+        if (count == n)
+            return null;
+
+        finer.parents = parents;
+        return new Level(PackedPointIndex.build(xs, ys, count), Arrays.copyOf(sizes, count), new int[count], Arrays.copyOf(siteCounts, count));
+    }
+
+    /**
+     * @return The generation passed when building, lets callers detect a pyramid that does not match their items
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return The number of items of the table the sites were grouped from
+     */
+    public int size() {
+        return itemCount;
+    }
+
+    /**
+     * @return The number of sites, including those without a valid position
+     */
+    public int getSiteCount() {
+        return siteCount;
+    }
+
+    /**
+     * @return The number of clusters at a zoom level, above {@link #MAX_ZOOM} that is the number of sites
+     */
+    public int getClusterCount(int zoom) {
+        return level(zoom).size();
+    }
+
+    /**
+     * Adds the clusters at a zoom level whose positions are within the bounds to the result. Clusters of a single
+     * site are at the position of the site and equal to {@link SiteCluster#of(Sites, int)}.
+     *
+     * @param sites the sites the pyramid was built from, or sites grouped the same way from the same items
+     */
+    public <T extends ClusterItem> void getClusters(Sites<T> sites, int zoom, Bounds bounds, Collection<? super SiteCluster<T>> result) {
+        Level level = level(zoom);
+        HandleList visible = new HandleList();
+        level.index.range(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, visible);
+
+        for (int i = 0; i < visible.size(); i++) {
+            int cluster = visible.get(i);
+            int first = level.firsts[cluster];
+            int count = level.siteCounts[cluster];
+            LatLng position;
+            if (count == 1) {
+                position = new LatLng(sites.getLatitude(order[first]), sites.getLongitude(order[first]));
+            } else {
+                position = new LatLng(SpatialDataSource.toLatitude(level.index.getY(cluster)), SpatialDataSource.toLongitude(level.index.getX(cluster)));
+            }
+            result.add(new SiteCluster<T>(position, sites, order, first, count, level.sizes[cluster], orderSums[first + count] - orderSums[first]));
+        }
+    }
+
+    /**
+     * Same as {@link #getClusters(Sites, int, Bounds, Collection)}, but clears the result and writes the clusters
+     * into it, and stops early once the cancellation says so
+     *
+     * @return false if the lookup was cancelled, the result is then empty
+     */
+    public <T extends ClusterItem> boolean getClusters(Sites<T> sites, int zoom, Bounds bounds, Cancellation cancellation,
+                                                      ClusterList<T> result) {
+        result.clear(sites);
+        Level level = level(zoom);
+        HandleList visible = new HandleList();
+        level.index.range(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, visible);
+
+        for (int i = 0; i < visible.size(); i++) {
+            if (i % CLUSTERS_PER_CHECK == 0 && cancellation.isCancelled()) {
+                result.clear(sites);
+                return false;
+            }
+
+            int cluster = visible.get(i);
+            int first = level.firsts[cluster];
+            int count = level.siteCounts[cluster];
+            if (count == 1) {
+                result.startCluster();
+            } else {
+                result.startCluster(SpatialDataSource.toLatitude(level.index.getY(cluster)), SpatialDataSource.toLongitude(level.index.getX(cluster)));
+            }
+            result.addSites(order, first, count, level.sizes[cluster]);
+        }
+        return true;
+    }
+
+    private Level level(int zoom) {
+        return levels[Math.max(0, Math.min(MAX_ZOOM + 1, zoom))];
+    }
+
+    public void write(File file) throws IOException {
+        long size = 4 * HEADER_INTS + 4L * order.length;
+        for (int zoom = MAX_ZOOM + 1; zoom >= 0; zoom--) {
+            size += 4;
+            if (zoom == MAX_ZOOM + 1 || levels[zoom] != levels[zoom + 1]) {
+                size += Level.byteSize(levels[zoom].size());
+            }
+        }
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("cluster pyramid too large");
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(generation).putInt(itemCount).putInt(siteCount).putInt(order.length);
+        buffer.asIntBuffer().put(order);
+        buffer.position(buffer.position() + 4 * order.length);
+
+        // finest level first, so a shared level refers to one that has already been read
+        for (int zoom = MAX_ZOOM + 1; zoom >= 0; zoom--) {
+            Level level = levels[zoom];
+            if (zoom <= MAX_ZOOM && level == levels[zoom + 1]) {
+                buffer.putInt(SAME_AS_FINER);
+                continue;
+            }
+            buffer.putInt(level.size());
+            level.put(buffer);
+        }
+        buffer.rewind();
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("could not replace " + file);
+        }
+    }
+
+    public static ClusterPyramid read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < 4 * HEADER_INTS || size > Integer.MAX_VALUE)
+                throw new IOException("not a cluster pyramid");
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("not a cluster pyramid");
+
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("unsupported cluster pyramid version " + version);
+
+            int generation = buffer.getInt();
+            int itemCount = buffer.getInt();
+            int siteCount = buffer.getInt();
+            int m = buffer.getInt();
+            if (itemCount < 0 || siteCount < 0 || siteCount > itemCount || m < 0 || m > siteCount || buffer.remaining() < 4L * m)
+                throw new IOException("corrupt cluster pyramid");
+
+            // bulk copies, nothing is clustered or sorted
+            int[] order = new int[m];
+            buffer.asIntBuffer().get(order);
+            buffer.position(buffer.position() + 4 * m);
+            for (int site : order) {
+                if (site < 0 || site >= siteCount)
+                    throw new IOException("corrupt cluster pyramid");
+            }
+
+            Level[] levels = new Level[MAX_ZOOM + 2];
+            for (int zoom = MAX_ZOOM + 1; zoom >= 0; zoom--) {
+                if (buffer.remaining() < 4)
+                    throw new IOException("corrupt cluster pyramid");
+
+                int n = buffer.getInt();
+                if (n == SAME_AS_FINER && zoom <= MAX_ZOOM) {
+                    levels[zoom] = levels[zoom + 1];
+                } else {
+                    levels[zoom] = Level.get(buffer, n, m);
+                }
+            }
+            if (buffer.hasRemaining() || levels[MAX_ZOOM + 1].size() != m)
+                throw new IOException("corrupt cluster pyramid");
+
+            return new ClusterPyramid(generation, itemCount, siteCount, order, levels);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The clusters of one zoom level, numbered by their handles in the index over their positions
+     */
+    private static final class Level {
+        final PackedPointIndex index;
+        final int[] sizes;
+        final int[] firsts;
+        final int[] siteCounts;
+
+        // the cluster of the next coarser level each cluster joined, only while building
+        int[] parents;
+
+        Level(PackedPointIndex index, int[] sizes, int[] firsts, int[] siteCounts) {
+            this.index = index;
+            this.sizes = sizes;
+            this.firsts = firsts;
+            this.siteCounts = siteCounts;
+        }
+
+        int size() {
+            return sizes.length;
+        }
+
+        static long byteSize(int n) {
+            return PackedPointIndex.byteSize(n) + 4L * 3 * n;
+        }
+
+        void put(ByteBuffer buffer) {
+            index.put(buffer);
+            buffer.asIntBuffer().put(sizes).put(firsts).put(siteCounts);
+            buffer.position(buffer.position() + 4 * 3 * sizes.length);
+        }
+
+        // m is the number of sites, every cluster is a range within them
+        static Level get(ByteBuffer buffer, int n, int m) throws IOException {
+            if (n < 0 || buffer.remaining() < byteSize(n))
+                throw new IOException("corrupt cluster pyramid");
+
+            PackedPointIndex index = PackedPointIndex.get(buffer, 0, n);
+            int[] sizes = new int[n];
+            int[] firsts = new int[n];
+            int[] siteCounts = new int[n];
+            buffer.asIntBuffer().get(sizes).get(firsts).get(siteCounts);
+            buffer.position(buffer.position() + 4 * 3 * n);
+
+            for (int i = 0; i < n; i++) {
+                if (sizes[i] < siteCounts[i] || siteCounts[i] < 1 || firsts[i] < 0 || firsts[i] > m - siteCounts[i])
+                    throw new IOException("corrupt cluster pyramid");
+            }
+            return new Level(index, sizes, firsts, siteCounts);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs clustering requests on a single worker, latest request wins. Requests that arrive while the worker is busy
+ * replace each other, so a burst of camera changes is clustered once for the last one. A pass of a
+ * {@link CompactClusterAlgorithm}, as all algorithms of this package are, that is overtaken by a newer request is
+ * cancelled at its next check. Passes of other algorithms run to the end and their clusters are dropped.
+ * <p>
+ * Clusters are handed to the listener on the worker thread, together with the generation of their request. As
+ * newer requests may still arrive until they are shown, whoever shows them asks {@link #acceptResult(int)} first.
+ * <p>
+ * {@link #shutdown()} the scheduler once its clusters are no longer shown.
+ */
+public final class ClusterScheduler<T extends ClusterItem> {
+
+    public interface Listener<T extends ClusterItem> {
+        /**
+         * Called on the worker thread with the clusters of a request that was the latest one when they were done
+         */
+        void onClustersDone(int generation, Set<? extends Cluster<T>> clusters);
+    }
+
+    // idle threads of the default worker time out after this
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final Executor mWorker;
+    // false if the worker was passed in, then its owner shuts it down
+    private final boolean mOwnsWorker;
+    private final Listener<T> mListener;
+
+    // the latest request, guarded by this
+    private volatile int mGeneration;
+    private ClusterAlgorithm<T> mPendingAlgorithm;
+    private double mPendingZoom;
+    private boolean mPending;
+    private boolean mRunning;
+    private boolean mShutdown;
+
+    // only used by the worker, one pass at a time
+    private final ClusterList<T> mClusterList = new ClusterList<>();
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+    private final AtomicLong mWasted = new AtomicLong();
+    private final AtomicLong mDiscarded = new AtomicLong();
+    private final AtomicLong mPublished = new AtomicLong();
+
+    /**
+     * Runs the requests on a daemon thread of their own, with low priority like an AsyncTask. The thread ends when
+     * it has been idle for a while and at the latest on {@link #shutdown()}.
+     */
+    public ClusterScheduler(Listener<T> listener) {
+        this(makeWorker(), true, listener);
+    }
+
+    /**
+     * @param worker runs at most one task of this scheduler at a time, so it need not be single threaded
+     */
+    public ClusterScheduler(Executor worker, Listener<T> listener) {
+        this(worker, false, listener);
+    }
+
+    private ClusterScheduler(Executor worker, boolean ownsWorker, Listener<T> listener) {
+        mWorker = worker;
+        mOwnsWorker = ownsWorker;
+        mListener = listener;
+    }
+
+    private static ExecutorService makeWorker() {
+        ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "ClusterScheduler");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        worker.allowCoreThreadTimeOut(true);
+        return worker;
+    }
+
+    /**
+     * Clusters for the zoom level, once the worker is done with the current pass. Replaces a request that has not
+     * started yet and cancels a running one. Requests after {@link #shutdown()} are ignored.
+     *
+     * @return The generation of the request
+     */
+    public synchronized int request(ClusterAlgorithm<T> algorithm, double zoom) {
+        if (mShutdown)
+            return mGeneration;
+
+        mRequests.incrementAndGet();
+        if (mPending) {
+            mCoalesced.incrementAndGet();
+        }
+
+        int generation = ++mGeneration;
+        mPendingAlgorithm = algorithm;
+        mPendingZoom = zoom;
+        mPending = true;
+        if (!mRunning) {
+            mRunning = true;
+            mWorker.execute(mDrain);
+        }
+        return generation;
+    }
+
+    /**
+     * Cancels the running pass, drops the pending request and ends the thread of the default worker. Clusters that
+     * are still on their way are no longer accepted.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (mShutdown)
+                return;
+
+            mShutdown = true;
+            // a newer generation cancels the running pass and turns away results that are already done
+            mGeneration++;
+            mPending = false;
+            mPendingAlgorithm = null;
+        }
+
+        if (mOwnsWorker) {
+            ((ExecutorService) mWorker).shutdown();
+        }
+    }
+
+    /**
+     * @return true if no request was made after the one of this generation
+     */
+    public boolean isCurrent(int generation) {
+        return generation == mGeneration;
+    }
+
+    /**
+     * Called right before clusters are shown: counts them as published if their request is still the latest one,
+     * and as discarded if not
+     *
+     * @return true if the clusters should be shown
+     */
+    public boolean acceptResult(int generation) {
+        if (isCurrent(generation)) {
+            mPublished.incrementAndGet();
+            return true;
+        }
+        mDiscarded.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return The number of requests so far
+     */
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return The number of requests that were replaced by a newer one before they started
+     */
+    public long getCoalesced() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * @return The number of passes that stopped early, as a newer request came in while they ran
+     */
+    public long getCancelled() {
+        return mCancelled.get();
+    }
+
+    /**
+     * @return The number of passes that ran to the end, but whose request was no longer the latest one by then
+     */
+    public long getWasted() {
+        return mWasted.get();
+    }
+
+    /**
+     * @return The number of results that were handed to the listener, but overtaken before they were shown
+     */
+    public long getDiscarded() {
+        return mDiscarded.get();
+    }
+
+    /**
+     * @return The number of results that were shown
+     */
+    public long getPublished() {
+        return mPublished.get();
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                ClusterAlgorithm<T> algorithm;
+                double zoom;
+                final int generation;
+                synchronized (ClusterScheduler.this) {
+                    if (!mPending) {
+                        mRunning = false;
+                        return;
+                    }
+                    algorithm = mPendingAlgorithm;
+                    zoom = mPendingZoom;
+                    generation = mGeneration;
+                    mPending = false;
+                    mPendingAlgorithm = null;
+                }
+
+                Set<? extends Cluster<T>> clusters;
+                try {
+                    clusters = cluster(algorithm, zoom, generation);
+                } catch (RuntimeException e) {
+                    // a request that came in during the failed pass still runs, in a task of its own as this one ends
+                    // with the exception. Without one, the next request starts the worker again.
+                    synchronized (ClusterScheduler.this) {
+                        if (mPending) {
+                            mWorker.execute(this);
+                        } else {
+                            mRunning = false;
+                        }
+                    }
+                    throw e;
+                }
+
+                if (clusters == null) {
+                    mCancelled.incrementAndGet();
+                } else if (!isCurrent(generation)) {
+                    mWasted.incrementAndGet();
+                } else {
+                    mListener.onClustersDone(generation, clusters);
+                }
+            }
+        }
+    };
+
+    // null if the pass was cancelled
+    private Set<? extends Cluster<T>> cluster(ClusterAlgorithm<T> algorithm, double zoom, final int generation) {
+        if (!(algorithm instanceof CompactClusterAlgorithm)) {
+            return algorithm.getClusters(zoom);
+        }
+
+        Cancellation cancellation = new Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                return generation != mGeneration;
+            }
+        };
+        if (!((CompactClusterAlgorithm<T>) algorithm).getClusters(zoom, mClusterList, cancellation))
+            return null;
+
+        // the renderer keeps the clusters it shows, they are only turned into objects here
+        return mClusterList.toClusters();
+    }
+}
@@ -0,0 +1,21 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.maps.android.clustering.ClusterItem;
+
+/**
+ * An algorithm that can write its clusters into a reused {@link ClusterList}, instead of creating cluster objects
+ * on every pass.
+ */
+public interface CompactClusterAlgorithm<T extends ClusterItem> extends ClusterAlgorithm<T> {
+    /**
+     * Clears the result and fills it with the same clusters as {@link #getClusters(double)}
+     */
+    void getClusters(double zoom, ClusterList<T> result);
+
+    /**
+     * Same as {@link #getClusters(double, ClusterList)}, but stops early once the cancellation says so
+     *
+     * @return false if the pass was cancelled, the result is then empty
+     */
+    boolean getClusters(double zoom, ClusterList<T> result, Cancellation cancellation);
+}
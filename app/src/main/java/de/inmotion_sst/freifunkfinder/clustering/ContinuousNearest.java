@@ -0,0 +1,197 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.ClusterItem;
+
+/**
+ * Keeps the k items closest to a moving position up to date without searching the index on every position fix.
+ * <p>
+ * A search fetches more candidates than needed. Every item that is not a candidate is at least as far from the
+ * search position as the farthest candidate, so after moving some distance the candidates still contain the k
+ * closest items as long as the k-th closest candidate is nearer than that bound minus the distance moved. Within
+ * half the gap between the k-th closest item and anything beyond it, the set of the k closest items cannot change
+ * at all, that is the safe radius.
+ * <p>
+ * Updates within the safe radius only recompute the distances of the k items, updates beyond it re-rank the
+ * candidates, only when the candidates no longer suffice, or the items changed, the index is searched again.
+ * Not thread safe, use one instance per moving position.
+ */
+public final class ContinuousNearest<T extends ClusterItem> {
+    private final SpatialDataSource<T> mDataSource;
+    private final ItemFilter mFilter;
+    private final int mK;
+    private final int mCandidateCount;
+
+    private final NeighborList mSearchResult;
+    private final int[] mCandidates;
+    private final double[] mDistances;
+    private int mCandidateSize;
+
+    private SpatialDataSource.Snapshot<T> mSnapshot;
+
+    // where the candidates were searched and how far from there any other item is at least
+    private double mSearchLat;
+    private double mSearchLon;
+    private double mOthersBound;
+
+    // where the current k items were ranked and how far from there they stay the k closest
+    private double mRankLat;
+    private double mRankLon;
+    private double mSafeRadius;
+    private double mRemainingRadius;
+
+    private int mUpdates;
+    private int mRankings;
+    private int mSearches;
+
+    /**
+     * Tracks the k closest items using 2k candidates
+     */
+    public ContinuousNearest(SpatialDataSource<T> dataSource, int k) {
+        this(dataSource, k, 2 * k, ItemFilter.ALL);
+    }
+
+    /**
+     * @param candidates how many items a search fetches, more candidates make searches rarer and re-ranking slower
+     * @param filter     only items matching the filter are tracked
+     */
+    public ContinuousNearest(SpatialDataSource<T> dataSource, int k, int candidates, ItemFilter filter) {
+        if (k <= 0 || candidates < k)
+            throw new IllegalArgumentException("need 0 < k <= candidates");
+
+        mDataSource = dataSource;
+        mFilter = filter;
+        mK = k;
+        mCandidateCount = candidates;
+        mSearchResult = new NeighborList(candidates);
+        mCandidates = new int[candidates];
+        mDistances = new double[candidates];
+    }
+
+    /**
+     * Moves to a position and adds the k closest items to the result, closest first
+     */
+    public void update(LatLng position, NeighborList result) {
+        mUpdates++;
+        double latitude = position.latitude;
+        double longitude = position.longitude;
+
+        SpatialDataSource.Snapshot<T> snapshot = mDataSource.snapshot();
+        boolean changed = snapshot != mSnapshot;
+
+        double moved = changed ? Double.POSITIVE_INFINITY : SpatialDataSource.distFrom(mRankLat, mRankLon, latitude, longitude);
+        if (moved <= mSafeRadius) {
+            // the same items, only their order may have changed
+            measure(latitude, longitude, Math.min(mK, mCandidateSize));
+            mRemainingRadius = mSafeRadius - moved;
+        } else if (changed || !rank(latitude, longitude)) {
+            search(snapshot, latitude, longitude);
+        }
+
+        int count = Math.min(mK, mCandidateSize);
+        for (int i = 0; i < count; i++) {
+            result.add(mCandidates[i], mDistances[i]);
+        }
+    }
+
+    /**
+     * @return The snapshot the handles of the last result refer to
+     */
+    public SpatialDataSource.Snapshot<T> getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return The distance in meters from the last position within which the k closest items stay the same, as
+     * long as the items do not change
+     */
+    public double getSafeRadius() {
+        return mRemainingRadius;
+    }
+
+    public int getUpdates() {
+        return mUpdates;
+    }
+
+    /**
+     * @return How often updates re-ranked the candidates, including those after a search
+     */
+    public int getRankings() {
+        return mRankings;
+    }
+
+    /**
+     * @return How often updates searched the index
+     */
+    public int getSearches() {
+        return mSearches;
+    }
+
+    private void search(SpatialDataSource.Snapshot<T> snapshot, double latitude, double longitude) {
+        mSearches++;
+        mSnapshot = snapshot;
+
+        mSearchResult.clear();
+        snapshot.findClosestItems(new LatLng(latitude, longitude), mCandidateCount, Double.POSITIVE_INFINITY, mFilter, mSearchResult);
+        mCandidateSize = mSearchResult.size();
+        for (int i = 0; i < mCandidateSize; i++) {
+            mCandidates[i] = mSearchResult.getHandle(i);
+        }
+
+        mSearchLat = latitude;
+        mSearchLon = longitude;
+        // fewer candidates than asked for are all items there are
+        mOthersBound = mCandidateSize < mCandidateCount ? Double.POSITIVE_INFINITY : mSearchResult.getDistance(mCandidateSize - 1);
+
+        rank(latitude, longitude);
+    }
+
+    /**
+     * Sorts the candidates by their distance to a position
+     *
+     * @return false if an item that is no candidate may be among the k closest
+     */
+    private boolean rank(double latitude, double longitude) {
+        mRankings++;
+        measure(latitude, longitude, mCandidateSize);
+
+        double moved = SpatialDataSource.distFrom(mSearchLat, mSearchLon, latitude, longitude);
+        double othersBound = mOthersBound - moved;
+        if (mCandidateSize > mK) {
+            othersBound = Math.min(othersBound, mDistances[mK]);
+        }
+
+        double kth = mCandidateSize == 0 ? 0 : mDistances[Math.min(mK, mCandidateSize) - 1];
+        if (kth > othersBound)
+            return false;
+
+        mRankLat = latitude;
+        mRankLon = longitude;
+        mSafeRadius = (othersBound - kth) / 2;
+        mRemainingRadius = mSafeRadius;
+        return true;
+    }
+
+    // distances of the first count candidates to a position, sorted
+    private void measure(double latitude, double longitude, int count) {
+        ItemTable<T> table = mSnapshot.getItems();
+        for (int i = 0; i < count; i++) {
+            int handle = mCandidates[i];
+            mDistances[i] = SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(handle), table.getLongitude(handle));
+        }
+
+        // few candidates that are mostly in order already, insertion sort is the fastest
+        for (int i = 1; i < count; i++) {
+            int handle = mCandidates[i];
+            double distance = mDistances[i];
+            int j = i - 1;
+            while (j >= 0 && mDistances[j] > distance) {
+                mCandidates[j + 1] = mCandidates[j];
+                mDistances[j + 1] = mDistances[j];
+                j--;
+            }
+            mCandidates[j + 1] = handle;
+            mDistances[j + 1] = distance;
+        }
+    }
+}
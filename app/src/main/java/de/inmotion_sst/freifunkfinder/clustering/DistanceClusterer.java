@@ -0,0 +1,207 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.geometry.Bounds;
+
+import java.util.Arrays;
+
+/**
+ * The clustering of {@link VisibleNonHierarchicalDistanceBasedAlgorithm} over the sites of one snapshot, with all
+ * state in primitive arrays that are reused between passes: the distance of every site to its cluster, the cluster
+ * it is assigned to and a bitset of the sites a pass has visited. A pass only touches the sites it visits and
+ * cleans them up afterwards, so it takes time in the number of candidates, not in the number of sites, and
+ * allocates nothing once the arrays are large enough.
+ * <p>
+ * Not thread safe, concurrent passes need clusterers of their own.
+ */
+final class DistanceClusterer<T extends ClusterItem> {
+    private final SpatialDataSource.Snapshot<T> mItems;
+    private final SpatialDataSource.Snapshot<T> mSnapshot;
+    private final Sites<T> mSites;
+
+    // state per site handle, only valid for sites whose bit in mVisited is set
+    private final long[] mVisited;
+    private final double[] mMinDistanceToCluster;
+    private final int[] mClusterOf;
+
+    // candidates between checks for cancellation, each costs a range query
+    private static final int CANDIDATES_PER_CHECK = 64;
+
+    // the sites in the order they were visited, their bits are cleared after every pass
+    private final HandleList mVisitedSites = new HandleList();
+    private final HandleList mNearbySites = new HandleList();
+    private final HandleList mCandidates = new HandleList();
+
+    // state per cluster of a pass
+    private int[] mCenters = new int[16];
+    private int[] mSiteCounts = new int[16];
+    private int[] mOffsets = new int[16];
+    private int[] mSortedSites = new int[16];
+
+    DistanceClusterer(SpatialDataSource.Snapshot<T> items) {
+        mItems = items;
+        mSnapshot = items.sites();
+        mSites = items.getSites();
+        int siteCount = mSnapshot.size();
+        mVisited = new long[(siteCount + 63) >>> 6];
+        mMinDistanceToCluster = new double[siteCount];
+        mClusterOf = new int[siteCount];
+    }
+
+    /**
+     * @return The snapshot whose sites this clusterer was made for
+     */
+    SpatialDataSource.Snapshot<T> getItems() {
+        return mItems;
+    }
+
+    /**
+     * Clusters the sites within the bounds, see {@link #cluster(HandleList, double, Bounds, Cancellation, ClusterList)}
+     */
+    boolean cluster(Bounds bounds, double halfSpan, Cancellation cancellation, ClusterList<T> result) {
+        mCandidates.clear();
+        mSnapshot.forEachInBounds(bounds, mCandidates);
+        return cluster(mCandidates, halfSpan, null, cancellation, result);
+    }
+
+    /**
+     * Every candidate that is not yet part of a cluster starts one, and takes over the sites within halfSpan that
+     * are closer to it than to their current cluster.
+     *
+     * @param within if not null, only sites within these half open bounds join clusters, so that the clusters of
+     *               adjacent bounds never share a site
+     * @param result cleared and then receives the clusters that kept at least one site, or none if the pass was
+     *               cancelled
+     * @return false if the pass was cancelled
+     */
+    boolean cluster(HandleList candidates, double halfSpan, Bounds within, Cancellation cancellation, ClusterList<T> result) {
+        int clusterCount = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (i % CANDIDATES_PER_CHECK == 0 && cancellation.isCancelled()) {
+                // the visited sites still have to be cleaned up for the next pass
+                clearVisited();
+                result.clear(mSites);
+                return false;
+            }
+            int candidate = candidates.get(i);
+
+            // Candidate is already part of a cluster, nothing to do for it
+            if (isVisited(candidate)) {
+                continue;
+            }
+
+            if (clusterCount == mCenters.length) {
+                mCenters = Arrays.copyOf(mCenters, clusterCount * 2);
+                mSiteCounts = Arrays.copyOf(mSiteCounts, clusterCount * 2);
+            }
+            int cluster = clusterCount++;
+            mCenters[cluster] = candidate;
+            mSiteCounts[cluster] = 0;
+            visit(candidate, 0, cluster); // 0 = its at the center of its cluster
+
+            // search sites close to this one
+            double candidateX = mSnapshot.getX(candidate);
+            double candidateY = mSnapshot.getY(candidate);
+            // TODO: Use a span that takes into account the visual size of the marker, not just its LatLng.
+            mNearbySites.clear();
+            mSnapshot.forEachInBounds(candidateX - halfSpan, candidateX + halfSpan, candidateY - halfSpan, candidateY + halfSpan, mNearbySites);
+
+            for (int j = 0; j < mNearbySites.size(); j++) {
+                int clusterSite = mNearbySites.get(j);
+                if (clusterSite == candidate) {
+                    continue;
+                }
+
+                double clusterSiteX = mSnapshot.getX(clusterSite);
+                double clusterSiteY = mSnapshot.getY(clusterSite);
+                if (within != null && !(clusterSiteX >= within.minX && clusterSiteX < within.maxX && clusterSiteY >= within.minY && clusterSiteY < within.maxY)) {
+                    continue;
+                }
+
+                double distance = distanceSquared(clusterSiteX, clusterSiteY, candidateX, candidateY);
+                if (isVisited(clusterSite)) {
+                    // centers stay with their clusters, which only differs from taking them over for sites at the
+                    // very same position
+                    boolean isAlreadyInCloserCluster = mMinDistanceToCluster[clusterSite] < distance;
+                    if (isAlreadyInCloserCluster || mMinDistanceToCluster[clusterSite] == 0) {
+                        continue;
+                    }
+
+                    // moving the site is just a new assignment, the clusters are only collected at the end
+                    mSiteCounts[mClusterOf[clusterSite]]--;
+                    mMinDistanceToCluster[clusterSite] = distance;
+                    mClusterOf[clusterSite] = cluster;
+                    mSiteCounts[cluster]++;
+                } else {
+                    visit(clusterSite, distance, cluster);
+                }
+            }
+        }
+
+        collect(clusterCount, result);
+        return true;
+    }
+
+    private void collect(int clusterCount, ClusterList<T> result) {
+        // sorts the visited sites by cluster, centers first and the others in the order they were visited
+        if (clusterCount > mOffsets.length) {
+            mOffsets = new int[Math.max(clusterCount, mOffsets.length * 2)];
+        }
+        if (mVisitedSites.size() > mSortedSites.length) {
+            mSortedSites = new int[Math.max(mVisitedSites.size(), mSortedSites.length * 2)];
+        }
+        int offset = 0;
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            mOffsets[cluster] = offset;
+            offset += mSiteCounts[cluster];
+            if (mSiteCounts[cluster] > 0) {
+                mSortedSites[mOffsets[cluster]++] = mCenters[cluster];
+            }
+        }
+        for (int i = 0; i < mVisitedSites.size(); i++) {
+            int site = mVisitedSites.get(i);
+            int cluster = mClusterOf[site];
+            if (site != mCenters[cluster]) {
+                mSortedSites[mOffsets[cluster]++] = site;
+            }
+        }
+        clearVisited();
+
+        result.clear(mSites);
+        offset = 0;
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            // sites may have moved to closer clusters and left this one empty
+            if (mSiteCounts[cluster] > 0) {
+                result.startCluster();
+                for (int i = offset; i < offset + mSiteCounts[cluster]; i++) {
+                    result.addSite(mSortedSites[i]);
+                }
+            }
+            offset += mSiteCounts[cluster];
+        }
+    }
+
+    private void clearVisited() {
+        for (int i = 0; i < mVisitedSites.size(); i++) {
+            int site = mVisitedSites.get(i);
+            mVisited[site >>> 6] &= ~(1L << site);
+        }
+        mVisitedSites.clear();
+    }
+
+    private boolean isVisited(int site) {
+        return (mVisited[site >>> 6] & 1L << site) != 0;
+    }
+
+    private void visit(int site, double distance, int cluster) {
+        mVisited[site >>> 6] |= 1L << site;
+        mMinDistanceToCluster[site] = distance;
+        mClusterOf[site] = cluster;
+        mSiteCounts[cluster]++;
+        mVisitedSites.add(site);
+    }
+
+    private static double distanceSquared(double ax, double ay, double bx, double by) {
+        return (ax - bx) * (ax - bx) + (ay - by) * (ay - by);
+    }
+}
@@ -0,0 +1,66 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+/**
+ * Lower bounds of great-circle distances from a position to boxes and points in the projected (0,1)|(0,1) world of
+ * {@link SpatialDataSource}. They let spatial indexes order and prune their search without computing exact distances.
+ */
+final class GreatCircleBounds {
+    // same sphere as SpatialDataSource.distFrom
+    private static final double EARTH_RADIUS = 6371000;
+
+    private GreatCircleBounds() {
+    }
+
+    /**
+     * @return false for positions the projection cannot place, the feed has a few with a missing decimal point
+     */
+    static boolean isValid(double latitude, double longitude) {
+        return Math.abs(latitude) < 90 && Math.abs(longitude) <= 180;
+    }
+
+    /**
+     * @return A lower bound in meters of the distance from the query to any valid position within the box
+     */
+    static double boxBound(double qx, double qy, double queryLat, double queryLon, double minX, double minY, double maxX, double maxY) {
+        return boxDistance(qx, qy, minX, minY, maxX, maxY) * metersPerUnit(queryLat, queryLon, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * A lower bound of meters per projected unit along any great circle from the query to a point within the box.
+     * <p>
+     * Mercator stretches distances by 1 / cos(latitude), so a path is at least as long as its projected length
+     * times the circumference times the smallest cosine along the path. Great circles bulge towards the pole,
+     * the highest latitude they reach is bounded by the vertex latitude for the largest longitude difference.
+     */
+    static double metersPerUnit(double queryLat, double queryLon, double minX, double minY, double maxX, double maxY) {
+        double maxLat = Math.max(Math.abs(queryLat), Math.max(Math.abs(toLatitude(minY)), Math.abs(toLatitude(maxY))));
+        double deltaLon = Math.max(Math.abs(queryLon - toLongitude(minX)), Math.abs(queryLon - toLongitude(maxX)));
+        if (deltaLon >= Math.PI || maxLat >= Math.PI / 2)
+            return 0;
+
+        double vertexLat = Math.atan(Math.tan(maxLat) / Math.cos(deltaLon / 2));
+        return 2 * Math.PI * EARTH_RADIUS * Math.cos(vertexLat);
+    }
+
+    // inverse of SpatialDataSource.toY, in radians
+    private static double toLatitude(double y) {
+        return Math.atan(Math.sinh(2 * Math.PI * (0.5 - y)));
+    }
+
+    // inverse of SpatialDataSource.toX, in radians
+    private static double toLongitude(double x) {
+        return (x - 0.5) * 2 * Math.PI;
+    }
+
+    static double distance(double ax, double ay, double bx, double by) {
+        double dx = ax - bx;
+        double dy = ay - by;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    static double boxDistance(double x, double y, double minX, double minY, double maxX, double maxY) {
+        double dx = x < minX ? minX - x : x > maxX ? x - maxX : 0;
+        double dy = y < minY ? minY - y : y > maxY ? y - maxY : 0;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
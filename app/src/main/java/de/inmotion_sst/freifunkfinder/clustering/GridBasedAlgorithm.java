@@ -0,0 +1,206 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.geometry.Bounds;
+import com.google.maps.android.geometry.Point;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A clustering algorithm with O(n) performance in the number of visible sites. Clusters are not hierarchical and
+ * only computed for the visible area.
+ * <p>
+ * High level algorithm:<br>
+ * 1. Put every visible site into the grid cell of {@link VisibleNonHierarchicalDistanceBasedAlgorithm#MAX_DISTANCE_AT_ZOOM}
+ * dp it is in, looked up by a long key of its row and column. <br>
+ * 2. Starting with the cell with the most items, merge the neighbouring cells whose centroids are closer than a
+ * cell into it, every cell is merged at most once. <br>
+ * 3. Every cell that was not merged into another one is a cluster at the centroid of its items.
+ * <p>
+ * Cells follow the grid, not the items, so this is faster but less even than the distance based algorithm: items
+ * just across a cell border can end up in different clusters.
+ */
+public class GridBasedAlgorithm<T extends ClusterItem> implements CompactClusterAlgorithm<T>, GoogleMap.OnCameraChangeListener {
+
+    // sites or cells between checks for cancellation
+    private static final int SITES_PER_CHECK = 1024;
+
+    private final int mScreenWidth;
+    private final int mScreenHeight;
+    private final SpatialDataSource<T> mDataSource;
+    private LatLng mMapCenter;
+
+    public GridBasedAlgorithm(int screenWidth, int screenHeight, SpatialDataSource<T> dataSource) {
+        mScreenWidth = screenWidth;
+        mScreenHeight = screenHeight;
+        mDataSource = dataSource;
+    }
+
+    @Override
+    public Set<? extends Cluster<T>> getClusters(double zoom) {
+        ClusterList<T> clusters = new ClusterList<>();
+        getClusters(zoom, clusters);
+        return clusters.toClusters();
+    }
+
+    @Override
+    public void getClusters(double zoom, ClusterList<T> result) {
+        getClusters(zoom, result, Cancellation.NONE);
+    }
+
+    @Override
+    public boolean getClusters(double zoom, ClusterList<T> result, Cancellation cancellation) {
+        final int discreteZoom = (int) zoom;
+        final double cellSize = VisibleNonHierarchicalDistanceBasedAlgorithm.MAX_DISTANCE_AT_ZOOM / Math.pow(2, discreteZoom) / 256;
+
+        // one snapshot for the whole pass, clusters are made of whole sites like those of the distance based algorithm
+        SpatialDataSource.Snapshot<T> items = mDataSource.snapshot();
+        SpatialDataSource.Snapshot<T> snapshot = items.sites();
+        Sites<T> sites = items.getSites();
+        result.clear(sites);
+
+        HandleList visibleSites = new HandleList();
+        snapshot.search(getVisibleBounds(discreteZoom), visibleSites);
+        int n = visibleSites.size();
+
+        // state per cell, the sites of a cell are a linked list through nextSite
+        LongIntMap cellOfKey = new LongIntMap(n);
+        int[] rows = new int[n];
+        int[] columns = new int[n];
+        int[] sizes = new int[n];
+        double[] sumXs = new double[n];
+        double[] sumYs = new double[n];
+        int[] firstSite = new int[n];
+        int[] nextSite = new int[n];
+        int cellCount = 0;
+
+        for (int i = 0; i < n; i++) {
+            if (i % SITES_PER_CHECK == 0 && cancellation.isCancelled())
+                return false;
+
+            int site = visibleSites.get(i);
+            double x = snapshot.getX(site);
+            double y = snapshot.getY(site);
+            int row = (int) Math.floor(y / cellSize);
+            int column = (int) Math.floor(x / cellSize);
+            long key = cellKey(row, column);
+
+            int cell = cellOfKey.get(key);
+            if (cell < 0) {
+                cell = cellCount++;
+                cellOfKey.put(key, cell);
+                rows[cell] = row;
+                columns[cell] = column;
+                firstSite[cell] = -1;
+            }
+
+            int count = sites.getCount(site);
+            sizes[cell] += count;
+            sumXs[cell] += x * count;
+            sumYs[cell] += y * count;
+            nextSite[i] = firstSite[cell];
+            firstSite[cell] = i;
+        }
+
+        // largest cells first, packed with their index into one sortable long
+        long[] order = new long[cellCount];
+        for (int cell = 0; cell < cellCount; cell++) {
+            order[cell] = (long) (Integer.MAX_VALUE - sizes[cell]) << 32 | cell;
+        }
+        Arrays.sort(order);
+
+        // the cells merged into a cell are a linked list through nextMerged
+        int[] owner = new int[cellCount];
+        Arrays.fill(owner, -1);
+        int[] firstMerged = new int[cellCount];
+        int[] nextMerged = new int[cellCount];
+        double[] mergedXs = Arrays.copyOf(sumXs, cellCount);
+        double[] mergedYs = Arrays.copyOf(sumYs, cellCount);
+        int[] mergedSizes = Arrays.copyOf(sizes, cellCount);
+        for (int i = 0; i < cellCount; i++) {
+            if (i % SITES_PER_CHECK == 0 && cancellation.isCancelled())
+                return false;
+
+            int cell = (int) order[i];
+            if (owner[cell] >= 0)
+                continue;
+
+            owner[cell] = cell;
+            firstMerged[cell] = -1;
+            double x = sumXs[cell] / sizes[cell];
+            double y = sumYs[cell] / sizes[cell];
+            for (int dr = -1; dr <= 1; dr++) {
+                for (int dc = -1; dc <= 1; dc++) {
+                    int neighbor = cellOfKey.get(cellKey(rows[cell] + dr, columns[cell] + dc));
+                    if (neighbor < 0 || owner[neighbor] >= 0)
+                        continue;
+
+                    double neighborX = sumXs[neighbor] / sizes[neighbor];
+                    double neighborY = sumYs[neighbor] / sizes[neighbor];
+                    if (Math.abs(neighborX - x) < cellSize && Math.abs(neighborY - y) < cellSize) {
+                        owner[neighbor] = cell;
+                        nextMerged[neighbor] = firstMerged[cell];
+                        firstMerged[cell] = neighbor;
+                        mergedSizes[cell] += sizes[neighbor];
+                        mergedXs[cell] += sumXs[neighbor];
+                        mergedYs[cell] += sumYs[neighbor];
+                    }
+                }
+            }
+        }
+
+        for (int cell = 0; cell < cellCount; cell++) {
+            if (owner[cell] != cell)
+                continue;
+
+            // a single site is shown where it is, not at a centroid that went through the projection and back
+            if (firstMerged[cell] < 0 && nextSite[firstSite[cell]] < 0) {
+                result.startCluster();
+            } else {
+                result.startCluster(SpatialDataSource.toLatitude(mergedYs[cell] / mergedSizes[cell]),
+                        SpatialDataSource.toLongitude(mergedXs[cell] / mergedSizes[cell]));
+            }
+            addSites(visibleSites, firstSite[cell], nextSite, result);
+            for (int merged = firstMerged[cell]; merged >= 0; merged = nextMerged[merged]) {
+                addSites(visibleSites, firstSite[merged], nextSite, result);
+            }
+        }
+        return true;
+    }
+
+    // the sites of a cell, from the first one along the linked list
+    private static <T extends ClusterItem> void addSites(HandleList visibleSites, int first, int[] nextSite, ClusterList<T> result) {
+        for (int i = first; i >= 0; i = nextSite[i]) {
+            result.addSite(visibleSites.get(i));
+        }
+    }
+
+    private static long cellKey(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    private Bounds getVisibleBounds(int zoom) {
+        if (mMapCenter == null) {
+            return new Bounds(0, 0, 0, 0);
+        }
+
+        Point p = mDataSource.toPoint(mMapCenter);
+
+        final double halfWidthSpan = mScreenWidth / Math.pow(2, zoom) / 256 / 2;
+        final double halfHeightSpan = mScreenHeight / Math.pow(2, zoom) / 256 / 2;
+
+        return new Bounds(
+                p.x - halfWidthSpan, p.x + halfWidthSpan,
+                p.y - halfHeightSpan, p.y + halfHeightSpan);
+    }
+
+    @Override
+    public void onCameraChange(CameraPosition cameraPosition) {
+        mMapCenter = cameraPosition.target;
+    }
+}
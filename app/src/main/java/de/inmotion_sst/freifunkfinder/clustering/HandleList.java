@@ -0,0 +1,53 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of int item handles, meant to be reused between queries.
+ */
+public final class HandleList implements HandleVisitor {
+    private int[] handles;
+    private int size;
+
+    public HandleList() {
+        this(16);
+    }
+
+    public HandleList(int capacity) {
+        handles = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int handle) {
+        if (size == handles.length) {
+            handles = Arrays.copyOf(handles, size * 2);
+        }
+        handles[size++] = handle;
+    }
+
+    /**
+     * Same as {@link #add(int)}, so the list can collect the results of a query
+     */
+    @Override
+    public void visit(int handle) {
+        add(handle);
+    }
+
+    public int get(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("handle " + i + " of " + size);
+
+        return handles[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,9 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+/**
+ * Receives the handles found by a spatial query, one call per item. Visitors are meant to be reused between queries,
+ * {@link HandleList} is one that collects them.
+ */
+public interface HandleVisitor {
+    void visit(int handle);
+}
@@ -0,0 +1,97 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.geometry.Bounds;
+import com.google.maps.android.geometry.Point;
+
+import java.util.Set;
+
+/**
+ * Clusters the visible area by looking up the precomputed clusters of the current zoom level in the
+ * {@link ClusterPyramid} of the items, instead of clustering from scratch on every camera change. A query costs the
+ * number of visible clusters, not the number of visible items.
+ * <p>
+ * Clusters are hierarchical: zooming in only ever splits clusters and zooming out only merges them, a cluster that
+ * does not change between two zoom levels is equal at both so its marker can be reused.
+ * <p>
+ * While the items are still loading there is no pyramid yet, the visible area is then clustered like
+ * {@link VisibleNonHierarchicalDistanceBasedAlgorithm} does. So is a visible area in which items moved since the
+ * pyramid was built, until the patched items are built into a new pyramid.
+ */
+public class HierarchicalDistanceBasedAlgorithm<T extends ClusterItem>
+        implements CompactClusterAlgorithm<T>, GoogleMap.OnCameraChangeListener {
+
+    private final int mScreenWidth;
+    private final int mScreenHeight;
+    private final SpatialDataSource<T> mDataSource;
+    private final VisibleNonHierarchicalDistanceBasedAlgorithm<T> mLoadingAlgorithm;
+    private LatLng mMapCenter;
+
+    public HierarchicalDistanceBasedAlgorithm(int screenWidth, int screenHeight, SpatialDataSource<T> dataSource) {
+        mScreenWidth = screenWidth;
+        mScreenHeight = screenHeight;
+        mDataSource = dataSource;
+        mLoadingAlgorithm = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(screenWidth, screenHeight, dataSource);
+    }
+
+    @Override
+    public Set<? extends Cluster<T>> getClusters(double zoom) {
+        ClusterList<T> clusters = new ClusterList<>();
+        getClusters(zoom, clusters);
+        return clusters.toClusters();
+    }
+
+    @Override
+    public void getClusters(double zoom, ClusterList<T> result) {
+        getClusters(zoom, result, Cancellation.NONE);
+    }
+
+    @Override
+    public boolean getClusters(double zoom, ClusterList<T> result, Cancellation cancellation) {
+        final int discreteZoom = (int) zoom;
+
+        // one snapshot for the whole pass, the pyramid and the sites belong to the same items
+        SpatialDataSource.Snapshot<T> snapshot = mDataSource.snapshot();
+        ClusterPyramid pyramid = snapshot.getPyramid();
+        if (pyramid == null) {
+            // clustering the visible area costs far less than all zoom levels, which would be needed for every batch
+            return mLoadingAlgorithm.getClusters(zoom, result, cancellation);
+        }
+
+        // a cluster holds sites up to about twice its clustering distance away, so within that margin around the
+        // visible area no item may have moved since the pyramid was built
+        Bounds visible = getVisibleBounds(discreteZoom);
+        double margin = 2 * VisibleNonHierarchicalDistanceBasedAlgorithm.MAX_DISTANCE_AT_ZOOM
+                / Math.pow(2, Math.min(discreteZoom, ClusterPyramid.MAX_ZOOM)) / 256;
+        if (snapshot.hasMovedSincePyramid(visible.minX - margin, visible.maxX + margin, visible.minY - margin, visible.maxY + margin)) {
+            return mLoadingAlgorithm.getClusters(zoom, result, cancellation);
+        }
+
+        return pyramid.getClusters(snapshot.getPyramidSites(), discreteZoom, visible, cancellation, result);
+    }
+
+    private Bounds getVisibleBounds(int zoom) {
+        if (mMapCenter == null) {
+            return new Bounds(0, 0, 0, 0);
+        }
+
+        Point p = mDataSource.toPoint(mMapCenter);
+
+        final double halfWidthSpan = mScreenWidth / Math.pow(2, zoom) / 256 / 2;
+        final double halfHeightSpan = mScreenHeight / Math.pow(2, zoom) / 256 / 2;
+
+        return new Bounds(
+                p.x - halfWidthSpan, p.x + halfWidthSpan,
+                p.y - halfHeightSpan, p.y + halfHeightSpan);
+    }
+
+    @Override
+    public void onCameraChange(CameraPosition cameraPosition) {
+        mMapCenter = cameraPosition.target;
+        mLoadingAlgorithm.onCameraChange(cameraPosition);
+    }
+}
@@ -0,0 +1,22 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+/**
+ * Per item attributes that filtered queries select on, implemented by item tables that know them. Tables without
+ * attributes only match {@link ItemFilter#ALL}.
+ */
+public interface ItemAttributes {
+    /**
+     * @return The {@link ItemFilter} flags of an item, e.g. {@link ItemFilter#ONLINE} | {@link ItemFilter#WITH_CLIENTS}
+     */
+    int getFlags(int handle);
+
+    /**
+     * @return The code of the group an item belongs to, e.g. its community, or -1 if it has none
+     */
+    int getGroup(int handle);
+
+    /**
+     * @return The code of a group by its name, or -1 if no item belongs to it
+     */
+    int getGroupCode(String name);
+}
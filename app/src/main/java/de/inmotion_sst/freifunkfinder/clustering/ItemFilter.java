@@ -0,0 +1,141 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects items by status, clients and group for filtered queries of {@link SpatialDataSource}. Indexes keep the
+ * attributes found in every subtree, so subtrees without any matching item are skipped instead of filtering
+ * results afterwards.
+ * <p>
+ * Filters are immutable and can be kept across data changes, groups are looked up by name in every table they
+ * are used with.
+ */
+public final class ItemFilter {
+    public static final int ONLINE = 1;
+    public static final int OFFLINE = 1 << 1;
+    public static final int UNKNOWN = 1 << 2;
+    public static final int WITH_CLIENTS = 1 << 3;
+
+    public static final ItemFilter ALL = new Builder().build();
+
+    private final int mAnyFlags;
+    private final int mAllFlags;
+    private final String[] mGroups;
+
+    // group codes of the table the filter was last used with, the filter does not keep the table alive
+    private volatile Resolved mResolved;
+
+    private ItemFilter(int anyFlags, int allFlags, String[] groups) {
+        mAnyFlags = anyFlags;
+        mAllFlags = allFlags;
+        mGroups = groups;
+    }
+
+    /**
+     * @return true if the filter selects all items, queries then take their unfiltered path
+     */
+    public boolean isAll() {
+        return mAnyFlags == 0 && mAllFlags == 0 && mGroups == null;
+    }
+
+    Resolved resolve(ItemTable<?> table) {
+        Resolved resolved = mResolved;
+        if (resolved == null || !resolved.isFor(table)) {
+            resolved = new Resolved(table, mAnyFlags, mAllFlags, mGroups);
+            mResolved = resolved;
+        }
+        return resolved;
+    }
+
+    /**
+     * The filter with group names replaced by a bitset of their codes in one table
+     */
+    static final class Resolved {
+        // a filter can be kept across syncs, old tables must not stay in memory because of it
+        private final WeakReference<ItemTable<?>> table;
+        final int anyFlags;
+        final int allFlags;
+
+        // null if any group matches
+        final long[] groups;
+
+        Resolved(ItemTable<?> table, int anyFlags, int allFlags, String[] names) {
+            this.table = new WeakReference<ItemTable<?>>(table);
+            this.anyFlags = anyFlags;
+            this.allFlags = allFlags;
+
+            if (names == null) {
+                groups = null;
+                return;
+            }
+
+            ItemAttributes attributes = table instanceof ItemAttributes ? (ItemAttributes) table : null;
+            int[] codes = new int[names.length];
+            int maxCode = -1;
+            for (int i = 0; i < names.length; i++) {
+                codes[i] = attributes == null ? -1 : attributes.getGroupCode(names[i]);
+                maxCode = Math.max(maxCode, codes[i]);
+            }
+
+            // groups no item belongs to match nothing, an empty bitset
+            groups = new long[(maxCode >> 6) + 1];
+            for (int code : codes) {
+                if (code >= 0) {
+                    groups[code >> 6] |= 1L << code;
+                }
+            }
+        }
+
+        boolean isFor(ItemTable<?> table) {
+            return this.table.get() == table;
+        }
+
+        boolean matchesFlags(int flags) {
+            return (anyFlags == 0 || (flags & anyFlags) != 0) && (flags & allFlags) == allFlags;
+        }
+
+        boolean matchesGroup(int group) {
+            return groups == null || (group >= 0 && (group >> 6) < groups.length && (groups[group >> 6] & 1L << group) != 0);
+        }
+    }
+
+    public static class Builder {
+        private int mAnyFlags;
+        private int mAllFlags;
+        private List<String> mGroups;
+
+        /**
+         * Selects items with any of the statuses, e.g. {@link #ONLINE} | {@link #UNKNOWN}. Without it all statuses
+         * match.
+         */
+        public Builder status(int statuses) {
+            mAnyFlags |= statuses & (ONLINE | OFFLINE | UNKNOWN);
+            return this;
+        }
+
+        /**
+         * Selects items with at least one client
+         */
+        public Builder withClients() {
+            mAllFlags |= WITH_CLIENTS;
+            return this;
+        }
+
+        /**
+         * Selects items of a group, e.g. a community key. Several groups match items of any of them.
+         */
+        public Builder group(String name) {
+            if (mGroups == null) {
+                mGroups = new ArrayList<String>();
+            }
+            mGroups.add(name);
+            return this;
+        }
+
+        public ItemFilter build() {
+            return new ItemFilter(mAnyFlags, mAllFlags, mGroups == null ? null : mGroups.toArray(new String[mGroups.size()]));
+        }
+    }
+}
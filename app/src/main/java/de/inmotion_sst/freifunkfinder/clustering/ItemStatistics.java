@@ -0,0 +1,14 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+/**
+ * Per item values that range aggregates sum up, implemented by item tables that know them.
+ *
+ * @see RangeAggregate
+ */
+public interface ItemStatistics {
+    boolean isOnline(int handle);
+
+    boolean isOffline(int handle);
+
+    int getClients(int handle);
+}
@@ -0,0 +1,21 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.maps.android.clustering.ClusterItem;
+
+/**
+ * Items addressed by int handles from 0 to size - 1.
+ * <p>
+ * Positions can be read without creating item objects, so indexes and scans over a table do not allocate.
+ */
+public interface ItemTable<T extends ClusterItem> {
+    int size();
+
+    double getLatitude(int handle);
+
+    double getLongitude(int handle);
+
+    /**
+     * @return The item object, implementations may create it on first access
+     */
+    T getItem(int handle);
+}
@@ -0,0 +1,36 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.maps.android.clustering.ClusterItem;
+
+import java.util.List;
+
+/**
+ * Adapts a plain list of items, handles are list positions.
+ */
+class ListItemTable<T extends ClusterItem> implements ItemTable<T> {
+    private final List<T> items;
+
+    ListItemTable(List<T> items) {
+        this.items = items;
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public double getLatitude(int handle) {
+        return items.get(handle).getPosition().latitude;
+    }
+
+    @Override
+    public double getLongitude(int handle) {
+        return items.get(handle).getPosition().longitude;
+    }
+
+    @Override
+    public T getItem(int handle) {
+        return items.get(handle);
+    }
+}
@@ -0,0 +1,85 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to non negative int values with open addressing in two flat arrays, for building lookups in
+ * hot loops without boxing every key.
+ */
+final class LongIntMap {
+    private static final int EMPTY = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize the number of keys that can be put without growing the map
+     */
+    LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The value of the key, or -1 if the map does not contain the key
+     */
+    int get(long key) {
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            if (values[slot] == EMPTY || keys[slot] == key)
+                return values[slot];
+        }
+    }
+
+    /**
+     * @param value must not be negative
+     */
+    void put(long key, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value " + value);
+
+        int slot = slot(key);
+        while (values[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (values[slot] == EMPTY) {
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+
+        // at most half full, so probe sequences stay short
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    private int slot(long key) {
+        // mixes the high bits into the low ones, grid cells in neighbouring rows differ only in the high bits
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(values, EMPTY);
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+/**
+ * A search that yields items by increasing great-circle distance, a few at a time. The search state is kept
+ * between calls, so later items cost no more than earlier ones.
+ */
+public interface NearestCursor {
+    /**
+     * Adds up to count further items to the result, closest first
+     *
+     * @return The number of items added, less than count once all items were yielded
+     */
+    int next(int count, NeighborList result);
+}
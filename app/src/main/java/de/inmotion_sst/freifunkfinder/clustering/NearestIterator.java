@@ -0,0 +1,59 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.maps.android.clustering.ClusterItem;
+
+/**
+ * Pages through the items of a snapshot by increasing great-circle distance from a position, e.g. for a list of
+ * nodes that only binds the rows scrolled into view. Each page continues the search where the previous one stopped
+ * instead of searching the k closest items again, so fetching page p costs about as much as fetching page 1.
+ * <p>
+ * Handles refer to {@link #getSnapshot()}, the iterator does not see later changes of the data source. Not thread
+ * safe, use one instance per list.
+ */
+public final class NearestIterator<T extends ClusterItem> {
+    private final SpatialDataSource.Snapshot<T> mSnapshot;
+    private final NearestCursor mCursor;
+    private int mYielded;
+    private boolean mExhausted;
+
+    NearestIterator(SpatialDataSource.Snapshot<T> snapshot, NearestCursor cursor) {
+        mSnapshot = snapshot;
+        mCursor = cursor;
+    }
+
+    /**
+     * Adds up to count further items to the result, closest first
+     *
+     * @return The number of items added, less than count once all items were yielded
+     */
+    public int nextPage(int count, NeighborList result) {
+        if (mExhausted)
+            return 0;
+
+        int added = mCursor.next(count, result);
+        mYielded += added;
+        mExhausted = added < count;
+        return added;
+    }
+
+    /**
+     * @return false once all items were yielded
+     */
+    public boolean hasMore() {
+        return !mExhausted;
+    }
+
+    /**
+     * @return How many items all pages so far held
+     */
+    public int getYielded() {
+        return mYielded;
+    }
+
+    /**
+     * @return The snapshot the handles of the pages refer to
+     */
+    public SpatialDataSource.Snapshot<T> getSnapshot() {
+        return mSnapshot;
+    }
+}
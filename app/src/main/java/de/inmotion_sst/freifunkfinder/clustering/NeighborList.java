@@ -0,0 +1,61 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.util.Arrays;
+
+/**
+ * Item handles together with their distance in meters to some position, meant to be reused between queries.
+ */
+public final class NeighborList {
+    private int[] handles;
+    private double[] distances;
+    private int size;
+
+    public NeighborList() {
+        this(16);
+    }
+
+    public NeighborList(int capacity) {
+        capacity = Math.max(capacity, 1);
+        handles = new int[capacity];
+        distances = new double[capacity];
+    }
+
+    public void add(int handle, double distance) {
+        if (size == handles.length) {
+            handles = Arrays.copyOf(handles, size * 2);
+            distances = Arrays.copyOf(distances, size * 2);
+        }
+        handles[size] = handle;
+        distances[size] = distance;
+        size++;
+    }
+
+    public int getHandle(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("neighbor " + i + " of " + size);
+
+        return handles[i];
+    }
+
+    /**
+     * @return The great-circle distance in meters
+     */
+    public double getDistance(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("neighbor " + i + " of " + size);
+
+        return distances[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -1,8 +1,8 @@
 package de.inmotion_sst.freifunkfinder.clustering;
 
 import android.content.Context;
-import android.os.AsyncTask;
-import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.model.CameraPosition;
@@ -43,8 +43,8 @@ public class NodeClusterManager<T extends Node> implements GoogleMap.OnCameraCha
 
     private GoogleMap mMap;
     private CameraPosition mPreviousCameraPosition;
-    private ClusterTask mClusterTask;
-    private final ReadWriteLock mClusterTaskLock = new ReentrantReadWriteLock();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ClusterScheduler<T> mScheduler;
 
     private ClusterManager.OnClusterItemClickListener<T> mOnClusterItemClickListener;
     private ClusterManager.OnClusterInfoWindowClickListener<T> mOnClusterInfoWindowClickListener;
@@ -61,7 +61,7 @@ public class NodeClusterManager<T extends Node> implements GoogleMap.OnCameraCha
         mClusterMarkers = markerManager.newCollection();
         mMarkers = markerManager.newCollection();
         mRenderer = new NodeClusterRenderer<>(context, map, this);
-        mClusterTask = new ClusterTask();
+        mScheduler = new ClusterScheduler<>(this::onClustersDone);
         mRenderer.onAdd();
     }
 
@@ -77,6 +77,13 @@ public class NodeClusterManager<T extends Node> implements GoogleMap.OnCameraCha
         return mMarkerManager;
     }
 
+    /**
+     * @return The scheduler of the clustering passes, with counts of the passes that were not shown
+     */
+    public ClusterScheduler<T> getScheduler() {
+        return mScheduler;
+    }
+
     public void setRenderer(ClusterRenderer<T> view) {
         mRenderer.setOnClusterClickListener(null);
         mRenderer.setOnClusterItemClickListener(null);
@@ -111,24 +118,40 @@ public class NodeClusterManager<T extends Node> implements GoogleMap.OnCameraCha
     }
 
     /**
-     * Force a re-cluster. You may want to call this after adding new item(s).
+     * Force a re-cluster. You may want to call this after adding new item(s). Replaces or cancels a re-cluster
+     * that is still in flight, so bursts of calls only show the clusters of the last one.
      */
     public void cluster() {
-        mClusterTaskLock.writeLock().lock();
+        mAlgorithmLock.readLock().lock();
         try {
-            // Attempt to cancel the in-flight request.
-            mClusterTask.cancel(true);
-            mClusterTask = new ClusterTask();
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
-                mClusterTask.execute(mMap.getCameraPosition().zoom);
-            } else {
-                mClusterTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, mMap.getCameraPosition().zoom);
-            }
+            mScheduler.request(mAlgorithm, mMap.getCameraPosition().zoom);
         } finally {
-            mClusterTaskLock.writeLock().unlock();
+            mAlgorithmLock.readLock().unlock();
         }
     }
 
+    /**
+     * Stops clustering, once the map is gone. Clusters that are still being computed or on their way to the main
+     * thread are not shown any more.
+     */
+    public void shutdown() {
+        mScheduler.shutdown();
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    // on the worker of the scheduler, clusters are only shown if no newer request came in until they reach the
+    // main thread
+    private void onClustersDone(final int generation, final Set<? extends Cluster<T>> clusters) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mScheduler.acceptResult(generation)) {
+                    mRenderer.onClustersChanged(clusters);
+                }
+            }
+        });
+    }
+
     /**
      * Might re-cluster.
      *
@@ -164,26 +187,6 @@ public class NodeClusterManager<T extends Node> implements GoogleMap.OnCameraCha
         getMarkerManager().onInfoWindowClick(marker);
     }
 
-    /**
-     * Runs the clustering algorithm in a background thread, then re-paints when results come back.
-     */
-    private class ClusterTask extends AsyncTask<Float, Void, Set<? extends Cluster<T>>> {
-        @Override
-        protected Set<? extends Cluster<T>> doInBackground(Float... zoom) {
-            mAlgorithmLock.readLock().lock();
-            try {
-                return mAlgorithm.getClusters(zoom[0]);
-            } finally {
-                mAlgorithmLock.readLock().unlock();
-            }
-        }
-
-        @Override
-        protected void onPostExecute(Set<? extends Cluster<T>> clusters) {
-            mRenderer.onClustersChanged(clusters);
-        }
-    }
-
     /**
      * Sets a callback that's invoked when a Cluster is tapped. Note: For this listener to function,
      * the NodeClusterManager must be added as a click listener to the map.
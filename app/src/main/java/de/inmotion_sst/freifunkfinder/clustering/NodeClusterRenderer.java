@@ -98,6 +98,14 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
      */
     private float mZoom;
 
+    /**
+     * Items of a site are drawn as one marker until it is tapped, then around it. Sites are told apart by position.
+     */
+    private static final int FAN_RADIUS_DP = 24;
+    private static final int FAN_SPACING_DP = 32;
+    private volatile LatLng mExpandedSite;
+    private LatLng mRenderedExpandedSite;
+
     private final ViewModifier mViewModifier = new ViewModifier();
 
     private ClusterManager.OnClusterClickListener<T> mClickListener;
@@ -146,7 +154,12 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
         mClusterManager.getClusterMarkerCollection().setOnMarkerClickListener(new GoogleMap.OnMarkerClickListener() {
             @Override
             public boolean onMarkerClick(Marker marker) {
-                return mClickListener != null && mClickListener.onClusterClick(mMarkerToCluster.get(marker));
+                Cluster<T> cluster = mMarkerToCluster.get(marker);
+                if (isSite(cluster)) {
+                    toggleSite(cluster.getPosition());
+                    return true;
+                }
+                return mClickListener != null && mClickListener.onClusterClick(cluster);
             }
         });
 
@@ -278,12 +291,70 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
     }
 
     /**
-     * Determine whether the cluster should be rendered as individual markers or a cluster.
+     * Determine whether the cluster should be rendered as individual markers or a cluster. A site is one marker
+     * until it is expanded.
      */
     protected boolean shouldRenderAsCluster(Cluster<T> cluster) {
+        if (isSite(cluster))
+            return !cluster.getPosition().equals(mExpandedSite);
+
         return cluster.getSize() > MIN_CLUSTER_SIZE;
     }
 
+    /**
+     * @return true for a cluster of several items at a single site
+     */
+    private static boolean isSite(Cluster<?> cluster) {
+        return cluster instanceof SiteCluster && ((SiteCluster<?>) cluster).getSiteCount() == 1 && cluster.getSize() > 1;
+    }
+
+    /**
+     * Shows the items of a site around it, or collapses them again if they are already shown
+     */
+    private void toggleSite(LatLng site) {
+        mExpandedSite = site.equals(mExpandedSite) ? null : site;
+        if (mClusters != null) {
+            mViewModifier.queue(mClusters);
+        }
+    }
+
+    /**
+     * Replaces clusters of several sites that are drawn as individual markers by one cluster per site, so
+     * co-located items get a single marker
+     */
+    private List<Cluster<T>> splitSites(Set<? extends Cluster<T>> clusters) {
+        List<Cluster<T>> result = new ArrayList<Cluster<T>>(clusters.size());
+        for (Cluster<T> c : clusters) {
+            if (c instanceof SiteCluster && ((SiteCluster<T>) c).getSiteCount() > 1 && !shouldRenderAsCluster(c)) {
+                SiteCluster<T> sites = (SiteCluster<T>) c;
+                for (int i = 0; i < sites.getSiteCount(); i++) {
+                    result.add(SiteCluster.of(sites.getSites(), sites.getSite(i)));
+                }
+            } else {
+                result.add(c);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Positions on a circle around the site for its items, far enough apart to tap each at the zoom level
+     */
+    private LatLng[] fanOut(Cluster<T> site, float zoom) {
+        // a world of 256 dp at zoom level 0, like map tiles
+        SphericalMercatorProjection projection = new SphericalMercatorProjection(256 * Math.pow(2, zoom));
+        Point center = projection.toPoint(site.getPosition());
+        int n = site.getSize();
+        double radius = Math.max(FAN_RADIUS_DP, n * FAN_SPACING_DP / (2 * Math.PI));
+
+        LatLng[] positions = new LatLng[n];
+        for (int i = 0; i < n; i++) {
+            double angle = 2 * Math.PI * i / n - Math.PI / 2;
+            positions[i] = projection.toLatLng(new Point(center.x + radius * Math.cos(angle), center.y + radius * Math.sin(angle)));
+        }
+        return positions;
+    }
+
     /**
      * Transforms the current view (represented by NodeClusterRenderer.mClusters and NodeClusterRenderer.mZoom) to a
      * new zoom level and set of clusters.
@@ -309,6 +380,8 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
         private SphericalMercatorProjection mSphericalMercatorProjection;
         private float mMapZoom;
 
+        private final LatLng expandedSite = mExpandedSite;
+
         private RenderTask(Set<? extends Cluster<T>> clusters) {
             this.clusters = clusters;
         }
@@ -333,7 +406,8 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
 
         @SuppressLint("NewApi")
         public void run() {
-            if (clusters.equals(NodeClusterRenderer.this.mClusters)) {
+            boolean sameSiteExpanded = expandedSite == null ? mRenderedExpandedSite == null : expandedSite.equals(mRenderedExpandedSite);
+            if (clusters.equals(NodeClusterRenderer.this.mClusters) && sameSiteExpanded) {
                 mCallback.run();
                 return;
             }
@@ -362,8 +436,14 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
             }
 
             // Create the new markers and animate them to their new positions.
+            final List<Cluster<T>> markerClusters = splitSites(clusters);
             final Set<MarkerWithPosition> newMarkers = Collections.newSetFromMap(new ConcurrentHashMap<MarkerWithPosition, Boolean>());
-            for (Cluster<T> c : clusters) {
+            for (Cluster<T> c : markerClusters) {
+                if (isSite(c) && !shouldRenderAsCluster(c)) {
+                    markerModifier.add(true, new CreateMarkerTask(c, newMarkers, null, fanOut(c, zoom)));
+                    continue;
+                }
+
                 boolean onScreen = visibleBounds.contains(c.getPosition());
                 if (zoomingIn && onScreen && shouldAnimate) {
                     Point point = mSphericalMercatorProjection.toPoint(c.getPosition());
@@ -391,7 +471,7 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
             List<Point> newClustersOnScreen = null;
             if (shouldAnimate) {
                 newClustersOnScreen = new ArrayList<Point>();
-                for (Cluster<T> c : clusters) {
+                for (Cluster<T> c : markerClusters) {
                     if (shouldRenderAsCluster(c) && visibleBounds.contains(c.getPosition())) {
                         Point p = mSphericalMercatorProjection.toPoint(c.getPosition());
                         newClustersOnScreen.add(p);
@@ -422,6 +502,7 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
 
             mMarkers = newMarkers;
             NodeClusterRenderer.this.mClusters = clusters;
+            mRenderedExpandedSite = expandedSite;
             mZoom = zoom;
 
             mCallback.run();
@@ -775,6 +856,7 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
         private final Cluster<T> cluster;
         private final Set<MarkerWithPosition> newMarkers;
         private final LatLng animateFrom;
+        private final LatLng[] itemPositions;
 
         /**
          * @param c            the cluster to render.
@@ -783,15 +865,26 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
          *                     animation is required.
          */
         public CreateMarkerTask(Cluster<T> c, Set<MarkerWithPosition> markersAdded, LatLng animateFrom) {
+            this(c, markersAdded, animateFrom, null);
+        }
+
+        /**
+         * @param itemPositions where to place the markers of the items instead of their own position, in the order
+         *                      of {@link Cluster#getItems()}, or null
+         */
+        public CreateMarkerTask(Cluster<T> c, Set<MarkerWithPosition> markersAdded, LatLng animateFrom, LatLng[] itemPositions) {
             this.cluster = c;
             this.newMarkers = markersAdded;
             this.animateFrom = animateFrom;
+            this.itemPositions = itemPositions;
         }
 
         private void perform(MarkerModifier markerModifier) {
             // Don't show small clusters. Render the markers inside, instead.
             if (!shouldRenderAsCluster(cluster)) {
+                int index = 0;
                 for (T item : cluster.getItems()) {
+                    LatLng position = itemPositions != null ? itemPositions[index++] : item.getPosition();
                     Marker marker = mMarkerCache.get(item);
                     MarkerWithPosition markerWithPosition;
                     if (marker == null) {
@@ -799,16 +892,20 @@ public class NodeClusterRenderer<T extends Node> implements ClusterRenderer<T> {
                         if (animateFrom != null) {
                             markerOptions.position(animateFrom);
                         } else {
-                            markerOptions.position(item.getPosition());
+                            markerOptions.position(position);
                         }
                         onBeforeClusterItemRendered(item, markerOptions);
                         marker = mClusterManager.getMarkerCollection().addMarker(markerOptions);
                         markerWithPosition = new MarkerWithPosition(marker);
                         mMarkerCache.put(item, marker);
                         if (animateFrom != null) {
-                            markerModifier.animate(markerWithPosition, animateFrom, item.getPosition());
+                            markerModifier.animate(markerWithPosition, animateFrom, position);
                         }
                     } else {
+                        if (itemPositions != null) {
+                            // the fan around a site grows and shrinks with the zoom level
+                            marker.setPosition(position);
+                        }
                         markerWithPosition = new MarkerWithPosition(marker);
                     }
                     onClusterItemRendered(item, marker);
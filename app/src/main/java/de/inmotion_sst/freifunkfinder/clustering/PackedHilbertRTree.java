@@ -0,0 +1,592 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.util.Arrays;
+
+/**
+ * A static R-tree over projected item positions, bulk loaded in Hilbert curve order and stored in flat arrays.
+ * <p>
+ * Items are sorted by the Hilbert value of their position, every {@link #NODE_SIZE} consecutive items form a leaf
+ * node, every {@link #NODE_SIZE} consecutive nodes a node of the next level, up to a single root. Nodes only keep
+ * their bounding box and the range of their children, there are no node objects. Items at the same position simply
+ * end up next to each other, they never cause deeper trees.
+ * <p>
+ * Items with invalid coordinates are kept out of the tree, they would stretch the boxes of their nodes across the
+ * world. Queries check them one by one.
+ */
+public final class PackedHilbertRTree implements SpatialIndex {
+    static final int NODE_SIZE = 16;
+
+    // the Hilbert values are computed on a grid of 2^16 cells per axis
+    private static final int HILBERT_LEVEL = 16;
+    private static final int HILBERT_SIZE = 1 << HILBERT_LEVEL;
+
+    public static final SpatialIndex.Factory FACTORY = new SpatialIndex.Factory() {
+        @Override
+        public SpatialIndex build(ItemTable<?> table) {
+            return PackedHilbertRTree.build(table);
+        }
+    };
+
+    // valid items in Hilbert order
+    private final int[] handles;
+    private final double[] xs;
+    private final double[] ys;
+
+    // nodes level by level starting at the leaves, the root is last
+    private final double[] nodeMinXs;
+    private final double[] nodeMinYs;
+    private final double[] nodeMaxXs;
+    private final double[] nodeMaxYs;
+    private final int[] nodeStarts;
+    private final int[] nodeEnds;
+    private final int leafCount;
+
+    // items without a valid position
+    private final int[] outliers;
+
+    // in handle order, for looking up positions of query results
+    private final double[] handleXs;
+    private final double[] handleYs;
+
+    // built by the first aggregate query
+    private volatile Aggregates aggregates;
+
+    // attributes of the nodes, built by the first filtered query
+    private volatile AttributeMasks attributes;
+
+    private PackedHilbertRTree(int[] handles, double[] xs, double[] ys, double[] nodeMinXs, double[] nodeMinYs,
+                               double[] nodeMaxXs, double[] nodeMaxYs, int[] nodeStarts, int[] nodeEnds, int leafCount,
+                               int[] outliers, double[] handleXs, double[] handleYs) {
+        this.handles = handles;
+        this.xs = xs;
+        this.ys = ys;
+        this.nodeMinXs = nodeMinXs;
+        this.nodeMinYs = nodeMinYs;
+        this.nodeMaxXs = nodeMaxXs;
+        this.nodeMaxYs = nodeMaxYs;
+        this.nodeStarts = nodeStarts;
+        this.nodeEnds = nodeEnds;
+        this.leafCount = leafCount;
+        this.outliers = outliers;
+        this.handleXs = handleXs;
+        this.handleYs = handleYs;
+    }
+
+    /**
+     * Builds a tree over the positions of all items of a table, without creating any item objects
+     */
+    public static PackedHilbertRTree build(ItemTable<?> table) {
+        int n = table.size();
+        double[] handleXs = new double[n];
+        double[] handleYs = new double[n];
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        HandleList valid = new HandleList(n);
+        HandleList invalid = new HandleList();
+
+        for (int handle = 0; handle < n; handle++) {
+            double latitude = table.getLatitude(handle);
+            double longitude = table.getLongitude(handle);
+            double x = SpatialDataSource.toX(longitude);
+            double y = SpatialDataSource.toY(latitude);
+            handleXs[handle] = x;
+            handleYs[handle] = y;
+
+            if (!GreatCircleBounds.isValid(latitude, longitude)) {
+                invalid.add(handle);
+                continue;
+            }
+
+            valid.add(handle);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        // sort by Hilbert value, ties by handle, both packed into one long so no comparator is needed
+        int m = valid.size();
+        double scaleX = maxX > minX ? (HILBERT_SIZE - 1) / (maxX - minX) : 0;
+        double scaleY = maxY > minY ? (HILBERT_SIZE - 1) / (maxY - minY) : 0;
+        long[] keys = new long[m];
+        for (int i = 0; i < m; i++) {
+            int handle = valid.get(i);
+            int hx = (int) ((handleXs[handle] - minX) * scaleX);
+            int hy = (int) ((handleYs[handle] - minY) * scaleY);
+            keys[i] = CellIndex.hilbert(HILBERT_LEVEL, hx, hy) << 31 | handle;
+        }
+        Arrays.sort(keys);
+
+        int[] handles = new int[m];
+        double[] xs = new double[m];
+        double[] ys = new double[m];
+        for (int i = 0; i < m; i++) {
+            int handle = (int) (keys[i] & Integer.MAX_VALUE);
+            handles[i] = handle;
+            xs[i] = handleXs[handle];
+            ys[i] = handleYs[handle];
+        }
+
+        // number of nodes over all levels
+        int leafCount = (m + NODE_SIZE - 1) / NODE_SIZE;
+        int nodeCount = 0;
+        for (int count = leafCount; count > 0; count = count == 1 ? 0 : (count + NODE_SIZE - 1) / NODE_SIZE) {
+            nodeCount += count;
+        }
+
+        double[] nodeMinXs = new double[nodeCount];
+        double[] nodeMinYs = new double[nodeCount];
+        double[] nodeMaxXs = new double[nodeCount];
+        double[] nodeMaxYs = new double[nodeCount];
+        int[] nodeStarts = new int[nodeCount];
+        int[] nodeEnds = new int[nodeCount];
+
+        for (int node = 0; node < leafCount; node++) {
+            int start = node * NODE_SIZE;
+            int end = Math.min(start + NODE_SIZE, m);
+            nodeStarts[node] = start;
+            nodeEnds[node] = end;
+            nodeMinXs[node] = nodeMinYs[node] = Double.POSITIVE_INFINITY;
+            nodeMaxXs[node] = nodeMaxYs[node] = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                nodeMinXs[node] = Math.min(nodeMinXs[node], xs[i]);
+                nodeMinYs[node] = Math.min(nodeMinYs[node], ys[i]);
+                nodeMaxXs[node] = Math.max(nodeMaxXs[node], xs[i]);
+                nodeMaxYs[node] = Math.max(nodeMaxYs[node], ys[i]);
+            }
+        }
+
+        int levelStart = 0;
+        int levelEnd = leafCount;
+        int node = leafCount;
+        while (levelEnd - levelStart > 1) {
+            for (int start = levelStart; start < levelEnd; start += NODE_SIZE, node++) {
+                int end = Math.min(start + NODE_SIZE, levelEnd);
+                nodeStarts[node] = start;
+                nodeEnds[node] = end;
+                nodeMinXs[node] = nodeMinYs[node] = Double.POSITIVE_INFINITY;
+                nodeMaxXs[node] = nodeMaxYs[node] = Double.NEGATIVE_INFINITY;
+                for (int child = start; child < end; child++) {
+                    nodeMinXs[node] = Math.min(nodeMinXs[node], nodeMinXs[child]);
+                    nodeMinYs[node] = Math.min(nodeMinYs[node], nodeMinYs[child]);
+                    nodeMaxXs[node] = Math.max(nodeMaxXs[node], nodeMaxXs[child]);
+                    nodeMaxYs[node] = Math.max(nodeMaxYs[node], nodeMaxYs[child]);
+                }
+            }
+            levelStart = levelEnd;
+            levelEnd = node;
+        }
+
+        int[] outliers = new int[invalid.size()];
+        for (int i = 0; i < outliers.length; i++) {
+            outliers[i] = invalid.get(i);
+        }
+
+        return new PackedHilbertRTree(handles, xs, ys, nodeMinXs, nodeMinYs, nodeMaxXs, nodeMaxYs, nodeStarts, nodeEnds,
+                leafCount, outliers, handleXs, handleYs);
+    }
+
+    @Override
+    public int size() {
+        return handleXs.length;
+    }
+
+    @Override
+    public double getX(int handle) {
+        return handleXs[handle];
+    }
+
+    @Override
+    public double getY(int handle) {
+        return handleYs[handle];
+    }
+
+    @Override
+    public void range(double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        for (int handle : outliers) {
+            double x = handleXs[handle];
+            double y = handleYs[handle];
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY)
+                visitor.visit(handle);
+        }
+
+        int root = nodeStarts.length - 1;
+        if (root >= 0) {
+            range(root, minX, maxX, minY, maxY, visitor);
+        }
+    }
+
+    // depth is logarithmic in the item count, recursing needs no stack to be allocated
+    private void range(int node, double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        if (nodeMaxXs[node] < minX || nodeMinXs[node] > maxX || nodeMaxYs[node] < minY || nodeMinYs[node] > maxY)
+            return;
+
+        if (node < leafCount) {
+            for (int i = nodeStarts[node]; i < nodeEnds[node]; i++) {
+                if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY)
+                    visitor.visit(handles[i]);
+            }
+        } else {
+            for (int child = nodeStarts[node]; child < nodeEnds[node]; child++) {
+                range(child, minX, maxX, minY, maxY, visitor);
+            }
+        }
+    }
+
+    @Override
+    public void range(ItemTable<?> table, ItemFilter filter, double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        if (filter.isAll()) {
+            range(minX, maxX, minY, maxY, visitor);
+            return;
+        }
+
+        AttributeMasks masks = findAttributes(table);
+        ItemFilter.Resolved resolved = filter.resolve(table);
+        for (int handle : outliers) {
+            double x = handleXs[handle];
+            double y = handleYs[handle];
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY && masks.matches(resolved, handle))
+                visitor.visit(handle);
+        }
+
+        int root = nodeStarts.length - 1;
+        if (root >= 0) {
+            range(masks, resolved, root, minX, maxX, minY, maxY, visitor);
+        }
+    }
+
+    // like the unfiltered range, skipping nodes without matching items
+    private void range(AttributeMasks masks, ItemFilter.Resolved filter, int node,
+                       double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        if (nodeMaxXs[node] < minX || nodeMinXs[node] > maxX || nodeMaxYs[node] < minY || nodeMinYs[node] > maxY)
+            return;
+        if (!masks.mayMatch(filter, node))
+            return;
+
+        if (node < leafCount) {
+            for (int i = nodeStarts[node]; i < nodeEnds[node]; i++) {
+                if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY && masks.matches(filter, handles[i]))
+                    visitor.visit(handles[i]);
+            }
+        } else {
+            for (int child = nodeStarts[node]; child < nodeEnds[node]; child++) {
+                range(masks, filter, child, minX, maxX, minY, maxY, visitor);
+            }
+        }
+    }
+
+    private AttributeMasks findAttributes(ItemTable<?> table) {
+        AttributeMasks found = attributes;
+        if (found == null) {
+            // racing queries may both build, the masks are equal
+            int nodeCount = nodeStarts.length;
+            int[] itemStarts = new int[nodeCount];
+            int[] itemEnds = new int[nodeCount];
+            findItemRanges(itemStarts, itemEnds);
+
+            found = new AttributeMasks(table, nodeCount);
+            for (int node = 0; node < nodeCount; node++) {
+                found.setNode(node, handles, itemStarts[node], itemEnds[node]);
+            }
+            attributes = found;
+        }
+        return found;
+    }
+
+    @Override
+    public void aggregate(ItemTable<?> table, double minX, double maxX, double minY, double maxY, RangeAggregate result) {
+        Aggregates found = aggregates;
+        if (found == null) {
+            // racing queries may both build, the aggregates are equal
+            found = new Aggregates(table);
+            aggregates = found;
+        }
+
+        // outliers never count, they have no valid position
+        int root = nodeStarts.length - 1;
+        if (root >= 0) {
+            aggregate(found, root, minX, maxX, minY, maxY, result);
+        }
+    }
+
+    private void aggregate(Aggregates aggregates, int node, double minX, double maxX, double minY, double maxY, RangeAggregate result) {
+        if (nodeMaxXs[node] < minX || nodeMinXs[node] > maxX || nodeMaxYs[node] < minY || nodeMinYs[node] > maxY)
+            return;
+
+        if (nodeMinXs[node] >= minX && nodeMaxXs[node] <= maxX && nodeMinYs[node] >= minY && nodeMaxYs[node] <= maxY) {
+            aggregates.sums.addTo(result, aggregates.itemStarts[node], aggregates.itemEnds[node]);
+            return;
+        }
+
+        if (node < leafCount) {
+            for (int i = nodeStarts[node]; i < nodeEnds[node]; i++) {
+                if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY)
+                    aggregates.sums.addTo(result, i, i + 1);
+            }
+        } else {
+            for (int child = nodeStarts[node]; child < nodeEnds[node]; child++) {
+                aggregate(aggregates, child, minX, maxX, minY, maxY, result);
+            }
+        }
+    }
+
+    /**
+     * Finds the items closest to a position, walking the tree best-first like
+     * {@link PackedPointIndex#nearest(ItemTable, double, double, int, double, NeighborList)}
+     */
+    @Override
+    public void nearest(ItemTable<?> table, double latitude, double longitude, int k, double maxDistance, NeighborList result) {
+        nearest(table, latitude, longitude, k, maxDistance, ItemFilter.ALL, result);
+    }
+
+    @Override
+    public void nearest(ItemTable<?> table, double latitude, double longitude, int k, double maxDistance,
+                        ItemFilter filter, NeighborList result) {
+        int n = size();
+        if (n == 0 || k <= 0)
+            return;
+
+        AttributeMasks masks = filter.isAll() ? null : findAttributes(table);
+        ItemFilter.Resolved resolved = masks == null ? null : filter.resolve(table);
+
+        double qx = SpatialDataSource.toX(longitude);
+        double qy = SpatialDataSource.toY(latitude);
+        double queryLat = Math.toRadians(latitude);
+        double queryLon = Math.toRadians(longitude);
+
+        ClosestHeap closest = ClosestHeap.forThread(Math.min(k, n));
+        for (int handle : outliers) {
+            if (masks != null && !masks.matches(resolved, handle))
+                continue;
+
+            double distance = SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(handle), table.getLongitude(handle));
+            if (distance <= maxDistance) {
+                closest.offer(handle, distance);
+            }
+        }
+
+        int root = nodeStarts.length - 1;
+        if (root >= 0 && (masks == null || masks.mayMatch(resolved, root))) {
+            // items are queued as -1 - index, nodes by their index
+            NodeQueue queue = NodeQueue.forThread();
+            queue.push(0, root);
+
+            while (queue.size > 0) {
+                double bound = queue.keys[0];
+                if (bound > maxDistance || (closest.isFull() && bound >= closest.distances[0]))
+                    break;
+
+                int entry = queue.values[0];
+                queue.pop();
+
+                if (entry < 0) {
+                    int handle = handles[-1 - entry];
+                    double distance = SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(handle), table.getLongitude(handle));
+                    if (distance <= maxDistance) {
+                        closest.offer(handle, distance);
+                    }
+                    continue;
+                }
+
+                expand(queue, bound, entry, qx, qy, queryLat, queryLon, masks, resolved);
+            }
+        }
+
+        closest.drainSorted(result);
+    }
+
+    // queues the items or children of a node
+    private void expand(NodeQueue queue, double bound, int node, double qx, double qy, double queryLat, double queryLon,
+                        AttributeMasks masks, ItemFilter.Resolved resolved) {
+        if (node < leafCount) {
+            // any item within the box is at least this far away per projected unit
+            double factor = GreatCircleBounds.metersPerUnit(queryLat, queryLon,
+                    nodeMinXs[node], nodeMinYs[node], nodeMaxXs[node], nodeMaxYs[node]);
+            for (int i = nodeStarts[node]; i < nodeEnds[node]; i++) {
+                if (masks == null || masks.matches(resolved, handles[i])) {
+                    queue.push(GreatCircleBounds.distance(qx, qy, xs[i], ys[i]) * factor, -1 - i);
+                }
+            }
+        } else {
+            for (int child = nodeStarts[node]; child < nodeEnds[node]; child++) {
+                if (masks != null && !masks.mayMatch(resolved, child))
+                    continue;
+
+                double childBound = GreatCircleBounds.boxBound(qx, qy, queryLat, queryLon,
+                        nodeMinXs[child], nodeMinYs[child], nodeMaxXs[child], nodeMaxYs[child]);
+                queue.push(Math.max(bound, childBound), child);
+            }
+        }
+    }
+
+    /**
+     * Starts a best-first walk like {@link #nearest(ItemTable, double, double, int, double, ItemFilter, NeighborList)}
+     * that keeps its queue between calls, see {@link PackedPointIndex#nearestCursor(ItemTable, double, double, ItemFilter)}
+     */
+    @Override
+    public NearestCursor nearestCursor(ItemTable<?> table, double latitude, double longitude, ItemFilter filter) {
+        return new Cursor(table, latitude, longitude, filter);
+    }
+
+    private final class Cursor implements NearestCursor {
+        private final ItemTable<?> table;
+        private final double latitude;
+        private final double longitude;
+        private final double qx;
+        private final double qy;
+        private final double queryLat;
+        private final double queryLon;
+        private final AttributeMasks masks;
+        private final ItemFilter.Resolved resolved;
+
+        // besides nodes and items, handles with their exact distance are queued as -1 - item count - handle
+        private final NodeQueue queue = new NodeQueue();
+
+        Cursor(ItemTable<?> table, double latitude, double longitude, ItemFilter filter) {
+            this.table = table;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            qx = SpatialDataSource.toX(longitude);
+            qy = SpatialDataSource.toY(latitude);
+            queryLat = Math.toRadians(latitude);
+            queryLon = Math.toRadians(longitude);
+            masks = filter.isAll() ? null : findAttributes(table);
+            resolved = masks == null ? null : filter.resolve(table);
+
+            for (int handle : outliers) {
+                if (masks == null || masks.matches(resolved, handle)) {
+                    pushExact(handle);
+                }
+            }
+            int root = nodeStarts.length - 1;
+            if (root >= 0 && (masks == null || masks.mayMatch(resolved, root))) {
+                queue.push(0, root);
+            }
+        }
+
+        @Override
+        public int next(int count, NeighborList result) {
+            int added = 0;
+            while (added < count && queue.size > 0) {
+                double key = queue.keys[0];
+                int entry = queue.values[0];
+                queue.pop();
+
+                if (entry < -handles.length) {
+                    result.add(-1 - handles.length - entry, key);
+                    added++;
+                } else if (entry < 0) {
+                    pushExact(handles[-1 - entry]);
+                } else {
+                    expand(queue, key, entry, qx, qy, queryLat, queryLon, masks, resolved);
+                }
+            }
+            return added;
+        }
+
+        private void pushExact(int handle) {
+            double distance = SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(handle), table.getLongitude(handle));
+            queue.push(distance, -1 - handles.length - handle);
+        }
+    }
+
+    /**
+     * Prefix sums in Hilbert order and the range of items below every node
+     */
+    private final class Aggregates {
+        final RangeSums sums;
+        final int[] itemStarts;
+        final int[] itemEnds;
+
+        Aggregates(ItemTable<?> table) {
+            sums = new RangeSums(table, handles, xs, ys);
+
+            itemStarts = new int[nodeStarts.length];
+            itemEnds = new int[nodeStarts.length];
+            findItemRanges(itemStarts, itemEnds);
+        }
+    }
+
+    // the range of items below every node. Children come before their parents, a single pass finds all ranges.
+    private void findItemRanges(int[] itemStarts, int[] itemEnds) {
+        for (int node = 0; node < nodeStarts.length; node++) {
+            if (node < leafCount) {
+                itemStarts[node] = nodeStarts[node];
+                itemEnds[node] = nodeEnds[node];
+            } else {
+                itemStarts[node] = itemStarts[nodeStarts[node]];
+                itemEnds[node] = itemEnds[nodeEnds[node] - 1];
+            }
+        }
+    }
+
+    /**
+     * Binary min-heap of nodes and items by their distance bound
+     */
+    private static final class NodeQueue {
+        private static final ThreadLocal<NodeQueue> QUEUES = new ThreadLocal<NodeQueue>() {
+            @Override
+            protected NodeQueue initialValue() {
+                return new NodeQueue();
+            }
+        };
+
+        double[] keys = new double[64];
+        int[] values = new int[64];
+        int size;
+
+        // the empty queue of the calling thread, reused by all searches
+        static NodeQueue forThread() {
+            NodeQueue queue = QUEUES.get();
+            queue.size = 0;
+            return queue;
+        }
+
+        void push(double key, int value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (keys[parent] <= key)
+                    break;
+                keys[i] = keys[parent];
+                values[i] = values[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void pop() {
+            size--;
+            if (size == 0)
+                return;
+
+            // sift the last entry down from the root
+            double key = keys[size];
+            int value = values[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && keys[child + 1] < keys[child])
+                    child++;
+                if (key <= keys[child])
+                    break;
+                keys[i] = keys[child];
+                values[i] = values[child];
+                i = child;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+    }
+}
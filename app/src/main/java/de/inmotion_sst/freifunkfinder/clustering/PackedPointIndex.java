@@ -0,0 +1,828 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A static 2d-tree over projected item positions, stored in flat arrays without any node objects.
+ * <p>
+ * The tree is implicit: items are sorted so that the median of every range splits it alternating along x and y,
+ * ranges of up to {@link #NODE_SIZE} items are leaves that are scanned linearly. Coordinates are in the
+ * (0,1)|(0,1) world of {@link SpatialDataSource}, handles are those of the {@link ItemTable} the index was built from.
+ * <p>
+ * Because the layout is pointer free it can be written to disk as is and mapped back in without rebuilding
+ * or re-projecting anything. An index built from a table also keeps the {@link UnitVectors} of its items for
+ * radius queries, they are written to the same file.
+ */
+public final class PackedPointIndex implements SpatialIndex {
+    static final int MAGIC = 0x46464958; // "FFIX"
+    static final int FORMAT_VERSION = 2;
+    static final int HEADER_INTS = 4;
+
+    static final int NODE_SIZE = 64;
+
+    /**
+     * Builds indexes for tables that are not persisted
+     */
+    public static final SpatialIndex.Factory FACTORY = new SpatialIndex.Factory() {
+        @Override
+        public SpatialIndex build(ItemTable<?> table) {
+            return PackedPointIndex.build(table, 0);
+        }
+    };
+
+    private final int generation;
+
+    // in tree order
+    private final int[] handles;
+    private final double[] xs;
+    private final double[] ys;
+
+    // in handle order, for looking up positions of query results
+    private final double[] handleXs;
+    private final double[] handleYs;
+
+    // by handle, null for indexes over projected points
+    private final UnitVectors vectors;
+
+    // handles of items without a valid position and the bounds of all others, found on the first nearest neighbour search
+    private volatile Outliers outliers;
+
+    // prefix sums in tree order, built by the first aggregate query
+    private volatile RangeSums sums;
+
+    // attributes of the subtrees numbered like a binary heap, built by the first filtered query
+    private volatile AttributeMasks attributes;
+
+    private PackedPointIndex(int generation, int[] handles, double[] xs, double[] ys, UnitVectors vectors) {
+        this.generation = generation;
+        this.handles = handles;
+        this.xs = xs;
+        this.ys = ys;
+        this.vectors = vectors;
+
+        int n = handles.length;
+        handleXs = new double[n];
+        handleYs = new double[n];
+        for (int i = 0; i < n; i++) {
+            handleXs[handles[i]] = xs[i];
+            handleYs[handles[i]] = ys[i];
+        }
+    }
+
+    /**
+     * Builds an index over the positions of all items of a table, without creating any item objects
+     *
+     * @param generation identifies the table the index belongs to, see {@link #getGeneration()}
+     */
+    public static PackedPointIndex build(ItemTable<?> table, int generation) {
+        int n = table.size();
+        int[] handles = new int[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+
+        for (int handle = 0; handle < n; handle++) {
+            handles[handle] = handle;
+            xs[handle] = SpatialDataSource.toX(table.getLongitude(handle));
+            ys[handle] = SpatialDataSource.toY(table.getLatitude(handle));
+        }
+
+        sort(handles, xs, ys, 0, n - 1, 0);
+        return new PackedPointIndex(generation, handles, xs, ys, UnitVectors.build(table));
+    }
+
+    /**
+     * Builds an index over points that are already projected, their handles are their positions in the arrays
+     */
+    static PackedPointIndex build(double[] pointXs, double[] pointYs, int n) {
+        int[] handles = new int[n];
+        for (int handle = 0; handle < n; handle++) {
+            handles[handle] = handle;
+        }
+        double[] xs = Arrays.copyOf(pointXs, n);
+        double[] ys = Arrays.copyOf(pointYs, n);
+
+        sort(handles, xs, ys, 0, n - 1, 0);
+        return new PackedPointIndex(0, handles, xs, ys, null);
+    }
+
+    /**
+     * @return The generation passed when building, lets callers detect an index that does not match their items
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public int size() {
+        return handles.length;
+    }
+
+    /**
+     * @return The unit vectors of the items, or null if the index was built over projected points
+     */
+    UnitVectors getUnitVectors() {
+        return vectors;
+    }
+
+    @Override
+    public void range(double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        if (handles.length > 0) {
+            range(0, handles.length - 1, 0, minX, maxX, minY, maxY, visitor);
+        }
+    }
+
+    // recursion instead of an explicit stack, so queries do not allocate. The depth is logarithmic.
+    private void range(int left, int right, int axis, double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        if (right - left <= NODE_SIZE) {
+            for (int i = left; i <= right; i++) {
+                if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY)
+                    visitor.visit(handles[i]);
+            }
+            return;
+        }
+
+        int m = (left + right) >> 1;
+        double x = xs[m];
+        double y = ys[m];
+
+        if (x >= minX && x <= maxX && y >= minY && y <= maxY)
+            visitor.visit(handles[m]);
+
+        if (axis == 0 ? minX <= x : minY <= y) {
+            range(left, m - 1, 1 - axis, minX, maxX, minY, maxY, visitor);
+        }
+        if (axis == 0 ? maxX >= x : maxY >= y) {
+            range(m + 1, right, 1 - axis, minX, maxX, minY, maxY, visitor);
+        }
+    }
+
+    @Override
+    public void aggregate(ItemTable<?> table, double minX, double maxX, double minY, double maxY, RangeAggregate result) {
+        RangeSums found = sums;
+        if (found == null) {
+            // racing queries may both build, the sums are equal
+            found = new RangeSums(table, handles, xs, ys);
+            sums = found;
+        }
+
+        if (handles.length > 0) {
+            double inf = Double.POSITIVE_INFINITY;
+            aggregate(found, 0, handles.length - 1, 0, -inf, inf, -inf, inf, minX, maxX, minY, maxY, result);
+        }
+    }
+
+    // like range, but tracks the cell the splits above a subtree leave for it. A cell within the bounds holds only
+    // items within the bounds.
+    private void aggregate(RangeSums sums, int left, int right, int axis,
+                           double cellMinX, double cellMaxX, double cellMinY, double cellMaxY,
+                           double minX, double maxX, double minY, double maxY, RangeAggregate result) {
+        if (cellMinX >= minX && cellMaxX <= maxX && cellMinY >= minY && cellMaxY <= maxY) {
+            sums.addTo(result, left, right + 1);
+            return;
+        }
+
+        if (right - left <= NODE_SIZE) {
+            for (int i = left; i <= right; i++) {
+                if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY)
+                    sums.addTo(result, i, i + 1);
+            }
+            return;
+        }
+
+        int m = (left + right) >> 1;
+        double x = xs[m];
+        double y = ys[m];
+
+        if (x >= minX && x <= maxX && y >= minY && y <= maxY)
+            sums.addTo(result, m, m + 1);
+
+        if (axis == 0 ? minX <= x : minY <= y) {
+            aggregate(sums, left, m - 1, 1 - axis, cellMinX, axis == 0 ? x : cellMaxX, cellMinY, axis == 0 ? cellMaxY : y,
+                    minX, maxX, minY, maxY, result);
+        }
+        if (axis == 0 ? maxX >= x : maxY >= y) {
+            aggregate(sums, m + 1, right, 1 - axis, axis == 0 ? x : cellMinX, cellMaxX, axis == 0 ? cellMinY : y, cellMaxY,
+                    minX, maxX, minY, maxY, result);
+        }
+    }
+
+    @Override
+    public void range(ItemTable<?> table, ItemFilter filter, double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        if (filter.isAll()) {
+            range(minX, maxX, minY, maxY, visitor);
+            return;
+        }
+
+        if (handles.length > 0) {
+            range(findAttributes(table), filter.resolve(table), 0, 0, handles.length - 1, 0, minX, maxX, minY, maxY, visitor);
+        }
+    }
+
+    // like the unfiltered range, skipping subtrees without matching items
+    private void range(AttributeMasks masks, ItemFilter.Resolved filter, int node, int left, int right, int axis,
+                       double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        if (!masks.mayMatch(filter, node))
+            return;
+
+        if (right - left <= NODE_SIZE) {
+            for (int i = left; i <= right; i++) {
+                if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY && masks.matches(filter, handles[i]))
+                    visitor.visit(handles[i]);
+            }
+            return;
+        }
+
+        int m = (left + right) >> 1;
+        double x = xs[m];
+        double y = ys[m];
+
+        if (x >= minX && x <= maxX && y >= minY && y <= maxY && masks.matches(filter, handles[m]))
+            visitor.visit(handles[m]);
+
+        if (axis == 0 ? minX <= x : minY <= y) {
+            range(masks, filter, 2 * node + 1, left, m - 1, 1 - axis, minX, maxX, minY, maxY, visitor);
+        }
+        if (axis == 0 ? maxX >= x : maxY >= y) {
+            range(masks, filter, 2 * node + 2, m + 1, right, 1 - axis, minX, maxX, minY, maxY, visitor);
+        }
+    }
+
+    private AttributeMasks findAttributes(ItemTable<?> table) {
+        AttributeMasks found = attributes;
+        if (found == null) {
+            // racing queries may both build, the masks are equal
+            found = new AttributeMasks(table, handles.length == 0 ? 0 : nodeCount(0, 0, handles.length - 1));
+            if (handles.length > 0) {
+                setAttributes(found, 0, 0, handles.length - 1);
+            }
+            attributes = found;
+        }
+        return found;
+    }
+
+    // the highest heap number of a subtree plus one
+    private static int nodeCount(int node, int left, int right) {
+        if (right - left <= NODE_SIZE)
+            return node + 1;
+
+        int m = (left + right) >> 1;
+        return Math.max(nodeCount(2 * node + 1, left, m - 1), nodeCount(2 * node + 2, m + 1, right));
+    }
+
+    private void setAttributes(AttributeMasks masks, int node, int left, int right) {
+        masks.setNode(node, handles, left, right + 1);
+        if (right - left <= NODE_SIZE)
+            return;
+
+        int m = (left + right) >> 1;
+        setAttributes(masks, 2 * node + 1, left, m - 1);
+        setAttributes(masks, 2 * node + 2, m + 1, right);
+    }
+
+    /**
+     * Finds the items closest to a position by great-circle distance, walking the tree best-first.
+     * <p>
+     * Subtrees and items are visited in the order of a lower bound of their distance, computed from projected
+     * coordinates (see {@link GreatCircleBounds}). The exact distance
+     * is only computed for items taken from the queue, and the walk stops once no remaining bound can beat the
+     * k-th closest item.
+     *
+     * @param table       the table the index was built from, for exact positions
+     * @param k           maximum number of items
+     * @param maxDistance only items up to this distance in meters are returned
+     * @param result      receives the items and their distances, closest first
+     */
+    @Override
+    public void nearest(ItemTable<?> table, double latitude, double longitude, int k, double maxDistance, NeighborList result) {
+        nearest(table, latitude, longitude, k, maxDistance, ItemFilter.ALL, result);
+    }
+
+    /**
+     * Same as {@link #nearest(ItemTable, double, double, int, double, NeighborList)} for the items that match a
+     * filter. Subtrees without matching items are never queued.
+     */
+    @Override
+    public void nearest(ItemTable<?> table, double latitude, double longitude, int k, double maxDistance,
+                        ItemFilter filter, NeighborList result) {
+        int n = handles.length;
+        if (n == 0 || k <= 0)
+            return;
+
+        AttributeMasks masks = filter.isAll() ? null : findAttributes(table);
+        ItemFilter.Resolved resolved = masks == null ? null : filter.resolve(table);
+
+        double qx = SpatialDataSource.toX(longitude);
+        double qy = SpatialDataSource.toY(latitude);
+        double queryLat = Math.toRadians(latitude);
+        double queryLon = Math.toRadians(longitude);
+
+        NearestQueue queue = NearestQueue.forThread();
+        ClosestHeap closest = ClosestHeap.forThread(Math.min(k, n));
+
+        // the projection does not bound the distance of items outside the world, they are checked one by one
+        Outliers outliers = findOutliers(table);
+        for (int handle = outliers.handles.nextSetBit(0); handle >= 0; handle = outliers.handles.nextSetBit(handle + 1)) {
+            if (masks != null && !masks.matches(resolved, handle))
+                continue;
+
+            double distance = SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(handle), table.getLongitude(handle));
+            if (distance <= maxDistance) {
+                closest.offer(handle, distance);
+            }
+        }
+
+        if (outliers.minX <= outliers.maxX && (masks == null || masks.mayMatch(resolved, 0))) {
+            queue.pushRange(0, 0, 0, n - 1, 0, outliers.minX, outliers.minY, outliers.maxX, outliers.maxY);
+        }
+
+        while (queue.size > 0) {
+            double bound = queue.keys[0];
+            if (bound > maxDistance || (closest.isFull() && bound >= closest.distances[0]))
+                break;
+
+            if (queue.axes[0] == NearestQueue.ITEM) {
+                int handle = queue.lefts[0];
+                queue.pop();
+                if (outliers.handles.get(handle))
+                    continue;
+
+                double distance = SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(handle), table.getLongitude(handle));
+                if (distance <= maxDistance) {
+                    closest.offer(handle, distance);
+                }
+                continue;
+            }
+
+            expandTop(queue, qx, qy, queryLat, queryLon, masks, resolved);
+        }
+
+        closest.drainSorted(result);
+    }
+
+    /**
+     * Starts a best-first walk like {@link #nearest(ItemTable, double, double, int, double, ItemFilter, NeighborList)}
+     * that keeps its queue between calls. Items taken from the queue go back in with their exact distance, once
+     * one comes up again no other item can be closer.
+     */
+    @Override
+    public NearestCursor nearestCursor(ItemTable<?> table, double latitude, double longitude, ItemFilter filter) {
+        return new Cursor(table, latitude, longitude, filter);
+    }
+
+    private final class Cursor implements NearestCursor {
+        private final ItemTable<?> table;
+        private final double latitude;
+        private final double longitude;
+        private final double qx;
+        private final double qy;
+        private final double queryLat;
+        private final double queryLon;
+        private final AttributeMasks masks;
+        private final ItemFilter.Resolved resolved;
+        private final Outliers outliers;
+        private final NearestQueue queue = new NearestQueue();
+
+        Cursor(ItemTable<?> table, double latitude, double longitude, ItemFilter filter) {
+            this.table = table;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            qx = SpatialDataSource.toX(longitude);
+            qy = SpatialDataSource.toY(latitude);
+            queryLat = Math.toRadians(latitude);
+            queryLon = Math.toRadians(longitude);
+            masks = filter.isAll() ? null : findAttributes(table);
+            resolved = masks == null ? null : filter.resolve(table);
+            outliers = findOutliers(table);
+
+            for (int handle = outliers.handles.nextSetBit(0); handle >= 0; handle = outliers.handles.nextSetBit(handle + 1)) {
+                if (masks == null || masks.matches(resolved, handle)) {
+                    queue.pushExact(distanceTo(handle), handle);
+                }
+            }
+            if (handles.length > 0 && outliers.minX <= outliers.maxX && (masks == null || masks.mayMatch(resolved, 0))) {
+                queue.pushRange(0, 0, 0, handles.length - 1, 0, outliers.minX, outliers.minY, outliers.maxX, outliers.maxY);
+            }
+        }
+
+        @Override
+        public int next(int count, NeighborList result) {
+            int added = 0;
+            while (added < count && queue.size > 0) {
+                int kind = queue.axes[0];
+                if (kind == NearestQueue.EXACT) {
+                    result.add(queue.lefts[0], queue.keys[0]);
+                    queue.pop();
+                    added++;
+                } else if (kind == NearestQueue.ITEM) {
+                    int handle = queue.lefts[0];
+                    queue.pop();
+                    if (!outliers.handles.get(handle)) {
+                        queue.pushExact(distanceTo(handle), handle);
+                    }
+                } else {
+                    expandTop(queue, qx, qy, queryLat, queryLon, masks, resolved);
+                }
+            }
+            return added;
+        }
+
+        private double distanceTo(int handle) {
+            return SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(handle), table.getLongitude(handle));
+        }
+    }
+
+    // takes the subtree at the top of the queue and queues its items and children
+    private void expandTop(NearestQueue queue, double qx, double qy, double queryLat, double queryLon,
+                           AttributeMasks masks, ItemFilter.Resolved resolved) {
+        double bound = queue.keys[0];
+        int axis = queue.axes[0];
+        int node = queue.nodes[0];
+        int left = queue.lefts[0];
+        int right = queue.rights[0];
+        double bMinX = queue.minXs[0];
+        double bMinY = queue.minYs[0];
+        double bMaxX = queue.maxXs[0];
+        double bMaxY = queue.maxYs[0];
+        queue.pop();
+
+        // any item within the box is at least this far away per projected unit
+        double factor = GreatCircleBounds.metersPerUnit(queryLat, queryLon, bMinX, bMinY, bMaxX, bMaxY);
+
+        if (right - left <= NODE_SIZE) {
+            for (int i = left; i <= right; i++) {
+                if (masks == null || masks.matches(resolved, handles[i])) {
+                    queue.pushItem(GreatCircleBounds.distance(qx, qy, xs[i], ys[i]) * factor, handles[i]);
+                }
+            }
+            return;
+        }
+
+        int m = (left + right) >> 1;
+        if (masks == null || masks.matches(resolved, handles[m])) {
+            queue.pushItem(GreatCircleBounds.distance(qx, qy, xs[m], ys[m]) * factor, handles[m]);
+        }
+
+        // boxes stay within the bounds of valid items, only outliers are beyond them
+        double x = clamp(xs[m], bMinX, bMaxX);
+        double y = clamp(ys[m], bMinY, bMaxY);
+
+        double leftMaxX = axis == 0 ? x : bMaxX;
+        double leftMaxY = axis == 0 ? bMaxY : y;
+        double rightMinX = axis == 0 ? x : bMinX;
+        double rightMinY = axis == 0 ? bMinY : y;
+
+        // a child is never closer than its parent, its own box usually gives a tighter bound
+        int leftNode = 2 * node + 1;
+        int rightNode = 2 * node + 2;
+        if (masks == null || masks.mayMatch(resolved, leftNode)) {
+            queue.pushRange(Math.max(bound, GreatCircleBounds.boxBound(qx, qy, queryLat, queryLon, bMinX, bMinY, leftMaxX, leftMaxY)),
+                    leftNode, left, m - 1, 1 - axis, bMinX, bMinY, leftMaxX, leftMaxY);
+        }
+        if (masks == null || masks.mayMatch(resolved, rightNode)) {
+            queue.pushRange(Math.max(bound, GreatCircleBounds.boxBound(qx, qy, queryLat, queryLon, rightMinX, rightMinY, bMaxX, bMaxY)),
+                    rightNode, m + 1, right, 1 - axis, rightMinX, rightMinY, bMaxX, bMaxY);
+        }
+    }
+
+    private Outliers findOutliers(ItemTable<?> table) {
+        Outliers found = outliers;
+        if (found == null) {
+            found = new Outliers();
+            for (int handle = 0; handle < table.size(); handle++) {
+                double latitude = table.getLatitude(handle);
+                double longitude = table.getLongitude(handle);
+                if (!GreatCircleBounds.isValid(latitude, longitude)) {
+                    found.handles.set(handle);
+                } else {
+                    found.minX = Math.min(found.minX, handleXs[handle]);
+                    found.minY = Math.min(found.minY, handleYs[handle]);
+                    found.maxX = Math.max(found.maxX, handleXs[handle]);
+                    found.maxY = Math.max(found.maxY, handleYs[handle]);
+                }
+            }
+            outliers = found;
+        }
+        return found;
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * @return The projected x coordinate of an item
+     */
+    @Override
+    public double getX(int handle) {
+        return handleXs[handle];
+    }
+
+    /**
+     * @return The projected y coordinate of an item
+     */
+    @Override
+    public double getY(int handle) {
+        return handleYs[handle];
+    }
+
+    public void write(File file) throws IOException {
+        if (vectors == null)
+            throw new IOException("only indexes built from a table can be written");
+
+        int n = handles.length;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (4 * HEADER_INTS + byteSize(n) + UnitVectors.byteSize(n)));
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(generation).putInt(n);
+        put(buffer);
+        vectors.put(buffer);
+        buffer.rewind();
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("could not replace " + file);
+        }
+    }
+
+    public static PackedPointIndex read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < 4 * HEADER_INTS || size > Integer.MAX_VALUE)
+                throw new IOException("not a point index");
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("not a point index");
+
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("unsupported point index version " + version);
+
+            int generation = buffer.getInt();
+            int n = buffer.getInt();
+            if (n < 0 || size != 4 * HEADER_INTS + byteSize(n) + UnitVectors.byteSize(n))
+                throw new IOException("corrupt point index");
+
+            return get(buffer, generation, n, true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return The number of bytes {@link #put(ByteBuffer)} writes for an index of n items
+     */
+    static long byteSize(int n) {
+        return (long) n * (4 + 8 + 8);
+    }
+
+    /**
+     * Writes the tree at the position of the buffer and moves the position past it, for files that contain more
+     * than one index
+     */
+    void put(ByteBuffer buffer) {
+        int n = handles.length;
+        buffer.asIntBuffer().put(handles);
+        buffer.position(buffer.position() + 4 * n);
+        buffer.asDoubleBuffer().put(xs).put(ys);
+        buffer.position(buffer.position() + 8 * 2 * n);
+    }
+
+    /**
+     * Reads a tree of n items written by {@link #put(ByteBuffer)}
+     */
+    static PackedPointIndex get(ByteBuffer buffer, int generation, int n) throws IOException {
+        return get(buffer, generation, n, false);
+    }
+
+    // the unit vectors follow the tree in files of a single index
+    private static PackedPointIndex get(ByteBuffer buffer, int generation, int n, boolean withVectors) throws IOException {
+        if (n < 0 || buffer.remaining() < byteSize(n))
+            throw new IOException("corrupt point index");
+
+        // bulk copies, nothing is projected or sorted
+        int[] handles = new int[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        buffer.asIntBuffer().get(handles);
+        buffer.position(buffer.position() + 4 * n);
+        buffer.asDoubleBuffer().get(xs).get(ys);
+        buffer.position(buffer.position() + 8 * 2 * n);
+
+        for (int handle : handles) {
+            if (handle < 0 || handle >= n)
+                throw new IOException("corrupt point index");
+        }
+
+        return new PackedPointIndex(generation, handles, xs, ys, withVectors ? UnitVectors.get(buffer, n) : null);
+    }
+
+    private static void sort(int[] handles, double[] xs, double[] ys, int left, int right, int axis) {
+        if (right - left <= NODE_SIZE)
+            return;
+
+        int m = (left + right) >> 1;
+        select(handles, xs, ys, m, left, right, axis);
+
+        sort(handles, xs, ys, left, m - 1, 1 - axis);
+        sort(handles, xs, ys, m + 1, right, 1 - axis);
+    }
+
+    // Floyd-Rivest selection, afterwards k is at its sorted position along the axis
+    private static void select(int[] handles, double[] xs, double[] ys, int k, int left, int right, int axis) {
+        double[] values = axis == 0 ? xs : ys;
+
+        while (right > left) {
+            if (right - left > 600) {
+                int n = right - left + 1;
+                int m = k - left + 1;
+                double z = Math.log(n);
+                double s = 0.5 * Math.exp(2 * z / 3);
+                double sd = 0.5 * Math.sqrt(z * s * (n - s) / n) * (m - n / 2 < 0 ? -1 : 1);
+                int newLeft = (int) Math.max(left, Math.floor(k - m * s / n + sd));
+                int newRight = (int) Math.min(right, Math.floor(k + (n - m) * s / n + sd));
+                select(handles, xs, ys, k, newLeft, newRight, axis);
+            }
+
+            double t = values[k];
+            int i = left;
+            int j = right;
+
+            swap(handles, xs, ys, left, k);
+            if (values[right] > t)
+                swap(handles, xs, ys, left, right);
+
+            while (i < j) {
+                swap(handles, xs, ys, i, j);
+                i++;
+                j--;
+                while (values[i] < t) i++;
+                while (values[j] > t) j--;
+            }
+
+            if (values[left] == t) {
+                swap(handles, xs, ys, left, j);
+            } else {
+                j++;
+                swap(handles, xs, ys, j, right);
+            }
+
+            if (j <= k) left = j + 1;
+            if (k <= j) right = j - 1;
+        }
+    }
+
+    private static void swap(int[] handles, double[] xs, double[] ys, int i, int j) {
+        int h = handles[i];
+        handles[i] = handles[j];
+        handles[j] = h;
+
+        double x = xs[i];
+        xs[i] = xs[j];
+        xs[j] = x;
+
+        double y = ys[i];
+        ys[i] = ys[j];
+        ys[j] = y;
+    }
+
+    private static final class Outliers {
+        final BitSet handles = new BitSet();
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Binary min-heap of subtrees and items by their distance bound, stored in parallel arrays.
+     */
+    private static final class NearestQueue {
+        private static final ThreadLocal<NearestQueue> QUEUES = new ThreadLocal<NearestQueue>() {
+            @Override
+            protected NearestQueue initialValue() {
+                return new NearestQueue();
+            }
+        };
+
+        // kinds besides the axis of a subtree: an item keyed by a bound, or by its exact distance
+        static final int ITEM = 2;
+        static final int EXACT = 3;
+
+        double[] keys = new double[64];
+        int[] lefts = new int[64];
+        int[] rights = new int[64];
+        int[] axes = new int[64];
+        int[] nodes = new int[64];
+        double[] minXs = new double[64];
+        double[] minYs = new double[64];
+        double[] maxXs = new double[64];
+        double[] maxYs = new double[64];
+        int size;
+
+        // the empty queue of the calling thread, reused by all searches
+        static NearestQueue forThread() {
+            NearestQueue queue = QUEUES.get();
+            queue.size = 0;
+            return queue;
+        }
+
+        void pushItem(double key, int handle) {
+            pushRange(key, 0, handle, handle, ITEM, 0, 0, 0, 0);
+        }
+
+        void pushExact(double distance, int handle) {
+            pushRange(distance, 0, handle, handle, EXACT, 0, 0, 0, 0);
+        }
+
+        void pushRange(double key, int node, int left, int right, int axis, double minX, double minY, double maxX, double maxY) {
+            if (left > right)
+                return;
+
+            if (size == keys.length) {
+                grow();
+            }
+
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (keys[parent] <= key)
+                    break;
+                move(parent, i);
+                i = parent;
+            }
+            set(i, key, node, left, right, axis, minX, minY, maxX, maxY);
+        }
+
+        void pop() {
+            size--;
+            if (size == 0)
+                return;
+
+            // sift the last entry down from the root
+            int last = size;
+            double key = keys[last];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && keys[child + 1] < keys[child])
+                    child++;
+                if (key <= keys[child])
+                    break;
+                move(child, i);
+                i = child;
+            }
+            move(last, i);
+        }
+
+        private void move(int from, int to) {
+            set(to, keys[from], nodes[from], lefts[from], rights[from], axes[from], minXs[from], minYs[from], maxXs[from], maxYs[from]);
+        }
+
+        private void set(int i, double key, int node, int left, int right, int axis, double minX, double minY, double maxX, double maxY) {
+            keys[i] = key;
+            nodes[i] = node;
+            lefts[i] = left;
+            rights[i] = right;
+            axes[i] = axis;
+            minXs[i] = minX;
+            minYs[i] = minY;
+            maxXs[i] = maxX;
+            maxYs[i] = maxY;
+        }
+
+        private void grow() {
+            int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            lefts = Arrays.copyOf(lefts, capacity);
+            rights = Arrays.copyOf(rights, capacity);
+            axes = Arrays.copyOf(axes, capacity);
+            nodes = Arrays.copyOf(nodes, capacity);
+            minXs = Arrays.copyOf(minXs, capacity);
+            minYs = Arrays.copyOf(minYs, capacity);
+            maxXs = Arrays.copyOf(maxXs, capacity);
+            maxYs = Arrays.copyOf(maxYs, capacity);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.geometry.Bounds;
+import com.google.maps.android.geometry.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import java8.util.concurrent.ForkJoinPool;
+import java8.util.concurrent.RecursiveAction;
+
+/**
+ * Clusters the visible map tiles of the current zoom level in parallel on a {@link ForkJoinPool}, each like
+ * {@link TiledDistanceBasedAlgorithm} does, and then merges clusters across the seams between tiles.
+ * <p>
+ * The seams are merged in one sequential pass: clusters whose centers are within half a cluster span of a tile
+ * border are visited largest first, equally large ones in the order of their tiles, and each takes over the
+ * clusters of other tiles whose centers are within half a cluster span of its own. Tiles are clustered
+ * independently of each other and the pass only depends on their results, so the clusters are the same for any
+ * number of threads, including a single one.
+ * <p>
+ * Clusters contain the sites of whole tiles, so they can reach a little beyond the visible area.
+ */
+public class ParallelTiledDistanceBasedAlgorithm<T extends ClusterItem>
+        implements CompactClusterAlgorithm<T>, GoogleMap.OnCameraChangeListener {
+
+    // tile coordinates of deeper zoom levels would overflow the int tile coordinates of CellIndex
+    private static final int MAX_TILE_ZOOM = 29;
+
+    private final int mScreenWidth;
+    private final int mScreenHeight;
+    private final SpatialDataSource<T> mDataSource;
+    private final ForkJoinPool mPool;
+    private LatLng mMapCenter;
+
+    // clusterers are sized to the sites, one for every worker that ran a tile
+    private final ConcurrentLinkedQueue<DistanceClusterer<T>> mIdleClusterers = new ConcurrentLinkedQueue<>();
+
+    // the state of the last pass, taken by one pass at a time so that concurrent passes do not share it
+    private final AtomicReference<Pass<T>> mIdlePass = new AtomicReference<>();
+
+    public ParallelTiledDistanceBasedAlgorithm(int screenWidth, int screenHeight, SpatialDataSource<T> dataSource) {
+        this(screenWidth, screenHeight, dataSource, ForkJoinPool.commonPool());
+    }
+
+    public ParallelTiledDistanceBasedAlgorithm(int screenWidth, int screenHeight, SpatialDataSource<T> dataSource, ForkJoinPool pool) {
+        mScreenWidth = screenWidth;
+        mScreenHeight = screenHeight;
+        mDataSource = dataSource;
+        mPool = pool;
+    }
+
+    @Override
+    public Set<? extends Cluster<T>> getClusters(double zoom) {
+        ClusterList<T> clusters = new ClusterList<>();
+        getClusters(zoom, clusters);
+        return clusters.toClusters();
+    }
+
+    @Override
+    public void getClusters(double zoom, ClusterList<T> result) {
+        getClusters(zoom, result, Cancellation.NONE);
+    }
+
+    @Override
+    public boolean getClusters(double zoom, ClusterList<T> result, Cancellation cancellation) {
+        final int discreteZoom = Math.max(0, Math.min(MAX_TILE_ZOOM, (int) zoom));
+        final double halfSpan = VisibleNonHierarchicalDistanceBasedAlgorithm.MAX_DISTANCE_AT_ZOOM / Math.pow(2, discreteZoom) / 256 / 2;
+
+        // one snapshot for the whole pass, its cell index was built before it was published
+        SpatialDataSource.Snapshot<T> items = mDataSource.snapshot();
+
+        Bounds visibleBounds = getVisibleBounds(discreteZoom);
+        int lastTile = (1 << discreteZoom) - 1;
+        int minX = Math.max(0, CellIndex.toCell(visibleBounds.minX, discreteZoom));
+        int maxX = Math.min(lastTile, CellIndex.toCell(visibleBounds.maxX, discreteZoom));
+        int minY = Math.max(0, CellIndex.toCell(visibleBounds.minY, discreteZoom));
+        int maxY = Math.min(lastTile, CellIndex.toCell(visibleBounds.maxY, discreteZoom));
+
+        Pass<T> pass = mIdlePass.getAndSet(null);
+        if (pass == null) {
+            pass = new Pass<T>();
+        }
+        pass.start(items, discreteZoom, halfSpan, minX, minY, maxX - minX + 1, maxY - minY + 1, cancellation);
+        mPool.invoke(new TileTask<T>(this, pass, 0, pass.tileCount));
+        boolean done = !cancellation.isCancelled();
+        if (done) {
+            pass.mergeSeams(result);
+        } else {
+            // tiles that were still clustered when the pass was cancelled may be complete, but not the others
+            result.clear(items.getSites());
+        }
+        mIdlePass.set(pass);
+        return done;
+    }
+
+    private void clusterTile(Pass<T> pass, int tile) {
+        if (pass.cancellation.isCancelled())
+            return;
+
+        DistanceClusterer<T> clusterer = mIdleClusterers.poll();
+        if (clusterer == null || clusterer.getItems() != pass.items) {
+            // clusterers of older snapshots are dropped, there are only as many as workers ran at once
+            clusterer = new DistanceClusterer<T>(pass.items);
+        }
+
+        int zoom = pass.zoom;
+        int x = pass.minX + tile % pass.columns;
+        int y = pass.minY + tile / pass.columns;
+        HandleList tileSites = pass.tileSites.get(tile);
+        tileSites.clear();
+        pass.items.sites().getCells().forEachInCell(zoom, x, y, tileSites);
+
+        double tileSize = 1.0 / (1 << zoom);
+        Bounds bounds = new Bounds(x * tileSize, (x + 1) * tileSize, y * tileSize, (y + 1) * tileSize);
+        clusterer.cluster(tileSites, pass.halfSpan, bounds, pass.cancellation, pass.tileClusters.get(tile));
+
+        mIdleClusterers.offer(clusterer);
+    }
+
+    private Bounds getVisibleBounds(int zoom) {
+        if (mMapCenter == null) {
+            return new Bounds(0, 0, 0, 0);
+        }
+
+        Point p = mDataSource.toPoint(mMapCenter);
+
+        final double halfWidthSpan = mScreenWidth / Math.pow(2, zoom) / 256 / 2;
+        final double halfHeightSpan = mScreenHeight / Math.pow(2, zoom) / 256 / 2;
+
+        return new Bounds(
+                p.x - halfWidthSpan, p.x + halfWidthSpan,
+                p.y - halfHeightSpan, p.y + halfHeightSpan);
+    }
+
+    @Override
+    public void onCameraChange(CameraPosition cameraPosition) {
+        mMapCenter = cameraPosition.target;
+    }
+
+    /**
+     * Clusters a range of tiles, halves of the range are forked until a single tile is left
+     */
+    @SuppressWarnings("serial") // tasks only live for one pass and are never serialized
+    private static final class TileTask<T extends ClusterItem> extends RecursiveAction {
+        private final ParallelTiledDistanceBasedAlgorithm<T> algorithm;
+        private final Pass<T> pass;
+        private final int from;
+        private final int to;
+
+        TileTask(ParallelTiledDistanceBasedAlgorithm<T> algorithm, Pass<T> pass, int from, int to) {
+            this.algorithm = algorithm;
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (to > from) {
+                    algorithm.clusterTile(pass, from);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new TileTask<T>(algorithm, pass, from, middle), new TileTask<T>(algorithm, pass, middle, to));
+        }
+    }
+
+    /**
+     * The tiles of one pass and the state of merging their seams, reused by the next pass
+     */
+    private static final class Pass<T extends ClusterItem> {
+        SpatialDataSource.Snapshot<T> items;
+        int zoom;
+        double halfSpan;
+        int minX;
+        int minY;
+        int columns;
+        int rows;
+        int tileCount;
+        Cancellation cancellation;
+
+        // the sites and clusters of every tile, written by the worker of the tile
+        final List<HandleList> tileSites = new ArrayList<>();
+        final List<ClusterList<T>> tileClusters = new ArrayList<>();
+
+        // state per cluster of all tiles, clusters are numbered tile by tile
+        private int[] firstCluster = new int[16];
+        private int[] tileOfCluster = new int[16];
+        private int[] owner = new int[16];
+        private int[] nextMerged = new int[16];
+        private int[] lastMerged = new int[16];
+
+        // the clusters near a seam, as center coordinates and global cluster numbers
+        private double[] seamXs = new double[16];
+        private double[] seamYs = new double[16];
+        private int[] seamClusters = new int[16];
+        private int[] seamTiles = new int[16];
+        private long[] byX = new long[16];
+        private long[] bySize = new long[16];
+
+        void start(SpatialDataSource.Snapshot<T> items, int zoom, double halfSpan, int minX, int minY, int columns, int rows,
+                   Cancellation cancellation) {
+            this.items = items;
+            this.cancellation = cancellation;
+            this.zoom = zoom;
+            this.halfSpan = halfSpan;
+            this.minX = minX;
+            this.minY = minY;
+            this.columns = Math.max(0, columns);
+            this.rows = Math.max(0, rows);
+            tileCount = this.columns * this.rows;
+            while (tileSites.size() < tileCount) {
+                tileSites.add(new HandleList());
+                tileClusters.add(new ClusterList<T>());
+            }
+        }
+
+        void mergeSeams(ClusterList<T> result) {
+            SpatialDataSource.Snapshot<T> snapshot = items.sites();
+            Sites<T> sites = items.getSites();
+            double tileSize = 1.0 / (1 << zoom);
+
+            if (tileCount + 1 > firstCluster.length) {
+                firstCluster = new int[Math.max(tileCount + 1, firstCluster.length * 2)];
+            }
+            int clusterCount = 0;
+            for (int tile = 0; tile < tileCount; tile++) {
+                firstCluster[tile] = clusterCount;
+                clusterCount += tileClusters.get(tile).size();
+            }
+            firstCluster[tileCount] = clusterCount;
+            if (clusterCount > owner.length) {
+                int capacity = Math.max(clusterCount, owner.length * 2);
+                tileOfCluster = new int[capacity];
+                owner = new int[capacity];
+                nextMerged = new int[capacity];
+                lastMerged = new int[capacity];
+            }
+
+            // clusters with centers close enough to a tile border to merge with a cluster of the neighbouring tile
+            int seamCount = 0;
+            for (int tile = 0; tile < tileCount; tile++) {
+                ClusterList<T> clusters = tileClusters.get(tile);
+                int column = tile % columns;
+                int row = tile / columns;
+                double minTileX = (minX + column) * tileSize;
+                double minTileY = (minY + row) * tileSize;
+                for (int cluster = 0; cluster < clusters.size(); cluster++) {
+                    int global = firstCluster[tile] + cluster;
+                    tileOfCluster[global] = tile;
+                    owner[global] = -1;
+                    nextMerged[global] = -1;
+                    lastMerged[global] = global;
+
+                    int center = clusters.getSite(cluster, 0);
+                    double x = snapshot.getX(center);
+                    double y = snapshot.getY(center);
+                    boolean nearSeam = (column > 0 && x - minTileX <= halfSpan) || (column < columns - 1 && minTileX + tileSize - x <= halfSpan)
+                            || (row > 0 && y - minTileY <= halfSpan) || (row < rows - 1 && minTileY + tileSize - y <= halfSpan);
+                    if (!nearSeam)
+                        continue;
+
+                    if (seamCount == seamXs.length) {
+                        seamXs = Arrays.copyOf(seamXs, seamCount * 2);
+                        seamYs = Arrays.copyOf(seamYs, seamCount * 2);
+                        seamClusters = Arrays.copyOf(seamClusters, seamCount * 2);
+                        seamTiles = Arrays.copyOf(seamTiles, seamCount * 2);
+                        byX = new long[seamCount * 2];
+                        bySize = new long[seamCount * 2];
+                    }
+                    seamXs[seamCount] = x;
+                    seamYs[seamCount] = y;
+                    seamClusters[seamCount] = global;
+                    seamTiles[seamCount] = tile;
+                    seamCount++;
+                }
+            }
+
+            // seam clusters by x to find the ones near each other, and largest first, in the order of their tiles
+            // among equally large ones. Each is packed with its index into one sortable long, a screen has far
+            // fewer than 2^20 clusters near seams.
+            for (int seam = 0; seam < seamCount; seam++) {
+                byX[seam] = (long) (seamXs[seam] * (1L << 43)) << 20 | seam;
+                ClusterList<T> clusters = tileClusters.get(seamTiles[seam]);
+                int cluster = seamClusters[seam] - firstCluster[seamTiles[seam]];
+                bySize[seam] = (long) (Integer.MAX_VALUE - clusters.getSize(cluster)) << 32 | seam;
+            }
+            Arrays.sort(byX, 0, seamCount);
+            Arrays.sort(bySize, 0, seamCount);
+
+            for (int i = 0; i < seamCount; i++) {
+                int seam = (int) bySize[i];
+                int global = seamClusters[seam];
+                if (owner[global] >= 0)
+                    continue;
+
+                owner[global] = global;
+                double x = seamXs[seam];
+                double y = seamYs[seam];
+                for (int j = firstByX(x - halfSpan, seamCount); j < seamCount; j++) {
+                    int other = (int) (byX[j] & 0xfffff);
+                    if (seamXs[other] > x + halfSpan)
+                        break;
+
+                    int otherGlobal = seamClusters[other];
+                    if (seamTiles[other] == seamTiles[seam] || owner[otherGlobal] >= 0 || Math.abs(seamYs[other] - y) > halfSpan)
+                        continue;
+
+                    // the other cluster's sites, and those it took over itself, follow this one's
+                    owner[otherGlobal] = global;
+                    nextMerged[lastMerged[global]] = otherGlobal;
+                    lastMerged[global] = lastMerged[otherGlobal];
+                }
+            }
+
+            result.clear(sites);
+            for (int tile = 0; tile < tileCount; tile++) {
+                for (int global = firstCluster[tile]; global < firstCluster[tile + 1]; global++) {
+                    if (owner[global] >= 0 && owner[global] != global)
+                        continue;
+
+                    result.startCluster();
+                    for (int merged = global; merged >= 0; merged = nextMerged[merged]) {
+                        int mergedTile = tileOfCluster[merged];
+                        ClusterList<T> clusters = tileClusters.get(mergedTile);
+                        int cluster = merged - firstCluster[mergedTile];
+                        for (int i = 0; i < clusters.getSiteCount(cluster); i++) {
+                            result.addSite(clusters.getSite(cluster, i));
+                        }
+                    }
+                }
+            }
+        }
+
+        private int firstByX(double x, int seamCount) {
+            long key = (long) (Math.max(0, x) * (1L << 43)) << 20;
+            int index = Arrays.binarySearch(byX, 0, seamCount, key);
+            return index >= 0 ? index : ~index;
+        }
+    }
+}
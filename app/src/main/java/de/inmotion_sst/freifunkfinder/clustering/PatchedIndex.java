@@ -0,0 +1,330 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.maps.android.clustering.ClusterItem;
+
+import java.util.Arrays;
+
+/**
+ * An index over a table that differs from the table of a built index only at a few handles, e.g. after a sync
+ * changed, added or removed some items. Queries run on the built index, skipping the items that are no longer
+ * there, and on two small indexes: one over the changed items and one over the replaced items, which aggregates
+ * take back out. A change costs the number of changed items instead of indexing all items again.
+ * <p>
+ * Patching a patched index patches the same built index again, changes add up until the owner builds a new index,
+ * see {@link SpatialDataSource#patchItems(ItemTable, int[])}.
+ */
+final class PatchedIndex implements SpatialIndex {
+    static final int[] NONE = new int[0];
+
+    private static final ThreadLocal<Forwarder> FORWARDERS = new ThreadLocal<Forwarder>() {
+        @Override
+        protected Forwarder initialValue() {
+            return new Forwarder();
+        }
+    };
+
+    private static final ThreadLocal<RangeAggregate> REMOVED = new ThreadLocal<RangeAggregate>() {
+        @Override
+        protected RangeAggregate initialValue() {
+            return new RangeAggregate();
+        }
+    };
+
+    private final SpatialIndex mBase;
+    private final ItemTable<?> mBaseTable;
+    private final int mSize;
+
+    // ascending handles below mSize whose items are not those of the base index, and an index over their items
+    private final int[] mChanged;
+    private final SubTable<?> mAdded;
+    private final PackedPointIndex mAddedIndex;
+
+    // the base items that are gone from their handle, changed or beyond the end of the table
+    private final SubTable<?> mRemoved;
+    private final PackedPointIndex mRemovedIndex;
+
+    private PatchedIndex(SpatialIndex base, ItemTable<?> baseTable, ItemTable<?> table, int[] changed) {
+        mBase = base;
+        mBaseTable = baseTable;
+        mSize = table.size();
+        mChanged = changed;
+        mAdded = subTable(table, changed);
+        mAddedIndex = PackedPointIndex.build(mAdded, 0);
+
+        int baseSize = base.size();
+        int kept = 0;
+        while (kept < changed.length && changed[kept] < baseSize) {
+            kept++;
+        }
+        int[] removed = Arrays.copyOf(changed, kept + Math.max(0, baseSize - mSize));
+        for (int handle = mSize, i = kept; handle < baseSize; handle++) {
+            removed[i++] = handle;
+        }
+        mRemoved = subTable(baseTable, removed);
+        mRemovedIndex = PackedPointIndex.build(mRemoved, 0);
+    }
+
+    private static <T extends ClusterItem> SubTable<T> subTable(ItemTable<T> table, int[] handles) {
+        return new SubTable<T>(table, handles);
+    }
+
+    /**
+     * @param index      the index to patch, a built one or a patched one
+     * @param indexTable the table the index was built or patched for
+     * @param table      the changed table
+     * @param changed    ascending handles whose items differ between the tables, items beyond the end of either
+     *                   table count as changed without being listed
+     */
+    static PatchedIndex patch(SpatialIndex index, ItemTable<?> indexTable, ItemTable<?> table, int[] changed) {
+        if (index instanceof PatchedIndex) {
+            PatchedIndex patched = (PatchedIndex) index;
+            return new PatchedIndex(patched.mBase, patched.mBaseTable, table, union(patched.mChanged, changed, table.size()));
+        }
+        return new PatchedIndex(index, indexTable, table, union(NONE, changed, table.size()));
+    }
+
+    /**
+     * @return The handles of two ascending arrays below a limit, ascending and without duplicates
+     */
+    static int[] union(int[] a, int[] b, int limit) {
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            int handle = j == b.length || (i < a.length && a[i] < b[j]) ? a[i++] : b[j++];
+            if (handle >= limit)
+                continue;
+            if (n == 0 || result[n - 1] != handle) {
+                result[n++] = handle;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return The ascending handles whose items differ from those of the built index
+     */
+    int[] getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * @return The number of items queries look at besides the built index, grows with every patch
+     */
+    int getPatchSize() {
+        return mAdded.size() + mRemoved.size();
+    }
+
+    private boolean isReplaced(int handle) {
+        return handle >= mSize || Arrays.binarySearch(mChanged, handle) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public double getX(int handle) {
+        int i = Arrays.binarySearch(mChanged, handle);
+        return i >= 0 ? mAddedIndex.getX(i) : mBase.getX(handle);
+    }
+
+    @Override
+    public double getY(int handle) {
+        int i = Arrays.binarySearch(mChanged, handle);
+        return i >= 0 ? mAddedIndex.getY(i) : mBase.getY(handle);
+    }
+
+    @Override
+    public void range(double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        Forwarder forwarder = Forwarder.start(this, visitor);
+        try {
+            mBase.range(minX, maxX, minY, maxY, forwarder);
+            forwarder.mAdded = true;
+            mAddedIndex.range(minX, maxX, minY, maxY, forwarder);
+        } finally {
+            forwarder.reset();
+        }
+    }
+
+    @Override
+    public void range(ItemTable<?> table, ItemFilter filter, double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+        Forwarder forwarder = Forwarder.start(this, visitor);
+        try {
+            mBase.range(mBaseTable, filter, minX, maxX, minY, maxY, forwarder);
+            forwarder.mAdded = true;
+            mAddedIndex.range(mAdded, filter, minX, maxX, minY, maxY, forwarder);
+        } finally {
+            forwarder.reset();
+        }
+    }
+
+    @Override
+    public void aggregate(ItemTable<?> table, double minX, double maxX, double minY, double maxY, RangeAggregate result) {
+        mBase.aggregate(mBaseTable, minX, maxX, minY, maxY, result);
+
+        RangeAggregate removed = REMOVED.get();
+        removed.clear();
+        mRemovedIndex.aggregate(mRemoved, minX, maxX, minY, maxY, removed);
+        result.subtract(removed);
+
+        mAddedIndex.aggregate(mAdded, minX, maxX, minY, maxY, result);
+    }
+
+    @Override
+    public void nearest(ItemTable<?> table, double latitude, double longitude, int k, double maxDistance, NeighborList result) {
+        nearest(table, latitude, longitude, k, maxDistance, ItemFilter.ALL, result);
+    }
+
+    @Override
+    public void nearest(ItemTable<?> table, double latitude, double longitude, int k, double maxDistance,
+                        ItemFilter filter, NeighborList result) {
+        if (k <= 0)
+            return;
+
+        Cursor cursor = new Cursor(latitude, longitude, filter, Math.min(k, Stream.MAX_PAGE));
+        for (int found = 0; found < k; found++) {
+            Stream closer = cursor.closer();
+            if (closer == null || closer.distance() > maxDistance)
+                break;
+
+            result.add(closer.handle(), closer.distance());
+            closer.advance();
+        }
+    }
+
+    @Override
+    public NearestCursor nearestCursor(ItemTable<?> table, double latitude, double longitude, ItemFilter filter) {
+        return new Cursor(latitude, longitude, filter, Stream.MAX_PAGE);
+    }
+
+    /**
+     * Merges the items of the built index that are still there and the changed items by distance
+     */
+    private final class Cursor implements NearestCursor {
+        private final Stream mBaseStream;
+        private final Stream mAddedStream;
+
+        Cursor(double latitude, double longitude, ItemFilter filter, int page) {
+            mBaseStream = new Stream(mBase.nearestCursor(mBaseTable, latitude, longitude, filter), false, page);
+            mAddedStream = new Stream(mAddedIndex.nearestCursor(mAdded, latitude, longitude, filter), true, page);
+        }
+
+        @Override
+        public int next(int count, NeighborList result) {
+            int added = 0;
+            while (added < count) {
+                Stream closer = closer();
+                if (closer == null)
+                    break;
+
+                result.add(closer.handle(), closer.distance());
+                closer.advance();
+                added++;
+            }
+            return added;
+        }
+
+        // the stream with the closer next item, null once both are exhausted
+        Stream closer() {
+            boolean base = mBaseStream.fill();
+            boolean added = mAddedStream.fill();
+            if (!base)
+                return added ? mAddedStream : null;
+            if (!added)
+                return mBaseStream;
+            return mAddedStream.distance() < mBaseStream.distance() ? mAddedStream : mBaseStream;
+        }
+    }
+
+    /**
+     * The items of one cursor a page at a time, with replaced base items left out and changed items mapped to
+     * their handles in the table
+     */
+    private final class Stream {
+        static final int MAX_PAGE = 32;
+
+        private final NearestCursor mCursor;
+        private final boolean mAdded;
+        private final int mPage;
+        private final NeighborList mItems;
+        private int mNext;
+        private boolean mExhausted;
+
+        Stream(NearestCursor cursor, boolean added, int page) {
+            mCursor = cursor;
+            mAdded = added;
+            mPage = page;
+            mItems = new NeighborList(page);
+        }
+
+        /**
+         * @return false once the cursor yielded all its items
+         */
+        boolean fill() {
+            while (true) {
+                for (; mNext < mItems.size(); mNext++) {
+                    if (mAdded || !isReplaced(mItems.getHandle(mNext)))
+                        return true;
+                }
+                if (mExhausted)
+                    return false;
+
+                mItems.clear();
+                mNext = 0;
+                mExhausted = mCursor.next(mPage, mItems) < mPage;
+            }
+        }
+
+        int handle() {
+            int handle = mItems.getHandle(mNext);
+            return mAdded ? mChanged[handle] : handle;
+        }
+
+        double distance() {
+            return mItems.getDistance(mNext);
+        }
+
+        void advance() {
+            mNext++;
+        }
+    }
+
+    /**
+     * Passes on the base items that are still there and the changed items with their handles in the table. Reused
+     * by all range queries of a thread.
+     */
+    private static final class Forwarder implements HandleVisitor {
+        PatchedIndex mIndex;
+        HandleVisitor mTarget;
+        boolean mAdded;
+
+        static Forwarder start(PatchedIndex index, HandleVisitor target) {
+            Forwarder forwarder = FORWARDERS.get();
+            if (forwarder.mTarget != null) {
+                // a visitor that queries again from within visit
+                forwarder = new Forwarder();
+            }
+            forwarder.mIndex = index;
+            forwarder.mTarget = target;
+            return forwarder;
+        }
+
+        @Override
+        public void visit(int handle) {
+            if (mAdded) {
+                mTarget.visit(mIndex.mChanged[handle]);
+            } else if (!mIndex.isReplaced(handle)) {
+                mTarget.visit(handle);
+            }
+        }
+
+        void reset() {
+            mIndex = null;
+            mTarget = null;
+            mAdded = false;
+        }
+    }
+}
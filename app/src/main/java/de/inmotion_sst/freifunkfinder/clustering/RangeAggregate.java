@@ -0,0 +1,78 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+/**
+ * Counts and sums over the items within some bounds, meant to be reused between queries.
+ * <p>
+ * Only items with a valid position are counted. Online and offline counts and the client sum are only known for
+ * tables that implement {@link ItemStatistics}, otherwise they stay 0.
+ */
+public final class RangeAggregate {
+    private int count;
+    private int online;
+    private int offline;
+    private long clients;
+    private double sumX;
+    private double sumY;
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getOnline() {
+        return online;
+    }
+
+    public int getOffline() {
+        return offline;
+    }
+
+    /**
+     * @return Items that are neither online nor offline
+     */
+    public int getUnknown() {
+        return count - online - offline;
+    }
+
+    public long getClients() {
+        return clients;
+    }
+
+    /**
+     * @return The mean projected x coordinate of the items, NaN if there are none
+     */
+    public double getCentroidX() {
+        return count == 0 ? Double.NaN : sumX / count;
+    }
+
+    /**
+     * @return The mean projected y coordinate of the items, NaN if there are none
+     */
+    public double getCentroidY() {
+        return count == 0 ? Double.NaN : sumY / count;
+    }
+
+    public void clear() {
+        count = 0;
+        online = 0;
+        offline = 0;
+        clients = 0;
+        sumX = 0;
+        sumY = 0;
+    }
+
+    void add(int count, int online, int offline, long clients, double sumX, double sumY) {
+        this.count += count;
+        this.online += online;
+        this.offline += offline;
+        this.clients += clients;
+        this.sumX += sumX;
+        this.sumY += sumY;
+    }
+
+    /**
+     * Takes the items of another aggregate back out, e.g. items that were replaced since an index was built
+     */
+    void subtract(RangeAggregate other) {
+        add(-other.count, -other.online, -other.offline, -other.clients, -other.sumX, -other.sumY);
+    }
+}
@@ -0,0 +1,62 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+/**
+ * Prefix sums of item values in the order an index stores its items.
+ * <p>
+ * Every subtree of the packed indexes covers a contiguous range of that order, so the aggregate of a whole subtree
+ * is the difference of two prefix sums, no matter how many items it holds.
+ */
+final class RangeSums {
+    private final int[] counts;
+    private final int[] onlines;
+    private final int[] offlines;
+    private final long[] clients;
+    private final double[] sumXs;
+    private final double[] sumYs;
+
+    /**
+     * @param handles the items in index order
+     * @param xs      projected x coordinates in index order
+     * @param ys      projected y coordinates in index order
+     */
+    RangeSums(ItemTable<?> table, int[] handles, double[] xs, double[] ys) {
+        int n = handles.length;
+        counts = new int[n + 1];
+        onlines = new int[n + 1];
+        offlines = new int[n + 1];
+        clients = new long[n + 1];
+        sumXs = new double[n + 1];
+        sumYs = new double[n + 1];
+
+        ItemStatistics statistics = table instanceof ItemStatistics ? (ItemStatistics) table : null;
+        for (int i = 0; i < n; i++) {
+            int handle = handles[i];
+            counts[i + 1] = counts[i];
+            onlines[i + 1] = onlines[i];
+            offlines[i + 1] = offlines[i];
+            clients[i + 1] = clients[i];
+            sumXs[i + 1] = sumXs[i];
+            sumYs[i + 1] = sumYs[i];
+
+            if (!GreatCircleBounds.isValid(table.getLatitude(handle), table.getLongitude(handle)))
+                continue;
+
+            counts[i + 1]++;
+            sumXs[i + 1] += xs[i];
+            sumYs[i + 1] += ys[i];
+            if (statistics != null) {
+                if (statistics.isOnline(handle)) onlines[i + 1]++;
+                if (statistics.isOffline(handle)) offlines[i + 1]++;
+                clients[i + 1] += statistics.getClients(handle);
+            }
+        }
+    }
+
+    /**
+     * Adds the items from index position start inclusive to end exclusive to the result
+     */
+    void addTo(RangeAggregate result, int start, int end) {
+        result.add(counts[end] - counts[start], onlines[end] - onlines[start], offlines[end] - offlines[start],
+                clients[end] - clients[start], sumXs[end] - sumXs[start], sumYs[end] - sumYs[start]);
+    }
+}
@@ -0,0 +1,158 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A cluster of whole {@link Sites}. Its size counts items, so a site of five items weighs as much as five single
+ * items, but renderers can tell co-located items apart from merely close ones and show a site as one marker.
+ */
+public final class SiteCluster<T extends ClusterItem> implements Cluster<T> {
+    private final LatLng mPosition;
+    private final Sites<T> mSites;
+
+    // the sites are at mFirst until mFirst + mSiteCount, a shared array is copied before it is modified
+    private int[] mSiteHandles;
+    private int mFirst;
+    private boolean mShared;
+    private int mSiteCount;
+    private int mSize;
+    private int mSiteSum;
+
+    public SiteCluster(LatLng position, Sites<T> sites) {
+        mPosition = position;
+        mSites = sites;
+        mSiteHandles = new int[4];
+    }
+
+    /**
+     * A cluster of the sites at siteHandles[first] until siteHandles[first + siteCount], without copying them
+     *
+     * @param size    the number of items at these sites
+     * @param siteSum the sum of the site handles, as int arithmetic wraps around it may overflow
+     */
+    SiteCluster(LatLng position, Sites<T> sites, int[] siteHandles, int first, int siteCount, int size, int siteSum) {
+        mPosition = position;
+        mSites = sites;
+        mSiteHandles = siteHandles;
+        mFirst = first;
+        mShared = true;
+        mSiteCount = siteCount;
+        mSize = size;
+        mSiteSum = siteSum;
+    }
+
+    /**
+     * @return A cluster of just one site, at the position of the site
+     */
+    public static <T extends ClusterItem> SiteCluster<T> of(Sites<T> sites, int site) {
+        SiteCluster<T> cluster = new SiteCluster<T>(new LatLng(sites.getLatitude(site), sites.getLongitude(site)), sites);
+        cluster.add(site);
+        return cluster;
+    }
+
+    public void add(int site) {
+        if (mShared || mFirst + mSiteCount == mSiteHandles.length) {
+            unshare(Math.max(4, mSiteCount * 2));
+        }
+        mSiteHandles[mSiteCount++] = site;
+        mSize += mSites.getCount(site);
+        mSiteSum += site;
+    }
+
+    /**
+     * @return false if the site was not part of the cluster
+     */
+    public boolean remove(int site) {
+        for (int i = 0; i < mSiteCount; i++) {
+            if (mSiteHandles[mFirst + i] == site) {
+                if (mShared) {
+                    unshare(mSiteCount);
+                }
+                System.arraycopy(mSiteHandles, i + 1, mSiteHandles, i, mSiteCount - i - 1);
+                mSiteCount--;
+                mSize -= mSites.getCount(site);
+                mSiteSum -= site;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void unshare(int capacity) {
+        mSiteHandles = Arrays.copyOfRange(mSiteHandles, mFirst, mFirst + capacity);
+        mFirst = 0;
+        mShared = false;
+    }
+
+    public Sites<T> getSites() {
+        return mSites;
+    }
+
+    public int getSiteCount() {
+        return mSiteCount;
+    }
+
+    /**
+     * @return The handle of the i-th site in {@link #getSites()}
+     */
+    public int getSite(int i) {
+        if (i >= mSiteCount)
+            throw new IndexOutOfBoundsException("site " + i + " of " + mSiteCount);
+
+        return mSiteHandles[mFirst + i];
+    }
+
+    @Override
+    public LatLng getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return The items of all sites, created on every call
+     */
+    @Override
+    public Collection<T> getItems() {
+        List<T> items = new ArrayList<T>(mSize);
+        for (int i = 0; i < mSiteCount; i++) {
+            int site = mSiteHandles[mFirst + i];
+            for (int j = 0; j < mSites.getCount(site); j++) {
+                items.add(mSites.getItem(site, j));
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public int getSize() {
+        return mSize;
+    }
+
+    // like StaticCluster, equal clusters have the same position and items, regardless of their order
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SiteCluster))
+            return false;
+
+        SiteCluster<?> cluster = (SiteCluster<?>) other;
+        return mPosition.equals(cluster.mPosition) && mSites == cluster.mSites && mSiteCount == cluster.mSiteCount
+                && Arrays.equals(sortedSites(), cluster.sortedSites());
+    }
+
+    @Override
+    public int hashCode() {
+        return mPosition.hashCode() * 31 + mSiteSum;
+    }
+
+    private int[] sortedSites() {
+        int[] sites = Arrays.copyOfRange(mSiteHandles, mFirst, mFirst + mSiteCount);
+        Arrays.sort(sites);
+        return sites;
+    }
+}
@@ -0,0 +1,497 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.maps.android.clustering.ClusterItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The items of a table grouped into sites, items at the same position or within a tolerance of the first item of a
+ * site. Several routers of one building often share a position, as a site they are one point for indexes and
+ * clustering and are only expanded when needed.
+ * <p>
+ * Sites are a table of their own: site handles run from 0 to {@link #size()} - 1 in the order of their first
+ * item, and a site has the position and item object of its first item. Items at positions the projection cannot
+ * place are sites of their own.
+ * <p>
+ * Sites of a table that changed at a few handles can be patched instead of grouped again, see
+ * {@link #patch(ItemTable, int[], SpatialIndex, HandleList)}. Patched sites keep their handles where they can, so
+ * handles then no longer follow the order of the first items.
+ */
+public final class Sites<T extends ClusterItem> implements ItemTable<T> {
+    /**
+     * Items up to a meter apart are one site
+     */
+    public static final double DEFAULT_TOLERANCE = 1;
+
+    // meters per degree of latitude on the sphere of SpatialDataSource.distFrom
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+    // in meters, smaller grid cells would overflow int rows and columns
+    private static final double MIN_CELL = 0.1;
+
+    private final ItemTable<T> mTable;
+    private final double mTolerance;
+    private final int mSize;
+
+    // the sites as they were built: the site of every item, and the item handles grouped by site, those of site s
+    // are at mStarts[s] until mStarts[s + 1]
+    private final int[] mSiteOf;
+    private final int[] mStarts;
+    private final int[] mHandles;
+    private final int mMaxCount;
+
+    // null unless patched: the ascending sites whose items differ from the built ones, their items grouped like
+    // above, and the ascending items whose site differs from the built one
+    private final int[] mPatchedSites;
+    private final int[] mPatchedStarts;
+    private final int[] mPatchedHandles;
+    private final int[] mMovedItems;
+    private final int[] mMovedSites;
+
+    private Sites(ItemTable<T> table, double tolerance, int size, int[] siteOf, int[] starts, int[] handles, int maxCount,
+                  int[] patchedSites, int[] patchedStarts, int[] patchedHandles, int[] movedItems, int[] movedSites) {
+        mTable = table;
+        mTolerance = tolerance;
+        mSize = size;
+        mSiteOf = siteOf;
+        mStarts = starts;
+        mHandles = handles;
+        mMaxCount = maxCount;
+        mPatchedSites = patchedSites;
+        mPatchedStarts = patchedStarts;
+        mPatchedHandles = patchedHandles;
+        mMovedItems = movedItems;
+        mMovedSites = movedSites;
+    }
+
+    public static <T extends ClusterItem> Sites<T> build(ItemTable<T> table) {
+        return build(table, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Groups items in one pass, an item joins the first site whose first item is within the tolerance
+     *
+     * @param tolerance in meters, 0 only groups items at exactly the same position
+     */
+    public static <T extends ClusterItem> Sites<T> build(ItemTable<T> table, double tolerance) {
+        int n = table.size();
+        int[] siteOf = new int[n];
+        int[] anchors = new int[n];
+        int[] nextInCell = new int[n];
+        int siteCount = 0;
+
+        // first site of every grid cell, cells are at least as large as the tolerance so a site within the
+        // tolerance is in one of the 3x3 cells around an item
+        double cellDegrees = Math.max(tolerance, MIN_CELL) / METERS_PER_DEGREE;
+        Map<Long, Integer> cells = new HashMap<Long, Integer>();
+
+        for (int handle = 0; handle < n; handle++) {
+            double latitude = table.getLatitude(handle);
+            double longitude = table.getLongitude(handle);
+            if (!GreatCircleBounds.isValid(latitude, longitude)) {
+                anchors[siteCount] = handle;
+                siteOf[handle] = siteCount++;
+                continue;
+            }
+
+            int row = (int) Math.floor(latitude / cellDegrees);
+            int site = -1;
+            for (int r = row - 1; r <= row + 1 && site < 0; r++) {
+                int column = column(longitude, r, cellDegrees);
+                for (int c = column - 1; c <= column + 1 && site < 0; c++) {
+                    Integer head = cells.get(cellKey(r, c));
+                    for (int s = head == null ? -1 : head; s >= 0; s = nextInCell[s]) {
+                        int anchor = anchors[s];
+                        if (SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(anchor), table.getLongitude(anchor)) <= tolerance) {
+                            site = s;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (site < 0) {
+                site = siteCount++;
+                anchors[site] = handle;
+                Long key = cellKey(row, column(longitude, row, cellDegrees));
+                Integer head = cells.get(key);
+                nextInCell[site] = head == null ? -1 : head;
+                cells.put(key, site);
+            }
+            siteOf[handle] = site;
+        }
+
+        // counting sort by site keeps the items of a site in handle order
+        int[] starts = new int[siteCount + 1];
+        for (int handle = 0; handle < n; handle++) {
+            starts[siteOf[handle] + 1]++;
+        }
+        int maxCount = 0;
+        for (int site = 0; site < siteCount; site++) {
+            maxCount = Math.max(maxCount, starts[site + 1]);
+            starts[site + 1] += starts[site];
+        }
+        int[] handles = new int[n];
+        int[] next = Arrays.copyOf(starts, siteCount);
+        for (int handle = 0; handle < n; handle++) {
+            handles[next[siteOf[handle]]++] = handle;
+        }
+
+        return new Sites<T>(table, tolerance, siteCount, siteOf, starts, handles, maxCount, null, null, null, null, null);
+    }
+
+    /**
+     * Groups the items of a table that differs from the table of these sites only at a few handles, without
+     * grouping all items again. Moved items leave their site, a site whose first item left is dissolved. Moved
+     * items and those of dissolved sites then join a site whose first item is within the tolerance, or start new
+     * sites, which take over the handles of dissolved sites. Left over handles are filled with the last sites.
+     * <p>
+     * The result may group a few items differently than {@link #build(ItemTable, double)} would, items still only
+     * share a site within the tolerance.
+     *
+     * @param table        the changed table
+     * @param moved        ascending handles of the items that were added or moved to another position, items beyond
+     *                     the end of the table were removed. Changed items at the same position keep their site.
+     * @param index        an index over these sites, for finding the sites moved items can join
+     * @param changedSites receives the ascending handles of the sites whose items or positions changed
+     */
+    Sites<T> patch(ItemTable<T> table, int[] moved, SpatialIndex index, HandleList changedSites) {
+        int n = table.size();
+        int previousCount = mTable.size();
+
+        // sites that lost items: those whose first item stayed keep the others, the others are dissolved
+        TreeSet<Integer> affected = new TreeSet<Integer>();
+        for (int handle : moved) {
+            if (handle < previousCount) {
+                affected.add(getSite(handle));
+            }
+        }
+        for (int handle = n; handle < previousCount; handle++) {
+            affected.add(getSite(handle));
+        }
+
+        Map<Integer, HandleList> contents = new HashMap<Integer, HandleList>();
+        HandleList dissolved = new HandleList();
+        HandleList loose = new HandleList();
+        for (int site : affected) {
+            boolean keep = !isMoved(first(site), moved, n);
+            HandleList items = new HandleList(getCount(site));
+            for (int i = 0; i < getCount(site); i++) {
+                int handle = getHandle(site, i);
+                if (!isMoved(handle, moved, n)) {
+                    (keep ? items : loose).add(handle);
+                }
+            }
+            if (keep) {
+                contents.put(site, items);
+            } else {
+                dissolved.add(site);
+            }
+        }
+        for (int handle : moved) {
+            loose.add(handle);
+        }
+
+        int[] looseItems = new int[loose.size()];
+        for (int i = 0; i < looseItems.length; i++) {
+            looseItems[i] = loose.get(i);
+        }
+        Arrays.sort(looseItems);
+        int[] holes = toArray(dissolved);
+
+        // loose items join the first site within the tolerance, of the kept sites or of those started here
+        double cellDegrees = Math.max(mTolerance, MIN_CELL) / METERS_PER_DEGREE;
+        Map<Long, Integer> cells = new HashMap<Long, Integer>();
+        List<HandleList> started = new ArrayList<HandleList>();
+        HandleList nextInCell = new HandleList();
+        HandleList nearby = new HandleList();
+        for (int handle : looseItems) {
+            double latitude = table.getLatitude(handle);
+            double longitude = table.getLongitude(handle);
+            if (!GreatCircleBounds.isValid(latitude, longitude)) {
+                started.add(single(handle));
+                nextInCell.add(-1);
+                continue;
+            }
+
+            int site = findSite(table, latitude, longitude, index, holes, nearby);
+            if (site >= 0) {
+                HandleList items = contents.get(site);
+                if (items == null) {
+                    items = new HandleList(getCount(site) + 1);
+                    for (int i = 0; i < getCount(site); i++) {
+                        items.add(getHandle(site, i));
+                    }
+                    contents.put(site, items);
+                }
+                items.add(handle);
+                continue;
+            }
+
+            int row = (int) Math.floor(latitude / cellDegrees);
+            for (int r = row - 1; r <= row + 1 && site < 0; r++) {
+                int column = column(longitude, r, cellDegrees);
+                for (int c = column - 1; c <= column + 1 && site < 0; c++) {
+                    Integer head = cells.get(cellKey(r, c));
+                    for (int s = head == null ? -1 : head; s >= 0; s = nextInCell.get(s)) {
+                        int anchor = started.get(s).get(0);
+                        if (SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(anchor), table.getLongitude(anchor)) <= mTolerance) {
+                            site = s;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (site >= 0) {
+                started.get(site).add(handle);
+            } else {
+                Long key = cellKey(row, column(longitude, row, cellDegrees));
+                Integer head = cells.get(key);
+                nextInCell.add(head == null ? -1 : head);
+                cells.put(key, started.size());
+                started.add(single(handle));
+            }
+        }
+
+        // started sites take over the handles of dissolved ones, the last sites fill the handles that are left
+        int size = size();
+        int filled = 0;
+        for (HandleList items : started) {
+            contents.put(filled < holes.length ? holes[filled++] : size++, items);
+        }
+        for (int i = filled; i < holes.length; i++) {
+            while (size > holes[i] && Arrays.binarySearch(holes, i, holes.length, size - 1) >= 0) {
+                size--;
+            }
+            if (holes[i] >= size)
+                break;
+
+            int last = --size;
+            HandleList items = contents.remove(last);
+            contents.put(holes[i], items != null ? items : itemsOf(last));
+        }
+
+        int[] changed = new int[contents.size()];
+        int m = 0;
+        for (int site : contents.keySet()) {
+            if (site < size) {
+                changed[m++] = site;
+            }
+        }
+        changed = Arrays.copyOf(changed, m);
+        Arrays.sort(changed);
+        for (int site : changed) {
+            changedSites.add(site);
+        }
+
+        // all sites that differ from the built ones, with their items in the changed table
+        int[] patchedSites = PatchedIndex.union(mPatchedSites == null ? PatchedIndex.NONE : mPatchedSites, changed, size);
+        int[] patchedStarts = new int[patchedSites.length + 1];
+        HandleList patchedHandles = new HandleList();
+        int maxCount = mMaxCount;
+        for (int p = 0; p < patchedSites.length; p++) {
+            int site = patchedSites[p];
+            HandleList items = contents.get(site);
+            if (items == null) {
+                items = itemsOf(site);
+            }
+
+            // the first item stays first, the others are kept in handle order
+            int[] sorted = toArray(items);
+            Arrays.sort(sorted, 1, sorted.length);
+            for (int handle : sorted) {
+                patchedHandles.add(handle);
+            }
+            patchedStarts[p + 1] = patchedHandles.size();
+            maxCount = Math.max(maxCount, sorted.length);
+        }
+
+        long[] moves = new long[patchedHandles.size()];
+        for (int p = 0; p < patchedSites.length; p++) {
+            for (int i = patchedStarts[p]; i < patchedStarts[p + 1]; i++) {
+                moves[i] = (long) patchedHandles.get(i) << 32 | patchedSites[p];
+            }
+        }
+        Arrays.sort(moves);
+        int[] movedItems = new int[moves.length];
+        int[] movedSites = new int[moves.length];
+        for (int i = 0; i < moves.length; i++) {
+            movedItems[i] = (int) (moves[i] >>> 32);
+            movedSites[i] = (int) moves[i];
+        }
+
+        return new Sites<T>(table, mTolerance, size, mSiteOf, mStarts, mHandles, maxCount,
+                patchedSites, patchedStarts, toArray(patchedHandles), movedItems, movedSites);
+    }
+
+    private static boolean isMoved(int handle, int[] moved, int n) {
+        return handle >= n || Arrays.binarySearch(moved, handle) >= 0;
+    }
+
+    // the first kept site whose first item is within the tolerance of a position, or -1
+    private int findSite(ItemTable<T> table, double latitude, double longitude, SpatialIndex index, int[] dissolved,
+                         HandleList nearby) {
+        // a meter is 1 / (2 pi r cos(latitude)) in projected units, twice that leaves room for rounding
+        double span = 2 * mTolerance / (METERS_PER_DEGREE * 360 * Math.cos(Math.toRadians(latitude)));
+        double x = SpatialDataSource.toX(longitude);
+        double y = SpatialDataSource.toY(latitude);
+        nearby.clear();
+        index.range(x - span, x + span, y - span, y + span, nearby);
+
+        int found = -1;
+        for (int i = 0; i < nearby.size(); i++) {
+            int site = nearby.get(i);
+            if ((found >= 0 && site > found) || Arrays.binarySearch(dissolved, site) >= 0)
+                continue;
+
+            int anchor = first(site);
+            if (SpatialDataSource.distFrom(latitude, longitude, table.getLatitude(anchor), table.getLongitude(anchor)) <= mTolerance) {
+                found = site;
+            }
+        }
+        return found;
+    }
+
+    private HandleList itemsOf(int site) {
+        HandleList items = new HandleList(getCount(site));
+        for (int i = 0; i < getCount(site); i++) {
+            items.add(getHandle(site, i));
+        }
+        return items;
+    }
+
+    private static HandleList single(int handle) {
+        HandleList items = new HandleList(1);
+        items.add(handle);
+        return items;
+    }
+
+    private static int[] toArray(HandleList list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * @return The same sites over another table, whose items at the handles of the sites are at the same positions
+     * as those of this table, e.g. a table in which only statuses changed
+     */
+    Sites<T> withTable(ItemTable<T> table) {
+        return new Sites<T>(table, mTolerance, mSize, mSiteOf, mStarts, mHandles, mMaxCount,
+                mPatchedSites, mPatchedStarts, mPatchedHandles, mMovedItems, mMovedSites);
+    }
+
+    /**
+     * @return The ascending handles of the sites that differ from those that were built, empty unless patched
+     */
+    int[] getPatchedSites() {
+        return mPatchedSites == null ? PatchedIndex.NONE : mPatchedSites;
+    }
+
+    // longitude cells widen towards the poles, so they are at least a cell wide in meters everywhere in the row
+    private static int column(double longitude, int row, double cellDegrees) {
+        double maxLatitude = Math.min(Math.max(Math.abs(row * cellDegrees), Math.abs((row + 1) * cellDegrees)), 89.9);
+        return (int) Math.floor(longitude * Math.cos(Math.toRadians(maxLatitude)) / cellDegrees);
+    }
+
+    private static Long cellKey(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+
+    /**
+     * @return The table the item handles refer to
+     */
+    public ItemTable<T> getTable() {
+        return mTable;
+    }
+
+    /**
+     * @return The number of sites
+     */
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The site of an item
+     */
+    public int getSite(int handle) {
+        if (mMovedItems != null) {
+            int i = Arrays.binarySearch(mMovedItems, handle);
+            if (i >= 0)
+                return mMovedSites[i];
+        }
+        return mSiteOf[handle];
+    }
+
+    /**
+     * @return The number of items at a site
+     */
+    public int getCount(int site) {
+        int p = patched(site);
+        return p < 0 ? mStarts[site + 1] - mStarts[site] : mPatchedStarts[p + 1] - mPatchedStarts[p];
+    }
+
+    /**
+     * @return The handle of the i-th item of a site, the first item and then the others in handle order
+     */
+    public int getHandle(int site, int i) {
+        if (i >= getCount(site))
+            throw new IndexOutOfBoundsException("item " + i + " of " + getCount(site));
+
+        int p = patched(site);
+        return p < 0 ? mHandles[mStarts[site] + i] : mPatchedHandles[mPatchedStarts[p] + i];
+    }
+
+    // the position of a site among the patched ones, or a negative number if it is as built
+    private int patched(int site) {
+        return mPatchedSites == null ? -1 : Arrays.binarySearch(mPatchedSites, site);
+    }
+
+    private int first(int site) {
+        int p = patched(site);
+        return p < 0 ? mHandles[mStarts[site]] : mPatchedHandles[mPatchedStarts[p]];
+    }
+
+    /**
+     * @return The largest number of items at one site, on patched sites that of the sites before the patch if
+     * that was larger
+     */
+    public int getMaxCount() {
+        return mMaxCount;
+    }
+
+    @Override
+    public double getLatitude(int site) {
+        return mTable.getLatitude(first(site));
+    }
+
+    @Override
+    public double getLongitude(int site) {
+        return mTable.getLongitude(first(site));
+    }
+
+    /**
+     * @return The first item of a site
+     */
+    @Override
+    public T getItem(int site) {
+        return mTable.getItem(first(site));
+    }
+
+    /**
+     * @return The i-th item of a site
+     */
+    public T getItem(int site, int i) {
+        return mTable.getItem(getHandle(site, i));
+    }
+}
@@ -1,116 +1,903 @@
 package de.inmotion_sst.freifunkfinder.clustering;
 
-import android.location.Location;
-
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
-import com.google.maps.android.clustering.Cluster;
 import com.google.maps.android.clustering.ClusterItem;
 import com.google.maps.android.geometry.Bounds;
 import com.google.maps.android.geometry.Point;
 import com.google.maps.android.projection.SphericalMercatorProjection;
-import com.google.maps.android.quadtree.PointQuadTree;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-
-import java8.util.stream.Stream;
-import java8.util.stream.StreamSupport;
-
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Spatial index over the items of an {@link ItemTable}, items are addressed by their int handle in the table.
+ * <p>
+ * Items and their index are published together as immutable {@link Snapshot}s. Readers never block: they take the
+ * current snapshot and keep using it, while a modification publishes a new one. Callers that combine several calls,
+ * like a search and {@link Snapshot#getItem(int)} for the found handles, should make all of them on one snapshot so
+ * handles stay valid. The methods on the data source itself each query the snapshot that is current at the time.
+ */
 public class SpatialDataSource<T extends ClusterItem> {
     private static final SphericalMercatorProjection PROJECTION = new SphericalMercatorProjection(1);
 
+    private static final double EARTH_RADIUS = 6371000; // meters
+
+    // our world is represented in a (0,1)|(0,1) coordinate system
+
+    private final AtomicReference<Snapshot<T>> mSnapshot = new AtomicReference<Snapshot<T>>();
+
+    private final SpatialIndex.Factory mIndexFactory;
+
     /**
-     * Any modifications should be synchronized on mQuadTree.
+     * Serializes modifications, readers never take it.
      */
-    private final Collection<QuadItem<T>> mItems = new ArrayList<QuadItem<T>>();
+    private final Object mWriteLock = new Object();
 
-    // our world is represented in a (0,1)|(0,1) coordinate system
+    /**
+     * The items while they are managed one by one through {@link #addItem(ClusterItem)} and friends, every
+     * modification publishes a copy. Null while the items are a table that was handed in.
+     */
+    private List<T> mItems;
+
+    public SpatialDataSource() {
+        this(PackedPointIndex.FACTORY);
+    }
+
+    /**
+     * @param indexFactory builds the index whenever the items changed, e.g. {@link PackedHilbertRTree#FACTORY}
+     */
+    public SpatialDataSource(SpatialIndex.Factory indexFactory) {
+        mIndexFactory = indexFactory;
+        clearItems();
+    }
+
+    /**
+     * Items together with their index, neither ever changes.
+     * <p>
+     * Everything a query or a clustering pass needs is built before the snapshot is published, see
+     * {@link #prepare(ItemTable, SpatialIndex, CellIndex, ClusterPyramid)}. Readers never build anything.
+     */
+    public static final class Snapshot<T extends ClusterItem> {
+        // patches add up until they touch this many items, or a larger part of a large table
+        private static final int MIN_PATCH_LIMIT = 1024;
+        private static final int PATCH_LIMIT_FRACTION = 32;
+
+        private final ItemTable<T> mTable;
+        private final SpatialIndex mIndex;
+        private final int mVersion;
+        private final boolean mLoading;
+
+        // taken from a point index that already has them, or built with the index
+        private final UnitVectors mVectors;
+
+        // the items grouped into sites and a snapshot of those, both null on a snapshot of sites
+        private final Sites<T> mSiteTable;
+        private final Snapshot<T> mSites;
+
+        private final CellIndex mCells;
+
+        // null while the items are still loading
+        private final ClusterPyramid mPyramid;
+
+        // the sites the pyramid was built from over the current items, and the positions of the items that moved
+        // since, null if none did
+        private final Sites<T> mPyramidSites;
+        private final PackedPointIndex mMoves;
+
+        private Snapshot(ItemTable<T> table, SpatialIndex index, UnitVectors vectors, Sites<T> siteTable, Snapshot<T> sites,
+                         CellIndex cells, ClusterPyramid pyramid, Sites<T> pyramidSites, PackedPointIndex moves,
+                         int version, boolean loading) {
+            mTable = table;
+            mIndex = index;
+            mVectors = vectors;
+            mSiteTable = siteTable;
+            mSites = sites;
+            mCells = cells;
+            mPyramid = pyramid;
+            mPyramidSites = pyramidSites;
+            mMoves = moves;
+            mVersion = version;
+            mLoading = loading;
+        }
+
+        // builds everything that was not handed in, on the calling thread
+        static <T extends ClusterItem> Snapshot<T> build(ItemTable<T> table, SpatialIndex index, SpatialIndex.Factory indexFactory,
+                                                         CellIndex cells, ClusterPyramid pyramid, boolean loading) {
+            if (index != null && index.size() != table.size())
+                throw new IllegalArgumentException("index does not belong to table");
+            if (cells != null && cells.size() != table.size())
+                throw new IllegalArgumentException("cell index does not belong to table");
+            if (pyramid != null && pyramid.size() != table.size())
+                throw new IllegalArgumentException("cluster pyramid does not belong to table");
+
+            if (index == null) {
+                index = indexFactory.build(table);
+            }
+            if (cells == null) {
+                cells = CellIndex.build(table, 0);
+            }
+
+            Sites<T> siteTable = Sites.build(table);
+            SpatialIndex siteIndex = indexFactory.build(siteTable);
+            Snapshot<T> sites = new Snapshot<T>(siteTable, siteIndex, unitVectors(siteTable, siteIndex), null, null,
+                    CellIndex.build(siteTable, 0), null, null, null, 0, loading);
+
+            // a growing table would have to cluster all zoom levels again for every batch
+            if (pyramid == null && !loading) {
+                pyramid = ClusterPyramid.build(siteTable, 0);
+            }
+
+            return new Snapshot<T>(table, index, unitVectors(table, index), siteTable, sites, cells, pyramid, siteTable,
+                    null, 0, loading);
+        }
+
+        // patches everything for the changed items, or builds everything again once the patches add up
+        Snapshot<T> patch(ItemTable<T> table, int[] changed, SpatialIndex.Factory indexFactory) {
+            if (mSites == null)
+                throw new IllegalStateException("sites are patched together with their items");
+
+            int n = table.size();
+            int previousCount = mTable.size();
+            for (int i = 0; i < changed.length; i++) {
+                if (changed[i] < 0 || changed[i] >= n || (i > 0 && changed[i] <= changed[i - 1]))
+                    throw new IllegalArgumentException("changed handles must be ascending handles of the table");
+            }
+
+            int patchSize = changed.length + Math.abs(n - previousCount);
+            if (mIndex instanceof PatchedIndex) {
+                patchSize += ((PatchedIndex) mIndex).getPatchSize();
+            }
+            if (mPyramid == null || patchSize > Math.max(MIN_PATCH_LIMIT, n / PATCH_LIMIT_FRACTION))
+                return build(table, null, indexFactory, null, null, mLoading);
+
+            PatchedIndex index = PatchedIndex.patch(mIndex, mTable, table, changed);
+
+            // items that only changed their status keep their site, cell and vector
+            HandleList movedItems = new HandleList();
+            for (int handle : changed) {
+                if (handle >= previousCount || table.getLatitude(handle) != mTable.getLatitude(handle)
+                        || table.getLongitude(handle) != mTable.getLongitude(handle)) {
+                    movedItems.add(handle);
+                }
+            }
+            int[] moved = new int[movedItems.size()];
+            for (int i = 0; i < moved.length; i++) {
+                moved[i] = movedItems.get(i);
+            }
+
+            if (moved.length == 0 && n == previousCount) {
+                Sites<T> siteTable = mSiteTable.withTable(table);
+                Snapshot<T> sites = new Snapshot<T>(siteTable, mSites.mIndex, mSites.mVectors, null, null, mSites.mCells,
+                        null, null, null, 0, false);
+                return new Snapshot<T>(table, index, mVectors, siteTable, sites, mCells, mPyramid,
+                        mPyramidSites.withTable(table), mMoves, 0, false);
+            }
+
+            HandleList changedSites = new HandleList();
+            Sites<T> siteTable = mSiteTable.patch(table, moved, mSites.mIndex, changedSites);
+            int[] patchedSites = siteTable.getPatchedSites();
+            Snapshot<T> sites = new Snapshot<T>(siteTable, PatchedIndex.patch(mSites.mIndex, mSiteTable, siteTable, patchedSites),
+                    mSites.mVectors.patch(siteTable, patchedSites), null, null, mSites.mCells.patch(mSiteTable, siteTable, patchedSites),
+                    null, null, null, 0, false);
+
+            // the clusters of the pyramid stay valid wherever no item moved: the old positions of moved items
+            // and the positions of the sites they left or joined are kept
+            int previousMoves = mMoves == null ? 0 : mMoves.size();
+            double[] xs = new double[previousMoves + moved.length + Math.max(0, previousCount - n) + changedSites.size()];
+            double[] ys = new double[xs.length];
+            int m = 0;
+            for (int i = 0; i < previousMoves; i++, m++) {
+                xs[m] = mMoves.getX(i);
+                ys[m] = mMoves.getY(i);
+            }
+            for (int handle : moved) {
+                if (handle < previousCount) {
+                    xs[m] = mIndex.getX(handle);
+                    ys[m++] = mIndex.getY(handle);
+                }
+            }
+            for (int handle = n; handle < previousCount; handle++, m++) {
+                xs[m] = mIndex.getX(handle);
+                ys[m] = mIndex.getY(handle);
+            }
+            for (int i = 0; i < changedSites.size(); i++, m++) {
+                xs[m] = sites.mIndex.getX(changedSites.get(i));
+                ys[m] = sites.mIndex.getY(changedSites.get(i));
+            }
+
+            return new Snapshot<T>(table, index, mVectors.patch(table, moved), siteTable, sites, mCells.patch(mTable, table, moved),
+                    mPyramid, mPyramidSites.withTable(table), PackedPointIndex.build(xs, ys, m), 0, false);
+        }
+
+        private static UnitVectors unitVectors(ItemTable<?> table, SpatialIndex index) {
+            if (index instanceof PackedPointIndex) {
+                UnitVectors vectors = ((PackedPointIndex) index).getUnitVectors();
+                if (vectors != null && vectors.size() == table.size())
+                    return vectors;
+            }
+            return UnitVectors.build(table);
+        }
+
+        Snapshot<T> withVersion(int version) {
+            Snapshot<T> sites = mSites == null ? null : mSites.withVersion(version);
+            return new Snapshot<T>(mTable, mIndex, mVectors, mSiteTable, sites, mCells, mPyramid, mPyramidSites, mMoves,
+                    version, mLoading);
+        }
+
+        /**
+         * @return A number that changes with every modification of the data source
+         */
+        public int getVersion() {
+            return mVersion;
+        }
+
+        /**
+         * @return The items, handles returned by queries on this snapshot refer to this table
+         */
+        public ItemTable<T> getItems() {
+            return mTable;
+        }
+
+        public int size() {
+            return mTable.size();
+        }
+
+        public T getItem(int handle) {
+            return mTable.getItem(handle);
+        }
+
+        /**
+         * @return The items grouped into {@link Sites} together with an index over the sites, all queries on it
+         * address sites. Co-located items are a single point there, so clustering and drawing do not stack them.
+         * Null on a snapshot that already is one of sites.
+         */
+        public Snapshot<T> sites() {
+            return mSites;
+        }
+
+        /**
+         * @return The sites of {@link #sites()}, their item handles refer to {@link #getItems()}
+         */
+        public Sites<T> getSites() {
+            return mSiteTable;
+        }
+
+        /**
+         * @return The items sorted by map tile, for finding the items of a tile at any zoom level with two binary
+         * searches, see {@link CellIndex}
+         */
+        public CellIndex getCells() {
+            return mCells;
+        }
+
+        /**
+         * @return The clusters of {@link #getSites()} at every zoom level, see {@link ClusterPyramid}, or null while
+         * the items are still loading
+         */
+        public ClusterPyramid getPyramid() {
+            return mPyramid;
+        }
+
+        /**
+         * @return The sites {@link #getPyramid()} was built from, over the current items. The same as
+         * {@link #getSites()} until items are patched, see {@link SpatialDataSource#patchItems(ItemTable, int[])}.
+         */
+        public Sites<T> getPyramidSites() {
+            return mPyramidSites;
+        }
+
+        /**
+         * @return true if items within the bounds were added, removed or moved since the pyramid was built. The
+         * clusters of the pyramid there may no longer match the items.
+         */
+        public boolean hasMovedSincePyramid(double minX, double maxX, double minY, double maxY) {
+            if (mMoves == null)
+                return false;
+
+            HandleList found = new HandleList(1);
+            mMoves.range(minX, maxX, minY, maxY, found);
+            return !found.isEmpty();
+        }
+
+        /**
+         * @return true if the items were handed in with {@link SpatialDataSource#setLoadingItems(ItemTable)}
+         */
+        public boolean isLoading() {
+            return mLoading;
+        }
+
+        /**
+         * @return The projected x coordinate of an item, see {@link SpatialDataSource#toPoint(LatLng)}
+         */
+        public double getX(int handle) {
+            return mIndex.getX(handle);
+        }
+
+        /**
+         * @return The projected y coordinate of an item, see {@link SpatialDataSource#toPoint(LatLng)}
+         */
+        public double getY(int handle) {
+            return mIndex.getY(handle);
+        }
+
+        /**
+         * Adds the handles of all items within the bounds to the result
+         */
+        public void search(Bounds searchBounds, HandleList result) {
+            forEachInBounds(searchBounds, result);
+        }
+
+        /**
+         * Passes the handles of all items within the bounds to the visitor, without allocating anything
+         */
+        public void forEachInBounds(Bounds searchBounds, HandleVisitor visitor) {
+            mIndex.range(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, visitor);
+        }
+
+        /**
+         * Same as {@link #forEachInBounds(Bounds, HandleVisitor)}, for callers that would otherwise create bounds
+         * for every query
+         */
+        public void forEachInBounds(double minX, double maxX, double minY, double maxY, HandleVisitor visitor) {
+            mIndex.range(minX, maxX, minY, maxY, visitor);
+        }
+
+        /**
+         * Passes the handles of all items within the bounds that match the filter to the visitor. Subtrees of the
+         * index without matching items are skipped, not filtered afterwards.
+         */
+        public void forEachInBounds(Bounds searchBounds, ItemFilter filter, HandleVisitor visitor) {
+            mIndex.range(mTable, filter, searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, visitor);
+        }
+
+        /**
+         * Same as {@link #forEachInBounds(Bounds, ItemFilter, HandleVisitor)}, for callers that would otherwise
+         * create bounds for every query
+         */
+        public void forEachInBounds(double minX, double maxX, double minY, double maxY, ItemFilter filter, HandleVisitor visitor) {
+            mIndex.range(mTable, filter, minX, maxX, minY, maxY, visitor);
+        }
+
+        /**
+         * Adds the counts and sums of all items within the bounds to the result, without visiting the items of
+         * subtrees that are entirely within the bounds. Answers cluster and viewport statistics in time that grows
+         * with the border of the bounds, not with the number of items inside.
+         */
+        public void aggregate(Bounds bounds, RangeAggregate result) {
+            mIndex.aggregate(mTable, bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, result);
+        }
+
+        /**
+         * Same as {@link #aggregate(Bounds, RangeAggregate)}, for callers that would otherwise create bounds for every
+         * query
+         */
+        public void aggregate(double minX, double maxX, double minY, double maxY, RangeAggregate result) {
+            mIndex.aggregate(mTable, minX, maxX, minY, maxY, result);
+        }
+
+        /**
+         * Passes the handles of all items up to a great-circle distance from center to the visitor, in no particular
+         * order and without allocating anything. Items with invalid coordinates are never found.
+         *
+         * @param radius in meters
+         */
+        public void forEachInRadius(LatLng center, double radius, HandleVisitor visitor) {
+            forEachInRadius(center, radius, ItemFilter.ALL, visitor);
+        }
+
+        /**
+         * Same as {@link #forEachInRadius(LatLng, double, HandleVisitor)} for the items that match the filter
+         */
+        public void forEachInRadius(LatLng center, double radius, ItemFilter filter, HandleVisitor visitor) {
+            RadiusFilter radiusFilter = startRadiusQuery(center, radius);
+            radiusFilter.mTarget = visitor;
+            try {
+                rangeAround(center, radius, filter, radiusFilter);
+            } finally {
+                radiusFilter.reset();
+            }
+        }
+
+        /**
+         * Adds all items up to a great-circle distance from center to the result together with their distance, in
+         * no particular order. Use {@link #findClosestItems(LatLng, int, double, NeighborList)} for the closest
+         * items first.
+         *
+         * @param radius in meters
+         */
+        public void findWithinRadius(LatLng center, double radius, NeighborList result) {
+            findWithinRadius(center, radius, ItemFilter.ALL, result);
+        }
+
+        /**
+         * Same as {@link #findWithinRadius(LatLng, double, NeighborList)} for the items that match the filter
+         */
+        public void findWithinRadius(LatLng center, double radius, ItemFilter filter, NeighborList result) {
+            RadiusFilter radiusFilter = startRadiusQuery(center, radius);
+            radiusFilter.mResult = result;
+            try {
+                rangeAround(center, radius, filter, radiusFilter);
+            } finally {
+                radiusFilter.reset();
+            }
+        }
+
+        private RadiusFilter startRadiusQuery(LatLng center, double radius) {
+            RadiusFilter filter = RADIUS_FILTERS.get();
+            if (filter.mVectors != null) {
+                // a visitor that queries again from within visit
+                filter = new RadiusFilter();
+            }
+
+            double lat = Math.toRadians(center.latitude);
+            double lon = Math.toRadians(center.longitude);
+            filter.mVectors = mVectors;
+            filter.mX = Math.cos(lat) * Math.cos(lon);
+            filter.mY = Math.cos(lat) * Math.sin(lon);
+            filter.mZ = Math.sin(lat);
+            filter.mMaxChordSquared = UnitVectors.toChordSquared(radius);
+            filter.mMinDot = 1 - filter.mMaxChordSquared / 2;
+            return filter;
+        }
+
+        // passes all items in the box around a circle to the visitor
+        private void rangeAround(LatLng center, double radius, ItemFilter filter, HandleVisitor visitor) {
+            double latitude = center.latitude;
+            double longitude = center.longitude;
+
+            // latitudes are spaced equally, longitudes narrow towards the poles
+            double angle = radius / EARTH_RADIUS;
+            double minLat = latitude - Math.toDegrees(angle);
+            double maxLat = latitude + Math.toDegrees(angle);
+            double minX = Double.NEGATIVE_INFINITY;
+            double maxX = Double.POSITIVE_INFINITY;
+            if (minLat > -90 && maxLat < 90) {
+                double sinAngle = Math.sin(angle) / Math.cos(Math.toRadians(latitude));
+                double dLon = sinAngle < 1 ? Math.toDegrees(Math.asin(sinAngle)) : 180;
+                // a circle across the antimeridian keeps the whole width
+                if (longitude - dLon >= -180 && longitude + dLon <= 180) {
+                    minX = toX(longitude - dLon);
+                    maxX = toX(longitude + dLon);
+                }
+            }
+            // y grows towards the south
+            double minY = maxLat < 90 ? toY(maxLat) : Double.NEGATIVE_INFINITY;
+            double maxY = minLat > -90 ? toY(minLat) : Double.POSITIVE_INFINITY;
+
+            mIndex.range(mTable, filter, minX, maxX, minY, maxY, visitor);
+        }
+
+        /**
+         * Adds up to n items closest to center to the result, closest first
+         *
+         * @param maxDistance only items up to this distance in meters are added
+         */
+        public void findClosestItems(LatLng center, int n, double maxDistance, NeighborList result) {
+            mIndex.nearest(mTable, center.latitude, center.longitude, n, maxDistance, result);
+        }
+
+        /**
+         * Adds up to n items closest to center that match the filter to the result, closest first. Subtrees of the
+         * index without matching items are never searched.
+         *
+         * @param maxDistance only items up to this distance in meters are added
+         */
+        public void findClosestItems(LatLng center, int n, double maxDistance, ItemFilter filter, NeighborList result) {
+            mIndex.nearest(mTable, center.latitude, center.longitude, n, maxDistance, filter, result);
+        }
+
+        /**
+         * Starts yielding the items by increasing distance from center, a page at a time, see
+         * {@link NearestIterator}
+         */
+        public NearestIterator<T> nearestFirst(LatLng center, ItemFilter filter) {
+            return new NearestIterator<T>(this, mIndex.nearestCursor(mTable, center.latitude, center.longitude, filter));
+        }
+
+        private List<T> toItems(HandleList handles) {
+            List<T> items = new ArrayList<T>(handles.size());
+            for (int i = 0; i < handles.size(); i++) {
+                items.add(mTable.getItem(handles.get(i)));
+            }
+            return items;
+        }
+    }
+
+    private static final ThreadLocal<RadiusFilter> RADIUS_FILTERS = new ThreadLocal<RadiusFilter>() {
+        @Override
+        protected RadiusFilter initialValue() {
+            return new RadiusFilter();
+        }
+    };
+
+    /**
+     * Passes on the items of the box around a circle that are within the circle, to a visitor or together with
+     * their distance to a result. Reused by all radius queries of a thread.
+     * <p>
+     * The precomputed unit vectors of the snapshot make the check a dot product per item in the box.
+     */
+    private static final class RadiusFilter implements HandleVisitor {
+        // a few ulps of 1, dot products closer than this to the limit are decided by the exact chord
+        private static final double DOT_SLACK = 1e-13;
+
+        UnitVectors mVectors;
+        double mX;
+        double mY;
+        double mZ;
+        double mMinDot;
+        double mMaxChordSquared;
+        HandleVisitor mTarget;
+        NeighborList mResult;
+
+        @Override
+        public void visit(int handle) {
+            double dot = mVectors.dot(handle, mX, mY, mZ);
+            if (!(dot >= mMinDot - DOT_SLACK))
+                return;
+
+            if (mTarget != null) {
+                if (dot >= mMinDot + DOT_SLACK || mVectors.chordSquared(handle, mX, mY, mZ) <= mMaxChordSquared) {
+                    mTarget.visit(handle);
+                }
+            } else {
+                double chordSquared = mVectors.chordSquared(handle, mX, mY, mZ);
+                if (chordSquared <= mMaxChordSquared) {
+                    mResult.add(handle, UnitVectors.toMeters(chordSquared));
+                }
+            }
+        }
+
+        void reset() {
+            mVectors = null;
+            mTarget = null;
+            mResult = null;
+        }
+    }
+
+    /**
+     * @return The current items and their index, everything was built before they were published
+     */
+    public Snapshot<T> snapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * Builds a snapshot of a table with everything queries and clustering need, without touching any data source.
+     * This is the expensive part of replacing the items, call it on a background thread and hand the result to
+     * {@link #setItems(Snapshot)}, which only swaps it in.
+     *
+     * @param table   the items, the snapshot keeps a reference to the table so it must not be modified
+     * @param index   a prebuilt index over the table (see {@link PackedPointIndex#build(ItemTable, int)}), or null to
+     *                build a {@link PackedPointIndex}
+     * @param cells   a prebuilt cell index over the table (see {@link CellIndex#build(ItemTable, int)}), or null to
+     *                build one
+     * @param pyramid prebuilt clusters of the sites of the table (see {@link ClusterPyramid#build(Sites, int)}), or
+     *                null to build them
+     */
+    public static <T extends ClusterItem> Snapshot<T> prepare(ItemTable<T> table, SpatialIndex index, CellIndex cells,
+                                                              ClusterPyramid pyramid) {
+        return Snapshot.build(table, index, PackedPointIndex.FACTORY, cells, pyramid, false);
+    }
+
+    /**
+     * Same as {@link #prepare(ItemTable, SpatialIndex, CellIndex, ClusterPyramid)} for a table that is still
+     * growing, see {@link #setLoadingItems(ItemTable)}
+     */
+    public static <T extends ClusterItem> Snapshot<T> prepareLoading(ItemTable<T> table) {
+        return Snapshot.build(table, null, PackedPointIndex.FACTORY, null, null, true);
+    }
+
+    /**
+     * Replaces all items with a prepared snapshot, readers switch over atomically
+     */
+    public void setItems(Snapshot<T> snapshot) {
+        synchronized (mWriteLock) {
+            mItems = null;
+            publish(snapshot);
+        }
+    }
+
+    /**
+     * Replaces all items at once, building their indexes on the calling thread
+     *
+     * @param table the items, the data source keeps a reference to the table so it must not be modified
+     * @param index a prebuilt index over the table (see {@link PackedPointIndex#build(ItemTable, int)}), or null
+     *              to build it here
+     */
+    public void setItems(ItemTable<T> table, SpatialIndex index) {
+        setItems(table, index, null);
+    }
+
+    /**
+     * Replaces all items at once, together with prebuilt indexes
+     *
+     * @param cells a prebuilt cell index over the table (see {@link CellIndex#build(ItemTable, int)}), or null to
+     *              build it here
+     */
+    public void setItems(ItemTable<T> table, SpatialIndex index, CellIndex cells) {
+        setItems(table, index, cells, null);
+    }
+
+    /**
+     * Replaces all items at once, together with prebuilt indexes and clusters
+     *
+     * @param pyramid prebuilt clusters of the sites of the table (see {@link ClusterPyramid#build(Sites, int)}), or
+     *                null to build them here
+     */
+    public void setItems(ItemTable<T> table, SpatialIndex index, CellIndex cells, ClusterPyramid pyramid) {
+        setItems(Snapshot.build(table, index, mIndexFactory, cells, pyramid, false));
+    }
+
+    /**
+     * Replaces all items with a table that is still growing, e.g. while items are downloaded and published batch by
+     * batch. Such snapshots come without a {@link ClusterPyramid}, as that would cluster all zoom levels again for
+     * every batch. Hand in the pyramid with the complete items instead.
+     */
+    public void setLoadingItems(ItemTable<T> table) {
+        setItems(Snapshot.build(table, null, mIndexFactory, null, null, true));
+    }
+
+    /**
+     * Replaces the items with a table that differs from the current one only at a few handles, e.g. after a sync
+     * changed, added or removed some items. Only the changed items are indexed and grouped into sites, queries
+     * combine them with the indexes of the current snapshot. The cluster pyramid is kept, only where items moved
+     * its clusters are no longer used, see {@link Snapshot#hasMovedSincePyramid(double, double, double, double)}.
+     * Once the patches add up to a larger part of the items everything is built again.
+     *
+     * @param table   the items, the data source keeps a reference to the table so it must not be modified
+     * @param changed ascending handles whose items differ from those of the current table. Items beyond the end of
+     *                either table count as changed without being listed.
+     */
+    public void patchItems(ItemTable<T> table, int[] changed) {
+        synchronized (mWriteLock) {
+            Snapshot<T> patched = mSnapshot.get().patch(table, changed, mIndexFactory);
+            mItems = null;
+            publish(patched);
+        }
+    }
 
     /**
-     * Any modifications should be synchronized on mQuadTree.
+     * @return The current items, handles returned by queries refer to this table
      */
-    private final PointQuadTree<QuadItem<T>> mQuadTree = new PointQuadTree<QuadItem<T>>(0, 1, 0, 1);
+    public ItemTable<T> getItems() {
+        return mSnapshot.get().mTable;
+    }
 
+    /**
+     * Adds a single item. This copies and indexes all items, use {@link #setItems(ItemTable, SpatialIndex)} for more
+     * than a few.
+     */
     public void addItem(T item) {
-        final QuadItem<T> quadItem = new QuadItem<T>(item);
-        synchronized (mQuadTree) {
-            mItems.add(quadItem);
-            mQuadTree.add(quadItem);
+        synchronized (mWriteLock) {
+            ownItems().add(item);
+            publishItems();
         }
     }
 
     public void addItems(Collection<T> items) {
-        for (T item : items) {
-            addItem(item);
+        synchronized (mWriteLock) {
+            ownItems().addAll(items);
+            publishItems();
         }
     }
 
-    public void clearItems() {
-        synchronized (mQuadTree) {
-            mItems.clear();
-            mQuadTree.clear();
+    /**
+     * @return false if the item was not part of this data source
+     */
+    public boolean removeItem(T item) {
+        synchronized (mWriteLock) {
+            List<T> items = ownItems();
+            int handle = indexOf(items, item);
+            if (handle < 0)
+                return false;
+
+            items.remove(handle);
+            publishItems();
+            return true;
         }
     }
 
-    public Collection<QuadItem<T>> search(Bounds searchBounds) {
-        synchronized (mQuadTree) {
-            return mQuadTree.search(searchBounds);
+    /**
+     * Replaces an item in place, e.g. after its status changed
+     */
+    public void updateItem(T oldItem, T newItem) {
+        synchronized (mWriteLock) {
+            List<T> items = ownItems();
+            int handle = indexOf(items, oldItem);
+            if (handle < 0) {
+                items.add(newItem);
+            } else {
+                items.set(handle, newItem);
+            }
+            publishItems();
+        }
+    }
+
+    public void clearItems() {
+        synchronized (mWriteLock) {
+            mItems = new ArrayList<T>();
+            publishItems();
         }
     }
 
+    public int size() {
+        return mSnapshot.get().mTable.size();
+    }
+
+    public T getItem(int handle) {
+        return mSnapshot.get().mTable.getItem(handle);
+    }
+
+    /**
+     * @return The projected x coordinate of an item, see {@link #toPoint(LatLng)}
+     */
+    public double getX(int handle) {
+        return snapshot().getX(handle);
+    }
+
+    /**
+     * @return The projected y coordinate of an item, see {@link #toPoint(LatLng)}
+     */
+    public double getY(int handle) {
+        return snapshot().getY(handle);
+    }
+
+    /**
+     * Adds the handles of all items within the bounds to the result
+     */
+    public void search(Bounds searchBounds, HandleList result) {
+        snapshot().search(searchBounds, result);
+    }
+
+    /**
+     * Passes the handles of all items within the bounds to the visitor, see
+     * {@link Snapshot#forEachInBounds(Bounds, HandleVisitor)}
+     */
+    public void forEachInBounds(Bounds searchBounds, HandleVisitor visitor) {
+        snapshot().forEachInBounds(searchBounds, visitor);
+    }
+
+    /**
+     * Passes the handles of all items within the bounds that match the filter to the visitor, see
+     * {@link Snapshot#forEachInBounds(Bounds, ItemFilter, HandleVisitor)}
+     */
+    public void forEachInBounds(Bounds searchBounds, ItemFilter filter, HandleVisitor visitor) {
+        snapshot().forEachInBounds(searchBounds, filter, visitor);
+    }
+
+    /**
+     * Adds the counts and sums of all items within the bounds to the result, see
+     * {@link Snapshot#aggregate(Bounds, RangeAggregate)}
+     */
+    public void aggregate(Bounds bounds, RangeAggregate result) {
+        snapshot().aggregate(bounds, result);
+    }
+
+    /**
+     * Passes the handles of all items up to a great-circle distance from center to the visitor, see
+     * {@link Snapshot#forEachInRadius(LatLng, double, HandleVisitor)}
+     */
+    public void forEachInRadius(LatLng center, double radius, HandleVisitor visitor) {
+        snapshot().forEachInRadius(center, radius, visitor);
+    }
+
+    public void forEachInRadius(LatLng center, double radius, ItemFilter filter, HandleVisitor visitor) {
+        snapshot().forEachInRadius(center, radius, filter, visitor);
+    }
+
+    public List<T> search(Bounds searchBounds) {
+        Snapshot<T> snapshot = snapshot();
+        HandleList found = new HandleList();
+        snapshot.search(searchBounds, found);
+        return snapshot.toItems(found);
+    }
+
     public List<T> search(LatLngBounds latLngBounds) {
-        Point ne = PROJECTION.toPoint(latLngBounds.northeast);
-        Point sw = PROJECTION.toPoint(latLngBounds.southwest);
+        return search(toBounds(latLngBounds));
+    }
 
-        Bounds searchBounds = new Bounds(Math.min(ne.x, sw.x), Math.max(ne.x, sw.x), Math.min(ne.y, sw.y), Math.max(ne.y, sw.y));
+    /**
+     * @deprecated the search no longer grows a radius, use {@link #findClosestItems(LatLng, int, NeighborList)}
+     */
+    @Deprecated
+    public List<T> findClosestItems(LatLng center, int n, float initialRadius) {
+        Snapshot<T> snapshot = snapshot();
+        NeighborList found = new NeighborList(n);
+        snapshot.findClosestItems(center, n, Double.POSITIVE_INFINITY, found);
 
-        final List<T> items = new ArrayList<T>();
-        synchronized (mQuadTree) {
-            Collection<SpatialDataSource.QuadItem<T>> found = mQuadTree.search(searchBounds);
-            for (SpatialDataSource.QuadItem<T> quadItem : found) {
-                items.add(quadItem.getClusterItem());
-            }
+        List<T> items = new ArrayList<T>(found.size());
+        for (int i = 0; i < found.size(); i++) {
+            items.add(snapshot.getItem(found.getHandle(i)));
         }
         return items;
     }
 
-    public List<T> findClosestItems(LatLng center, int n, float initialRadius) {
-        final int incFactor = 2;
-        int found = 0;
-        float currentDist = initialRadius;
+    /**
+     * Adds the n items closest to center by great-circle distance to the result, closest first
+     */
+    public void findClosestItems(LatLng center, int n, NeighborList result) {
+        findClosestItems(center, n, Double.POSITIVE_INFINITY, result);
+    }
+
+    /**
+     * Adds up to n items closest to center to the result, closest first
+     *
+     * @param maxDistance only items up to this distance in meters are added
+     */
+    public void findClosestItems(LatLng center, int n, double maxDistance, NeighborList result) {
+        snapshot().findClosestItems(center, n, maxDistance, result);
+    }
+
+    /**
+     * Adds up to n items closest to center that match the filter to the result, closest first
+     *
+     * @param maxDistance only items up to this distance in meters are added
+     */
+    public void findClosestItems(LatLng center, int n, double maxDistance, ItemFilter filter, NeighborList result) {
+        snapshot().findClosestItems(center, n, maxDistance, filter, result);
+    }
+
+    /**
+     * Starts yielding the current items by increasing distance from center, see {@link NearestIterator}
+     */
+    public NearestIterator<T> nearestFirst(LatLng center) {
+        return snapshot().nearestFirst(center, ItemFilter.ALL);
+    }
+
+    public NearestIterator<T> nearestFirst(LatLng center, ItemFilter filter) {
+        return snapshot().nearestFirst(center, filter);
+    }
+
+    /**
+     * Adds all items up to a great-circle distance from center to the result together with their distance, see
+     * {@link Snapshot#findWithinRadius(LatLng, double, NeighborList)}
+     */
+    public void findWithinRadius(LatLng center, double radius, NeighborList result) {
+        snapshot().findWithinRadius(center, radius, result);
+    }
 
-        Stream<T> nodes = null;
+    public void findWithinRadius(LatLng center, double radius, ItemFilter filter, NeighborList result) {
+        snapshot().findWithinRadius(center, radius, filter, result);
+    }
 
-        if (this.mItems.size() < n)
-            nodes = StreamSupport.stream(mItems).map(x -> x.getClusterItem()); // return all nodes
-        else {
-            while (found < n) {
-                LatLngBounds bounds = LocationUtilities.calculateBoundingBox(center, currentDist);
-                List<T> f = search(bounds);
-                currentDist *= incFactor;
+    private Bounds toBounds(LatLngBounds latLngBounds) {
+        Point ne = PROJECTION.toPoint(latLngBounds.northeast);
+        Point sw = PROJECTION.toPoint(latLngBounds.southwest);
+
+        return new Bounds(Math.min(ne.x, sw.x), Math.max(ne.x, sw.x), Math.min(ne.y, sw.y), Math.max(ne.y, sw.y));
+    }
 
-                found = f.size();
-                nodes = StreamSupport.stream(f);
+    private List<T> ownItems() {
+        if (mItems == null) {
+            // switching from a handed in table to single item updates
+            ItemTable<T> table = mSnapshot.get().mTable;
+            mItems = new ArrayList<T>(table.size());
+            for (int handle = 0; handle < table.size(); handle++) {
+                mItems.add(table.getItem(handle));
             }
         }
+        return mItems;
+    }
 
-        double mlat = center.latitude;
-        double mlon = center.longitude;
+    // items are compared by identity, like markers are
+    private static <T> int indexOf(List<T> items, T item) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i) == item)
+                return i;
+        }
+        return -1;
+    }
 
-        List<T> result = new ArrayList<>();
-        nodes
-                .sorted((x, y) ->
-                        Double.compare(
-                                distFrom(mlat, mlon, x.getPosition().latitude, x.getPosition().longitude),
-                                distFrom(mlat, mlon, y.getPosition().latitude, y.getPosition().longitude)))
-                .limit(n)
-                .forEach(x -> result.add(x));
+    private void publishItems() {
+        publish(Snapshot.build(new ListItemTable<T>(new ArrayList<T>(mItems)), null, mIndexFactory, null, null, false));
+    }
 
-        return result;
+    private void publish(Snapshot<T> snapshot) {
+        Snapshot<T> previous = mSnapshot.get();
+        mSnapshot.set(snapshot.withVersion(previous == null ? 0 : previous.mVersion + 1));
     }
 
     public static double distFrom(double lat1, double lng1, double lat2, double lng2) {
@@ -129,43 +916,32 @@ public class SpatialDataSource<T extends ClusterItem> {
         return PROJECTION.toPoint(latLng);
     }
 
-    public static class QuadItem<T extends ClusterItem> implements PointQuadTree.Item, Cluster<T> {
-        private final T mClusterItem;
-        private final Point mPoint;
-        private final LatLng mPosition;
-        private Set<T> singletonSet;
-
-        private QuadItem(T item) {
-            mClusterItem = item;
-            mPosition = item.getPosition();
-            mPoint = PROJECTION.toPoint(mPosition);
-            singletonSet = Collections.singleton(mClusterItem);
-        }
-
-        @Override
-        public Point getPoint() {
-            return mPoint;
-        }
-
-        @Override
-        public LatLng getPosition() {
-            return mPosition;
-        }
-
-        @Override
-        public Set<T> getItems() {
-            return singletonSet;
-        }
-
-        @Override
-        public int getSize() {
-            return 1;
-        }
+    /**
+     * Same as the x coordinate of {@link #toPoint(LatLng)}, without allocating a point
+     */
+    public static double toX(double longitude) {
+        return longitude / 360 + .5;
+    }
 
-        public T getClusterItem() {
-            return mClusterItem;
-        }
+    /**
+     * Same as the y coordinate of {@link #toPoint(LatLng)}, without allocating a point
+     */
+    public static double toY(double latitude) {
+        final double siny = Math.sin(Math.toRadians(latitude));
+        return 0.5 * Math.log((1 + siny) / (1 - siny)) / -(2 * Math.PI) + .5;
     }
 
+    /**
+     * The inverse of {@link #toX(double)}
+     */
+    public static double toLongitude(double x) {
+        return (x - .5) * 360;
+    }
 
+    /**
+     * The inverse of {@link #toY(double)}
+     */
+    public static double toLatitude(double y) {
+        return 90 - Math.toDegrees(Math.atan(Math.exp(-(.5 - y) * 2 * Math.PI)) * 2);
+    }
 }
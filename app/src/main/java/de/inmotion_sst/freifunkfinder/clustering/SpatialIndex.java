@@ -0,0 +1,71 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+/**
+ * A static index over the projected positions of the items of an {@link ItemTable}. Indexes are built in bulk and
+ * never modified, a changed table gets a new index.
+ * <p>
+ * Coordinates are in the (0,1)|(0,1) world of {@link SpatialDataSource}, results are handles into the table.
+ */
+public interface SpatialIndex {
+    int size();
+
+    /**
+     * @return The projected x coordinate of an item
+     */
+    double getX(int handle);
+
+    /**
+     * @return The projected y coordinate of an item
+     */
+    double getY(int handle);
+
+    /**
+     * Passes the handles of all items within the bounds to the visitor, without allocating anything
+     */
+    void range(double minX, double maxX, double minY, double maxY, HandleVisitor visitor);
+
+    /**
+     * Passes the handles of all items within the bounds that match the filter to the visitor. Subtrees without any
+     * matching item are skipped.
+     *
+     * @param table the table the index was built from, for the values of {@link ItemAttributes}
+     */
+    void range(ItemTable<?> table, ItemFilter filter, double minX, double maxX, double minY, double maxY, HandleVisitor visitor);
+
+    /**
+     * Adds the counts and sums of all items within the bounds to the result. Subtrees entirely within the bounds are
+     * added as a whole, without visiting their items.
+     *
+     * @param table the table the index was built from, for the values of {@link ItemStatistics}
+     */
+    void aggregate(ItemTable<?> table, double minX, double maxX, double minY, double maxY, RangeAggregate result);
+
+    /**
+     * Adds up to k items closest to a position by great-circle distance to the result, closest first
+     *
+     * @param table       the table the index was built from, for exact positions
+     * @param maxDistance only items up to this distance in meters are added
+     */
+    void nearest(ItemTable<?> table, double latitude, double longitude, int k, double maxDistance, NeighborList result);
+
+    /**
+     * Same as {@link #nearest(ItemTable, double, double, int, double, NeighborList)} for the items that match the
+     * filter
+     */
+    void nearest(ItemTable<?> table, double latitude, double longitude, int k, double maxDistance, ItemFilter filter, NeighborList result);
+
+    /**
+     * Starts a search that yields the items that match the filter by increasing great-circle distance, as many as
+     * asked for at a time
+     *
+     * @param table the table the index was built from, for exact positions
+     */
+    NearestCursor nearestCursor(ItemTable<?> table, double latitude, double longitude, ItemFilter filter);
+
+    /**
+     * Builds the indexes of a {@link SpatialDataSource} whenever its items changed
+     */
+    interface Factory {
+        SpatialIndex build(ItemTable<?> table);
+    }
+}
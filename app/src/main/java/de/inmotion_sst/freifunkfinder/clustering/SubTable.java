@@ -0,0 +1,81 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.maps.android.clustering.ClusterItem;
+
+/**
+ * The items of a table at a few handles, as a table of their own: handle i is the item at handles[i]. Indexes built
+ * over it answer for those items only, see {@link PatchedIndex}.
+ * <p>
+ * Attributes and statistics are passed through. Items of a table without them have no flags, no group and no
+ * clients, like indexes treat such tables.
+ */
+final class SubTable<T extends ClusterItem> implements ItemTable<T>, ItemAttributes, ItemStatistics {
+    private final ItemTable<T> mTable;
+    private final int[] mHandles;
+    private final ItemAttributes mAttributes;
+    private final ItemStatistics mStatistics;
+
+    SubTable(ItemTable<T> table, int[] handles) {
+        mTable = table;
+        mHandles = handles;
+        mAttributes = table instanceof ItemAttributes ? (ItemAttributes) table : null;
+        mStatistics = table instanceof ItemStatistics ? (ItemStatistics) table : null;
+    }
+
+    /**
+     * @return The handle in the underlying table of an item of this one
+     */
+    int getHandle(int i) {
+        return mHandles[i];
+    }
+
+    @Override
+    public int size() {
+        return mHandles.length;
+    }
+
+    @Override
+    public double getLatitude(int i) {
+        return mTable.getLatitude(mHandles[i]);
+    }
+
+    @Override
+    public double getLongitude(int i) {
+        return mTable.getLongitude(mHandles[i]);
+    }
+
+    @Override
+    public T getItem(int i) {
+        return mTable.getItem(mHandles[i]);
+    }
+
+    @Override
+    public int getFlags(int i) {
+        return mAttributes == null ? 0 : mAttributes.getFlags(mHandles[i]);
+    }
+
+    @Override
+    public int getGroup(int i) {
+        return mAttributes == null ? -1 : mAttributes.getGroup(mHandles[i]);
+    }
+
+    @Override
+    public int getGroupCode(String name) {
+        return mAttributes == null ? -1 : mAttributes.getGroupCode(name);
+    }
+
+    @Override
+    public boolean isOnline(int i) {
+        return mStatistics != null && mStatistics.isOnline(mHandles[i]);
+    }
+
+    @Override
+    public boolean isOffline(int i) {
+        return mStatistics != null && mStatistics.isOffline(mHandles[i]);
+    }
+
+    @Override
+    public int getClients(int i) {
+        return mStatistics == null ? 0 : mStatistics.getClients(mHandles[i]);
+    }
+}
@@ -0,0 +1,234 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.geometry.Bounds;
+import com.google.maps.android.geometry.Point;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Clusters like {@link VisibleNonHierarchicalDistanceBasedAlgorithm}, but per map tile of the current zoom level,
+ * and keeps the clusters of the least recently used tiles. A pan only clusters the tiles it newly exposes.
+ * <p>
+ * The sites of a tile are looked up in the {@link CellIndex} of the sites, whose cells at a zoom level are the map
+ * tiles of that level. Sites only join clusters of their own tile, so clusters of adjacent tiles never share a
+ * site, but clusters do not reach across tile borders either. Tiles within {@link #OVERSCAN_TILES} around the
+ * visible ones are clustered ahead, so that small pans find them in the cache. All tiles are dropped once the
+ * items change.
+ */
+public class TiledDistanceBasedAlgorithm<T extends ClusterItem>
+        implements CompactClusterAlgorithm<T>, GoogleMap.OnCameraChangeListener {
+
+    /**
+     * Enough tiles for the visible ones and their overscan at a few zoom levels
+     */
+    public static final int DEFAULT_CACHE_TILES = 512;
+
+    /**
+     * Rings of tiles around the visible ones that are clustered ahead
+     */
+    public static final int OVERSCAN_TILES = 1;
+
+    // tile coordinates of deeper zoom levels would not fit into tile keys
+    private static final int MAX_TILE_ZOOM = 29;
+
+    private final int mScreenWidth;
+    private final int mScreenHeight;
+    private final SpatialDataSource<T> mDataSource;
+    private LatLng mMapCenter;
+
+    // the clusters of a tile by zoom and tile coordinates, in access order; guarded by itself
+    private final Map<Long, List<SiteCluster<T>>> mTiles;
+    private int mTilesVersion = -1;
+    private long mHits;
+    private long mMisses;
+
+    // the state per site of the last pass, taken by one pass at a time so that concurrent passes do not share it
+    private final AtomicReference<Tiler<T>> mIdleTiler = new AtomicReference<>();
+
+    public TiledDistanceBasedAlgorithm(int screenWidth, int screenHeight, SpatialDataSource<T> dataSource) {
+        this(screenWidth, screenHeight, dataSource, DEFAULT_CACHE_TILES);
+    }
+
+    public TiledDistanceBasedAlgorithm(int screenWidth, int screenHeight, SpatialDataSource<T> dataSource, final int cacheTiles) {
+        mScreenWidth = screenWidth;
+        mScreenHeight = screenHeight;
+        mDataSource = dataSource;
+        mTiles = new LinkedHashMap<Long, List<SiteCluster<T>>>(cacheTiles, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<SiteCluster<T>>> eldest) {
+                return size() > cacheTiles;
+            }
+        };
+    }
+
+    @Override
+    public Set<? extends Cluster<T>> getClusters(double zoom) {
+        ClusterList<T> clusters = new ClusterList<>();
+        getClusters(zoom, clusters);
+        return clusters.toClusters();
+    }
+
+    @Override
+    public void getClusters(double zoom, ClusterList<T> result) {
+        getClusters(zoom, result, Cancellation.NONE);
+    }
+
+    /**
+     * Cached tiles are taken as they are, a tile that is being clustered when the pass is cancelled is not cached
+     */
+    @Override
+    public boolean getClusters(double zoom, ClusterList<T> result, Cancellation cancellation) {
+        final int discreteZoom = Math.max(0, Math.min(MAX_TILE_ZOOM, (int) zoom));
+
+        // one snapshot for the whole pass, cached tiles of older snapshots are dropped
+        SpatialDataSource.Snapshot<T> items = mDataSource.snapshot();
+        synchronized (mTiles) {
+            if (mTilesVersion != items.getVersion()) {
+                mTiles.clear();
+                mTilesVersion = items.getVersion();
+            }
+        }
+
+        Bounds visibleBounds = getVisibleBounds(discreteZoom);
+        int minX = CellIndex.toCell(visibleBounds.minX, discreteZoom);
+        int maxX = CellIndex.toCell(visibleBounds.maxX, discreteZoom);
+        int minY = CellIndex.toCell(visibleBounds.minY, discreteZoom);
+        int maxY = CellIndex.toCell(visibleBounds.maxY, discreteZoom);
+        int lastTile = (1 << discreteZoom) - 1;
+
+        Tiler<T> tiler = null;
+        result.clear(items.getSites());
+        for (int x = Math.max(0, minX - OVERSCAN_TILES); x <= Math.min(lastTile, maxX + OVERSCAN_TILES); x++) {
+            for (int y = Math.max(0, minY - OVERSCAN_TILES); y <= Math.min(lastTile, maxY + OVERSCAN_TILES); y++) {
+                Long key = tileKey(discreteZoom, x, y);
+                List<SiteCluster<T>> clusters;
+                synchronized (mTiles) {
+                    clusters = mTiles.get(key);
+                    if (clusters != null) {
+                        mHits++;
+                    } else {
+                        mMisses++;
+                    }
+                }
+
+                if (clusters == null) {
+                    if (tiler == null) {
+                        tiler = mIdleTiler.getAndSet(null);
+                        if (tiler == null || tiler.items != items) {
+                            tiler = new Tiler<T>(items);
+                        }
+                    }
+                    clusters = tiler.cluster(discreteZoom, x, y, cancellation);
+                    if (clusters == null) {
+                        mIdleTiler.set(tiler);
+                        result.clear(items.getSites());
+                        return false;
+                    }
+                    synchronized (mTiles) {
+                        // a newer snapshot may have replaced the cache meanwhile
+                        if (mTilesVersion == items.getVersion()) {
+                            mTiles.put(key, clusters);
+                        }
+                    }
+                }
+
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                    for (SiteCluster<T> cluster : clusters) {
+                        result.addCluster(cluster);
+                    }
+                }
+            }
+        }
+
+        if (tiler != null) {
+            mIdleTiler.set(tiler);
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of tiles that were found in the cache, since the algorithm was created
+     */
+    public long getHits() {
+        synchronized (mTiles) {
+            return mHits;
+        }
+    }
+
+    /**
+     * @return The number of tiles that had to be clustered, since the algorithm was created
+     */
+    public long getMisses() {
+        synchronized (mTiles) {
+            return mMisses;
+        }
+    }
+
+    // zoom levels and tile coordinates fit into 5 and 29 bits
+    private static Long tileKey(int zoom, int x, int y) {
+        return (long) zoom << 58 | (long) x << 29 | y;
+    }
+
+    private Bounds getVisibleBounds(int zoom) {
+        if (mMapCenter == null) {
+            return new Bounds(0, 0, 0, 0);
+        }
+
+        Point p = mDataSource.toPoint(mMapCenter);
+
+        final double halfWidthSpan = mScreenWidth / Math.pow(2, zoom) / 256 / 2;
+        final double halfHeightSpan = mScreenHeight / Math.pow(2, zoom) / 256 / 2;
+
+        return new Bounds(
+                p.x - halfWidthSpan, p.x + halfWidthSpan,
+                p.y - halfHeightSpan, p.y + halfHeightSpan);
+    }
+
+    @Override
+    public void onCameraChange(CameraPosition cameraPosition) {
+        mMapCenter = cameraPosition.target;
+    }
+
+    /**
+     * Clusters tiles of one snapshot, the state per site is shared by all tiles
+     */
+    private static final class Tiler<T extends ClusterItem> {
+        final SpatialDataSource.Snapshot<T> items;
+        private final CellIndex cells;
+        private final DistanceClusterer<T> clusterer;
+        private final HandleList tileSites = new HandleList();
+        private final ClusterList<T> tileClusters = new ClusterList<>();
+
+        Tiler(SpatialDataSource.Snapshot<T> items) {
+            this.items = items;
+            cells = items.sites().getCells();
+            clusterer = new DistanceClusterer<T>(items);
+        }
+
+        // null if the pass was cancelled
+        List<SiteCluster<T>> cluster(int zoom, int x, int y, Cancellation cancellation) {
+            tileSites.clear();
+            cells.forEachInCell(zoom, x, y, tileSites);
+
+            double tileSize = 1.0 / (1 << zoom);
+            Bounds tile = new Bounds(x * tileSize, (x + 1) * tileSize, y * tileSize, (y + 1) * tileSize);
+            double halfSpan = VisibleNonHierarchicalDistanceBasedAlgorithm.MAX_DISTANCE_AT_ZOOM / Math.pow(2, zoom) / 256 / 2;
+            if (!clusterer.cluster(tileSites, halfSpan, tile, cancellation, tileClusters))
+                return null;
+
+            List<SiteCluster<T>> result = new ArrayList<>(tileClusters.size());
+            tileClusters.addClustersTo(result);
+            return result;
+        }
+    }
+}
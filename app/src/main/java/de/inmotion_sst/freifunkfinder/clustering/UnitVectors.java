@@ -0,0 +1,156 @@
+package de.inmotion_sst.freifunkfinder.clustering;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Item positions as unit vectors from the center of the earth, in parallel arrays by handle.
+ * <p>
+ * The straight line (chord) between two unit vectors grows with their great-circle distance, and so does one minus
+ * their dot product, so a dot product per item decides which items are within a distance without any trigonometry.
+ * Positions the projection cannot place get NaN vectors, they are never within any distance.
+ * <p>
+ * Built together with the {@link PackedPointIndex} of a table and stored in its file. Vectors of a table that
+ * changed at a few handles are patched like its index, see {@link #patch(ItemTable, int[])}.
+ */
+final class UnitVectors {
+    // same sphere as SpatialDataSource.distFrom
+    private static final double EARTH_RADIUS = 6371000;
+
+    private final int size;
+
+    // by handle, or on patched vectors by position in changed
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+
+    // the vectors of the table before a patch and the ascending handles that changed since, both null if built
+    private final UnitVectors base;
+    private final int[] changed;
+
+    private UnitVectors(int size, double[] xs, double[] ys, double[] zs, UnitVectors base, int[] changed) {
+        this.size = size;
+        this.xs = xs;
+        this.ys = ys;
+        this.zs = zs;
+        this.base = base;
+        this.changed = changed;
+    }
+
+    static UnitVectors build(ItemTable<?> table) {
+        int n = table.size();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        double[] zs = new double[n];
+        for (int handle = 0; handle < n; handle++) {
+            set(xs, ys, zs, handle, table.getLatitude(handle), table.getLongitude(handle));
+        }
+        return new UnitVectors(n, xs, ys, zs, null, null);
+    }
+
+    /**
+     * Computes the vectors of the items that moved since the vectors were built only, the others are looked up in
+     * the vectors that were built
+     *
+     * @param moved ascending handles of the items that moved since these vectors were built or patched
+     */
+    UnitVectors patch(ItemTable<?> table, int[] moved) {
+        int[] changed = PatchedIndex.union(this.changed == null ? PatchedIndex.NONE : this.changed, moved, table.size());
+        int m = changed.length;
+        double[] xs = new double[m];
+        double[] ys = new double[m];
+        double[] zs = new double[m];
+        for (int i = 0; i < m; i++) {
+            set(xs, ys, zs, i, table.getLatitude(changed[i]), table.getLongitude(changed[i]));
+        }
+        return new UnitVectors(table.size(), xs, ys, zs, base == null ? this : base, changed);
+    }
+
+    private static void set(double[] xs, double[] ys, double[] zs, int i, double latitude, double longitude) {
+        if (!GreatCircleBounds.isValid(latitude, longitude)) {
+            xs[i] = ys[i] = zs[i] = Double.NaN;
+            return;
+        }
+
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        xs[i] = Math.cos(lat) * Math.cos(lon);
+        ys[i] = Math.cos(lat) * Math.sin(lon);
+        zs[i] = Math.sin(lat);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The dot product of an item and the unit vector q, NaN for items without a valid position
+     */
+    double dot(int handle, double qx, double qy, double qz) {
+        if (base != null) {
+            int i = Arrays.binarySearch(changed, handle);
+            if (i < 0)
+                return base.dot(handle, qx, qy, qz);
+            handle = i;
+        }
+        return xs[handle] * qx + ys[handle] * qy + zs[handle] * qz;
+    }
+
+    /**
+     * @return The squared chord between an item and the unit vector q. Unlike 2 - 2 * {@link #dot} it keeps its
+     * precision for items close to q.
+     */
+    double chordSquared(int handle, double qx, double qy, double qz) {
+        if (base != null) {
+            int i = Arrays.binarySearch(changed, handle);
+            if (i < 0)
+                return base.chordSquared(handle, qx, qy, qz);
+            handle = i;
+        }
+        double dx = xs[handle] - qx;
+        double dy = ys[handle] - qy;
+        double dz = zs[handle] - qz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * @return The squared chord of a great-circle distance in meters, distances beyond half the globe give 4
+     */
+    static double toChordSquared(double meters) {
+        double halfAngle = Math.min(meters / EARTH_RADIUS, Math.PI) / 2;
+        double chord = 2 * Math.sin(halfAngle);
+        return chord * chord;
+    }
+
+    /**
+     * @return The great-circle distance in meters of a squared chord
+     */
+    static double toMeters(double chordSquared) {
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(Math.sqrt(chordSquared) / 2, 1));
+    }
+
+    /**
+     * @return The number of bytes {@link #put(ByteBuffer)} writes for n items
+     */
+    static long byteSize(int n) {
+        return (long) n * 3 * 8;
+    }
+
+    void put(ByteBuffer buffer) {
+        buffer.asDoubleBuffer().put(xs).put(ys).put(zs);
+        buffer.position(buffer.position() + 8 * 3 * xs.length);
+    }
+
+    static UnitVectors get(ByteBuffer buffer, int n) throws IOException {
+        if (n < 0 || buffer.remaining() < byteSize(n))
+            throw new IOException("corrupt unit vectors");
+
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        double[] zs = new double[n];
+        buffer.asDoubleBuffer().get(xs).get(ys).get(zs);
+        buffer.position(buffer.position() + 8 * 3 * n);
+        return new UnitVectors(n, xs, ys, zs, null, null);
+    }
+}
@@ -5,15 +5,11 @@ import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.maps.android.clustering.Cluster;
 import com.google.maps.android.clustering.ClusterItem;
-import com.google.maps.android.clustering.algo.StaticCluster;
 import com.google.maps.android.geometry.Bounds;
 import com.google.maps.android.geometry.Point;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A simple clustering algorithm with O(nlog n) performance. Resulting clusters are not
@@ -27,11 +23,17 @@ import java.util.Set;
  * 5. Remove those items from the list of candidate clusters.
  * <p>
  * Clusters have the center of the first element (not the centroid of the items within it).
+ * <p>
+ * The elements are {@link Sites}: items at the same position are clustered as one, the resulting
+ * {@link SiteCluster}s still count every item.
+ * <p>
+ * The clustering itself runs in a {@link DistanceClusterer} that is kept between calls, so a pass allocates
+ * nothing but its result.
  */
 
 // this is based on https://github.com/googlemaps/android-maps-utils/pull/217
 public class VisibleNonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem>
-        implements ClusterAlgorithm<T>, GoogleMap.OnCameraChangeListener {
+        implements CompactClusterAlgorithm<T>, GoogleMap.OnCameraChangeListener {
 
     public static final int MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
 
@@ -40,6 +42,9 @@ public class VisibleNonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem>
     private final SpatialDataSource<T> mDataSource;
     private LatLng mMapCenter;
 
+    // taken by one pass at a time, so that concurrent passes do not share the state per site
+    private final AtomicReference<DistanceClusterer<T>> mIdleClusterer = new AtomicReference<>();
+
     public VisibleNonHierarchicalDistanceBasedAlgorithm(int screenWidth, int screenHeight, SpatialDataSource<T> quadTree) {
         mScreenWidth = screenWidth;
         mScreenHeight = screenHeight;
@@ -48,80 +53,35 @@ public class VisibleNonHierarchicalDistanceBasedAlgorithm<T extends ClusterItem>
 
     @Override
     public Set<? extends Cluster<T>> getClusters(double zoom) {
+        ClusterList<T> clusters = new ClusterList<>();
+        getClusters(zoom, clusters);
+        return clusters.toClusters();
+    }
+
+    @Override
+    public void getClusters(double zoom, ClusterList<T> result) {
+        getClusters(zoom, result, Cancellation.NONE);
+    }
+
+    @Override
+    public boolean getClusters(double zoom, ClusterList<T> result, Cancellation cancellation) {
         final int discreteZoom = (int) zoom;
 
         final double zoomSpecificSpan = MAX_DISTANCE_AT_ZOOM / Math.pow(2, discreteZoom) / 256;
+        final double halfSpan = zoomSpecificSpan / 2;
 
-        final HashSet<SpatialDataSource.QuadItem<T>> visitedCandidates = new HashSet<>();
-        final Set<Cluster<T>> resultClusters = new HashSet<>();
-        final Map<SpatialDataSource.QuadItem<T>, Double> minDistanceToCluster = new HashMap<>();
-        final Map<SpatialDataSource.QuadItem<T>, StaticCluster<T>> itemToClusterMapping = new HashMap<>();
-
-        synchronized (mDataSource) {
-
-            Bounds visibleBounds = getVisibleBounds(discreteZoom);
-
-            // first, find all visible nodes
-            Collection<SpatialDataSource.QuadItem<T>> visibleNodes = mDataSource.search(visibleBounds);
-
-            for (SpatialDataSource.QuadItem<T> candidate : visibleNodes) {
-                // Candidate is already part of a cluster, nothing to do for it
-                if (visitedCandidates.contains(candidate)) {
-                    continue;
-                }
-
-                // search items close to this node
-                Bounds searchBounds = createBoundsFromSpan(candidate.getPoint(), zoomSpecificSpan);
-                Collection<SpatialDataSource.QuadItem<T>> nearbyNodes= mDataSource.search(searchBounds);
-
-                if (nearbyNodes.size() == 1) {
-                    // Only the current marker is in range. Just add the single item to the resultClusters.
-                    resultClusters.add(candidate);
-                    visitedCandidates.add(candidate);
-                    minDistanceToCluster.put(candidate, 0d); // 0d = its at the center of its N=1 cluster
-                    continue;
-                }
-
-                // build a new cluster around this node
-                StaticCluster<T> cluster = new StaticCluster<T>(candidate.getClusterItem().getPosition());
-                resultClusters.add(cluster);
-
-                for (SpatialDataSource.QuadItem<T> clusterItem : nearbyNodes) {
-                    Double existingDistance = minDistanceToCluster.get(clusterItem);
-                    double distance = distanceSquared(clusterItem.getPoint(), candidate.getPoint());
-
-                    boolean itemBelongsToAnotherCluster = existingDistance != null;
-                    if (itemBelongsToAnotherCluster) {
-                        boolean isAlreadyInCloserCluster = existingDistance < distance;
-                        if (isAlreadyInCloserCluster) {
-                            continue;
-                        }
-
-                        // remove item from current cluster
-                        itemToClusterMapping.get(clusterItem).remove(clusterItem.getClusterItem());
-                    }
-
-                    minDistanceToCluster.put(clusterItem, distance); // update min distance
-                    cluster.add(clusterItem.getClusterItem()); // add to new cluster
-                    itemToClusterMapping.put(clusterItem, cluster); // record mapping
-                }
-
-                // record all nearbyNodes as visited
-                visitedCandidates.addAll(nearbyNodes);
-            }
-        }
-        return resultClusters;
-    }
-    private double distanceSquared(Point a, Point b) {
-        return (a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y);
-    }
+        // one snapshot for the whole pass, handles stay valid while a sync publishes new items. Clusters are made of
+        // sites, so co-located items move between clusters together and are never split.
+        final SpatialDataSource.Snapshot<T> items = mDataSource.snapshot();
 
-    private Bounds createBoundsFromSpan(Point p, double span) {
-        // TODO: Use a span that takes into account the visual size of the marker, not just its LatLng.
-        double halfSpan = span / 2;
-        return new Bounds(
-                p.x - halfSpan, p.x + halfSpan,
-                p.y - halfSpan, p.y + halfSpan);
+        // the state per site of the last pass, unless the items changed since
+        DistanceClusterer<T> clusterer = mIdleClusterer.getAndSet(null);
+        if (clusterer == null || clusterer.getItems() != items) {
+            clusterer = new DistanceClusterer<T>(items);
+        }
+        boolean done = clusterer.cluster(getVisibleBounds(discreteZoom), halfSpan, cancellation, result);
+        mIdleClusterer.set(clusterer);
+        return done;
     }
 
     private Bounds getVisibleBounds(int zoom) {
@@ -0,0 +1,149 @@
+package de.inmotion_sst.freifunkfinder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.inmotion_sst.freifunkfinder.clustering.CellIndex;
+import de.inmotion_sst.freifunkfinder.clustering.HandleList;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+public class CellIndexTests {
+    private File cellFile;
+    private NodeTable table;
+
+    @Before
+    public void setup() throws Exception {
+        cellFile = File.createTempFile("nodes", ".cells");
+
+        table = TestFeed.table();
+    }
+
+    @After
+    public void teardown() {
+        cellFile.delete();
+    }
+
+    @Test
+    public void cells_findSameHandlesAsLinearScan() {
+        CellIndex sut = CellIndex.build(table, 0);
+
+        for (int level = 0; level <= 16; level++) {
+            // the tiles around a few nodes, at every level
+            for (int handle = 0; handle < table.size(); handle += table.size() / 7) {
+                if (!isValid(handle))
+                    continue;
+
+                int x = CellIndex.toCell(SpatialDataSource.toX(table.getLon(handle)), level);
+                int y = CellIndex.toCell(SpatialDataSource.toY(table.getLat(handle)), level);
+                for (int dx = -1; dx <= 1; dx++) {
+                    for (int dy = -1; dy <= 1; dy++) {
+                        if (x + dx < 0 || y + dy < 0 || x + dx >= 1 << level || y + dy >= 1 << level)
+                            continue;
+
+                        HandleList found = new HandleList();
+                        sut.forEachInCell(level, x + dx, y + dy, found);
+                        Set<Integer> actual = new HashSet<>();
+                        for (int i = 0; i < found.size(); i++) {
+                            actual.add(found.get(i));
+                        }
+
+                        assertEquals(found.size(), actual.size());
+                        assertEquals(linearScan(level, x + dx, y + dy), actual);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void count_ofCellIsSumOfItsChildren() {
+        CellIndex sut = CellIndex.build(table, 0);
+
+        int valid = 0;
+        for (int handle = 0; handle < table.size(); handle++) {
+            if (isValid(handle)) {
+                valid++;
+            }
+        }
+        assertEquals(valid, sut.getKeyCount());
+        assertEquals(valid, sut.count(0, 0, 0));
+
+        int x = CellIndex.toCell(SpatialDataSource.toX(6.8), 1);
+        int y = CellIndex.toCell(SpatialDataSource.toY(51.2), 1);
+        for (int level = 1; level < CellIndex.MAX_LEVEL; level++) {
+            int children = sut.count(level + 1, 2 * x, 2 * y) + sut.count(level + 1, 2 * x + 1, 2 * y)
+                    + sut.count(level + 1, 2 * x, 2 * y + 1) + sut.count(level + 1, 2 * x + 1, 2 * y + 1);
+            assertEquals(sut.count(level, x, y), children);
+
+            x = CellIndex.toCell(SpatialDataSource.toX(6.8), level + 1);
+            y = CellIndex.toCell(SpatialDataSource.toY(51.2), level + 1);
+        }
+    }
+
+    @Test
+    public void read_returnsWrittenIndex() throws Exception {
+        CellIndex written = CellIndex.build(table, 1234);
+        written.write(cellFile);
+
+        CellIndex read = CellIndex.read(cellFile);
+
+        assertEquals(1234, read.getGeneration());
+        assertEquals(written.size(), read.size());
+        assertEquals(written.getKeyCount(), read.getKeyCount());
+        for (int i = 0; i < written.getKeyCount(); i++) {
+            assertEquals(written.getKey(i), read.getKey(i));
+            assertEquals(written.getHandle(i), read.getHandle(i));
+        }
+    }
+
+    @Test
+    public void read_rejectsForeignFile() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(cellFile)) {
+            out.write(new byte[64]);
+        }
+
+        try {
+            CellIndex.read(cellFile);
+            fail("read a file that is not a cell index");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void setItems_rejectsCellsOfOtherTable() {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        CellIndex cells = CellIndex.build(NodeTable.of(table.asList().subList(0, 10)), 0);
+
+        try {
+            sut.setItems(table, null, cells);
+            fail("accepted cells of another table");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private boolean isValid(int handle) {
+        return Math.abs(table.getLat(handle)) < 90 && Math.abs(table.getLon(handle)) <= 180;
+    }
+
+    private Set<Integer> linearScan(int level, int x, int y) {
+        Set<Integer> expected = new HashSet<>();
+        for (int handle = 0; handle < table.size(); handle++) {
+            if (isValid(handle)
+                    && CellIndex.toCell(SpatialDataSource.toX(table.getLon(handle)), level) == x
+                    && CellIndex.toCell(SpatialDataSource.toY(table.getLat(handle)), level) == y) {
+                expected.add(handle);
+            }
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,228 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.geometry.Bounds;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.inmotion_sst.freifunkfinder.clustering.Cancellation;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterList;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterPyramid;
+import de.inmotion_sst.freifunkfinder.clustering.HierarchicalDistanceBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.SiteCluster;
+import de.inmotion_sst.freifunkfinder.clustering.Sites;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.VisibleNonHierarchicalDistanceBasedAlgorithm;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ClusterPyramidTests {
+    private static final Bounds WORLD = new Bounds(0, 1, 0, 1);
+
+    private File pyramidFile;
+    private NodeTable table;
+    private Sites<Node> sites;
+
+    @Before
+    public void setup() throws Exception {
+        pyramidFile = File.createTempFile("nodes", ".clusters");
+
+        table = TestFeed.table();
+        sites = Sites.build(table);
+    }
+
+    @After
+    public void teardown() {
+        pyramidFile.delete();
+    }
+
+    @Test
+    public void clusters_containEveryPlacedSiteOnceAtEveryZoom() {
+        ClusterPyramid sut = ClusterPyramid.build(sites, 0);
+
+        int placedSites = 0;
+        int placedItems = 0;
+        for (int site = 0; site < sites.size(); site++) {
+            if (Math.abs(sites.getLatitude(site)) < 90 && Math.abs(sites.getLongitude(site)) <= 180) {
+                placedSites++;
+                placedItems += sites.getCount(site);
+            }
+        }
+
+        for (int zoom = 0; zoom <= ClusterPyramid.MAX_ZOOM + 1; zoom++) {
+            List<SiteCluster<Node>> clusters = new ArrayList<>();
+            sut.getClusters(sites, zoom, WORLD, clusters);
+            assertEquals(sut.getClusterCount(zoom), clusters.size());
+
+            Set<Integer> seen = new HashSet<>();
+            int items = 0;
+            for (SiteCluster<Node> cluster : clusters) {
+                items += cluster.getSize();
+                for (int i = 0; i < cluster.getSiteCount(); i++) {
+                    assertTrue(seen.add(cluster.getSite(i)));
+                }
+            }
+            assertEquals(placedSites, seen.size());
+            assertEquals(placedItems, items);
+        }
+        assertEquals(placedSites, sut.getClusterCount(ClusterPyramid.MAX_ZOOM + 1));
+        assertTrue(sut.getClusterCount(0) < 10);
+    }
+
+    @Test
+    public void clusters_nestAndKeepIdentityAcrossZoomLevels() {
+        ClusterPyramid sut = ClusterPyramid.build(sites, 0);
+
+        int kept = 0;
+        for (int zoom = 0; zoom <= ClusterPyramid.MAX_ZOOM; zoom++) {
+            List<SiteCluster<Node>> coarse = new ArrayList<>();
+            List<SiteCluster<Node>> fine = new ArrayList<>();
+            sut.getClusters(sites, zoom, WORLD, coarse);
+            sut.getClusters(sites, zoom + 1, WORLD, fine);
+
+            Map<Integer, SiteCluster<Node>> clusterOfSite = new HashMap<>();
+            for (SiteCluster<Node> cluster : coarse) {
+                for (int i = 0; i < cluster.getSiteCount(); i++) {
+                    clusterOfSite.put(cluster.getSite(i), cluster);
+                }
+            }
+
+            // every finer cluster lies within a single coarser one, if it is all of it the two are the same cluster
+            Set<SiteCluster<Node>> coarseSet = new HashSet<>(coarse);
+            for (SiteCluster<Node> cluster : fine) {
+                SiteCluster<Node> parent = clusterOfSite.get(cluster.getSite(0));
+                for (int i = 1; i < cluster.getSiteCount(); i++) {
+                    assertTrue(clusterOfSite.get(cluster.getSite(i)) == parent);
+                }
+                if (parent.getSiteCount() == cluster.getSiteCount()) {
+                    assertEquals(parent, cluster);
+                    assertTrue(coarseSet.contains(cluster));
+                    kept++;
+                }
+            }
+        }
+        assertTrue(kept > 0);
+    }
+
+    @Test
+    public void clusters_ofSingleSiteEqualSiteCluster() {
+        ClusterPyramid sut = ClusterPyramid.build(sites, 0);
+
+        List<SiteCluster<Node>> clusters = new ArrayList<>();
+        sut.getClusters(sites, ClusterPyramid.MAX_ZOOM + 1, WORLD, clusters);
+        for (SiteCluster<Node> cluster : clusters) {
+            assertEquals(SiteCluster.of(sites, cluster.getSite(0)), cluster);
+        }
+    }
+
+    @Test
+    public void read_returnsWrittenPyramid() throws Exception {
+        ClusterPyramid written = ClusterPyramid.build(sites, 1234);
+        written.write(pyramidFile);
+
+        ClusterPyramid read = ClusterPyramid.read(pyramidFile);
+
+        assertEquals(1234, read.getGeneration());
+        assertEquals(table.size(), read.size());
+        assertEquals(sites.size(), read.getSiteCount());
+        for (int zoom = 0; zoom <= ClusterPyramid.MAX_ZOOM + 1; zoom++) {
+            Set<SiteCluster<Node>> writtenClusters = new HashSet<>();
+            Set<SiteCluster<Node>> readClusters = new HashSet<>();
+            written.getClusters(sites, zoom, WORLD, writtenClusters);
+            read.getClusters(sites, zoom, WORLD, readClusters);
+            assertEquals(writtenClusters, readClusters);
+        }
+    }
+
+    @Test
+    public void read_rejectsForeignFile() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(pyramidFile)) {
+            out.write(new byte[64]);
+        }
+
+        try {
+            ClusterPyramid.read(pyramidFile);
+            fail("read a file that is not a cluster pyramid");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void setItems_withStoredPyramid_clustersWithoutRebuilding() throws Exception {
+        ClusterPyramid.build(Sites.build(table), 0).write(pyramidFile);
+        ClusterPyramid stored = ClusterPyramid.read(pyramidFile);
+
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null, null, stored);
+        assertTrue(dataSource.snapshot().getPyramid() == stored);
+
+        HierarchicalDistanceBasedAlgorithm<Node> sut = new HierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        sut.onCameraChange(new CameraPosition(new LatLng(51.2, 6.8), 11, 0, 0));
+        assertNotNull(sut.getClusters(11));
+        assertTrue(sut.getClusters(11).size() > 0);
+
+        try {
+            dataSource.setItems(NodeTable.of(table.asList().subList(0, 10)), null, null, stored);
+            fail("accepted clusters of another table");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void setLoadingItems_clustersVisibleAreaWithoutPyramid() {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setLoadingItems(table);
+        assertNull(dataSource.snapshot().getPyramid());
+
+        CameraPosition camera = new CameraPosition(new LatLng(51.2, 6.8), 11, 0, 0);
+        HierarchicalDistanceBasedAlgorithm<Node> sut = new HierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        sut.onCameraChange(camera);
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> visible = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        visible.onCameraChange(camera);
+        assertTrue(sut.getClusters(11).size() > 0);
+        assertEquals(visible.getClusters(11), sut.getClusters(11));
+        assertNull(dataSource.snapshot().getPyramid());
+
+        // the complete items get their clusters again
+        dataSource.setItems(table, null);
+        assertNotNull(dataSource.snapshot().getPyramid());
+    }
+
+    @Test
+    public void hierarchicalGetClusters_stopsWhenCancelled() {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setLoadingItems(table);
+        HierarchicalDistanceBasedAlgorithm<Node> sut = new HierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        sut.onCameraChange(new CameraPosition(new LatLng(51.2, 6.8), 11, 0, 0));
+        ClusterList<Node> clusters = new ClusterList<>();
+
+        // without a pyramid the visible area is clustered, with one the clusters are looked up
+        for (int pass = 0; pass < 2; pass++) {
+            assertFalse(sut.getClusters(11, clusters, () -> true));
+            assertTrue(clusters.isEmpty());
+
+            assertTrue(sut.getClusters(11, clusters, Cancellation.NONE));
+            assertEquals(sut.getClusters(11), clusters.toClusters());
+            assertTrue(clusters.size() > 0);
+            dataSource.setItems(table, null);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.maps.android.clustering.Cluster;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.inmotion_sst.freifunkfinder.clustering.Cancellation;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterList;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterScheduler;
+import de.inmotion_sst.freifunkfinder.clustering.CompactClusterAlgorithm;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ClusterSchedulerTests {
+    @Test
+    public void request_burstIsClusteredOnceForTheLatest() {
+        ManualExecutor worker = new ManualExecutor();
+        List<Integer> done = new ArrayList<>();
+        ClusterScheduler<Node> sut = new ClusterScheduler<>(worker, (generation, clusters) -> done.add(generation));
+        RecordingAlgorithm algorithm = new RecordingAlgorithm();
+
+        int last = 0;
+        for (int zoom = 1; zoom <= 10; zoom++) {
+            last = sut.request(algorithm, zoom);
+        }
+        assertEquals(1, worker.tasks.size());
+        worker.runAll();
+
+        assertEquals(Collections.singletonList(10.0), algorithm.zooms);
+        assertEquals(Collections.singletonList(last), done);
+        assertEquals(10, sut.getRequests());
+        assertEquals(9, sut.getCoalesced());
+        assertTrue(sut.acceptResult(last));
+        assertEquals(1, sut.getPublished());
+    }
+
+    @Test
+    public void request_cancelsRunningPass() {
+        ManualExecutor worker = new ManualExecutor();
+        List<Integer> done = new ArrayList<>();
+        final ClusterScheduler<Node> sut = new ClusterScheduler<>(worker, (generation, clusters) -> done.add(generation));
+        final AtomicInteger newer = new AtomicInteger();
+        RecordingAlgorithm algorithm = new RecordingAlgorithm() {
+            @Override
+            public boolean getClusters(double zoom, ClusterList<Node> result, Cancellation cancellation) {
+                if (zoom == 1) {
+                    // a camera change while the pass runs
+                    newer.set(sut.request(this, 2));
+                }
+                return super.getClusters(zoom, result, cancellation);
+            }
+        };
+
+        sut.request(algorithm, 1);
+        worker.runAll();
+
+        // the newer request runs on the same worker task, once the cancelled pass returned
+        assertEquals(1, worker.executed);
+        assertEquals(1, sut.getCancelled());
+        assertEquals(0, sut.getWasted());
+        assertEquals(Collections.singletonList(newer.get()), done);
+    }
+
+    @Test
+    public void acceptResult_discardsOvertakenResults() {
+        ManualExecutor worker = new ManualExecutor();
+        List<Integer> done = new ArrayList<>();
+        ClusterScheduler<Node> sut = new ClusterScheduler<>(worker, (generation, clusters) -> done.add(generation));
+        RecordingAlgorithm algorithm = new RecordingAlgorithm();
+
+        int first = sut.request(algorithm, 1);
+        worker.runAll();
+        assertEquals(Collections.singletonList(first), done);
+
+        // the result of the first request is still on its way to the main thread
+        int second = sut.request(algorithm, 2);
+        assertFalse(sut.acceptResult(first));
+        worker.runAll();
+        assertTrue(sut.acceptResult(second));
+
+        assertEquals(1, sut.getDiscarded());
+        assertEquals(1, sut.getPublished());
+    }
+
+    @Test
+    public void request_stillRunsWhenThePassBeforeFailed() {
+        ManualExecutor worker = new ManualExecutor();
+        List<Integer> done = new ArrayList<>();
+        final ClusterScheduler<Node> sut = new ClusterScheduler<>(worker, (generation, clusters) -> done.add(generation));
+        final AtomicInteger newer = new AtomicInteger();
+        RecordingAlgorithm algorithm = new RecordingAlgorithm() {
+            @Override
+            public boolean getClusters(double zoom, ClusterList<Node> result, Cancellation cancellation) {
+                if (zoom == 1) {
+                    newer.set(sut.request(this, 2));
+                    throw new IllegalStateException("failed pass");
+                }
+                return super.getClusters(zoom, result, cancellation);
+            }
+        };
+
+        sut.request(algorithm, 1);
+        try {
+            worker.runNext();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        worker.runAll();
+
+        assertEquals(Collections.singletonList(2.0), algorithm.zooms);
+        assertEquals(Collections.singletonList(newer.get()), done);
+
+        // and the worker is started again by later requests
+        int last = sut.request(algorithm, 3);
+        worker.runAll();
+        assertEquals(Arrays.asList(newer.get(), last), done);
+    }
+
+    @Test
+    public void shutdown_dropsPendingAndLaterRequests() {
+        ManualExecutor worker = new ManualExecutor();
+        List<Integer> done = new ArrayList<>();
+        ClusterScheduler<Node> sut = new ClusterScheduler<>(worker, (generation, clusters) -> done.add(generation));
+        RecordingAlgorithm algorithm = new RecordingAlgorithm();
+
+        int first = sut.request(algorithm, 1);
+        worker.runAll();
+        sut.request(algorithm, 2);
+        sut.shutdown();
+        sut.request(algorithm, 3);
+        worker.runAll();
+
+        assertEquals(Collections.singletonList(1.0), algorithm.zooms);
+        assertEquals(Collections.singletonList(first), done);
+        // clusters that were already on their way are not shown
+        assertFalse(sut.acceptResult(first));
+        assertEquals(2, sut.getRequests());
+    }
+
+    @Test
+    public void shutdown_endsTheWorkerThread() throws Exception {
+        final AtomicInteger done = new AtomicInteger();
+        ClusterScheduler<Node> sut = new ClusterScheduler<>((generation, clusters) -> done.set(generation));
+        int generation = sut.request(new RecordingAlgorithm(), 1);
+        while (done.get() != generation) {
+            Thread.yield();
+        }
+        assertTrue(hasWorkerThread());
+
+        sut.shutdown();
+        long start = System.nanoTime();
+        while (hasWorkerThread()) {
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Runs the tasks it is given only when asked to, on the calling thread
+     */
+    private static final class ManualExecutor implements Executor {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        int executed;
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                runNext();
+            }
+        }
+
+        void runNext() {
+            executed++;
+            tasks.poll().run();
+        }
+    }
+
+    private static boolean hasWorkerThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("ClusterScheduler"))
+                return true;
+        }
+        return false;
+    }
+
+    private static class RecordingAlgorithm implements CompactClusterAlgorithm<Node> {
+        final List<Double> zooms = new ArrayList<>();
+
+        @Override
+        public Set<? extends Cluster<Node>> getClusters(double zoom) {
+            zooms.add(zoom);
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void getClusters(double zoom, ClusterList<Node> result) {
+            getClusters(zoom, result, Cancellation.NONE);
+        }
+
+        @Override
+        public boolean getClusters(double zoom, ClusterList<Node> result, Cancellation cancellation) {
+            zooms.add(zoom);
+            result.clear(null);
+            return !cancellation.isCancelled();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import de.inmotion_sst.freifunkfinder.clustering.ContinuousNearest;
+import de.inmotion_sst.freifunkfinder.clustering.LocationUtilities;
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ContinuousNearestTests {
+    private static final int K = 10;
+
+    private NodeTable table;
+    private SpatialDataSource<Node> sut;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+        sut = new SpatialDataSource<>();
+        sut.setItems(table, null);
+    }
+
+    @Test
+    public void replayWalk_matchesSearchOnEveryFixWithFewSearches() {
+        List<LatLng> track = walk(new Random(42), new LatLng(49.0094, 8.4044), 3600);
+        ContinuousNearest<Node> tracker = new ContinuousNearest<>(sut, K);
+
+        NeighborList tracked = new NeighborList(K);
+        NeighborList expected = new NeighborList(K);
+        for (LatLng fix : track) {
+            tracked.clear();
+            tracker.update(fix, tracked);
+            expected.clear();
+            sut.findClosestItems(fix, K, expected);
+
+            assertEquals(expected.size(), tracked.size());
+            for (int i = 0; i < K; i++) {
+                // nodes at the same position may swap, their distances may not
+                assertEquals(expected.getDistance(i), tracked.getDistance(i), 1e-6);
+            }
+            assertTrue(tracker.getSafeRadius() >= 0);
+        }
+
+        assertEquals(track.size(), tracker.getUpdates());
+        assertTrue(tracker.getSearches() < track.size() / 10);
+    }
+
+    @Test
+    public void update_searchesAgainWhenItemsChange() {
+        ContinuousNearest<Node> tracker = new ContinuousNearest<>(sut, K);
+        LatLng position = new LatLng(49.0094, 8.4044);
+        NeighborList found = new NeighborList();
+        tracker.update(position, found);
+        assertEquals(1, tracker.getSearches());
+
+        // same nodes under other handles, the old handles must not be reused
+        List<Node> reversed = new ArrayList<>(table.asList());
+        Collections.reverse(reversed);
+        NodeTable other = NodeTable.of(reversed);
+        sut.setItems(other, null);
+
+        found.clear();
+        tracker.update(position, found);
+        assertEquals(2, tracker.getSearches());
+        assertTrue(tracker.getSnapshot().getItems() == other);
+        for (int i = 0; i < found.size(); i++) {
+            Node node = other.getNode(found.getHandle(i));
+            assertEquals(found.getDistance(i), SpatialDataSource.distFrom(position.latitude, position.longitude, node.getLat(), node.getLon()), 1e-6);
+        }
+    }
+
+    // a pedestrian at 1.4 m/s with one fix per second, slowly changing direction, with a few meters of GPS noise
+    private static List<LatLng> walk(Random random, LatLng start, int fixes) {
+        List<LatLng> track = new ArrayList<>(fixes);
+        LatLng position = start;
+        double heading = random.nextDouble() * 360;
+        for (int i = 0; i < fixes; i++) {
+            heading += random.nextGaussian() * 10;
+            position = LocationUtilities.calculateDerivedPosition(position, 1.4, heading);
+            LatLng fix = LocationUtilities.calculateDerivedPosition(position, Math.abs(random.nextGaussian()) * 3, random.nextDouble() * 360);
+            track.add(fix);
+        }
+        return track;
+    }
+}
@@ -0,0 +1,279 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class DeltaSyncTests {
+    private HttpServer server;
+    private File stateFile;
+
+    // version -> snapshot served by the stand-in delta server
+    private final Map<Long, Map<String, Node>> snapshots = new HashMap<>();
+    private long currentVersion;
+
+    @Before
+    public void setup() throws Exception {
+        stateFile = File.createTempFile("nodes", ".delta");
+        stateFile.delete();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/delta", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            long since = Long.parseLong(query.substring("since=".length()));
+
+            byte[] response = writeDelta(snapshots.get(since), snapshots.get(currentVersion), currentVersion);
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void teardown() {
+        server.stop(0);
+        stateFile.delete();
+    }
+
+    @Test
+    public void fetch_unknownVersion_returnsFullDelta() throws Exception {
+        publish(1, makeNodes(10, "online"));
+
+        NodeDelta delta = makeSut().fetch();
+
+        assertTrue(delta.isFull());
+        assertEquals(1, delta.getVersion());
+        assertEquals(10, delta.getAdded().size());
+    }
+
+    @Test
+    public void applyDelta_patchesChangedNodesOnly() throws Exception {
+        List<Node> nodes = makeNodes(10, "online");
+        publish(1, nodes);
+
+        DeltaSyncClient sut = makeSut();
+        NodeRepository repository = new NodeRepository(null);
+        repository.applyDelta(sut.fetch());
+        sut.storeVersion(new NodeDelta(1, false, null, null, null));
+        assertEquals(10, repository.getNodes().count());
+
+        List<Node> next = new ArrayList<>(nodes);
+        next.set(3, new Node("3", "node 3", "test", 50, 8, 0, "offline", 0));
+        next.remove(7);
+        next.add(new Node("new", "new node", "test", 51, 9, 0, "online", 2));
+        publish(2, next);
+
+        final Object[] observed = {null};
+        repository.addObserver((o, arg) -> observed[0] = arg);
+
+        NodeDelta delta = sut.fetch();
+        assertFalse(delta.isFull());
+
+        NodeChangeSet changes = repository.applyDelta(delta);
+
+        assertEquals(changes, observed[0]);
+        assertEquals(3, changes.size());
+        assertTrue(changes.getAdded().contains("new"));
+        assertTrue(changes.getUpdated().contains("3"));
+        assertTrue(changes.getRemoved().contains("7"));
+
+        assertEquals(10, repository.getNodes().count());
+        assertEquals(10, repository.getSpatialDataSource().search(new com.google.maps.android.geometry.Bounds(0, 1, 0, 1)).size());
+    }
+
+    @Test
+    public void applyDelta_duplicateIds_changeTheFirstNode() throws Exception {
+        List<Node> nodes = makeNodes(3, "online");
+        nodes.add(new Node("1", "second node 1", "test", 52, 10, 0, "online", 0));
+        NodeRepository repository = new NodeRepository(null);
+        repository.setNodes(nodes);
+
+        List<Node> updated = Collections.singletonList(new Node("1", "node 1", "test", 50.01, 8.01, 0, "offline", 1));
+        repository.applyDelta(new NodeDelta(2, false, new ArrayList<>(), updated, new ArrayList<>()));
+
+        NodeTable table = repository.getNodeTable();
+        assertEquals(4, table.size());
+        assertEquals("offline", table.getStatus(1));
+        assertEquals("second node 1", table.getName(3));
+        assertEquals("online", table.getStatus(3));
+
+        // once the first one is gone, the next node with the id takes its place.
+        // It was the last node, so it moved into the handle of the removed one.
+        repository.applyDelta(new NodeDelta(3, false, new ArrayList<>(), new ArrayList<>(), Collections.singletonList("1")));
+        repository.applyDelta(new NodeDelta(4, false, new ArrayList<>(), updated, new ArrayList<>()));
+
+        table = repository.getNodeTable();
+        assertEquals(3, table.size());
+        assertEquals("1", table.getId(1));
+        assertEquals("offline", table.getStatus(1));
+        assertEquals("node 1", table.getName(1));
+    }
+
+    @Test
+    public void updateNodes_patchesStreamedNodesThatChanged() throws Exception {
+        List<Node> nodes = makeNodes(10, "online");
+        NodeRepository repository = new NodeRepository(null);
+        repository.setNodes(nodes);
+        final Object[] observed = {"not called"};
+        repository.addObserver((o, arg) -> observed[0] = arg);
+
+        // the same list arrives again in two batches, with one node changed and one added
+        NodeTable.Builder streamed = new NodeTable.Builder();
+        for (Node node : nodes.subList(0, 5)) {
+            streamed.add(node);
+        }
+        NodeChangeSet changes = repository.updateNodes(streamed.buildShared(), 0);
+
+        assertEquals(0, changes.size());
+        assertEquals("not called", observed[0]);
+
+        for (Node node : nodes.subList(5, 10)) {
+            streamed.add(node);
+        }
+        streamed.set(7, new Node("7", "node 7", "test", 50.07, 8.07, 0, "offline", 7));
+        streamed.add(new Node("new", "new node", "test", 51, 9, 0, "online", 2));
+        changes = repository.updateNodes(streamed.buildShared(), 5);
+
+        assertEquals(changes, observed[0]);
+        assertEquals(2, changes.size());
+        assertTrue(changes.getUpdated().contains("7"));
+        assertTrue(changes.getAdded().contains("new"));
+
+        NodeTable table = repository.getNodeTable();
+        assertEquals(11, table.size());
+        assertEquals("offline", table.getStatus(7));
+        assertEquals("new", table.getId(10));
+        assertEquals(11, repository.getSpatialDataSource().search(new com.google.maps.android.geometry.Bounds(0, 1, 0, 1)).size());
+    }
+
+    @Test
+    public void fullReload_notifiesWithoutChangeSet() throws Exception {
+        NodeRepository repository = new NodeRepository(null);
+        final Object[] observed = {"not called"};
+        repository.addObserver((o, arg) -> observed[0] = arg);
+
+        assertNull(repository.applyDelta(new NodeDelta(1, true, makeNodes(5, "online"), new ArrayList<>(), new ArrayList<>())));
+        assertNull(observed[0]);
+    }
+
+    private DeltaSyncClient makeSut() throws Exception {
+        return new DeltaSyncClient(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/delta"), stateFile);
+    }
+
+    private void publish(long version, List<Node> nodes) {
+        snapshots.put(version, index(nodes));
+        currentVersion = version;
+    }
+
+    private static Map<String, Node> index(List<Node> nodes) {
+        Map<String, Node> byId = new LinkedHashMap<>();
+        for (Node node : nodes) {
+            byId.put(node.getId(), node);
+        }
+        return byId;
+    }
+
+    private static List<Node> makeNodes(int count, String status) {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new Node(Integer.toString(i), "node " + i, "test", 50 + i * 0.01, 8 + i * 0.01, 0, status, i));
+        }
+        return nodes;
+    }
+
+    // a third of the churn each: status flips, removals and additions
+    private static List<Node> churn(List<Node> base, double fraction, Random random) {
+        List<Node> next = new ArrayList<>(base);
+        int changes = (int) (base.size() * fraction / 3);
+
+        for (int i = 0; i < changes; i++) {
+            int index = random.nextInt(next.size());
+            Node n = next.get(index);
+            String status = "online".equals(n.getStatus()) ? "offline" : "online";
+            next.set(index, new Node(n.getId(), n.getName(), n.getCommunity(), n.getLat(), n.getLon(), n.getAlt(), status, n.getClients()));
+        }
+        for (int i = 0; i < changes; i++) {
+            next.remove(random.nextInt(next.size()));
+        }
+        for (int i = 0; i < changes; i++) {
+            next.add(new Node("added/" + i, "added " + i, "test", 47 + random.nextDouble() * 8, 6 + random.nextDouble() * 9, 0, "online", 0));
+        }
+        return next;
+    }
+
+    private static byte[] writeDelta(Map<String, Node> from, Map<String, Node> to, long version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonGenerator json = new JsonFactory().createGenerator(bytes);
+
+        json.writeStartObject();
+        json.writeNumberField("version", version);
+        json.writeBooleanField("full", from == null);
+
+        json.writeArrayFieldStart("added");
+        for (Node node : to.values()) {
+            if (from == null || !from.containsKey(node.getId()))
+                writeNode(json, node);
+        }
+        json.writeEndArray();
+
+        json.writeArrayFieldStart("updated");
+        if (from != null) {
+            for (Node node : to.values()) {
+                Node old = from.get(node.getId());
+                if (old != null && old != node)
+                    writeNode(json, node);
+            }
+        }
+        json.writeEndArray();
+
+        json.writeArrayFieldStart("removed");
+        if (from != null) {
+            for (String id : from.keySet()) {
+                if (!to.containsKey(id))
+                    json.writeString(id);
+            }
+        }
+        json.writeEndArray();
+
+        json.writeEndObject();
+        json.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeNode(JsonGenerator json, Node node) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("id", node.getId());
+        json.writeStringField("name", node.getName());
+        json.writeStringField("community", node.getCommunity());
+        json.writeNumberField("lat", node.getLat());
+        json.writeNumberField("long", node.getLon());
+        json.writeStringField("status", node.getStatus());
+        json.writeNumberField("clients", node.getClients());
+        json.writeEndObject();
+    }
+}
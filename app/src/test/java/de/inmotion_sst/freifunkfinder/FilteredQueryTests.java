@@ -0,0 +1,181 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.geometry.Bounds;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import de.inmotion_sst.freifunkfinder.clustering.HandleList;
+import de.inmotion_sst.freifunkfinder.clustering.ItemFilter;
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
+import de.inmotion_sst.freifunkfinder.clustering.PackedHilbertRTree;
+import de.inmotion_sst.freifunkfinder.clustering.PackedPointIndex;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialIndex;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class FilteredQueryTests {
+    private static final ItemFilter ONLINE = new ItemFilter.Builder().status(ItemFilter.ONLINE).build();
+    private static final ItemFilter KARLSRUHE = new ItemFilter.Builder().group("karlsruhe").build();
+    private static final ItemFilter OFFLINE_WITH_CLIENTS = new ItemFilter.Builder().status(ItemFilter.OFFLINE).withClients().build();
+    private static final ItemFilter TWO_COMMUNITIES_ONLINE = new ItemFilter.Builder().group("bonn").group("muenchen").status(ItemFilter.ONLINE).build();
+    private static final ItemFilter NO_SUCH_COMMUNITY = new ItemFilter.Builder().group("atlantis").build();
+
+    private NodeTable table;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+    }
+
+    @Test
+    public void filteredQueries_matchFilteringAfterwards() {
+        List<ItemFilter> filters = Arrays.asList(ItemFilter.ALL, ONLINE, KARLSRUHE, OFFLINE_WITH_CLIENTS, TWO_COMMUNITIES_ONLINE, NO_SUCH_COMMUNITY);
+
+        for (SpatialIndex.Factory factory : new SpatialIndex.Factory[]{PackedPointIndex.FACTORY, PackedHilbertRTree.FACTORY}) {
+            SpatialDataSource<Node> sut = new SpatialDataSource<>(factory);
+            sut.setItems(table, null);
+            Random random = new Random(42);
+
+            for (int q = 0; q < 30; q++) {
+                double span = 0.001 * Math.pow(2, random.nextInt(6));
+                double minX = 0.51 + random.nextDouble() * 0.03;
+                double minY = 0.32 + random.nextDouble() * 0.03;
+                Bounds bounds = new Bounds(minX, minX + span, minY, minY + span);
+                LatLng center = new LatLng(47 + random.nextDouble() * 8, 5 + random.nextDouble() * 10);
+
+                for (ItemFilter filter : filters) {
+                    HandleList all = new HandleList();
+                    sut.search(bounds, all);
+                    HandleList found = new HandleList();
+                    sut.forEachInBounds(bounds, filter, found);
+                    assertEquals(matching(all, filter), toSet(found));
+
+                    NeighborList allWithin = new NeighborList();
+                    sut.findWithinRadius(center, 30000, allWithin);
+                    NeighborList within = new NeighborList();
+                    sut.findWithinRadius(center, 30000, filter, within);
+                    assertEquals(matching(allWithin, filter, allWithin.size()), toSet(within));
+
+                    // the k closest matching nodes are among the closest nodes overall
+                    NeighborList allClosest = new NeighborList();
+                    sut.findClosestItems(center, table.size(), Double.POSITIVE_INFINITY, allClosest);
+                    NeighborList closest = new NeighborList();
+                    sut.findClosestItems(center, 10, Double.POSITIVE_INFINITY, filter, closest);
+                    double[] expected = matchingDistances(allClosest, filter, 10);
+                    assertEquals(expected.length, closest.size());
+                    for (int i = 0; i < closest.size(); i++) {
+                        assertEquals(expected[i], closest.getDistance(i), 1e-6);
+                        assertTrue(matches(closest.getHandle(i), filter));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void filter_resolvesCommunitiesPerTable() {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        sut.setItems(table, null);
+        NeighborList found = new NeighborList();
+        sut.findClosestItems(new LatLng(49.0, 8.4), 1, Double.POSITIVE_INFINITY, KARLSRUHE, found);
+        assertEquals("karlsruhe", table.getCommunity(found.getHandle(0)));
+
+        // a table with another string table, the same filter still finds the community
+        List<Node> reversed = new ArrayList<>(table.asList());
+        Collections.reverse(reversed);
+        NodeTable other = NodeTable.of(reversed);
+        sut.setItems(other, null);
+        found.clear();
+        sut.findClosestItems(new LatLng(49.0, 8.4), 1, Double.POSITIVE_INFINITY, KARLSRUHE, found);
+        assertEquals("karlsruhe", other.getCommunity(found.getHandle(0)));
+    }
+
+    @Test
+    public void filter_doesNotKeepTablesAlive() throws Exception {
+        ItemFilter filter = new ItemFilter.Builder().group("karlsruhe").build();
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        sut.setItems(NodeTable.of(table.asList().subList(0, 1000)), null);
+        WeakReference<NodeTable> old = new WeakReference<>((NodeTable) sut.getItems());
+        sut.findClosestItems(new LatLng(49.0, 8.4), 1, Double.POSITIVE_INFINITY, filter, new NeighborList());
+
+        // the filter is kept for the next sync, the old table is not
+        sut.setItems(table, null);
+        for (int i = 0; i < 10 && old.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(old.get());
+    }
+
+    private boolean matches(int handle, ItemFilter filter) {
+        if (filter == ItemFilter.ALL)
+            return true;
+        if (filter == ONLINE)
+            return table.isOnline(handle);
+        if (filter == KARLSRUHE)
+            return "karlsruhe".equals(table.getCommunity(handle));
+        if (filter == OFFLINE_WITH_CLIENTS)
+            return table.isOffline(handle) && table.getClients(handle) > 0;
+        if (filter == TWO_COMMUNITIES_ONLINE)
+            return ("bonn".equals(table.getCommunity(handle)) || "muenchen".equals(table.getCommunity(handle))) && table.isOnline(handle);
+        return false;
+    }
+
+    private Set<Integer> matching(HandleList handles, ItemFilter filter) {
+        Set<Integer> result = new HashSet<>();
+        for (int i = 0; i < handles.size(); i++) {
+            if (matches(handles.get(i), filter))
+                result.add(handles.get(i));
+        }
+        return result;
+    }
+
+    private Set<Integer> matching(NeighborList neighbors, ItemFilter filter, int limit) {
+        Set<Integer> result = new HashSet<>();
+        for (int i = 0; i < neighbors.size() && result.size() < limit; i++) {
+            if (matches(neighbors.getHandle(i), filter))
+                result.add(neighbors.getHandle(i));
+        }
+        return result;
+    }
+
+    private double[] matchingDistances(NeighborList neighbors, ItemFilter filter, int limit) {
+        double[] distances = new double[limit];
+        int count = 0;
+        for (int i = 0; i < neighbors.size() && count < limit; i++) {
+            if (matches(neighbors.getHandle(i), filter))
+                distances[count++] = neighbors.getDistance(i);
+        }
+        return Arrays.copyOf(distances, count);
+    }
+
+    private static Set<Integer> toSet(HandleList handles) {
+        Set<Integer> result = new HashSet<>();
+        for (int i = 0; i < handles.size(); i++) {
+            result.add(handles.get(i));
+        }
+        return result;
+    }
+
+    private static Set<Integer> toSet(NeighborList neighbors) {
+        Set<Integer> result = new HashSet<>();
+        for (int i = 0; i < neighbors.size(); i++) {
+            result.add(neighbors.getHandle(i));
+        }
+        return result;
+    }
+}
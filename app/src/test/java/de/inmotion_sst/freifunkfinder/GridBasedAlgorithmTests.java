@@ -0,0 +1,119 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.inmotion_sst.freifunkfinder.clustering.Cancellation;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterList;
+import de.inmotion_sst.freifunkfinder.clustering.GridBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.SiteCluster;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.VisibleNonHierarchicalDistanceBasedAlgorithm;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class GridBasedAlgorithmTests {
+    // viewports spread over Germany, from the north sea to the alps
+    private static final LatLng[] CENTERS = {
+            new LatLng(53.55, 9.99), new LatLng(52.52, 13.40), new LatLng(51.23, 6.78),
+            new LatLng(50.11, 8.68), new LatLng(49.01, 8.40), new LatLng(48.14, 11.58)};
+
+    private NodeTable table;
+    private SpatialDataSource<Node> dataSource;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+        dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+    }
+
+    @Test
+    public void clusters_containEveryVisibleNodeOnce() {
+        GridBasedAlgorithm<Node> sut = new GridBasedAlgorithm<>(1080, 1920, dataSource);
+
+        for (LatLng center : CENTERS) {
+            for (float zoom : new float[]{6, 9, 12, 15}) {
+                sut.onCameraChange(new CameraPosition(center, zoom, 0, 0));
+                Map<Node, Integer> seen = nodes(sut.getClusters(zoom));
+
+                double halfWidth = 1080 / Math.pow(2, zoom) / 256 / 2;
+                double halfHeight = 1920 / Math.pow(2, zoom) / 256 / 2;
+                double x = SpatialDataSource.toX(center.longitude);
+                double y = SpatialDataSource.toY(center.latitude);
+                int visible = 0;
+                for (int handle = 0; handle < table.size(); handle++) {
+                    // sites are found by the position of their first node, all others are within a meter of it
+                    double nodeX = SpatialDataSource.toX(table.getLon(handle));
+                    double nodeY = SpatialDataSource.toY(table.getLat(handle));
+                    if (Math.abs(nodeX - x) < halfWidth * 0.99 && Math.abs(nodeY - y) < halfHeight * 0.99) {
+                        assertTrue(seen.containsKey(table.getNode(handle)));
+                    }
+                    if (Math.abs(nodeX - x) <= halfWidth * 1.01 && Math.abs(nodeY - y) <= halfHeight * 1.01) {
+                        visible++;
+                    }
+                }
+                assertTrue(seen.size() <= visible);
+            }
+        }
+    }
+
+    @Test
+    public void getClusters_stopsWhenCancelled() {
+        GridBasedAlgorithm<Node> sut = new GridBasedAlgorithm<>(1080, 1920, dataSource);
+        sut.onCameraChange(new CameraPosition(CENTERS[2], 6, 0, 0));
+        Set<? extends Cluster<Node>> expected = sut.getClusters(6);
+
+        final AtomicInteger checks = new AtomicInteger();
+        ClusterList<Node> clusters = new ClusterList<>();
+        assertFalse(sut.getClusters(6, clusters, () -> checks.incrementAndGet() > 3));
+        assertTrue(checks.get() > 3);
+        assertTrue(clusters.isEmpty());
+
+        assertTrue(sut.getClusters(6, clusters, Cancellation.NONE));
+        assertEquals(expected, clusters.toClusters());
+    }
+
+    @Test
+    public void clusters_onlyMergeNeighbouringCells() {
+        GridBasedAlgorithm<Node> sut = new GridBasedAlgorithm<>(1080, 1920, dataSource);
+
+        for (float zoom : new float[]{6, 9, 12}) {
+            sut.onCameraChange(new CameraPosition(CENTERS[2], zoom, 0, 0));
+            double cellSize = VisibleNonHierarchicalDistanceBasedAlgorithm.MAX_DISTANCE_AT_ZOOM / Math.pow(2, zoom) / 256;
+
+            for (Cluster<Node> cluster : sut.getClusters(zoom)) {
+                // items are at most a cell from their own cell's centroid, which is within a cell of the cluster
+                double x = SpatialDataSource.toX(cluster.getPosition().longitude);
+                double y = SpatialDataSource.toY(cluster.getPosition().latitude);
+                for (Node node : cluster.getItems()) {
+                    assertTrue(Math.abs(SpatialDataSource.toX(node.getLon()) - x) < 3 * cellSize);
+                    assertTrue(Math.abs(SpatialDataSource.toY(node.getLat()) - y) < 3 * cellSize);
+                }
+            }
+        }
+    }
+
+    private static Map<Node, Integer> nodes(Set<? extends Cluster<Node>> clusters) {
+        Map<Node, Integer> seen = new IdentityHashMap<>();
+        for (Cluster<Node> cluster : clusters) {
+            assertTrue(cluster instanceof SiteCluster);
+            assertTrue(cluster.getSize() > 0);
+            for (Node node : cluster.getItems()) {
+                assertTrue(seen.put(node, seen.size()) == null);
+            }
+        }
+        return seen;
+    }
+}
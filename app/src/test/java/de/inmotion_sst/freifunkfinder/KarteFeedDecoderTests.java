@@ -0,0 +1,97 @@
+package de.inmotion_sst.freifunkfinder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class KarteFeedDecoderTests {
+    String feedJson = "{\n" +
+            "  \"communities\": {\n" +
+            "    \"altdorf\": { \"name\": \"Freifunk Altdorf\", \"url\": \"http:\\/\\/altdorf.freifunk.net\", \"meta\": false },\n" +
+            "    \"bonn\": { \"name\": \"Freifunk K\\u00f6ln, Bonn und Umgebung\", \"url\": \"http:\\/\\/kbu.freifunk.net\", \"meta\": \"KBU\" }\n" +
+            "  },\n" +
+            "  \"allTheRouters\": [\n" +
+            "    { \"id\": \"30b5c2c6b8b8\", \"lat\": \"48.35949\", \"long\": \"12.51056\", \"name\": \"FF-NSV-Pizzeria Il-Giardino\", \"community\": \"altdorf\", \"status\": \"online\", \"clients\": 1 },\n" +
+            "    { \"id\": \"7\", \"lat\": \"-50.5\", \"long\": \"7.1e1\", \"name\": \"x\", \"community\": \"bonn\", \"status\": \"online\", \"clients\": \"?\" }\n" +
+            "  ],\n" +
+            "  \"metaCommunities\": { \"KBU\": {} },\n" +
+            "  \"isCachedresult\": true\n" +
+            "}";
+
+    @Test
+    public void decode_resolvesCommunities() throws Exception {
+        NodeFeed feed = new KarteFeedDecoder().decode(new ByteArrayInputStream(feedJson.getBytes("UTF-8")));
+
+        assertEquals(2, feed.getCommunities().size());
+        assertEquals(2, feed.getNodes().size());
+        assertEquals(1, feed.getMetaCommunities().size());
+
+        Node first = feed.getNodes().get(0);
+        assertEquals("30b5c2c6b8b8", first.getId());
+        assertEquals(48.35949, first.getLat(), 0.0);
+        assertEquals(12.51056, first.getLon(), 0.0);
+        assertEquals(1, first.getClients());
+
+        Community altdorf = feed.getCommunity(first);
+        assertEquals("Freifunk Altdorf", altdorf.getName());
+        assertEquals("http://altdorf.freifunk.net", altdorf.getUrl());
+        assertNull(altdorf.getMeta());
+        assertSame(altdorf.getKey(), first.getCommunity());
+
+        Node second = feed.getNodes().get(1);
+        assertEquals(-50.5, second.getLat(), 0.0);
+        assertEquals(71.0, second.getLon(), 0.0);
+        assertEquals(0, second.getClients());
+        assertEquals("KBU", feed.getCommunity(second).getMeta());
+        assertSame(first.getStatus(), second.getStatus());
+    }
+
+    @Test
+    public void parseDouble_matchesDoubleParseDouble() throws Exception {
+        String[] values = {"0", "1", "-1", "49.294997387521", "10.580519492368", "-0.000001", "180", "53.5511", ".5", "12345678901234567890.5", "1e3", "abc", ""};
+
+        for (String value : values) {
+            double expected;
+            try {
+                expected = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                expected = 0;
+            }
+            assertEquals(value, expected, NodeReader.parseDouble(value.toCharArray(), 0, value.length()), 0.0);
+        }
+    }
+
+    @Test
+    public void decode_bundledFeed_parsesWellUnderASecond() throws Exception {
+        File file = TestFeed.FILE;
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        long best = Long.MAX_VALUE;
+        NodeFeed feed = null;
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            feed = new KarteFeedDecoder().decode(new ByteArrayInputStream(bytes));
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        assertEquals(TestFeed.ROUTER_COUNT, feed.getNodes().size());
+        assertEquals(178, feed.getCommunities().size());
+        assertEquals(27, feed.getMetaCommunities().size());
+
+        int resolved = 0;
+        for (Node node : feed.getNodes()) {
+            if (feed.getCommunity(node) != null)
+                resolved++;
+        }
+        assertTrue(resolved > 0);
+
+        assertTrue(best / 1e6 < 1000);
+    }
+}
@@ -0,0 +1,49 @@
+package de.inmotion_sst.freifunkfinder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+public class MappedNodeTableTests {
+    private File file;
+    private List<Node> feed;
+
+    @Before
+    public void setup() throws Exception {
+        file = File.createTempFile("nodes", ".bin");
+
+        feed = TestFeed.nodes();
+        NodeStore.write(file, feed);
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    @Test
+    public void open_readsSameValuesAsNodeStore() throws Exception {
+        List<Node> read = NodeStore.read(file);
+        NodeTable sut = NodeTable.fromStore(MappedNodeTable.open(file));
+
+        assertEquals(read.size(), sut.size());
+        for (int i = 0; i < read.size(); i += 97) {
+            Node expected = read.get(i);
+            Node actual = sut.getNode(i);
+
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getCommunity(), actual.getCommunity());
+            assertEquals(expected.getStatus(), actual.getStatus());
+            assertEquals(expected.getLat(), actual.getLat(), 0.0);
+            assertEquals(expected.getLon(), actual.getLon(), 0.0);
+            assertEquals(expected.getPosition().latitude, actual.getPosition().latitude, 0.0);
+            assertEquals(expected.getClients(), actual.getClients());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import de.inmotion_sst.freifunkfinder.clustering.ItemFilter;
+import de.inmotion_sst.freifunkfinder.clustering.NearestIterator;
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
+import de.inmotion_sst.freifunkfinder.clustering.PackedHilbertRTree;
+import de.inmotion_sst.freifunkfinder.clustering.PackedPointIndex;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialIndex;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class NearestIteratorTests {
+    private static final int PAGE = 50;
+
+    private static final ItemFilter ONLINE = new ItemFilter.Builder().status(ItemFilter.ONLINE).build();
+
+    private NodeTable table;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+    }
+
+    @Test
+    public void pages_matchClosestItems() {
+        for (SpatialIndex.Factory factory : new SpatialIndex.Factory[]{PackedPointIndex.FACTORY, PackedHilbertRTree.FACTORY}) {
+            SpatialDataSource<Node> sut = new SpatialDataSource<>(factory);
+            sut.setItems(table, null);
+            Random random = new Random(42);
+
+            for (int q = 0; q < 10; q++) {
+                LatLng center = new LatLng(47 + random.nextDouble() * 8, 5 + random.nextDouble() * 10);
+                for (ItemFilter filter : new ItemFilter[]{ItemFilter.ALL, ONLINE}) {
+                    NeighborList expected = new NeighborList();
+                    sut.findClosestItems(center, 20 * PAGE, Double.POSITIVE_INFINITY, filter, expected);
+
+                    NearestIterator<Node> iterator = sut.nearestFirst(center, filter);
+                    NeighborList paged = new NeighborList();
+                    for (int page = 0; page < 20; page++) {
+                        assertEquals(PAGE, iterator.nextPage(PAGE, paged));
+                    }
+
+                    assertEquals(expected.size(), paged.size());
+                    assertEquals(paged.size(), iterator.getYielded());
+                    Set<Integer> seen = new HashSet<>();
+                    for (int i = 0; i < paged.size(); i++) {
+                        // nodes at the same position may swap, their distances may not
+                        assertEquals(expected.getDistance(i), paged.getDistance(i), 1e-6);
+                        assertTrue(seen.add(paged.getHandle(i)));
+                        assertTrue(filter == ItemFilter.ALL || table.isOnline(paged.getHandle(i)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void nextPage_yieldsEveryItemOnce() {
+        for (SpatialIndex.Factory factory : new SpatialIndex.Factory[]{PackedPointIndex.FACTORY, PackedHilbertRTree.FACTORY}) {
+            SpatialDataSource<Node> sut = new SpatialDataSource<>(factory);
+            sut.setItems(table, null);
+
+            NearestIterator<Node> iterator = sut.nearestFirst(new LatLng(49.0094, 8.4044));
+            NeighborList all = new NeighborList();
+            while (iterator.hasMore()) {
+                iterator.nextPage(1000, all);
+            }
+
+            assertEquals(table.size(), all.size());
+            Set<Integer> seen = new HashSet<>();
+            for (int i = 0; i < all.size(); i++) {
+                assertTrue(seen.add(all.getHandle(i)));
+                assertTrue(i == 0 || all.getDistance(i - 1) <= all.getDistance(i));
+            }
+            assertEquals(0, iterator.nextPage(PAGE, all));
+            assertFalse(iterator.hasMore());
+        }
+    }
+}
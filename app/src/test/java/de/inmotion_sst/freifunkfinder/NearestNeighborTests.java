@@ -0,0 +1,88 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class NearestNeighborTests {
+    private NodeTable table;
+    private SpatialDataSource<Node> sut;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+        sut = new SpatialDataSource<>();
+        sut.setItems(table, null);
+    }
+
+    @Test
+    public void findClosestItems_matchesLinearScan() {
+        Random random = new Random(42);
+        List<LatLng> queries = new ArrayList<>();
+        for (int q = 0; q < 50; q++) {
+            // on top of nodes and in between them
+            queries.add(table.getNode(random.nextInt(table.size())).getPosition());
+            queries.add(new LatLng(47 + random.nextDouble() * 8, 5 + random.nextDouble() * 10));
+        }
+        // far away from all nodes, bounds have to hold across large longitude differences
+        queries.add(new LatLng(-33.86, 151.21));
+        queries.add(new LatLng(71.0, -40.0));
+
+        for (LatLng query : queries) {
+            for (int k : new int[]{1, 5, 100}) {
+                double[] expected = linearScan(query);
+
+                NeighborList found = new NeighborList();
+                sut.findClosestItems(query, k, found);
+
+                assertEquals(k, found.size());
+                for (int i = 0; i < k; i++) {
+                    // handles of nodes at the same position may come in any order, distances may not
+                    assertEquals(expected[i], found.getDistance(i), 1e-6);
+                    assertEquals(found.getDistance(i), distance(query, found.getHandle(i)), 1e-6);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findClosestItems_stopsAtMaxDistance() {
+        LatLng query = new LatLng(49.8728, 8.6512);
+        double[] expected = linearScan(query);
+        int within = 0;
+        while (expected[within] <= 1000) {
+            within++;
+        }
+
+        NeighborList found = new NeighborList();
+        sut.findClosestItems(query, 1000, 1000, found);
+
+        assertEquals(within, found.size());
+        assertTrue(found.getDistance(found.size() - 1) <= 1000);
+    }
+
+    private double[] linearScan(LatLng query) {
+        double[] distances = new double[table.size()];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = distance(query, i);
+        }
+        Arrays.sort(distances);
+        return distances;
+    }
+
+    private double distance(LatLng query, int handle) {
+        return SpatialDataSource.distFrom(query.latitude, query.longitude, table.getLat(handle), table.getLon(handle));
+    }
+}
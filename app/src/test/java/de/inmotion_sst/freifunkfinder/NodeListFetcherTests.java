@@ -0,0 +1,139 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class NodeListFetcherTests {
+    private static final String ETAG = "\"feed-1\"";
+
+    private HttpServer server;
+    private File validatorFile;
+    private byte[] body;
+    private int requests;
+
+    @Before
+    public void setup() throws Exception {
+        body = Files.readAllBytes(TestFeed.FILE.toPath());
+        validatorFile = File.createTempFile("nodes", ".validators");
+        validatorFile.delete();
+
+        // stand-in for the node server: supports ETag validation and gzip
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/result_routers.json", exchange -> {
+            requests++;
+
+            if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] response = body;
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                response = gzip(body);
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            exchange.getResponseHeaders().set("Last-Modified", "Sat, 30 Jan 2016 12:00:00 GMT");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void teardown() {
+        server.stop(0);
+        validatorFile.delete();
+    }
+
+    @Test
+    public void fetch_withoutValidators_downloadsCompressed() throws Exception {
+        final int[] parsed = {0};
+        NodeListFetcher.Result result = makeSut().fetch(batch -> parsed[0] += batch.size());
+
+        assertFalse(result.isNotModified());
+        assertEquals(TestFeed.ROUTER_COUNT, result.getNodeCount());
+        assertEquals(TestFeed.ROUTER_COUNT, parsed[0]);
+        assertTrue(result.getBytesTransferred() < body.length / 2);
+    }
+
+    @Test
+    public void fetch_withStoredValidators_skipsParsing() throws Exception {
+        NodeListFetcher sut = makeSut();
+
+        NodeListFetcher.Result first = sut.fetch(batch -> { });
+        sut.storeValidators(first);
+
+        final boolean[] parsed = {false};
+        NodeListFetcher.Result second = sut.fetch(batch -> parsed[0] = true);
+
+        assertTrue(second.isNotModified());
+        assertFalse(parsed[0]);
+        assertEquals(0, second.getBytesTransferred());
+        assertEquals(2, requests);
+    }
+
+    @Test
+    public void fetch_withStoredValidators_savesBytesAndTime() throws Exception {
+        NodeListFetcher sut = makeSut();
+
+        long start = System.nanoTime();
+        NodeListFetcher.Result full = sut.fetch(batch -> { });
+        long fullRefresh = System.nanoTime() - start;
+        sut.storeValidators(full);
+
+        start = System.nanoTime();
+        NodeListFetcher.Result conditional = sut.fetch(batch -> { });
+        long conditionalRefresh = System.nanoTime() - start;
+
+        // all compressed bytes of the feed are saved, and the time to transfer and parse them
+        assertTrue(full.getBytesTransferred() > 0);
+        assertEquals(0, conditional.getBytesTransferred());
+        assertTrue(conditionalRefresh < fullRefresh);
+    }
+
+    @Test
+    public void fetch_afterClearValidators_downloadsAgain() throws Exception {
+        NodeListFetcher sut = makeSut();
+        sut.storeValidators(sut.fetch(batch -> { }));
+
+        sut.clearValidators();
+        NodeListFetcher.Result result = sut.fetch(batch -> { });
+
+        assertFalse(result.isNotModified());
+        assertEquals(TestFeed.ROUTER_COUNT, result.getNodeCount());
+    }
+
+    private NodeListFetcher makeSut() throws Exception {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/result_routers.json");
+        return new NodeListFetcher(url, validatorFile);
+    }
+
+    private static byte[] gzip(byte[] data) throws java.io.IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+}
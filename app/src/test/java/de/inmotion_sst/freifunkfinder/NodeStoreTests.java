@@ -0,0 +1,93 @@
+package de.inmotion_sst.freifunkfinder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class NodeStoreTests {
+    private File file;
+
+    @Before
+    public void setup() throws Exception {
+        file = File.createTempFile("nodes", ".bin");
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    @Test
+    public void writeRead_restoresNodes() throws Exception {
+        List<Node> nodes = Arrays.asList(
+                new Node("30b5c2c6b8b8", "FF-NSV-Pizzeria Il-Giardino", "altdorf", 48.35949, 12.51056, 412.5, "online", 1),
+                new Node("2", "K\u00f6ln", "altdorf", -33.8688, -151.2093, 0, "offline", 0),
+                new Node("3", null, null, 0, 0, 0, null, 0));
+
+        NodeStore.write(file, nodes);
+        List<Node> result = NodeStore.read(file);
+
+        assertEquals(3, result.size());
+
+        Node first = result.get(0);
+        assertEquals("30b5c2c6b8b8", first.getId());
+        assertEquals("FF-NSV-Pizzeria Il-Giardino", first.getName());
+        assertEquals("altdorf", first.getCommunity());
+        assertEquals("online", first.getStatus());
+        assertEquals(48.35949, first.getLat(), 0.0);
+        assertEquals(12.51056, first.getLon(), 0.0);
+        assertEquals(412.5, first.getAlt(), 0.0);
+        assertEquals(1, first.getClients());
+
+        Node second = result.get(1);
+        assertEquals("K\u00f6ln", second.getName());
+        assertEquals(-33.8688, second.getLat(), 0.0);
+        assertEquals(-151.2093, second.getLon(), 0.0);
+        assertSame(first.getCommunity(), second.getCommunity()); // from the string table
+
+        Node third = result.get(2);
+        assertEquals("", third.getName());
+        assertEquals(null, third.getCommunity());
+        assertEquals(null, third.getStatus());
+    }
+
+    @Test
+    public void read_tamperedFile_throws() throws Exception {
+        NodeStore.write(file, Arrays.asList(new Node("1", "a", "b", 1, 2, 3, "online", 0)));
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{1, 2, 3, 4});
+        out.close();
+
+        try {
+            NodeStore.read(file);
+            fail("expected corrupt store to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void writeRead_bundledFeed_keepsValuesInLessSpaceThanJson() throws Exception {
+        List<Node> nodes = TestFeed.nodes();
+
+        NodeStore.write(file, nodes);
+        List<Node> result = NodeStore.read(file);
+
+        assertEquals(nodes.size(), result.size());
+        assertEquals(nodes.get(1234).getName(), result.get(1234).getName());
+        assertEquals(nodes.get(1234).getLat(), result.get(1234).getLat(), 1e-7);
+        assertTrue(file.length() < TestFeed.FILE.length());
+    }
+}
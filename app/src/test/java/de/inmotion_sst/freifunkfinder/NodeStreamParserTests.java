@@ -0,0 +1,151 @@
+package de.inmotion_sst.freifunkfinder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class NodeStreamParserTests {
+    String nodeArrayJson = "[{\n" +
+            "  \"id\": \"30b5c2c6b8b8\",\n" +
+            "  \"lat\": \"48.35949\",\n" +
+            "  \"long\": \"12.51056\",\n" +
+            "  \"name\": \"FF-NSV-Pizzeria Il-Giardino\",\n" +
+            "  \"community\": \"altdorf\",\n" +
+            "  \"status\": \"online\",\n" +
+            "  \"clients\": 1\n" +
+            "}, {\n" +
+            "  \"id\": 2,\n" +
+            "  \"lat\": 49.5,\n" +
+            "  \"long\": 10.5,\n" +
+            "  \"extra\": { \"nested\": [1, 2, 3] },\n" +
+            "  \"status\": \"unknown\",\n" +
+            "  \"clients\": \"?\"\n" +
+            "}]";
+
+    String wrappedJson = "{\n" +
+            "  \"communities\": { \"altdorf\": { \"name\": \"Freifunk Altdorf\", \"meta\": false } },\n" +
+            "  \"allTheRouters\": " + nodeArrayJson + ",\n" +
+            "  \"isCachedresult\": true\n" +
+            "}";
+
+    @Test
+    public void parse_nodeArray_decodesAllNodes() throws Exception {
+        List<Node> nodes = parseAll(nodeArrayJson, 10);
+
+        assertEquals(2, nodes.size());
+        verifyNode(nodes.get(0));
+
+        Node second = nodes.get(1);
+        assertEquals("2", second.getId());
+        assertEquals(49.5, second.getLat(), 0.000001);
+        assertEquals(10.5, second.getLon(), 0.000001);
+        assertEquals(0, second.getClients());
+    }
+
+    @Test
+    public void parse_wrappedFeed_decodesRouters() throws Exception {
+        List<Node> nodes = parseAll(wrappedJson, 10);
+
+        assertEquals(2, nodes.size());
+        verifyNode(nodes.get(0));
+    }
+
+    @Test
+    public void parse_splitsIntoBatches() throws Exception {
+        List<Integer> batchSizes = new ArrayList<>();
+
+        int count = new NodeStreamParser(1).parse(toStream(nodeArrayJson), batch -> batchSizes.add(batch.size()));
+
+        assertEquals(2, count);
+        assertEquals(2, batchSizes.size());
+        assertEquals(1, (int) batchSizes.get(0));
+    }
+
+    @Test
+    public void parse_bundledFeed_measuresFirstBatchAndPeakMemory() throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        long baseline = usedHeap(runtime);
+
+        final long[] peak = {baseline};
+        final long[] firstBatchAfterBytes = {-1};
+        final int[] batches = {0};
+
+        int count;
+        try (CountingInputStream in = new CountingInputStream(new FileInputStream(TestFeed.FILE))) {
+            count = new NodeStreamParser().parse(in, batch -> {
+                if (batches[0]++ == 0) {
+                    firstBatchAfterBytes[0] = in.count;
+                }
+                peak[0] = Math.max(peak[0], usedHeap(runtime));
+                // batches are dropped, just like when pushing them into an index that is not retained here
+            });
+        }
+
+        assertEquals(TestFeed.ROUTER_COUNT, count);
+        assertTrue(batches[0] > 1);
+        // the first batch arrives after reading about its share of the feed, not the whole feed
+        assertTrue(firstBatchAfterBytes[0] < TestFeed.FILE.length() / 4);
+        // only a batch is held at a time, parsing the whole feed into a tree or a list takes more than its size
+        assertTrue(peak[0] - baseline < TestFeed.FILE.length() / 2);
+    }
+
+    private List<Node> parseAll(String json, int batchSize) throws Exception {
+        List<Node> nodes = new ArrayList<>();
+        new NodeStreamParser(batchSize).parse(toStream(json), nodes::addAll);
+        return nodes;
+    }
+
+    private static long usedHeap(Runtime runtime) {
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static InputStream toStream(String json) {
+        return new ByteArrayInputStream(json.getBytes());
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private void verifyNode(Node node) {
+        assertEquals("30b5c2c6b8b8", node.getId());
+        assertEquals(48.35949, node.getLat(), 0.000001);
+        assertEquals(12.51056, node.getLon(), 0.000001);
+        assertEquals("FF-NSV-Pizzeria Il-Giardino", node.getName());
+        assertEquals("altdorf", node.getCommunity());
+        assertEquals("online", node.getStatus());
+        assertEquals(1, node.getClients());
+    }
+}
@@ -0,0 +1,227 @@
+package de.inmotion_sst.freifunkfinder;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+public class NodeTableTests {
+    @Test
+    public void builder_keepsHandlesUntilBuild() {
+        NodeTable.Builder builder = new NodeTable.Builder();
+        int a = builder.add(new Node("a", "A", "altdorf", 48.1, 12.1, 400, "online", 3));
+        int b = builder.add(new Node("b", "B", "altdorf", 48.2, 12.2, 0, "offline", 0));
+        builder.add(new Node("c", null, null, 48.3, 12.3, 0, null, 1));
+
+        builder.set(b, new Node("b", "B", "altdorf", 48.2, 12.2, 0, "online", 5));
+        builder.remove(a);
+        NodeTable sut = builder.build();
+
+        assertEquals(2, sut.size());
+        assertEquals("b", sut.getId(0));
+        assertEquals("online", sut.getStatus(0));
+        assertEquals(5, sut.getClients(0));
+        assertEquals("c", sut.getId(1));
+        assertNull(sut.getName(1));
+        assertEquals(NodeTable.NO_STRING, sut.getStatusCode(1));
+        // communities and statuses share one string table, replaced values are not dropped from it
+        assertEquals(3, sut.getStringCount());
+        assertEquals(sut.getStringCode("altdorf"), sut.getCommunityCode(0));
+    }
+
+    @Test
+    public void buildShared_keepsEarlierTablesUnchanged() {
+        NodeTable.Builder builder = new NodeTable.Builder(2);
+        builder.add(new Node("a", "A", "altdorf", 48.1, 12.1, 400, "online", 3));
+        NodeTable first = builder.buildShared();
+
+        // appending grows the columns, setting a shared node copies them
+        builder.add(new Node("b", "B", "berlin", 52.5, 13.4, 0, "offline", 0));
+        builder.add(new Node("c", "C", "berlin", 52.6, 13.5, 0, "online", 1));
+        NodeTable second = builder.buildShared();
+        builder.set(1, new Node("b", "B", "berlin", 52.5, 13.4, 0, "online", 7));
+        builder.add(new Node("d", "D", "hamburg", 53.5, 10.0, 0, "online", 2));
+        NodeTable third = builder.buildShared();
+
+        assertEquals(1, first.size());
+        assertEquals("a", first.getId(0));
+        assertEquals(2, first.getStringCount());
+        assertEquals(3, second.size());
+        assertEquals("offline", second.getStatus(1));
+        assertEquals(0, second.getClients(1));
+        assertEquals(4, third.size());
+        assertEquals("online", third.getStatus(1));
+        assertEquals(7, third.getClients(1));
+        assertEquals("hamburg", third.getCommunity(3));
+        assertNotSame(second.getNode(1), third.getNode(1));
+    }
+
+    @Test
+    public void getNode_returnsSameInstance() {
+        Node node = new Node("a", "A", "altdorf", 48.1, 12.1, 400, "online", 3);
+        NodeTable sut = NodeTable.of(Collections.singletonList(node));
+
+        assertSame(sut.getNode(0), sut.getNode(0));
+        assertNotSame(node, sut.getNode(0));
+        assertEquals(node.getId(), sut.getNode(0).getId());
+        assertEquals(node.getName(), sut.getNode(0).getName());
+        assertEquals(node.getCommunity(), sut.getNode(0).getCommunity());
+        assertEquals(node.getStatus(), sut.getNode(0).getStatus());
+        assertEquals(node.getPosition(), sut.getNode(0).getPosition());
+        assertEquals(node.getClients(), sut.getNode(0).getClients());
+    }
+
+    @Test
+    public void fromStore_readsSameNodes() throws Exception {
+        List<Node> nodes = makeNodes(1000, new Random(42));
+        File file = File.createTempFile("nodes", ".bin");
+        try {
+            NodeStore.write(file, nodes);
+            NodeTable sut = NodeTable.fromStore(MappedNodeTable.open(file));
+
+            assertEquals(nodes.size(), sut.size());
+            for (int i = 0; i < nodes.size(); i++) {
+                assertEquals(nodes.get(i).getId(), sut.getId(i));
+                assertEquals(nodes.get(i).getStatus(), sut.getStatus(i));
+                assertEquals(nodes.get(i).getCommunity(), sut.getCommunity(i));
+                assertEquals(nodes.get(i).getLat(), sut.getLat(i), 1e-7);
+                assertEquals(nodes.get(i).getClients(), sut.getClients(i));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void patch_changesMappedNodesInPlace() throws Exception {
+        List<Node> nodes = makeNodes(100, new Random(42));
+        File file = File.createTempFile("nodes", ".bin");
+        try {
+            NodeStore.write(file, nodes);
+            NodeTable mapped = NodeTable.fromStore(MappedNodeTable.open(file));
+
+            NodeTable.Patch patch = new NodeTable.Patch(mapped);
+            patch.set(5, new Node("node5", "five", "hamburg", 53.5, 10.0, 0, "online", 7));
+            int added = patch.add(new Node("new", "new node", "kiel", 54.3, 10.1, 0, "offline", 0));
+            // the last node moves into the handle of the removed one
+            assertEquals(added, patch.remove(10));
+            assertEquals(99, patch.remove(20));
+            NodeTable sut = patch.build();
+
+            assertEquals(99, sut.size());
+            assertEquals("five", sut.getName(5));
+            assertEquals(7, sut.getClients(5));
+            assertEquals("new", sut.getId(10));
+            assertEquals("kiel", sut.getCommunity(10));
+            assertEquals("node99", sut.getId(20));
+            assertEquals(nodes.get(99).getLat(), sut.getLat(20), 1e-7);
+            assertEquals(nodes.get(42).getId(), sut.getId(42));
+
+            // the patched table is unchanged
+            assertEquals(100, mapped.size());
+            assertEquals("node10", mapped.getId(10));
+            assertEquals(NodeTable.NO_STRING, mapped.getStringCode("kiel"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void patch_keepsEarlierTablesUnchanged() {
+        NodeTable base = NodeTable.of(makeNodes(10, new Random(42)));
+        NodeTable.Patch patch = new NodeTable.Patch(base);
+        patch.set(1, new Node("node1", "one", "altdorf", 48.1, 12.1, 0, "online", 1));
+        NodeTable first = patch.build();
+
+        // patches of the same table share its rows, but never overwrite them
+        NodeTable.Patch other = new NodeTable.Patch(first);
+        other.set(2, new Node("node2", "two", "altdorf", 48.2, 12.2, 0, "online", 2));
+        NodeTable second = other.build();
+        patch.set(1, new Node("node1", "uno", "altdorf", 48.1, 12.1, 0, "online", 1));
+        patch.remove(0);
+        NodeTable third = patch.build();
+        NodeTable fourth = new NodeTable.Patch(first).build();
+
+        assertEquals("one", first.getName(1));
+        assertEquals(10, first.size());
+        assertEquals("node0", first.getId(0));
+        assertEquals("one", second.getName(1));
+        assertEquals("two", second.getName(2));
+        assertNull(first.getName(2));
+        assertEquals("uno", third.getName(1));
+        assertEquals("node9", third.getId(0));
+        assertEquals(9, third.size());
+        assertEquals("one", fourth.getName(1));
+    }
+
+    @Test
+    public void patch_manyChanges_sameAsBuilder() {
+        List<Node> nodes = makeNodes(2000, new Random(42));
+        List<Node> expected = new ArrayList<>(nodes);
+        Random random = new Random(7);
+
+        NodeTable sut = NodeTable.of(nodes);
+        for (int round = 0; round < 10; round++) {
+            NodeTable.Patch patch = new NodeTable.Patch(sut);
+            for (int i = 0; i < 300; i++) {
+                int handle = random.nextInt(expected.size());
+                switch (random.nextInt(3)) {
+                    case 0:
+                        Node node = makeNodes(1, random).get(0);
+                        patch.set(handle, node);
+                        expected.set(handle, node);
+                        break;
+                    case 1:
+                        Node added = makeNodes(1, random).get(0);
+                        patch.add(added);
+                        expected.add(added);
+                        break;
+                    default:
+                        patch.remove(handle);
+                        Node last = expected.remove(expected.size() - 1);
+                        if (handle < expected.size()) {
+                            expected.set(handle, last);
+                        }
+                }
+            }
+            // later rounds compact the patched rows into a new table
+            sut = patch.build();
+        }
+
+        assertEquals(expected.size(), sut.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), sut.getId(i));
+            assertEquals(expected.get(i).getStatus(), sut.getStatus(i));
+            assertEquals(expected.get(i).getLat(), sut.getLat(i), 0.0);
+            assertEquals(expected.get(i).getClients(), sut.getClients(i));
+        }
+    }
+
+    private static final String[] COMMUNITIES = {"altdorf", "berlin", "hamburg", "muenchen", "darmstadt", "koeln"};
+
+    private static void fill(List<Node> nodes, String[] ids, Random random) {
+        for (int i = 0; i < ids.length; i++) {
+            nodes.add(new Node(ids[i], null, COMMUNITIES[random.nextInt(COMMUNITIES.length)],
+                    47 + random.nextDouble() * 7, 6 + random.nextDouble() * 9, 0,
+                    random.nextBoolean() ? "online" : "offline", random.nextInt(10)));
+        }
+    }
+
+    private static List<Node> makeNodes(int count, Random random) {
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = "node" + i;
+        }
+        List<Node> nodes = new ArrayList<>(count);
+        fill(nodes, ids, random);
+        return nodes;
+    }
+}
@@ -0,0 +1,135 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.maps.android.geometry.Bounds;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import de.inmotion_sst.freifunkfinder.clustering.HandleList;
+import de.inmotion_sst.freifunkfinder.clustering.PackedPointIndex;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+public class PackedPointIndexTests {
+    private File nodeFile;
+    private File indexFile;
+    private List<Node> feed;
+
+    @Before
+    public void setup() throws Exception {
+        nodeFile = File.createTempFile("nodes", ".bin");
+        indexFile = File.createTempFile("nodes", ".idx");
+
+        feed = TestFeed.nodes();
+    }
+
+    @After
+    public void teardown() {
+        nodeFile.delete();
+        indexFile.delete();
+    }
+
+    @Test
+    public void range_findsSameHandlesAsLinearScan() {
+        PackedPointIndex sut = PackedPointIndex.build(NodeTable.of(feed), 0);
+        Random random = new Random(42);
+
+        for (int q = 0; q < 50; q++) {
+            double minX = 0.5 + random.nextDouble() * 0.05;
+            double minY = 0.32 + random.nextDouble() * 0.03;
+            double maxX = minX + random.nextDouble() * 0.01;
+            double maxY = minY + random.nextDouble() * 0.01;
+
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < feed.size(); i++) {
+                double x = SpatialDataSource.toX(feed.get(i).getLon());
+                double y = SpatialDataSource.toY(feed.get(i).getLat());
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                    expected.add(i);
+                }
+            }
+
+            HandleList found = new HandleList();
+            sut.range(minX, maxX, minY, maxY, found);
+
+            Set<Integer> actual = new HashSet<>();
+            for (int i = 0; i < found.size(); i++) {
+                actual.add(found.get(i));
+            }
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void read_returnsWrittenIndex() throws Exception {
+        PackedPointIndex written = PackedPointIndex.build(NodeTable.of(feed), 1234);
+        written.write(indexFile);
+
+        PackedPointIndex read = PackedPointIndex.read(indexFile);
+
+        assertEquals(1234, read.getGeneration());
+        assertEquals(written.size(), read.size());
+        for (int handle = 0; handle < written.size(); handle++) {
+            assertEquals(written.getX(handle), read.getX(handle), 0.0);
+            assertEquals(written.getY(handle), read.getY(handle), 0.0);
+        }
+
+        HandleList writtenFound = new HandleList();
+        HandleList readFound = new HandleList();
+        written.range(0.5, 0.55, 0.3, 0.35, writtenFound);
+        read.range(0.5, 0.55, 0.3, 0.35, readFound);
+        assertEquals(writtenFound.size(), readFound.size());
+        for (int i = 0; i < writtenFound.size(); i++) {
+            assertEquals(writtenFound.get(i), readFound.get(i));
+        }
+    }
+
+    @Test
+    public void setItems_withStoredIndex_searchesWithoutRebuilding() throws Exception {
+        NodeTable nodes = NodeTable.of(feed);
+        int generation = NodeStore.write(nodeFile, nodes);
+        PackedPointIndex.build(nodes, generation).write(indexFile);
+
+        MappedNodeTable table = MappedNodeTable.open(nodeFile);
+        PackedPointIndex index = PackedPointIndex.read(indexFile);
+        assertEquals(table.getGeneration(), index.getGeneration());
+
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        NodeTable mapped = NodeTable.fromStore(table);
+        sut.setItems(mapped, index);
+
+        Bounds all = new Bounds(0, 1, 0, 1);
+        assertEquals(index.size(), sut.size());
+        int found = sut.search(all).size();
+
+        // items are patched on top of the stored index
+        Node first = mapped.getNode(0);
+        assertNotNull(first);
+        sut.removeItem(first);
+        assertEquals(found - 1, sut.search(all).size());
+    }
+
+    @Test
+    public void coldStart_storedIndexFindsSameAsRebuild() throws Exception {
+        NodeTable nodes = NodeTable.of(feed);
+        int generation = NodeStore.write(nodeFile, nodes);
+        PackedPointIndex.build(nodes, generation).write(indexFile);
+        Bounds visible = new Bounds(0.52, 0.53, 0.33, 0.34);
+
+        SpatialDataSource<Node> rebuilt = new SpatialDataSource<>();
+        rebuilt.addItems(NodeStore.read(nodeFile));
+        SpatialDataSource<Node> mapped = new SpatialDataSource<>();
+        mapped.setItems(NodeTable.fromStore(MappedNodeTable.open(nodeFile)), PackedPointIndex.read(indexFile));
+
+        assertEquals(rebuilt.search(visible).size(), mapped.search(visible).size());
+    }
+}
@@ -0,0 +1,80 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+
+import org.junit.Test;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import de.inmotion_sst.freifunkfinder.clustering.ParallelTiledDistanceBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.TiledDistanceBasedAlgorithm;
+import java8.util.concurrent.ForkJoinPool;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ParallelTiledDistanceBasedAlgorithmTests {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    @Test
+    public void clusters_sameForAnyNumberOfThreads() throws Exception {
+        SpatialDataSource<Node> dataSource = feed();
+        for (int zoom : new int[]{7, 10, 13}) {
+            CameraPosition camera = new CameraPosition(new LatLng(51.23, 6.78), zoom, 0, 0);
+            Set<? extends Cluster<Node>> sequential = clusters(dataSource, new ForkJoinPool(1), camera);
+            for (int threads : new int[]{2, 4}) {
+                assertEquals(sequential, clusters(dataSource, new ForkJoinPool(threads), camera));
+            }
+        }
+    }
+
+    @Test
+    public void clusters_containEveryNodeOfVisibleTilesOnce() throws Exception {
+        SpatialDataSource<Node> dataSource = feed();
+        ParallelTiledDistanceBasedAlgorithm<Node> sut = new ParallelTiledDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource, new ForkJoinPool(2));
+        TiledDistanceBasedAlgorithm<Node> tiled = new TiledDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+
+        for (int zoom : new int[]{7, 10, 13}) {
+            CameraPosition camera = new CameraPosition(new LatLng(51.23, 6.78), zoom, 0, 0);
+            sut.onCameraChange(camera);
+            tiled.onCameraChange(camera);
+
+            // the same nodes as the tiles on their own, clusters across seams are merged into fewer ones
+            Set<? extends Cluster<Node>> merged = sut.getClusters(zoom);
+            Set<? extends Cluster<Node>> perTile = tiled.getClusters(zoom);
+            assertEquals(nodes(perTile).keySet(), nodes(merged).keySet());
+            assertTrue(merged.size() <= perTile.size());
+        }
+    }
+
+    private static Set<? extends Cluster<Node>> clusters(SpatialDataSource<Node> dataSource, ForkJoinPool pool, CameraPosition camera) {
+        ParallelTiledDistanceBasedAlgorithm<Node> sut = new ParallelTiledDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource, pool);
+        sut.onCameraChange(camera);
+        Set<? extends Cluster<Node>> clusters = sut.getClusters(camera.zoom);
+        pool.shutdown();
+        return clusters;
+    }
+
+    private static SpatialDataSource<Node> feed() throws Exception {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(TestFeed.table(), null);
+        return dataSource;
+    }
+
+    private static Map<Node, Integer> nodes(Set<? extends Cluster<Node>> clusters) {
+        Map<Node, Integer> seen = new IdentityHashMap<>();
+        for (Cluster<Node> cluster : clusters) {
+            assertTrue(cluster.getSize() > 0);
+            for (Node node : cluster.getItems()) {
+                assertTrue(seen.put(node, seen.size()) == null);
+            }
+        }
+        return seen;
+    }
+}
@@ -0,0 +1,330 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.geometry.Bounds;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import de.inmotion_sst.freifunkfinder.clustering.CellIndex;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterPyramid;
+import de.inmotion_sst.freifunkfinder.clustering.HandleList;
+import de.inmotion_sst.freifunkfinder.clustering.HierarchicalDistanceBasedAlgorithm;
+import de.inmotion_sst.freifunkfinder.clustering.ItemFilter;
+import de.inmotion_sst.freifunkfinder.clustering.NearestIterator;
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
+import de.inmotion_sst.freifunkfinder.clustering.RangeAggregate;
+import de.inmotion_sst.freifunkfinder.clustering.Sites;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.VisibleNonHierarchicalDistanceBasedAlgorithm;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class PatchedSnapshotTests {
+    private static final ItemFilter ONLINE = new ItemFilter.Builder().status(ItemFilter.ONLINE).build();
+    private static final ItemFilter KARLSRUHE = new ItemFilter.Builder().group("karlsruhe").build();
+
+    private NodeTable table;
+    private int nextId;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+    }
+
+    @Test
+    public void patchItems_answersLikeAFreshBuild() {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        sut.setItems(table, null);
+        ClusterPyramid pyramid = sut.snapshot().getPyramid();
+        Random random = new Random(42);
+
+        NodeTable current = table;
+        for (int round = 0; round < 8; round++) {
+            NodeTable.Patch patch = change(current, random, 60);
+            current = patch.build();
+            sut.patchItems(current, patch.getChangedHandles());
+
+            SpatialDataSource<Node> expected = new SpatialDataSource<>();
+            expected.setItems(current, null);
+            assertSameAnswers(expected.snapshot(), sut.snapshot(), random);
+            assertSitesGroupEveryNodeOnce(sut.snapshot());
+
+            // the pyramid is kept, only where nodes moved its clusters are not used
+            assertSame(pyramid, sut.snapshot().getPyramid());
+        }
+    }
+
+    @Test
+    public void patchItems_statusOnly_keepsSitesAndPyramid() {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        sut.setItems(table, null);
+        SpatialDataSource.Snapshot<Node> before = sut.snapshot();
+
+        NodeTable.Patch patch = new NodeTable.Patch(table);
+        for (int handle = 0; handle < table.size(); handle += 97) {
+            Node node = table.getNode(handle);
+            patch.set(handle, new Node(node.getId(), node.getName(), node.getCommunity(), node.getLat(), node.getLon(),
+                    node.getAlt(), "online".equals(node.getStatus()) ? "offline" : "online", node.getClients() + 1));
+        }
+        NodeTable next = patch.build();
+        sut.patchItems(next, patch.getChangedHandles());
+
+        SpatialDataSource.Snapshot<Node> after = sut.snapshot();
+        assertSame(before.getPyramid(), after.getPyramid());
+        assertFalse(after.hasMovedSincePyramid(0, 1, 0, 1));
+        assertEquals(before.sites().size(), after.sites().size());
+        assertTrue(after.getPyramidSites().getItem(0) == next.getNode(after.getPyramidSites().getHandle(0, 0)));
+
+        SpatialDataSource<Node> expected = new SpatialDataSource<>();
+        expected.setItems(next, null);
+        assertSameAnswers(expected.snapshot(), after, new Random(7));
+    }
+
+    @Test
+    public void patchItems_movedNode_marksOnlyItsSurroundings() {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        sut.setItems(table, null);
+
+        NodeTable.Patch patch = new NodeTable.Patch(table);
+        Node node = table.getNode(0);
+        patch.set(0, new Node(node.getId(), node.getName(), node.getCommunity(), node.getLat() + 0.01, node.getLon(),
+                node.getAlt(), node.getStatus(), node.getClients()));
+        sut.patchItems(patch.build(), patch.getChangedHandles());
+
+        SpatialDataSource.Snapshot<Node> snapshot = sut.snapshot();
+        double x = SpatialDataSource.toX(node.getLon());
+        double y = SpatialDataSource.toY(node.getLat());
+        assertTrue(snapshot.hasMovedSincePyramid(x - 1e-6, x + 1e-6, y - 1e-6, y + 1e-6));
+        double newY = SpatialDataSource.toY(node.getLat() + 0.01);
+        assertTrue(snapshot.hasMovedSincePyramid(x - 1e-6, x + 1e-6, newY - 1e-6, newY + 1e-6));
+        assertFalse(snapshot.hasMovedSincePyramid(x + 0.01, x + 0.02, y, y + 0.01));
+    }
+
+    @Test
+    public void patchItems_movedNodeInView_clustersVisibleAreaWithoutPyramid() {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+
+        int handle = 0;
+        while (Math.abs(table.getLat(handle) - 51.2) > 0.05 || Math.abs(table.getLon(handle) - 6.8) > 0.05) {
+            handle++;
+        }
+        NodeTable.Patch patch = new NodeTable.Patch(table);
+        Node node = table.getNode(handle);
+        patch.set(handle, new Node(node.getId(), node.getName(), node.getCommunity(), node.getLat() + 0.001, node.getLon(),
+                node.getAlt(), node.getStatus(), node.getClients()));
+        dataSource.patchItems(patch.build(), patch.getChangedHandles());
+
+        CameraPosition camera = new CameraPosition(new LatLng(51.2, 6.8), 11, 0, 0);
+        HierarchicalDistanceBasedAlgorithm<Node> sut = new HierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        sut.onCameraChange(camera);
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> visible = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        visible.onCameraChange(camera);
+        assertTrue(sut.getClusters(11).size() > 0);
+        assertEquals(visible.getClusters(11), sut.getClusters(11));
+
+        // far from the moved node the pyramid still answers
+        sut.onCameraChange(new CameraPosition(new LatLng(48.0, 11.5), 11, 0, 0));
+        assertTrue(sut.getClusters(11).size() > 0);
+    }
+
+    @Test
+    public void patchItems_manyChanges_buildsEverythingAgain() {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        sut.setItems(table, null);
+        ClusterPyramid pyramid = sut.snapshot().getPyramid();
+        Random random = new Random(3);
+
+        NodeTable.Patch patch = change(table, random, 200);
+        NodeTable current = patch.build();
+        sut.patchItems(current, patch.getChangedHandles());
+        assertSame(pyramid, sut.snapshot().getPyramid());
+
+        patch = change(current, random, 1500);
+        current = patch.build();
+        sut.patchItems(current, patch.getChangedHandles());
+
+        SpatialDataSource.Snapshot<Node> snapshot = sut.snapshot();
+        assertNotSame(pyramid, snapshot.getPyramid());
+        assertFalse(snapshot.hasMovedSincePyramid(0, 1, 0, 1));
+        assertSame(snapshot.getSites(), snapshot.getPyramidSites());
+
+        SpatialDataSource<Node> expected = new SpatialDataSource<>();
+        expected.setItems(current, null);
+        assertSameAnswers(expected.snapshot(), snapshot, random);
+    }
+
+    // changes status, moves nodes a little or onto other nodes, adds and removes some
+    private NodeTable.Patch change(NodeTable current, Random random, int changes) {
+        NodeTable.Patch patch = new NodeTable.Patch(current);
+        for (int i = 0; i < changes; i++) {
+            int handle = random.nextInt(patch.size());
+            Node node = current.getNode(Math.min(handle, current.size() - 1));
+            Node other = current.getNode(random.nextInt(current.size()));
+            switch (random.nextInt(5)) {
+                case 0:
+                    patch.set(handle, new Node(node.getId(), node.getName(), node.getCommunity(), node.getLat(), node.getLon(),
+                            node.getAlt(), random.nextBoolean() ? "online" : "offline", random.nextInt(20)));
+                    break;
+                case 1:
+                    patch.set(handle, new Node(node.getId(), node.getName(), node.getCommunity(), node.getLat() + random.nextGaussian() * 1e-5,
+                            node.getLon(), node.getAlt(), node.getStatus(), node.getClients()));
+                    break;
+                case 2:
+                    patch.set(handle, new Node(node.getId(), node.getName(), node.getCommunity(), other.getLat(), other.getLon(),
+                            node.getAlt(), node.getStatus(), node.getClients()));
+                    break;
+                case 3:
+                    patch.add(new Node("patched-" + nextId++, "added", "karlsruhe", other.getLat(), other.getLon(), 0, "online", 3));
+                    break;
+                default:
+                    patch.remove(handle);
+                    break;
+            }
+        }
+        return patch;
+    }
+
+    private static void assertSameAnswers(SpatialDataSource.Snapshot<Node> expected, SpatialDataSource.Snapshot<Node> actual, Random random) {
+        assertEquals(expected.size(), actual.size());
+        for (int handle = 0; handle < expected.size(); handle++) {
+            assertEquals(expected.getX(handle), actual.getX(handle));
+            assertEquals(expected.getY(handle), actual.getY(handle));
+        }
+
+        for (int q = 0; q < 20; q++) {
+            double span = 0.001 * Math.pow(2, random.nextInt(6));
+            double minX = 0.51 + random.nextDouble() * 0.03;
+            double minY = 0.32 + random.nextDouble() * 0.03;
+            Bounds bounds = new Bounds(minX, minX + span, minY, minY + span);
+            LatLng center = new LatLng(47 + random.nextDouble() * 8, 5 + random.nextDouble() * 10);
+
+            for (ItemFilter filter : new ItemFilter[]{ItemFilter.ALL, ONLINE, KARLSRUHE}) {
+                HandleList want = new HandleList();
+                expected.forEachInBounds(bounds, filter, want);
+                HandleList found = new HandleList();
+                actual.forEachInBounds(bounds, filter, found);
+                assertEquals(toSet(want), toSet(found));
+
+                NeighborList wantWithin = new NeighborList();
+                expected.findWithinRadius(center, 20000, filter, wantWithin);
+                NeighborList within = new NeighborList();
+                actual.findWithinRadius(center, 20000, filter, within);
+                assertEquals(toSet(wantWithin), toSet(within));
+
+                NeighborList wantClosest = new NeighborList();
+                expected.findClosestItems(center, 10, 50000, filter, wantClosest);
+                NeighborList closest = new NeighborList();
+                actual.findClosestItems(center, 10, 50000, filter, closest);
+                assertSameDistances(wantClosest, closest);
+
+                NearestIterator<Node> wantPages = expected.nearestFirst(center, filter);
+                NearestIterator<Node> pages = actual.nearestFirst(center, filter);
+                for (int page = 0; page < 3; page++) {
+                    NeighborList wantPage = new NeighborList();
+                    wantPages.nextPage(25, wantPage);
+                    NeighborList foundPage = new NeighborList();
+                    pages.nextPage(25, foundPage);
+                    assertSameDistances(wantPage, foundPage);
+                }
+            }
+
+            RangeAggregate want = new RangeAggregate();
+            expected.aggregate(bounds, want);
+            RangeAggregate found = new RangeAggregate();
+            actual.aggregate(bounds, found);
+            assertEquals(want.getCount(), found.getCount());
+            assertEquals(want.getOnline(), found.getOnline());
+            assertEquals(want.getOffline(), found.getOffline());
+            assertEquals(want.getClients(), found.getClients());
+            if (want.getCount() > 0) {
+                assertEquals(want.getCentroidX(), found.getCentroidX(), 1e-9);
+                assertEquals(want.getCentroidY(), found.getCentroidY(), 1e-9);
+            }
+
+            int level = 6 + random.nextInt(10);
+            int x = CellIndex.toCell(minX, level);
+            int y = CellIndex.toCell(minY, level);
+            assertEquals(expected.getCells().count(level, x, y), actual.getCells().count(level, x, y));
+            HandleList wantCell = new HandleList();
+            expected.getCells().forEachInCell(level, x, y, wantCell);
+            HandleList cell = new HandleList();
+            actual.getCells().forEachInCell(level, x, y, cell);
+            assertEquals(toSet(wantCell), toSet(cell));
+        }
+
+        // by position the patched cell index is the one a build sorts
+        CellIndex wantCells = expected.getCells();
+        CellIndex cells = actual.getCells();
+        assertEquals(wantCells.getKeyCount(), cells.getKeyCount());
+        for (int i = 0; i < wantCells.getKeyCount(); i++) {
+            assertEquals(wantCells.getKey(i), cells.getKey(i));
+        }
+    }
+
+    private static void assertSitesGroupEveryNodeOnce(SpatialDataSource.Snapshot<Node> snapshot) {
+        Sites<Node> sites = snapshot.getSites();
+        SpatialDataSource.Snapshot<Node> siteSnapshot = snapshot.sites();
+        assertEquals(sites.size(), siteSnapshot.size());
+
+        int items = 0;
+        for (int site = 0; site < sites.size(); site++) {
+            assertTrue(sites.getCount(site) > 0);
+            assertEquals(SpatialDataSource.toX(sites.getLongitude(site)), siteSnapshot.getX(site), 1e-12);
+            for (int i = 0; i < sites.getCount(site); i++) {
+                int handle = sites.getHandle(site, i);
+                assertEquals(site, sites.getSite(handle));
+                assertTrue(SpatialDataSource.distFrom(sites.getLatitude(site), sites.getLongitude(site),
+                        snapshot.getItems().getLatitude(handle), snapshot.getItems().getLongitude(handle)) <= Sites.DEFAULT_TOLERANCE);
+                items++;
+            }
+        }
+        assertEquals(snapshot.size(), items);
+
+        // the index over the sites finds every site at its position
+        HandleList all = new HandleList();
+        siteSnapshot.forEachInBounds(0, 1, 0, 1, all);
+        Set<Integer> expected = new HashSet<>();
+        for (int site = 0; site < sites.size(); site++) {
+            double x = siteSnapshot.getX(site);
+            double y = siteSnapshot.getY(site);
+            if (x >= 0 && x <= 1 && y >= 0 && y <= 1) {
+                expected.add(site);
+            }
+        }
+        assertEquals(expected, toSet(all));
+    }
+
+    private static void assertSameDistances(NeighborList expected, NeighborList actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getDistance(i), actual.getDistance(i), 1e-6);
+        }
+    }
+
+    private static Set<Integer> toSet(HandleList handles) {
+        Set<Integer> set = new HashSet<>();
+        for (int i = 0; i < handles.size(); i++) {
+            assertTrue(set.add(handles.get(i)));
+        }
+        return set;
+    }
+
+    private static Set<Integer> toSet(NeighborList neighbors) {
+        Set<Integer> set = new HashSet<>();
+        for (int i = 0; i < neighbors.size(); i++) {
+            assertTrue(set.add(neighbors.getHandle(i)));
+        }
+        return set;
+    }
+}
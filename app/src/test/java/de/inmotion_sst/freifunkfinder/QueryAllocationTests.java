@@ -0,0 +1,125 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.geometry.Bounds;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+import de.inmotion_sst.freifunkfinder.clustering.HandleList;
+import de.inmotion_sst.freifunkfinder.clustering.HandleVisitor;
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
+import de.inmotion_sst.freifunkfinder.clustering.PackedHilbertRTree;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class QueryAllocationTests {
+    private static final int QUERIES = 10000;
+
+    // looked up once, getting the bean allocates
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final LatLng FRANKFURT = new LatLng(50.1, 8.7);
+    private static final Bounds VISIBLE = new Bounds(0.52, 0.53, 0.33, 0.34);
+
+    private NodeTable table;
+    private SpatialDataSource.Snapshot<Node> kdSnapshot;
+    private SpatialDataSource.Snapshot<Node> hilbertSnapshot;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+
+        SpatialDataSource<Node> kd = new SpatialDataSource<>();
+        kd.setItems(table, null);
+        kdSnapshot = kd.snapshot();
+
+        SpatialDataSource<Node> hilbert = new SpatialDataSource<>(PackedHilbertRTree.FACTORY);
+        hilbert.setItems(table, null);
+        hilbertSnapshot = hilbert.snapshot();
+    }
+
+    @Test
+    public void forEachInRadius_findsSameItemsAsLinearScan() {
+        for (double radius : new double[]{100, 5000, 50000, 500000}) {
+            int expected = 0;
+            for (int handle = 0; handle < table.size(); handle++) {
+                // Haversine wraps invalid longitudes around the globe, radius queries skip them
+                if (Math.abs(table.getLat(handle)) >= 90 || Math.abs(table.getLon(handle)) > 180)
+                    continue;
+                if (SpatialDataSource.distFrom(FRANKFURT.latitude, FRANKFURT.longitude, table.getLat(handle), table.getLon(handle)) <= radius)
+                    expected++;
+            }
+
+            Counter kd = new Counter();
+            kdSnapshot.forEachInRadius(FRANKFURT, radius, kd);
+            Counter hilbert = new Counter();
+            hilbertSnapshot.forEachInRadius(FRANKFURT, radius, hilbert);
+
+            assertEquals(expected, kd.count);
+            assertEquals(expected, hilbert.count);
+        }
+    }
+
+    @Test
+    public void queries_allocateNothingInSteadyState() {
+        List<SpatialDataSource.Snapshot<Node>> snapshots = Arrays.asList(kdSnapshot, hilbertSnapshot);
+        for (SpatialDataSource.Snapshot<Node> snapshot : snapshots) {
+            final Counter counter = new Counter();
+            final HandleList found = new HandleList();
+            final NeighborList neighbors = new NeighborList();
+
+            assertNoAllocation("forEachInBounds", () -> snapshot.forEachInBounds(VISIBLE, counter));
+            assertNoAllocation("forEachInBounds by coordinates", () -> snapshot.forEachInBounds(0.52, 0.53, 0.33, 0.34, counter));
+            assertNoAllocation("forEachInRadius", () -> snapshot.forEachInRadius(FRANKFURT, 20000, counter));
+            assertNoAllocation("findWithinRadius", () -> {
+                neighbors.clear();
+                snapshot.findWithinRadius(FRANKFURT, 20000, neighbors);
+            });
+            assertNoAllocation("search", () -> {
+                found.clear();
+                snapshot.search(VISIBLE, found);
+            });
+            assertNoAllocation("findClosestItems", () -> {
+                neighbors.clear();
+                snapshot.findClosestItems(FRANKFURT, 50, Double.POSITIVE_INFINITY, neighbors);
+            });
+            assertTrue(counter.count > 0);
+        }
+    }
+
+    private static void assertNoAllocation(String name, Runnable query) {
+        // the first queries grow the reused buffers and get the query compiled, which allocates on this thread as
+        // well, so does the first count of allocated bytes
+        for (int i = 0; i < QUERIES; i++) {
+            query.run();
+        }
+        allocatedBytes();
+
+        long before = allocatedBytes();
+        for (int i = 0; i < QUERIES; i++) {
+            query.run();
+        }
+        // all bytes, an allocation in only some of the queries is not rounded away as bytes per query would be
+        assertEquals(name, 0, allocatedBytes() - before);
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static class Counter implements HandleVisitor {
+        int count;
+
+        @Override
+        public void visit(int handle) {
+            count++;
+        }
+    }
+}
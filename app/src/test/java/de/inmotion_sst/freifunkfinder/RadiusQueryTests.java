@@ -0,0 +1,77 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+public class RadiusQueryTests {
+    private NodeTable table;
+    private SpatialDataSource<Node> sut;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+        sut = new SpatialDataSource<>();
+        sut.setItems(table, null);
+    }
+
+    @Test
+    public void findWithinRadius_matchesLinearScan() {
+        Random random = new Random(42);
+        List<LatLng> queries = new ArrayList<>();
+        for (int q = 0; q < 20; q++) {
+            queries.add(table.getNode(random.nextInt(table.size())).getPosition());
+            queries.add(new LatLng(47 + random.nextDouble() * 8, 5 + random.nextDouble() * 10));
+        }
+        // far away from all nodes, across the antimeridian and near the pole
+        queries.add(new LatLng(-33.86, 151.21));
+        queries.add(new LatLng(0, 179.9));
+        queries.add(new LatLng(89.9, 0));
+
+        for (LatLng query : queries) {
+            for (double radius : new double[]{0, 50, 2000, 30000, 800000, 25000000}) {
+                Map<Integer, Double> expected = linearScan(query, radius);
+
+                NeighborList found = new NeighborList();
+                sut.findWithinRadius(query, radius, found);
+
+                assertEquals(expected.size(), found.size());
+                for (int i = 0; i < found.size(); i++) {
+                    Double distance = expected.get(found.getHandle(i));
+                    assertNotNull("found a node outside the radius", distance);
+                    assertEquals(distance, found.getDistance(i), 1e-3);
+                }
+            }
+        }
+    }
+
+    // nodes with invalid coordinates are never within a radius, Haversine would wrap them around the globe
+    private Map<Integer, Double> linearScan(LatLng query, double radius) {
+        Map<Integer, Double> within = new HashMap<>();
+        for (int handle = 0; handle < table.size(); handle++) {
+            double lat = table.getLat(handle);
+            double lon = table.getLon(handle);
+            if (Math.abs(lat) >= 90 || Math.abs(lon) > 180)
+                continue;
+
+            double distance = SpatialDataSource.distFrom(query.latitude, query.longitude, lat, lon);
+            if (distance <= radius) {
+                within.put(handle, distance);
+            }
+        }
+        return within;
+    }
+}
@@ -0,0 +1,115 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.maps.android.geometry.Bounds;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import de.inmotion_sst.freifunkfinder.clustering.PackedHilbertRTree;
+import de.inmotion_sst.freifunkfinder.clustering.PackedPointIndex;
+import de.inmotion_sst.freifunkfinder.clustering.RangeAggregate;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialIndex;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class RangeAggregateTests {
+    private NodeTable table;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+    }
+
+    @Test
+    public void aggregate_matchesLinearScan() {
+        for (SpatialIndex.Factory factory : new SpatialIndex.Factory[]{PackedPointIndex.FACTORY, PackedHilbertRTree.FACTORY}) {
+            SpatialDataSource<Node> sut = new SpatialDataSource<>(factory);
+            sut.setItems(table, null);
+
+            List<Bounds> queries = viewports(new Random(42), 200, 3, 14);
+            queries.add(new Bounds(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+            queries.add(new Bounds(0.9, 0.95, 0.9, 0.95));
+
+            RangeAggregate found = new RangeAggregate();
+            for (Bounds bounds : queries) {
+                Expected expected = linearScan(bounds);
+                found.clear();
+                sut.aggregate(bounds, found);
+
+                assertEquals(expected.count, found.getCount());
+                assertEquals(expected.online, found.getOnline());
+                assertEquals(expected.offline, found.getOffline());
+                assertEquals(expected.clients, found.getClients());
+                if (expected.count > 0) {
+                    assertEquals(expected.sumX / expected.count, found.getCentroidX(), 1e-9);
+                    assertEquals(expected.sumY / expected.count, found.getCentroidY(), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void aggregate_withoutStatisticsOnlyCounts() {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        sut.addItems(table.asList().subList(0, 1000));
+
+        RangeAggregate found = new RangeAggregate();
+        sut.aggregate(new Bounds(0, 1, 0, 1), found);
+
+        assertTrue(found.getCount() > 0);
+        assertEquals(found.getCount(), found.getUnknown());
+        assertEquals(0, found.getClients());
+    }
+
+    // phone sized viewports around Germany
+    private static List<Bounds> viewports(Random random, int count, int minZoom, int maxZoom) {
+        List<Bounds> queries = new ArrayList<>(count);
+        for (int q = 0; q < count; q++) {
+            int zoom = minZoom + random.nextInt(maxZoom - minZoom + 1);
+            double halfWidth = 1080 / Math.pow(2, zoom) / 256 / 2;
+            double halfHeight = 1920 / Math.pow(2, zoom) / 256 / 2;
+            double x = 0.51 + random.nextDouble() * 0.03;
+            double y = 0.32 + random.nextDouble() * 0.03;
+            queries.add(new Bounds(x - halfWidth, x + halfWidth, y - halfHeight, y + halfHeight));
+        }
+        return queries;
+    }
+
+    private Expected linearScan(Bounds bounds) {
+        Expected expected = new Expected();
+        for (int handle = 0; handle < table.size(); handle++) {
+            double lat = table.getLat(handle);
+            double lon = table.getLon(handle);
+            if (Math.abs(lat) >= 90 || Math.abs(lon) > 180)
+                continue;
+
+            double x = SpatialDataSource.toX(lon);
+            double y = SpatialDataSource.toY(lat);
+            if (!bounds.contains(x, y))
+                continue;
+
+            expected.count++;
+            expected.sumX += x;
+            expected.sumY += y;
+            expected.clients += table.getClients(handle);
+            if ("online".equals(table.getStatus(handle))) expected.online++;
+            if ("offline".equals(table.getStatus(handle))) expected.offline++;
+        }
+        return expected;
+    }
+
+    private static class Expected {
+        int count;
+        int online;
+        int offline;
+        long clients;
+        double sumX;
+        double sumY;
+    }
+}
@@ -0,0 +1,99 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import de.inmotion_sst.freifunkfinder.clustering.SiteCluster;
+import de.inmotion_sst.freifunkfinder.clustering.Sites;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.VisibleNonHierarchicalDistanceBasedAlgorithm;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class SitesTests {
+    private NodeTable table;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+    }
+
+    @Test
+    public void build_groupsEveryNodeOnceWithinTolerance() {
+        Sites<Node> sut = Sites.build(table);
+
+        int items = 0;
+        for (int site = 0; site < sut.size(); site++) {
+            assertTrue(sut.getCount(site) > 0);
+            for (int i = 0; i < sut.getCount(site); i++) {
+                int handle = sut.getHandle(site, i);
+                assertEquals(site, sut.getSite(handle));
+                double distance = SpatialDataSource.distFrom(sut.getLatitude(site), sut.getLongitude(site), table.getLat(handle), table.getLon(handle));
+                assertTrue(distance <= Sites.DEFAULT_TOLERANCE);
+                items++;
+            }
+        }
+        assertEquals(table.size(), items);
+        assertTrue(sut.size() < table.size());
+    }
+
+    @Test
+    public void build_withoutToleranceGroupsIdenticalPositions() {
+        Sites<Node> sut = Sites.build(table, 0);
+
+        Set<LatLng> positions = new HashSet<>();
+        int invalid = 0;
+        for (int handle = 0; handle < table.size(); handle++) {
+            if (Math.abs(table.getLat(handle)) < 90 && Math.abs(table.getLon(handle)) <= 180) {
+                positions.add(new LatLng(table.getLat(handle), table.getLon(handle)));
+            } else {
+                invalid++;
+            }
+        }
+        assertEquals(positions.size() + invalid, sut.size());
+        assertEquals(12, sut.getMaxCount());
+    }
+
+    @Test
+    public void clusters_countEveryVisibleNodeOnce() {
+        SpatialDataSource<Node> dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> sut = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+
+        for (float zoom : new float[]{8, 11, 14}) {
+            sut.onCameraChange(new CameraPosition(new LatLng(51.2, 6.8), zoom, 0, 0));
+            Set<? extends Cluster<Node>> clusters = sut.getClusters(zoom);
+
+            Map<Node, Integer> seen = new IdentityHashMap<>();
+            for (Cluster<Node> cluster : clusters) {
+                SiteCluster<Node> sites = (SiteCluster<Node>) cluster;
+                assertTrue(sites.getSize() > 0);
+                for (Node node : sites.getItems()) {
+                    assertTrue(seen.put(node, seen.size()) == null);
+                }
+            }
+
+            // whole sites join clusters, no site is split between two of them
+            Sites<Node> all = dataSource.snapshot().getSites();
+            for (int handle = 0; handle < table.size(); handle++) {
+                if (!seen.containsKey(table.getNode(handle)))
+                    continue;
+
+                int site = all.getSite(handle);
+                for (int i = 0; i < all.getCount(site); i++) {
+                    assertTrue(seen.containsKey(table.getNode(all.getHandle(site, i))));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.geometry.Bounds;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.inmotion_sst.freifunkfinder.clustering.HandleList;
+import de.inmotion_sst.freifunkfinder.clustering.PackedPointIndex;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.VisibleNonHierarchicalDistanceBasedAlgorithm;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class SnapshotConcurrencyTests {
+    private static final int READERS = 4;
+    private static final int REBUILDS = 200;
+
+    private static final Bounds VISIBLE = new Bounds(0.52, 0.53, 0.33, 0.34);
+
+    private NodeTable forward;
+    private NodeTable reversed;
+
+    @Before
+    public void setup() throws Exception {
+        forward = TestFeed.table();
+
+        // same positions under different handles, an index paired with the wrong table finds the wrong nodes
+        List<Node> feed = new ArrayList<>(TestFeed.nodes());
+        Collections.reverse(feed);
+        reversed = NodeTable.of(feed);
+    }
+
+    @Test
+    public void snapshot_staysConsistentWhileItemsAreReplaced() throws Exception {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        sut.setItems(forward, null);
+        int expected = sut.search(VISIBLE).size();
+
+        PackedPointIndex forwardIndex = PackedPointIndex.build(forward, 0);
+        PackedPointIndex reversedIndex = PackedPointIndex.build(reversed, 0);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger reads = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(READERS);
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            Thread reader = new Thread(() -> {
+                started.countDown();
+                HandleList found = new HandleList();
+                int lastVersion = -1;
+                try {
+                    while (!done.get()) {
+                        SpatialDataSource.Snapshot<Node> snapshot = sut.snapshot();
+                        assertTrue("versions only move forward", snapshot.getVersion() >= lastVersion);
+                        lastVersion = snapshot.getVersion();
+
+                        found.clear();
+                        snapshot.search(VISIBLE, found);
+                        assertEquals(expected, found.size());
+                        for (int i = 0; i < found.size(); i++) {
+                            LatLng position = snapshot.getItem(found.get(i)).getPosition();
+                            double x = SpatialDataSource.toX(position.longitude);
+                            double y = SpatialDataSource.toY(position.latitude);
+                            assertTrue("handle refers to another table", VISIBLE.contains(x, y));
+                        }
+                        reads.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+
+        started.await();
+        for (int i = 0; i < REBUILDS && failure.get() == null; i++) {
+            // alternate between prebuilt indexes and ones the readers have to build
+            boolean even = i % 2 == 0;
+            boolean prebuilt = i % 4 < 2;
+            NodeTable table = even ? reversed : forward;
+            sut.setItems(table, prebuilt ? (even ? reversedIndex : forwardIndex) : null);
+            Thread.yield();
+        }
+
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(failure.get());
+        assertTrue(reads.get() > 0);
+    }
+
+    @Test
+    public void getClusters_runsWhileItemsAreReplaced() throws Exception {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>();
+        sut.setItems(forward, null);
+
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> algorithm = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(1080, 1920, sut);
+        algorithm.onCameraChange(new CameraPosition(new LatLng(50.1, 8.7), 10, 0, 0));
+        // the screen at zoom 10, as the algorithm computes it
+        double x = SpatialDataSource.toX(8.7);
+        double y = SpatialDataSource.toY(50.1);
+        double halfWidth = 1080 / Math.pow(2, 10) / 256 / 2;
+        double halfHeight = 1920 / Math.pow(2, 10) / 256 / 2;
+        int visible = sut.search(new Bounds(x - halfWidth, x + halfWidth, y - halfHeight, y + halfHeight)).size();
+        assertTrue(visible > 0);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger passes = new AtomicInteger();
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        // clusters may pull in nodes beyond the screen, which ones depends on the handle order
+                        assertTrue(countClustered(algorithm) >= visible);
+                        passes.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+
+        for (int i = 0; i < REBUILDS / 10 && failure.get() == null; i++) {
+            sut.setItems(i % 2 == 0 ? reversed : forward, null);
+            Thread.sleep(5);
+        }
+
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(failure.get());
+        assertTrue(passes.get() > 0);
+    }
+
+    private static int countClustered(VisibleNonHierarchicalDistanceBasedAlgorithm<Node> algorithm) {
+        int count = 0;
+        for (Cluster<Node> cluster : algorithm.getClusters(10)) {
+            count += cluster.getSize();
+        }
+        return count;
+    }
+}
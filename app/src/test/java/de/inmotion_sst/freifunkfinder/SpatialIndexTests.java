@@ -0,0 +1,118 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.geometry.Bounds;
+import com.google.maps.android.geometry.Point;
+import com.google.maps.android.quadtree.PointQuadTree;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import de.inmotion_sst.freifunkfinder.clustering.HandleList;
+import de.inmotion_sst.freifunkfinder.clustering.NeighborList;
+import de.inmotion_sst.freifunkfinder.clustering.PackedHilbertRTree;
+import de.inmotion_sst.freifunkfinder.clustering.PackedPointIndex;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialIndex;
+
+import static junit.framework.Assert.assertEquals;
+
+public class SpatialIndexTests {
+    private NodeTable table;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+    }
+
+    @Test
+    public void hilbertRTree_rangeFindsSameHandlesAs2dTree() {
+        SpatialIndex expected = PackedPointIndex.build(table, 0);
+        SpatialIndex sut = PackedHilbertRTree.build(table);
+        Random random = new Random(42);
+
+        for (Bounds bounds : queries(random, 50)) {
+            assertEquals(rangeSet(expected, bounds), rangeSet(sut, bounds));
+        }
+        // everything, including nodes with invalid coordinates
+        Bounds all = new Bounds(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        assertEquals(table.size(), rangeSet(sut, all).size());
+    }
+
+    @Test
+    public void hilbertRTree_nearestFindsSameDistancesAs2dTree() {
+        SpatialIndex expected = PackedPointIndex.build(table, 0);
+        SpatialIndex sut = PackedHilbertRTree.build(table);
+        Random random = new Random(42);
+
+        for (int q = 0; q < 50; q++) {
+            LatLng query = new LatLng(47 + random.nextDouble() * 8, 5 + random.nextDouble() * 10);
+            NeighborList expectedFound = new NeighborList();
+            NeighborList found = new NeighborList();
+            expected.nearest(table, query.latitude, query.longitude, 20, Double.POSITIVE_INFINITY, expectedFound);
+            sut.nearest(table, query.latitude, query.longitude, 20, Double.POSITIVE_INFINITY, found);
+
+            assertEquals(expectedFound.size(), found.size());
+            for (int i = 0; i < found.size(); i++) {
+                assertEquals(expectedFound.getDistance(i), found.getDistance(i), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void hilbertRTree_worksAsDataSourceIndex() {
+        SpatialDataSource<Node> sut = new SpatialDataSource<>(PackedHilbertRTree.FACTORY);
+        sut.setItems(table, null);
+
+        List<Node> found = sut.search(new Bounds(0.52, 0.53, 0.33, 0.34));
+        HandleList expected = new HandleList();
+        PackedPointIndex.build(table, 0).range(0.52, 0.53, 0.33, 0.34, expected);
+
+        assertEquals(expected.size(), found.size());
+    }
+
+    // viewports around Germany at zoom levels between city and country
+    private static List<Bounds> queries(Random random, int count) {
+        List<Bounds> queries = new ArrayList<>(count);
+        for (int q = 0; q < count; q++) {
+            double span = 0.0005 * Math.pow(2, random.nextInt(6));
+            double minX = 0.51 + random.nextDouble() * 0.03;
+            double minY = 0.32 + random.nextDouble() * 0.03;
+            queries.add(new Bounds(minX, minX + span, minY, minY + span));
+        }
+        return queries;
+    }
+
+    private static Set<Integer> rangeSet(SpatialIndex index, Bounds bounds) {
+        HandleList found = new HandleList();
+        index.range(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, found);
+
+        Set<Integer> handles = new HashSet<>();
+        for (int i = 0; i < found.size(); i++) {
+            handles.add(found.get(i));
+        }
+        assertEquals(found.size(), handles.size());
+        return handles;
+    }
+
+    private static class QuadItem implements PointQuadTree.Item {
+        private final int handle;
+        private final Point point;
+
+        QuadItem(int handle, double x, double y) {
+            this.handle = handle;
+            this.point = new Point(x, y);
+        }
+
+        @Override
+        public Point getPoint() {
+            return point;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package de.inmotion_sst.freifunkfinder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The freifunk-karte feed bundled with the tests, parsed once for all of them
+ */
+final class TestFeed {
+    static final File FILE = new File("../data/freifunk-karte-data.json");
+    static final int ROUTER_COUNT = 21639;
+
+    private static List<Node> nodes;
+
+    private TestFeed() {
+    }
+
+    /**
+     * @return The nodes of the feed in its order, copy them to change the list
+     */
+    static synchronized List<Node> nodes() throws IOException {
+        if (nodes == null) {
+            List<Node> feed = new ArrayList<>();
+            try (InputStream in = new FileInputStream(FILE)) {
+                new NodeStreamParser().parse(in, feed::addAll);
+            }
+            nodes = Collections.unmodifiableList(feed);
+        }
+        return nodes;
+    }
+
+    static NodeTable table() throws IOException {
+        return NodeTable.of(nodes());
+    }
+}
@@ -0,0 +1,158 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.inmotion_sst.freifunkfinder.clustering.Cancellation;
+import de.inmotion_sst.freifunkfinder.clustering.CellIndex;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterList;
+import de.inmotion_sst.freifunkfinder.clustering.SiteCluster;
+import de.inmotion_sst.freifunkfinder.clustering.Sites;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.TiledDistanceBasedAlgorithm;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class TiledDistanceBasedAlgorithmTests {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    private NodeTable table;
+    private SpatialDataSource<Node> dataSource;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+        dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+    }
+
+    @Test
+    public void clusters_containEveryNodeOfVisibleTilesOnce() {
+        TiledDistanceBasedAlgorithm<Node> sut = new TiledDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        Sites<Node> sites = dataSource.snapshot().getSites();
+
+        for (int zoom : new int[]{7, 10, 13}) {
+            LatLng center = new LatLng(51.23, 6.78);
+            sut.onCameraChange(new CameraPosition(center, zoom, 0, 0));
+            Set<? extends Cluster<Node>> clusters = sut.getClusters(zoom);
+
+            // tiles hold the sites placed within them, each with all of its nodes
+            int[] tiles = visibleTiles(center, zoom);
+            Set<Integer> expected = new HashSet<>();
+            int expectedNodes = 0;
+            for (int site = 0; site < sites.size(); site++) {
+                double latitude = sites.getLatitude(site);
+                double longitude = sites.getLongitude(site);
+                int x = CellIndex.toCell(SpatialDataSource.toX(longitude), zoom);
+                int y = CellIndex.toCell(SpatialDataSource.toY(latitude), zoom);
+                if (Math.abs(latitude) < 90 && Math.abs(longitude) <= 180 && x >= tiles[0] && x <= tiles[1] && y >= tiles[2] && y <= tiles[3]) {
+                    expected.add(site);
+                    expectedNodes += sites.getCount(site);
+                }
+            }
+            assertTrue(expected.size() > 0);
+            assertEquals(expected, sites(clusters, sites));
+            assertEquals(expectedNodes, nodes(clusters).size());
+        }
+    }
+
+    @Test
+    public void getClusters_reusesTilesUntilItemsChange() {
+        TiledDistanceBasedAlgorithm<Node> sut = new TiledDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        sut.onCameraChange(new CameraPosition(new LatLng(49.01, 8.40), 11, 0, 0));
+
+        Set<? extends Cluster<Node>> first = sut.getClusters(11);
+        long misses = sut.getMisses();
+        assertEquals(0, sut.getHits());
+
+        Set<? extends Cluster<Node>> second = sut.getClusters(11);
+        assertEquals(first, second);
+        assertEquals(misses, sut.getHits());
+        assertEquals(misses, sut.getMisses());
+
+        // same nodes under other handles, clusters of the old table must not be returned
+        List<Node> reversed = new ArrayList<>(table.asList());
+        Collections.reverse(reversed);
+        NodeTable other = NodeTable.of(reversed);
+        dataSource.setItems(other, null);
+
+        Set<? extends Cluster<Node>> third = sut.getClusters(11);
+        assertEquals(2 * misses, sut.getMisses());
+        Sites<Node> otherSites = dataSource.snapshot().getSites();
+        assertTrue(otherSites.getTable() == other);
+        sites(third, otherSites);
+        assertEquals(nodes(first).size(), nodes(third).size());
+    }
+
+    @Test
+    public void getClusters_stopsWhenCancelled_andCachesOnlyCompleteTiles() {
+        TiledDistanceBasedAlgorithm<Node> sut = new TiledDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        sut.onCameraChange(new CameraPosition(new LatLng(51.23, 6.78), 11, 0, 0));
+
+        // cancelled after a few tiles
+        final AtomicInteger checks = new AtomicInteger();
+        ClusterList<Node> clusters = new ClusterList<>();
+        assertFalse(sut.getClusters(11, clusters, () -> checks.incrementAndGet() > 20));
+        assertTrue(clusters.isEmpty());
+        long misses = sut.getMisses();
+        assertTrue(misses > 1);
+
+        // the tiles before the cancelled one are cached, that one is clustered again
+        assertTrue(sut.getClusters(11, clusters, Cancellation.NONE));
+        assertEquals(misses - 1, sut.getHits());
+
+        TiledDistanceBasedAlgorithm<Node> fresh = new TiledDistanceBasedAlgorithm<>(WIDTH, HEIGHT, dataSource);
+        fresh.onCameraChange(new CameraPosition(new LatLng(51.23, 6.78), 11, 0, 0));
+        assertEquals(fresh.getClusters(11), clusters.toClusters());
+    }
+
+    // minX, maxX, minY, maxY of the tiles the viewport overlaps
+    private static int[] visibleTiles(LatLng center, int zoom) {
+        double halfWidth = WIDTH / Math.pow(2, zoom) / 256 / 2;
+        double halfHeight = HEIGHT / Math.pow(2, zoom) / 256 / 2;
+        double x = SpatialDataSource.toX(center.longitude);
+        double y = SpatialDataSource.toY(center.latitude);
+        return new int[]{CellIndex.toCell(x - halfWidth, zoom), CellIndex.toCell(x + halfWidth, zoom),
+                CellIndex.toCell(y - halfHeight, zoom), CellIndex.toCell(y + halfHeight, zoom)};
+    }
+
+    // the sites of the clusters, each cluster must be over the given sites and no site may be in two of them
+    private static Set<Integer> sites(Set<? extends Cluster<Node>> clusters, Sites<Node> sites) {
+        Set<Integer> seen = new HashSet<>();
+        for (Cluster<Node> cluster : clusters) {
+            SiteCluster<Node> siteCluster = (SiteCluster<Node>) cluster;
+            assertTrue(siteCluster.getSites() == sites);
+            for (int i = 0; i < siteCluster.getSiteCount(); i++) {
+                assertTrue(seen.add(siteCluster.getSite(i)));
+            }
+        }
+        return seen;
+    }
+
+    private static Map<Node, Integer> nodes(Set<? extends Cluster<Node>> clusters) {
+        Map<Node, Integer> seen = new IdentityHashMap<>();
+        for (Cluster<Node> cluster : clusters) {
+            assertTrue(cluster.getSize() > 0);
+            for (Node node : cluster.getItems()) {
+                assertTrue(seen.put(node, seen.size()) == null);
+            }
+        }
+        return seen;
+    }
+}
@@ -0,0 +1,104 @@
+package de.inmotion_sst.freifunkfinder;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.inmotion_sst.freifunkfinder.clustering.Cancellation;
+import de.inmotion_sst.freifunkfinder.clustering.ClusterList;
+import de.inmotion_sst.freifunkfinder.clustering.SpatialDataSource;
+import de.inmotion_sst.freifunkfinder.clustering.VisibleNonHierarchicalDistanceBasedAlgorithm;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class VisibleNonHierarchicalDistanceBasedAlgorithmTests {
+    // the Ruhr area, about 5000 nodes are visible at zoom 10
+    private static final LatLng CENTER = new LatLng(51.3, 7.2);
+
+    private NodeTable table;
+    private SpatialDataSource<Node> dataSource;
+
+    @Before
+    public void setup() throws Exception {
+        table = TestFeed.table();
+        dataSource = new SpatialDataSource<>();
+        dataSource.setItems(table, null);
+    }
+
+    @Test
+    public void clusterList_startsEveryClusterAtItsCenter() {
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> sut = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        sut.onCameraChange(new CameraPosition(CENTER, 10, 0, 0));
+        ClusterList<Node> clusters = new ClusterList<>();
+        sut.getClusters(10, clusters);
+
+        assertTrue(clusters.size() > 1);
+        Set<Cluster<Node>> converted = clusters.toClusters();
+        assertEquals(sut.getClusters(10), converted);
+
+        Map<Node, Integer> seen = new IdentityHashMap<>();
+        for (Cluster<Node> cluster : converted) {
+            for (Node node : cluster.getItems()) {
+                assertTrue(seen.put(node, seen.size()) == null);
+            }
+        }
+        for (int cluster = 0; cluster < clusters.size(); cluster++) {
+            int center = clusters.getSite(cluster, 0);
+            Node node = clusters.getSites().getItem(center);
+            assertEquals(node.getPosition(), findCluster(converted, node).getPosition());
+        }
+    }
+
+    @Test
+    public void getClusters_sameResultWhenStateIsReused() {
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> sut = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        sut.onCameraChange(new CameraPosition(CENTER, 10, 0, 0));
+        Set<? extends Cluster<Node>> first = sut.getClusters(10);
+
+        // passes at other zooms leave nothing behind in the state per site
+        sut.getClusters(8);
+        sut.getClusters(12);
+        assertEquals(first, sut.getClusters(10));
+
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> fresh = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        fresh.onCameraChange(new CameraPosition(CENTER, 10, 0, 0));
+        assertEquals(first, fresh.getClusters(10));
+    }
+
+    @Test
+    public void getClusters_stopsWhenCancelled() {
+        VisibleNonHierarchicalDistanceBasedAlgorithm<Node> sut = new VisibleNonHierarchicalDistanceBasedAlgorithm<>(1080, 1920, dataSource);
+        sut.onCameraChange(new CameraPosition(CENTER, 12, 0, 0));
+        Set<? extends Cluster<Node>> expected = sut.getClusters(12);
+
+        // cancelled after a few checks, once the pass has visited sites
+        final AtomicInteger checks = new AtomicInteger();
+        ClusterList<Node> clusters = new ClusterList<>();
+        assertFalse(sut.getClusters(12, clusters, () -> checks.incrementAndGet() > 3));
+        assertTrue(checks.get() > 3);
+        assertTrue(clusters.isEmpty());
+
+        // the cancelled pass left no visited sites behind
+        assertTrue(sut.getClusters(12, clusters, Cancellation.NONE));
+        assertEquals(expected, clusters.toClusters());
+    }
+
+    private static Cluster<Node> findCluster(Set<Cluster<Node>> clusters, Node node) {
+        for (Cluster<Node> cluster : clusters) {
+            if (new HashSet<>(cluster.getItems()).contains(node))
+                return cluster;
+        }
+        return null;
+    }
+}